@@ -0,0 +1,214 @@
+package ca.mohawk.odomaticterminalapp;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.View;
+
+import ca.mohawk.odomaticterminalapp.chart.Decimator;
+import ca.mohawk.odomaticterminalapp.chart.SampleRing;
+import ca.mohawk.odomaticterminalapp.obd.PidDecoder;
+
+/**
+ * Scrolling strip charts for polled PIDs, one lane per PID with its label
+ * and latest value as a readout, over the last {@link #WINDOW_NANOS}.
+ * <p>
+ * Samples go into a primitive {@link SampleRing} per PID as they are
+ * drained from the bus. Drawing decimates each lane to its pixel width
+ * with {@link Decimator#minMax}, so the cost of a frame depends on the
+ * view's width, not the sample rate, and nothing is allocated once the
+ * view has been laid out. However many samples arrive, the view redraws
+ * at most once per display frame, and not at all while nothing new came
+ * in. Main thread only.
+ */
+public class ChartView extends View implements Choreographer.FrameCallback {
+
+    public static final int MAX_SERIES = 12;
+    public static final long WINDOW_NANOS = 30_000_000_000L;
+    // 60 s at 50 Hz, more than a window's worth at any rate the link manages.
+    private static final int RING_CAPACITY = 3000;
+    private static final int[] COLORS = {
+            0xFF1565C0, 0xFFC62828, 0xFF2E7D32, 0xFFEF6C00, 0xFF6A1B9A, 0xFF00838F,
+            0xFF4E342E, 0xFFAD1457, 0xFF558B2F, 0xFF283593, 0xFFF9A825, 0xFF37474F,
+    };
+
+    private final int[] pids = new int[MAX_SERIES];
+    private final SampleRing[] rings = new SampleRing[MAX_SERIES];
+    private final String[] labels = new String[MAX_SERIES];
+    private final String[] units = new String[MAX_SERIES];
+    private int seriesCount;
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint gridPaint = new Paint();
+    private final StringBuilder readout = new StringBuilder();
+    private float[] points = new float[0];
+    private float[] segments = new float[0];
+    private boolean frameScheduled;
+
+    public ChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        linePaint.setStrokeWidth(1.5f * density);
+        linePaint.setStyle(Paint.Style.STROKE);
+        textPaint.setTextSize(11 * density);
+        textPaint.setColor(Color.BLACK);
+        gridPaint.setColor(0xFFDDDDDD);
+        for (int i = 0; i < MAX_SERIES; i++) {
+            rings[i] = new SampleRing(RING_CAPACITY);
+        }
+    }
+
+    /** Adds a lane for {@code pid} unless it has one or all {@link #MAX_SERIES} are taken. */
+    public void addSeries(int pid) {
+        if (lane(pid) >= 0 || seriesCount == MAX_SERIES) {
+            return;
+        }
+        pids[seriesCount] = pid;
+        labels[seriesCount] = PidDecoder.label(pid);
+        units[seriesCount] = PidDecoder.unit(pid);
+        rings[seriesCount].clear();
+        seriesCount++;
+        scheduleFrame();
+    }
+
+    /** Removes every lane. */
+    public void clear() {
+        seriesCount = 0;
+        scheduleFrame();
+    }
+
+    /** Records a sample for a PID with a lane; others are ignored. */
+    public void addSample(int pid, long timeNanos, double value) {
+        int lane = lane(pid);
+        if (lane < 0) {
+            return;
+        }
+        SampleRing ring = rings[lane];
+        if (ring.size() > 0 && timeNanos < ring.lastTime()) {
+            return;
+        }
+        ring.add(timeNanos, value);
+        scheduleFrame();
+    }
+
+    private int lane(int pid) {
+        for (int i = 0; i < seriesCount; i++) {
+            if (pids[i] == pid) return i;
+        }
+        return -1;
+    }
+
+    private void scheduleFrame() {
+        if (!frameScheduled) {
+            frameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameScheduled = false;
+        invalidate();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        Choreographer.getInstance().removeFrameCallback(this);
+        frameScheduled = false;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        points = new float[Decimator.minMaxCapacity(w)];
+        segments = new float[2 * points.length];
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (seriesCount == 0 || points.length == 0) {
+            return;
+        }
+        // All lanes share the time axis, ending at the newest sample of any of them.
+        long to = Long.MIN_VALUE;
+        for (int i = 0; i < seriesCount; i++) {
+            if (rings[i].size() > 0) to = Math.max(to, rings[i].lastTime());
+        }
+        if (to == Long.MIN_VALUE) {
+            return;
+        }
+        long from = to - WINDOW_NANOS;
+        int width = getWidth();
+        float laneHeight = (float) getHeight() / seriesCount;
+        float textHeight = textPaint.getTextSize();
+        for (int lane = 0; lane < seriesCount; lane++) {
+            float top = lane * laneHeight;
+            if (lane > 0) {
+                canvas.drawLine(0, top, width, top, gridPaint);
+            }
+            SampleRing ring = rings[lane];
+            int n = Decimator.minMax(ring, from, to, width, points);
+            if (n == 0) {
+                continue;
+            }
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (int i = 1; i < n; i += 2) {
+                if (points[i] < min) min = points[i];
+                if (points[i] > max) max = points[i];
+            }
+            float plotTop = top + textHeight + 2;
+            float plotHeight = laneHeight - textHeight - 4;
+            float range = max > min ? max - min : 1;
+            int s = 0;
+            for (int i = 0; i < n; i += 2) {
+                float x = points[i];
+                float y = plotTop + plotHeight - (points[i + 1] - min) / range * plotHeight;
+                if (i > 0) {
+                    segments[s++] = x;
+                    segments[s++] = y;
+                }
+                if (i < n - 2) {
+                    segments[s++] = x;
+                    segments[s++] = y;
+                }
+            }
+            linePaint.setColor(COLORS[lane]);
+            if (s > 0) {
+                canvas.drawLines(segments, 0, s, linePaint);
+            }
+
+            readout.setLength(0);
+            readout.append(labels[lane]).append(' ');
+            appendValue(readout, ring.value(ring.size() - 1));
+            readout.append(units[lane]).append("   ");
+            appendValue(readout, min);
+            readout.append(" .. ");
+            appendValue(readout, max);
+            textPaint.setColor(COLORS[lane]);
+            canvas.drawText(readout, 0, readout.length(), 4, top + textHeight, textPaint);
+        }
+    }
+
+    // One decimal, without going through String.format.
+    private static void appendValue(StringBuilder sb, double value) {
+        if (Double.isNaN(value)) {
+            sb.append('-');
+            return;
+        }
+        long tenths = Math.round(value * 10);
+        if (tenths < 0) {
+            sb.append('-');
+            tenths = -tenths;
+        }
+        sb.append(tenths / 10);
+        if (tenths % 10 != 0) {
+            sb.append('.').append(tenths % 10);
+        }
+    }
+}
@@ -8,6 +8,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
@@ -15,6 +16,7 @@ import android.util.Log;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.ListView;
 import android.widget.Toast;
 import androidx.activity.result.ActivityResultLauncher;
@@ -23,13 +25,19 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
-import java.util.ArrayList;
+import ca.mohawk.odomaticterminalapp.link.DeviceList;
+import ca.mohawk.odomaticterminalapp.link.RecentAdapters;
+
+import java.io.File;
+import java.io.IOException;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "Odomatic";
     private static final int REQUEST_ENABLE_BT = 1;
     private static final int REQUEST_PERMISSIONS = 2;
+    private static final String PREFS = "discovery";
+    private static final String PREF_STOP_ON_KNOWN = "stop_on_known";
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothManager bluetoothManager;
 
@@ -37,10 +45,13 @@ public class MainActivity extends AppCompatActivity {
 
     private Button btnScan;
     private ListView listDevices;
+    private CheckBox cbStopOnKnown;
 
-    // For discovered devices
-    private ArrayList<BluetoothDevice> discoveredDevices = new ArrayList<>();
-    private ArrayAdapter<String> devicesAdapter;
+    // Recent, paired and discovered adapters, one entry per address
+    private final DeviceList deviceList = new DeviceList();
+    private ArrayAdapter<DeviceList.Device> devicesAdapter;
+    private RecentAdapters recentAdapters;
+    private SharedPreferences prefs;
 
     // Flag to track if BroadcastReceiver is registered
     private boolean isReceiverRegistered = false;
@@ -63,6 +74,21 @@ public class MainActivity extends AppCompatActivity {
 
         btnScan = findViewById(R.id.btnScan);
         listDevices = findViewById(R.id.listDevices);
+        cbStopOnKnown = findViewById(R.id.cbStopOnKnown);
+
+        // Recently used adapters can be tapped right away, before any scan.
+        recentAdapters = new RecentAdapters(new File(getFilesDir(), "recent_adapters.properties"));
+        for (RecentAdapters.Entry entry : recentAdapters.list()) {
+            deviceList.addRecent(entry.address, entry.name, entry.lastUsed);
+        }
+        devicesAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1,
+                deviceList.getDevices());
+        listDevices.setAdapter(devicesAdapter);
+
+        prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
+        cbStopOnKnown.setChecked(prefs.getBoolean(PREF_STOP_ON_KNOWN, true));
+        cbStopOnKnown.setOnCheckedChangeListener((button, checked) ->
+                prefs.edit().putBoolean(PREF_STOP_ON_KNOWN, checked).apply());
 
         bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
 
@@ -92,22 +118,23 @@ public class MainActivity extends AppCompatActivity {
 
         // Request needed runtime permissions
         checkAndRequestPermissions();
-
-        // Setup list adapter
-        devicesAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
-        listDevices.setAdapter(devicesAdapter);
+        listBondedDevices();
 
         // On user tap, launch SendCommandActivity with the chosen device address
         listDevices.setOnItemClickListener((parent, view, position, id) -> {
-            BluetoothDevice chosenDevice = discoveredDevices.get(position);
+            DeviceList.Device chosen = deviceList.getDevices().get(position);
+            // An inquiry in progress slows down the RFCOMM connect considerably.
+            stopDiscovery();
+            BluetoothDevice chosenDevice = bluetoothAdapter.getRemoteDevice(chosen.getAddress());
 
             if (chosenDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
-                Log.d(TAG, "Attempting to pair with " + chosenDevice.getName());
+                Log.d(TAG, "Attempting to pair with " + chosen.getName());
                 chosenDevice.createBond();
             }
+            rememberAdapter(chosen);
 
             Intent intent = new Intent(MainActivity.this, SendCommandActivity.class);
-            intent.putExtra("device_address", chosenDevice.getAddress());
+            intent.putExtra("device_address", chosen.getAddress());
             startActivity(intent);
         });
 
@@ -173,12 +200,12 @@ public class MainActivity extends AppCompatActivity {
      * Start the device discovery (scan) process
      */
     private void startBluetoothDiscovery() {
-        // Clear previous results
-        discoveredDevices.clear();
-        devicesAdapter.clear();
+        // Drop adapters only seen by the last scan; recent and paired ones stay
+        deviceList.startScan();
 
         // Show already paired devices that contain "OBD" in their name
         listBondedDevices();
+        devicesAdapter.notifyDataSetChanged();
 
         // Check BLUETOOTH_SCAN permission on Android 12+
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_SCAN)
@@ -192,9 +219,11 @@ public class MainActivity extends AppCompatActivity {
         }
 
         // Register receiver for new devices
-        IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-        registerReceiver(mReceiver, filter);
-        isReceiverRegistered = true;
+        if (!isReceiverRegistered) {
+            IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+            registerReceiver(mReceiver, filter);
+            isReceiverRegistered = true;
+        }
 
         bluetoothAdapter.startDiscovery();
         Toast.makeText(this, "Scanning for OBD devices...", Toast.LENGTH_SHORT).show();
@@ -213,16 +242,23 @@ public class MainActivity extends AppCompatActivity {
 
         for (BluetoothDevice device : bluetoothAdapter.getBondedDevices()) {
             String deviceName = device.getName();
-            if (deviceName == null) {
-                deviceName = "Unknown (Paired)";
-            }
-            // We only add devices whose names contain "OBD" (ignore case)
-            if (deviceName.toUpperCase().contains("OBD") || deviceName.toUpperCase().contains("ELM")) {
-                String listItem = deviceName + " (Paired)";
-                discoveredDevices.add(device);
-                devicesAdapter.add(listItem);
+            // We only add devices whose names contain "OBD" or "ELM" (ignore case)
+            if (DeviceList.isAdapterName(deviceName)) {
+                deviceList.addBonded(device.getAddress(), deviceName);
             }
         }
+        devicesAdapter.notifyDataSetChanged();
+    }
+
+    private void rememberAdapter(DeviceList.Device device) {
+        long now = System.currentTimeMillis();
+        deviceList.addRecent(device.getAddress(), device.getName(), now);
+        devicesAdapter.notifyDataSetChanged();
+        try {
+            recentAdapters.put(device.getAddress(), device.getName(), now);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save recent adapters", e);
+        }
     }
 
     /**
@@ -252,18 +288,20 @@ public class MainActivity extends AppCompatActivity {
                     } else {
                         deviceName = device.getName();
                     }
-                    if (deviceName == null) {
-                        deviceName = "Unknown";
-                    }
-
-                    // Filter by "OBD" ignoring case
-                    if (deviceName.toUpperCase().contains("OBD")|| deviceName.toUpperCase().contains("ELM")) {
-                        Log.d(TAG, "Found OBD device: " + deviceName);
-
-                        if(device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                            discoveredDevices.add(device);
-                            String listItem = deviceName ;
-                            runOnUiThread(() -> devicesAdapter.add(listItem));
+                    // Filter by "OBD" or "ELM" ignoring case
+                    if (DeviceList.isAdapterName(deviceName)) {
+                        String address = device.getAddress();
+                        int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                        boolean bonded = device.getBondState() == BluetoothDevice.BOND_BONDED;
+                        // Receivers run on the main thread, which owns the list.
+                        if (deviceList.onFound(address, deviceName,
+                                rssi == Short.MIN_VALUE ? DeviceList.NO_RSSI : rssi, bonded)) {
+                            devicesAdapter.notifyDataSetChanged();
+                        }
+                        if (cbStopOnKnown.isChecked() && recentAdapters.contains(address)) {
+                            // The adapter we want is in range; no need to sit out the full inquiry.
+                            Log.d(TAG, "Known adapter found, ending discovery: " + deviceName);
+                            cancelDiscovery();
                         }
                     }
                 }
@@ -279,20 +317,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void stopDiscovery() {
-        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_SCAN)
-                != PackageManager.PERMISSION_GRANTED) {
-            return;
-        }
-        if (bluetoothAdapter != null && bluetoothAdapter.isDiscovering()) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_SCAN)
-                        == PackageManager.PERMISSION_GRANTED) {
-                    bluetoothAdapter.cancelDiscovery();
-                }
-            } else {
-                bluetoothAdapter.cancelDiscovery();
-            }
-        }
+        cancelDiscovery();
         if (isReceiverRegistered) {
             try {
                 unregisterReceiver(mReceiver);
@@ -302,4 +327,15 @@ public class MainActivity extends AppCompatActivity {
             isReceiverRegistered = false;
         }
     }
+
+    // Ends the inquiry but keeps the receiver, so late reports still update the list.
+    private void cancelDiscovery() {
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_SCAN)
+                != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        if (bluetoothAdapter != null && bluetoothAdapter.isDiscovering()) {
+            bluetoothAdapter.cancelDiscovery();
+        }
+    }
 }
\ No newline at end of file
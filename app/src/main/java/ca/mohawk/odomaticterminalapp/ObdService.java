@@ -0,0 +1,796 @@
+package ca.mohawk.odomaticterminalapp;
+
+import android.Manifest;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import ca.mohawk.odomaticterminalapp.export.Export;
+import ca.mohawk.odomaticterminalapp.export.SampleExport;
+import ca.mohawk.odomaticterminalapp.export.TraceExport;
+import ca.mohawk.odomaticterminalapp.link.Elm327Simulator;
+import ca.mohawk.odomaticterminalapp.link.FrameBus;
+import ca.mohawk.odomaticterminalapp.link.ObdConnection;
+import ca.mohawk.odomaticterminalapp.link.SessionManager;
+import ca.mohawk.odomaticterminalapp.link.SessionRecorder;
+import ca.mohawk.odomaticterminalapp.link.SocketTransport;
+import ca.mohawk.odomaticterminalapp.link.Transport;
+import ca.mohawk.odomaticterminalapp.obd.AdapterSettings;
+import ca.mohawk.odomaticterminalapp.obd.AlertRules;
+import ca.mohawk.odomaticterminalapp.obd.CanMonitor;
+import ca.mohawk.odomaticterminalapp.obd.CapabilityCache;
+import ca.mohawk.odomaticterminalapp.obd.CapabilityProbe;
+import ca.mohawk.odomaticterminalapp.obd.CommandQueue;
+import ca.mohawk.odomaticterminalapp.obd.CommandScript;
+import ca.mohawk.odomaticterminalapp.obd.DiagnosticReport;
+import ca.mohawk.odomaticterminalapp.obd.DiagnosticScan;
+import ca.mohawk.odomaticterminalapp.obd.Dtc;
+import ca.mohawk.odomaticterminalapp.obd.PidDecoder;
+import ca.mohawk.odomaticterminalapp.obd.Pids;
+import ca.mohawk.odomaticterminalapp.obd.PollScheduler;
+import ca.mohawk.odomaticterminalapp.obd.ScriptRunner;
+import ca.mohawk.odomaticterminalapp.obd.TripComputer;
+import ca.mohawk.odomaticterminalapp.obd.VehicleCapabilities;
+import ca.mohawk.odomaticterminalapp.store.SampleStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Foreground service that owns the adapter links, so they survive screen
+ * rotation and the user switching apps. Several adapters can be connected
+ * at once, one {@link Session} per device address, all running on the
+ * shared threads of one {@link SessionManager}.
+ * <p>
+ * Everything a session's link produces (reply lines, status changes,
+ * decoded samples) is published on that session's {@link FrameBus}, which
+ * any number of views can subscribe to and drain at their own pace.
+ * <p>
+ * Each start with a device address as {@link #EXTRA_DEVICE_ADDRESS} opens
+ * a session for it unless one is already open; {@link #ACTION_CLOSE} closes
+ * it again, and the service stops with its last session. Activities bind
+ * to it for the bus and for sending commands.
+ * <p>
+ * Exports run one at a time on a background thread and land in
+ * files/exports. One cut short, e.g. by the service stopping, picks up
+ * where it left off the next time the same export is started.
+ */
+public class ObdService extends Service {
+    private static final String TAG = "OBD_Service";
+    public static final String EXTRA_DEVICE_ADDRESS = "device_address";
+    /** Closes the session for {@link #EXTRA_DEVICE_ADDRESS}. */
+    public static final String ACTION_CLOSE = "ca.mohawk.odomaticterminalapp.action.CLOSE_SESSION";
+    // Device addresses that select a non-Bluetooth transport, for testing.
+    private static final String TCP_PREFIX = "tcp://";
+    private static final String SIMULATOR_ADDRESS = "sim:";
+    private static final String CHANNEL_ID = "obd_link";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int BUS_CAPACITY = 4096;
+    // How often stored samples are written out; a kill loses at most this much history.
+    private static final long STORE_FLUSH_MILLIS = 30_000;
+
+    // PIDs polled by the Poll button: pid, target rate in Hz, priority, and
+    // the dead-band and floor rate in Hz for adaptive polling; band 0 polls at a fixed rate.
+    static final double[][] DEFAULT_POLL_SET = {
+            {Pids.ENGINE_RPM, 20, 2, 50, 2},
+            {Pids.VEHICLE_SPEED, 10, 1, 1, 1},
+            {Pids.THROTTLE_POSITION, 10, 1, 1, 1},
+            {Pids.ENGINE_LOAD, 5, 1, 2, 1},
+            {Pids.MAF_RATE, 2, 1, 0.5, 0.5},
+            {Pids.COOLANT_TEMP, 0.5, 0, 1, 0.1},
+            {Pids.FUEL_LEVEL, 1.0 / 30, 0, 0, 0},
+    };
+
+    // Alert rules every session starts with, see AlertRules for the syntax.
+    static final String DEFAULT_ALERT_RULES = "Coolant hot: ECT > 105 for 3s\n"
+            + "Over-rev: RPM > 6500 for 500ms\n"
+            + "Rev spike: RPM rate > 4000\n"
+            + "New trouble code: DTC new\n";
+
+    /** What {@link Session#export} writes. */
+    public enum ExportType {
+        SAMPLES_CSV, SAMPLES_BINARY, TRACE_CSV
+    }
+
+    /** Hears about an export on the main thread. */
+    public interface ExportListener {
+        void onExportProgress(int percent);
+
+        /** @param error null if {@code file} is complete */
+        void onExportDone(File file, IOException error);
+    }
+
+    public class LocalBinder extends Binder {
+        public ObdService getService() {
+            return ObdService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // Main thread only.
+    private final Map<String, Session> sessions = new LinkedHashMap<>();
+    private SessionManager sessionManager;
+    private ExecutorService exportExecutor;
+    // Opens and closes the sessions' sample stores and trace files, which can take a while.
+    private ExecutorService storageExecutor;
+    private CapabilityCache capabilityCache;
+    private String lastAddress;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                "OBD link", NotificationManager.IMPORTANCE_LOW);
+        getSystemService(NotificationManager.class).createNotificationChannel(channel);
+
+        capabilityCache = new CapabilityCache(new File(getFilesDir(), "capabilities.properties"));
+        sessionManager = new SessionManager();
+        exportExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "export"));
+        storageExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "storage"));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification(),
+                ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+        String address = intent == null ? null : intent.getStringExtra(EXTRA_DEVICE_ADDRESS);
+        if (address != null && ACTION_CLOSE.equals(intent.getAction())) {
+            closeSession(address);
+            return START_NOT_STICKY;
+        }
+        if (address != null && !sessions.containsKey(address)) {
+            // Already open otherwise, e.g. the activity was recreated.
+            openSession(address);
+        }
+        if (sessions.isEmpty()) {
+            stopSelf();
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /** The open session for a device address, or null. */
+    public Session getSession(String address) {
+        return sessions.get(address);
+    }
+
+    public Collection<Session> getSessions() {
+        return sessions.values();
+    }
+
+    private void openSession(String address) {
+        Transport transport = createTransport(address);
+        if (transport == null) {
+            return;
+        }
+        Session session = new Session(address, transport);
+        sessions.put(address, session);
+        lastAddress = address;
+        sessionManager.add(session.connection);
+        updateNotification();
+    }
+
+    private void closeSession(String address) {
+        Session session = sessions.remove(address);
+        if (session != null) {
+            session.close();
+        }
+        if (sessions.isEmpty()) {
+            stopSelf();
+        } else {
+            updateNotification();
+        }
+    }
+
+    /**
+     * One adapter link with its own command queue, settings, poll schedule,
+     * recording, sample store and bus. Its link callbacks run on the session manager's
+     * threads, one at a time, which makes them the bus's only producer. The
+     * store and the recording are opened and closed on the storage thread;
+     * until the store is open, samples are shown but not stored.
+     */
+    public final class Session {
+        private final String address;
+        private final FrameBus bus = new FrameBus(BUS_CAPACITY);
+        private final AdapterSettings adapterSettings = new AdapterSettings();
+        private final PollScheduler pollScheduler;
+        private final ObdConnection connection;
+        private final CommandQueue commandQueue;
+        private final CanMonitor canMonitor;
+        private volatile SessionRecorder recorder;
+        private volatile SampleStore sampleStore;
+        // Link callbacks only: when the sample store was last flushed, in stored time.
+        private long flushedMillis;
+        private final TripComputer tripComputer = new TripComputer();
+        private volatile AlertRules alertRules;
+        // Wall clock minus monotonic clock, to store samples in wall time.
+        private final long clockOffsetMillis = System.currentTimeMillis() - System.nanoTime() / 1_000_000L;
+        private volatile String status = "Not Connected";
+
+        Session(String address, Transport transport) {
+            this.address = address;
+            alertRules = compileAlertRules(DEFAULT_ALERT_RULES);
+            // The dead-band thins out what is shown and stored; trip figures and alerts see every sample.
+            pollScheduler = new PollScheduler((pid, timeNanos, value) -> {
+                bus.publishSample(pid, timeNanos, value);
+                storeSample(pid, timeNanos, value);
+            });
+            pollScheduler.setEverySampleListener((pid, timeNanos, value) -> {
+                tripComputer.onSample(pid, timeNanos, value);
+                alertRules.onSample(pid, timeNanos, value);
+            });
+            pollScheduler.setSlowdownGuard((pid, value, band) -> alertRules.maySlowDown(pid, value, band));
+            for (double[] entry : DEFAULT_POLL_SET) {
+                pollScheduler.addPid((int) entry[0], entry[1], (int) entry[2]);
+                if (entry[3] > 0) {
+                    pollScheduler.setDeadBand((int) entry[0], entry[3], entry[4]);
+                }
+            }
+            pollScheduler.setRateListener((pid, targetHz, achievedHz, met) -> {
+                if (!met) {
+                    Log.w(TAG, String.format("%s: %s polled at %.2f Hz, target %.2f Hz",
+                            address, PidDecoder.label(pid), achievedHz, targetHz));
+                }
+            });
+            connection = new ObdConnection(transport, new ObdConnection.Listener() {
+                @Override
+                public void onConnected(String name) {
+                    // Poll what the vehicle last seen here supports until the probe confirms it.
+                    pollScheduler.setCapabilities(capabilityCache.getLast(address));
+                    probeCapabilities();
+                    publishStatus("Connected to: " + name);
+                    if (connection.getReconnectCount() > 0) {
+                        String note = "Reconnected in " + connection.getLastReconnectMillis() + " ms";
+                        Log.i(TAG, note);
+                        publishNote(note);
+                    }
+                }
+
+                @Override
+                public void onConnectFailed(IOException e) {
+                    Log.e(TAG, "Error connecting to " + address, e);
+                    publishStatus("Connection failed: " + e.getMessage());
+                }
+
+                @Override
+                public void onDisconnected(IOException e) {
+                    Log.e(TAG, "Reading error on " + address + ", attempting reconnection", e);
+                    publishStatus("Reconnecting...");
+                }
+
+                @Override
+                public void onLine(byte[] buffer, int offset, int length) {
+                    bus.publishLine(buffer, offset, length, System.nanoTime());
+                }
+            });
+            commandQueue = connection.getCommandQueue();
+            commandQueue.setRequestSource(pollScheduler);
+            VehicleCapabilities last = capabilityCache.getLast(address);
+            if (last != null) {
+                adapterSettings.setDetectedProtocol(last.getProtocol());
+            }
+            connection.setSettings(adapterSettings);
+            connection.setAdaptiveTiming(true);
+            canMonitor = new CanMonitor(adapterSettings, bus::publishCanFrame);
+            connection.setCanMonitor(canMonitor);
+            storageExecutor.execute(this::openFiles);
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public FrameBus getBus() {
+            return bus;
+        }
+
+        public ObdConnection getConnection() {
+            return connection;
+        }
+
+        /** The last connection status message. */
+        public String getStatus() {
+            return status;
+        }
+
+        public boolean isConnected() {
+            return connection.isConnected();
+        }
+
+        /**
+         * Queues a command typed by the user. A typed {@code ATMA} starts
+         * monitor mode instead, and any other command ends it first.
+         */
+        public void send(String command) throws IOException {
+            if (command.trim().equalsIgnoreCase("ATMA")) {
+                if (!setMonitoring(true)) {
+                    throw new IOException("Not connected");
+                }
+                return;
+            }
+            setMonitoring(false);
+            connection.send(command);
+        }
+
+        public CanMonitor getCanMonitor() {
+            return canMonitor;
+        }
+
+        public boolean isMonitoring() {
+            return canMonitor.isRunning();
+        }
+
+        /**
+         * Starts or stops CAN monitor mode. Polling stops while monitoring;
+         * the frames go to the bus instead of the terminal. Returns false if
+         * it cannot start because the link is down.
+         */
+        public boolean setMonitoring(boolean on) {
+            try {
+                if (!on) {
+                    canMonitor.stop(commandQueue);
+                    return true;
+                }
+                if (!isConnected()) {
+                    return false;
+                }
+                if (!canMonitor.isRunning()) {
+                    setPolling(false);
+                    canMonitor.reset();
+                    canMonitor.start(commandQueue);
+                }
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Monitor command not sent", e);
+                return !on;
+            }
+        }
+
+        public boolean isPolling() {
+            return pollScheduler.isRunning();
+        }
+
+        /** Starts or stops polling; returns false if it cannot start because the link is down. */
+        public boolean setPolling(boolean on) {
+            if (!on) {
+                pollScheduler.stop();
+                handler.removeCallbacks(pollTick);
+                return true;
+            }
+            if (!isConnected()) {
+                return false;
+            }
+            setMonitoring(false);
+            pollScheduler.start();
+            handler.post(pollTick);
+            return true;
+        }
+
+        /**
+         * Reads every ECU's trouble codes, freeze frame and monitor results in
+         * one pipelined pass. The report appears on the bus as terminal lines.
+         * Returns false if the link is down.
+         */
+        public boolean runDiagnosticScan() {
+            if (!isConnected()) {
+                return false;
+            }
+            setMonitoring(false);
+            DiagnosticScan scan = new DiagnosticScan(adapterSettings, report -> {
+                for (String line : report.toString().split("\n")) {
+                    publishNote(line);
+                }
+                AlertRules rules = alertRules;
+                long now = System.nanoTime();
+                for (DiagnosticReport.Ecu ecu : report.getEcus()) {
+                    for (List<String> codes : Arrays.asList(ecu.getStored(), ecu.getPending(), ecu.getPermanent())) {
+                        for (String code : codes) {
+                            rules.onDtc(Dtc.parse(code), now);
+                        }
+                    }
+                }
+            });
+            try {
+                scan.start(commandQueue);
+            } catch (IOException e) {
+                Log.w(TAG, "Diagnostic scan not sent", e);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Runs a command script, pipelined. Every step's timing and any
+         * failed check appear on the bus as terminal lines as the replies
+         * arrive, followed by a summary. Returns false if the link is down.
+         */
+        public boolean runScript(CommandScript script) {
+            if (!isConnected()) {
+                return false;
+            }
+            setMonitoring(false);
+            ScriptRunner runner = new ScriptRunner(script, adapterSettings, new ScriptRunner.Listener() {
+                @Override
+                public void onStep(ScriptRunner.StepResult result) {
+                    publishNote(result.toString());
+                }
+
+                @Override
+                public void onScriptComplete(ScriptRunner.Result result) {
+                    publishNote(result.toString());
+                }
+            });
+            try {
+                runner.start(commandQueue);
+            } catch (IOException e) {
+                Log.w(TAG, "Script not sent", e);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Finds out which PIDs the vehicle supports, from the cache when it can
+         * be confirmed cheaply, and limits polling to them. Runs right after
+         * connecting.
+         */
+        private void probeCapabilities() {
+            CapabilityProbe probe = new CapabilityProbe(capabilityCache, address,
+                    new CapabilityProbe.Listener() {
+                        @Override
+                        public void onCapabilities(VehicleCapabilities capabilities, boolean cached) {
+                            pollScheduler.setCapabilities(capabilities);
+                            adapterSettings.setDetectedProtocol(capabilities.getProtocol());
+                            publishNote("Vehicle: " + capabilities + (cached ? " (cached)" : ""));
+                        }
+
+                        @Override
+                        public void onProbeFailed(String reply) {
+                            Log.w(TAG, "Vehicle on " + address + " did not report supported PIDs: " + reply);
+                        }
+                    });
+            try {
+                probe.start(commandQueue);
+            } catch (IOException e) {
+                Log.w(TAG, "Capability probe not sent", e);
+            }
+        }
+
+        // Both run on the link's callback thread, the bus's only producer.
+        private void publishStatus(String text) {
+            status = text;
+            bus.publishStatus(text, System.nanoTime());
+            handler.post(ObdService.this::updateNotification);
+        }
+
+        private void publishNote(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            bus.publishLine(bytes, 0, bytes.length, System.nanoTime());
+        }
+
+        /**
+         * Restarts polling when the link has gone idle, e.g. because nothing was
+         * due when the last reply came in. While replies keep arriving the
+         * command queue pulls the next batch from the scheduler by itself.
+         */
+        private final Runnable pollTick = new Runnable() {
+            @Override
+            public void run() {
+                if (!pollScheduler.isRunning()) {
+                    return;
+                }
+                if (connection.isConnected() && commandQueue.isIdle()) {
+                    try {
+                        commandQueue.kick();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Poll send failed", e);
+                    }
+                }
+                long waitNanos = pollScheduler.nanosUntilDue(System.nanoTime());
+                long waitMs = Math.max(5, Math.min(500, waitNanos / 1_000_000L));
+                handler.postDelayed(this, waitMs);
+            }
+        };
+
+        // Storage thread. Indexing the store grows with its history.
+        private void openFiles() {
+            openSampleStore();
+            startRecording();
+            connection.setRecorder(recorder);
+        }
+
+        /**
+         * Opens a new raw trace file for this session under files/sessions. The
+         * session still runs, unrecorded, if the file cannot be created.
+         */
+        private void startRecording() {
+            File dir = new File(getFilesDir(), "sessions");
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                Log.w(TAG, "Cannot create " + dir);
+                return;
+            }
+            String name = "session-"
+                    + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+                    + "-" + address.replaceAll("[^A-Za-z0-9]", "") + ".odr";
+            try {
+                recorder = new SessionRecorder(new File(dir, name));
+            } catch (IOException e) {
+                Log.w(TAG, "Session recording disabled", e);
+            }
+        }
+
+        /**
+         * Opens the decoded sample history for this adapter under
+         * files/series. Samples are still shown, unstored, if it cannot be
+         * opened.
+         */
+        private void openSampleStore() {
+            File dir = new File(new File(getFilesDir(), "series"), address.replaceAll("[^A-Za-z0-9]", ""));
+            try {
+                sampleStore = new SampleStore(dir);
+            } catch (IOException e) {
+                Log.w(TAG, "Sample store disabled", e);
+            }
+        }
+
+        private void storeSample(int pid, long timeNanos, double value) {
+            SampleStore store = sampleStore;
+            if (store == null) {
+                return;
+            }
+            long timeMillis = clockOffsetMillis + timeNanos / 1_000_000L;
+            try {
+                store.append(pid, timeMillis, value);
+                if (timeMillis - flushedMillis >= STORE_FLUSH_MILLIS) {
+                    flushedMillis = timeMillis;
+                    store.flush();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Sample store write failed, storing stopped", e);
+                sampleStore = null;
+            }
+        }
+
+        /**
+         * Starts writing this adapter's stored samples, or this session's raw
+         * trace, to files/exports, in fixed-size chunks on the export thread.
+         * Returns false if there is nothing to export.
+         */
+        public boolean export(ExportType type, ExportListener listener) {
+            File dir = new File(getFilesDir(), "exports");
+            String device = address.replaceAll("[^A-Za-z0-9]", "");
+            Export export;
+            if (type == ExportType.TRACE_CSV) {
+                SessionRecorder r = recorder;
+                if (r == null) {
+                    return false;
+                }
+                File trace = r.getFile();
+                String name = trace.getName().replaceFirst("\\.odr$", "") + ".csv";
+                export = new TraceExport(r, new File(dir, name));
+            } else {
+                SampleStore store = sampleStore;
+                if (store == null) {
+                    return false;
+                }
+                boolean csv = type == ExportType.SAMPLES_CSV;
+                export = new SampleExport(store, csv ? SampleExport.Format.CSV : SampleExport.Format.BINARY,
+                        new File(dir, "samples-" + device + (csv ? ".csv" : ".bin")));
+            }
+            exportExecutor.execute(() -> runExport(export, dir, listener));
+            return true;
+        }
+
+        /** Decoded samples of this adapter, across sessions; null if unavailable. */
+        public SampleStore getSampleStore() {
+            return sampleStore;
+        }
+
+        public AlertRules getAlertRules() {
+            return alertRules;
+        }
+
+        /**
+         * Replaces the alert rules. Raised alerts are dropped without being
+         * cleared.
+         *
+         * @throws IllegalArgumentException naming the line, if a rule is malformed
+         */
+        public void setAlertRules(String text) {
+            alertRules = compileAlertRules(text);
+        }
+
+        // Alerts go out on the bus from the link thread, as the samples that raise them come in.
+        private AlertRules compileAlertRules(String text) {
+            return AlertRules.compile(text, (rule, raised, timeNanos, value) ->
+                    bus.publishAlert(rule.id, raised, timeNanos, value));
+        }
+
+        /** Distance, fuel and time figures since the session connected. */
+        public TripComputer getTripComputer() {
+            return tripComputer;
+        }
+
+        private void close() {
+            pollScheduler.stop();
+            handler.removeCallbacks(pollTick);
+            sessionManager.remove(connection);
+            // Queued behind openFiles(), so it also closes what that has yet to open.
+            storageExecutor.execute(this::closeFiles);
+        }
+
+        // Storage thread. Seals the open blocks, forces them to disk and truncates the trace.
+        private void closeFiles() {
+            connection.setRecorder(null);
+            SampleStore store = sampleStore;
+            sampleStore = null;
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing sample store", e);
+                }
+            }
+            SessionRecorder r = recorder;
+            recorder = null;
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing session recording", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the transport for a device address: "tcp://host:port" for a
+     * network adapter or simulator, "sim:" for the built-in simulator, and a
+     * Bluetooth address otherwise. Returns null, after telling the user, if
+     * the Bluetooth device cannot be used.
+     */
+    private Transport createTransport(String address) {
+        if (address.startsWith(TCP_PREFIX)) {
+            return SocketTransport.fromUri(address);
+        }
+        if (address.equals(SIMULATOR_ADDRESS)) {
+            return new Elm327Simulator().newTransport();
+        }
+
+        BluetoothManager bluetoothManager = getSystemService(BluetoothManager.class);
+        BluetoothAdapter adapter = bluetoothManager.getAdapter();
+        if (adapter == null) {
+            Toast.makeText(this, "Bluetooth not supported on this device",
+                    Toast.LENGTH_SHORT).show();
+            return null;
+        }
+        if (checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT)
+                != PackageManager.PERMISSION_GRANTED) {
+            Toast.makeText(this, "Missing BLUETOOTH_CONNECT permission!",
+                    Toast.LENGTH_SHORT).show();
+            return null;
+        }
+        BluetoothDevice device = adapter.getRemoteDevice(address);
+        if (device == null) {
+            Toast.makeText(this, "Device not found!", Toast.LENGTH_SHORT).show();
+            return null;
+        }
+        return new RfcommTransport(device);
+    }
+
+    // Export thread. Yields between steps, so shutting the executor down stops it at a checkpoint.
+    private void runExport(Export export, File dir, ExportListener listener) {
+        IOException error = null;
+        int reported = -1;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            export.open();
+            while (export.step()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Export interrupted");
+                }
+                int percent = (int) (export.getProgress() * 100);
+                if (percent != reported) {
+                    reported = percent;
+                    handler.post(() -> listener.onExportProgress(percent));
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Export to " + export.getOutput() + " stopped", e);
+            error = e;
+        } finally {
+            try {
+                export.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing export", e);
+            }
+        }
+        IOException result = error;
+        handler.post(() -> listener.onExportDone(export.getOutput(), result));
+    }
+
+    private void updateNotification() {
+        if (!sessions.isEmpty()) {
+            getSystemService(NotificationManager.class).notify(NOTIFICATION_ID, buildNotification());
+        }
+    }
+
+    // One line for a single adapter, a count with the connected ones otherwise.
+    private Notification buildNotification() {
+        String text;
+        if (sessions.isEmpty()) {
+            text = "Not Connected";
+        } else if (sessions.size() == 1) {
+            text = sessions.values().iterator().next().getStatus();
+        } else {
+            int up = 0;
+            for (Session s : sessions.values()) {
+                if (s.isConnected()) up++;
+            }
+            text = up + " of " + sessions.size() + " adapters connected";
+        }
+        Intent open = new Intent(this, SendCommandActivity.class)
+                .putExtra(EXTRA_DEVICE_ADDRESS, lastAddress)
+                .addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent content = PendingIntent.getActivity(this, 0, open,
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+        return new Notification.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.terminal_square_logo)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setContentIntent(content)
+                .setOngoing(true)
+                .build();
+    }
+
+    @Override
+    public void onDestroy() {
+        handler.removeCallbacksAndMessages(null);
+        for (Session session : sessions.values()) {
+            session.close();
+        }
+        sessions.clear();
+        // An export in progress stops after its current step and resumes next time.
+        exportExecutor.shutdownNow();
+        // The sessions' files still get closed.
+        storageExecutor.shutdown();
+        try {
+            sessionManager.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing sessions", e);
+        }
+        super.onDestroy();
+    }
+}
@@ -0,0 +1,111 @@
+package ca.mohawk.odomaticterminalapp;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import ca.mohawk.odomaticterminalapp.link.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Transport over a Bluetooth serial port (RFCOMM) socket. The caller must
+ * hold BLUETOOTH_CONNECT before connecting.
+ * <p>
+ * Many ELM327 clones refuse the secure (authenticated) socket or drop it at
+ * random. If it fails, an insecure socket is tried. Whichever worked is
+ * tried first on every later reconnect.
+ * <p>
+ * Reads cannot time out, so {@link ca.mohawk.odomaticterminalapp.link.ObdConnection}
+ * keeps an idle link talking to notice when it drops.
+ */
+@SuppressLint("MissingPermission")
+public class RfcommTransport implements Transport {
+
+    static final UUID OBD_UUID =
+            UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothDevice device;
+    private volatile BluetoothSocket socket;
+    private volatile boolean preferInsecure;
+
+    public RfcommTransport(BluetoothDevice device) {
+        this.device = device;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        boolean insecure = preferInsecure;
+        try {
+            socket = open(insecure);
+        } catch (IOException first) {
+            try {
+                socket = open(!insecure);
+            } catch (IOException second) {
+                first.addSuppressed(second);
+                throw first;
+            }
+            preferInsecure = !insecure;
+        }
+    }
+
+    /** True if the last successful connect used an insecure socket. */
+    public boolean isInsecure() {
+        return preferInsecure;
+    }
+
+    private BluetoothSocket open(boolean insecure) throws IOException {
+        BluetoothSocket s = insecure
+                ? device.createInsecureRfcommSocketToServiceRecord(OBD_UUID)
+                : device.createRfcommSocketToServiceRecord(OBD_UUID);
+        try {
+            s.connect();
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        return s;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return requireSocket().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return requireSocket().getOutputStream();
+    }
+
+    /** Bluetooth sockets cannot time out a read. */
+    @Override
+    public boolean setReadTimeout(int millis) {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        String name = device.getName();
+        return name != null ? name : device.getAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        BluetoothSocket s = socket;
+        socket = null;
+        if (s != null) {
+            s.close();
+        }
+    }
+
+    private BluetoothSocket requireSocket() throws IOException {
+        BluetoothSocket s = socket;
+        if (s == null) {
+            throw new IOException("Not connected");
+        }
+        return s;
+    }
+}
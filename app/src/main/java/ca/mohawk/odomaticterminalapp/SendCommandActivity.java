@@ -1,48 +1,120 @@
 package ca.mohawk.odomaticterminalapp;
 
-import android.Manifest;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothSocket;
-import android.content.ClipData;
-import android.content.ClipboardManager;
+import android.content.ComponentName;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.os.Build;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
 import android.util.Log;
+import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.core.app.ActivityCompat;
+import androidx.core.content.FileProvider;
 
+import ca.mohawk.odomaticterminalapp.link.FrameBus;
+import ca.mohawk.odomaticterminalapp.link.LinkMetrics;
+import ca.mohawk.odomaticterminalapp.link.ObdConnection;
+import ca.mohawk.odomaticterminalapp.obd.AlertRules;
+import ca.mohawk.odomaticterminalapp.obd.CanMonitor;
+import ca.mohawk.odomaticterminalapp.obd.CommandScript;
+import ca.mohawk.odomaticterminalapp.obd.Dtc;
+import ca.mohawk.odomaticterminalapp.obd.PidDecoder;
+import ca.mohawk.odomaticterminalapp.obd.TripComputer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.UUID;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 
+/**
+ * Terminal and live readout for one adapter session owned by
+ * {@link ObdService}. The activity only binds to the service and drains the
+ * session's {@link FrameBus}, so it can be recreated at any time without
+ * touching the connection. One instance runs per connected device.
+ * <p>
+ * Several lines typed at once run as a {@link CommandScript}. A script
+ * starting with {@code macro NAME} is saved under files/macros instead,
+ * and {@code @NAME} runs it later.
+ * <p>
+ * A long press on the status line exports the stored samples or the
+ * session trace and offers the file to other apps.
+ */
 public class SendCommandActivity extends AppCompatActivity {
     private static final String TAG = "OBD_SendCmd";
-    private static final UUID OBD_UUID =
-            UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final long LIVE_REFRESH_MS = 250;
+    private static final long METRICS_REFRESH_MS = 1000;
+    private static final long BUS_DRAIN_MS = 50;
+    // IDs listed in the monitor table; the rest are only counted.
+    private static final int MONITOR_ROWS = 16;
 
-    private TextView tvStatus, tvResponse;
+    private TextView tvStatus, tvLinkMetrics, tvLiveData;
     private EditText etCommand;
-    private Button btnSendCmd;
-    BluetoothManager bluetoothManager;
-    private BluetoothSocket bluetoothSocket;
-    private OutputStream outStream;
-    private InputStream inStream;
-    protected String receivedMessage, msgTemp,deviceAddr;
-    private Thread readThread;
-    private volatile boolean stopReading = false;
-    private volatile boolean isReconnecting = false;
+    private Button btnSendCmd, btnPoll, btnScanDtc, btnMonitor;
+    protected String receivedMessage, deviceAddr;
+    private TerminalLogAdapter terminal;
+    private ChartView chartView;
+    private ObdService service;
+    private ObdService.Session session;
+    // Independent cursors: the terminal replays recent history, the dashboard only wants new samples.
+    private FrameBus.Subscriber terminalFeed;
+    private FrameBus.Subscriber dashboardFeed;
+    private final FrameBus.Event event = new FrameBus.Event();
+    private long reportedDrops;
+    // Latest decoded value per PID, NaN until the first sample arrives.
+    private final double[] liveValues = new double[256];
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private LinkMetrics.Snapshot lastMetrics;
+    private final TripComputer.Snapshot tripSnapshot = new TripComputer.Snapshot();
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((ObdService.LocalBinder) binder).getService();
+            session = service.getSession(deviceAddr);
+            if (session == null) {
+                // The service could not open the device, or the session was closed.
+                finish();
+                return;
+            }
+            terminalFeed = session.getBus().subscribeWithHistory();
+            dashboardFeed = session.getBus().subscribe();
+            reportedDrops = 0;
+            tvStatus.setText(session.getStatus());
+            btnPoll.setText(session.isPolling() ? "Stop" : "Poll");
+            btnMonitor.setText(session.isMonitoring() ? "Stop" : "CAN");
+            uiHandler.post(drainBus);
+            uiHandler.post(metricsRefresh);
+            if (session.isPolling()) {
+                showCharts(true);
+                uiHandler.post(liveRefresh);
+            }
+            if (session.isMonitoring()) {
+                uiHandler.post(monitorRefresh);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+            session = null;
+            uiHandler.removeCallbacksAndMessages(null);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -50,25 +122,48 @@ public class SendCommandActivity extends AppCompatActivity {
         setContentView(R.layout.activity_send_command);
 
         tvStatus = findViewById(R.id.tvStatus);
+        tvLinkMetrics = findViewById(R.id.tvLinkMetrics);
         etCommand = findViewById(R.id.etCommand);
         btnSendCmd = findViewById(R.id.btnSendCmd);
-        tvResponse = findViewById(R.id.tvResponse);
-
+        terminal = new TerminalLogAdapter(findViewById(R.id.rvTerminal),
+                getResources().getInteger(R.integer.terminal_scrollback_lines));
+        terminal.post("Response from OBD-II");
+        tvLiveData = findViewById(R.id.tvLiveData);
+        chartView = findViewById(R.id.chartView);
+        btnPoll = findViewById(R.id.btnPoll);
+        btnScanDtc = findViewById(R.id.btnScanDtc);
+        btnMonitor = findViewById(R.id.btnMonitor);
 
-        bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        Arrays.fill(liveValues, Double.NaN);
+        btnPoll.setOnClickListener(view -> togglePolling());
+        btnMonitor.setOnClickListener(view -> toggleMonitoring());
+        btnScanDtc.setOnClickListener(view -> {
+            if (session == null || !session.runDiagnosticScan()) {
+                Toast.makeText(this, "Not connected!", Toast.LENGTH_SHORT).show();
+            } else {
+                terminal.post("Scanning trouble codes...");
+            }
+        });
+        tvLinkMetrics.setOnLongClickListener(view -> {
+            exportMetrics();
+            return true;
+        });
+        tvStatus.setOnLongClickListener(view -> {
+            chooseExport();
+            return true;
+        });
 
         // Get device address from Intent
-        String deviceAddress = getIntent().getStringExtra("device_address");
+        String deviceAddress = getIntent().getStringExtra(ObdService.EXTRA_DEVICE_ADDRESS);
         if (deviceAddress == null) {
             Toast.makeText(this, "No device address provided!", Toast.LENGTH_SHORT).show();
             finish();
             return;
         }
 
-        // Attempt to connect in a background thread
-
+        // The service connects, or keeps its existing link to the same device.
         deviceAddr = deviceAddress;
-        connectToDevice(deviceAddress);
+        startForegroundService(serviceIntent());
 
         btnSendCmd.setOnClickListener(view -> {
             String cmd = etCommand.getText().toString().trim();
@@ -77,180 +172,377 @@ public class SendCommandActivity extends AppCompatActivity {
             etCommand.requestFocus();
             etCommand.setSelection(etCommand.getText().length());
         });
-//        tvResponse.setOnLongClickListener(view -> {
-//            // Copy entire text
-//            ClipboardManager clipboard =
-//                    (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
-//            ClipData clip = ClipData.newPlainText(
-//                    "OBD Response", tvResponse.getText().toString()
-//            );
-//            clipboard.setPrimaryClip(clip);
-//            Toast.makeText(this, "Copied entire OBD response!", Toast.LENGTH_SHORT).show();
-//
-//            return false;
-//        });
+    }
 
+    private Intent serviceIntent() {
+        return new Intent(this, ObdService.class)
+                .putExtra(ObdService.EXTRA_DEVICE_ADDRESS, deviceAddr);
     }
 
-    private void connectToDevice(String address) {
-        new Thread(() -> {
-            BluetoothAdapter adapter = bluetoothManager.getAdapter();
-            if (adapter == null) {
-                runOnUiThread(() -> {
-                    Toast.makeText(SendCommandActivity.this,
-                            "Bluetooth not supported on this device",
-                            Toast.LENGTH_SHORT).show();
-                    finish();
-                });
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (deviceAddr != null) {
+            bindService(serviceIntent(), serviceConnection, Context.BIND_AUTO_CREATE);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        uiHandler.removeCallbacksAndMessages(null);
+        if (service != null) {
+            unbindService(serviceConnection);
+            service = null;
+            session = null;
+        }
+    }
+
+    /**
+     * Moves everything published since the last pass into the views: lines
+     * and status changes for the terminal, samples for the dashboard.
+     */
+    private final Runnable drainBus = new Runnable() {
+        @Override
+        public void run() {
+            if (session == null) {
                 return;
             }
-
-            // For Android 12+, check BLUETOOTH_CONNECT permission before calling getRemoteDevice().
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                if (ActivityCompat.checkSelfPermission(
-                        SendCommandActivity.this,
-                        Manifest.permission.BLUETOOTH_CONNECT
-                ) != PackageManager.PERMISSION_GRANTED
-                ) {
-                    runOnUiThread(() -> {
-                        Toast.makeText(SendCommandActivity.this,
-                                "Missing BLUETOOTH_CONNECT permission!",
-                                Toast.LENGTH_SHORT).show();
-                    });
-                    return;
+            while (terminalFeed.poll(event)) {
+                if (event.type == FrameBus.LINE) {
+                    terminal.post(event.text());
+                } else if (event.type == FrameBus.STATUS) {
+                    tvStatus.setText(event.text());
                 }
             }
+            long drops = terminalFeed.getDropped();
+            if (drops > reportedDrops) {
+                terminal.post("(" + (drops - reportedDrops) + " lines not shown)");
+                reportedDrops = drops;
+            }
+            while (dashboardFeed.poll(event)) {
+                if (event.type == FrameBus.SAMPLE) {
+                    liveValues[event.pid] = event.value;
+                    chartView.addSample(event.pid, event.timeNanos, event.value);
+                } else if (event.type == FrameBus.ALERT) {
+                    showAlert(event.pid, event.length == 1, event.value);
+                }
+            }
+            uiHandler.postDelayed(this, BUS_DRAIN_MS);
+        }
+    };
 
-            // Now safely call getRemoteDevice
-            BluetoothDevice device = adapter.getRemoteDevice(address);
-            if (device == null) {
-                runOnUiThread(() -> {
-                    Toast.makeText(SendCommandActivity.this,
-                            "Device not found!",
-                            Toast.LENGTH_SHORT).show();
-                    finish();
-                });
-                return;
+    /**
+     * Reports an alert rule raised or cleared by the session. Raised ones
+     * also pop up, since the terminal may be scrolled away or hidden.
+     */
+    private void showAlert(int id, boolean raised, double value) {
+        AlertRules.Rule rule = session.getAlertRules().getRule(id);
+        if (rule == null) {
+            // Raised under rules that have since been replaced.
+            return;
+        }
+        String text;
+        if (rule.pid == AlertRules.DTC) {
+            text = "ALERT " + rule.name + ": " + Dtc.format((int) value);
+        } else {
+            text = String.format(Locale.US, "%s %s: %.1f", raised ? "ALERT" : "Cleared", rule.name, value);
+        }
+        terminal.post(text);
+        if (raised) {
+            Toast.makeText(this, text, Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private void togglePolling() {
+        if (session == null) {
+            return;
+        }
+        if (session.isPolling()) {
+            session.setPolling(false);
+            uiHandler.removeCallbacks(liveRefresh);
+            showCharts(false);
+            btnPoll.setText("Poll");
+            return;
+        }
+        if (!session.setPolling(true)) {
+            Toast.makeText(this, "Not connected!", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        btnPoll.setText("Stop");
+        btnMonitor.setText("CAN");
+        uiHandler.removeCallbacks(monitorRefresh);
+        showCharts(true);
+        uiHandler.post(liveRefresh);
+    }
+
+    /** Shows a chart lane per polled PID, starting empty, or hides the charts. */
+    private void showCharts(boolean show) {
+        chartView.clear();
+        if (show) {
+            for (double[] entry : ObdService.DEFAULT_POLL_SET) {
+                chartView.addSeries((int) entry[0]);
             }
+        }
+        chartView.setVisibility(show ? View.VISIBLE : View.GONE);
+    }
 
-            // Attempt to create socket and connect...
-            try {
-                bluetoothSocket = device.createRfcommSocketToServiceRecord(OBD_UUID);
-                bluetoothSocket.connect();
-                outStream = bluetoothSocket.getOutputStream();
-                inStream = bluetoothSocket.getInputStream();
+    private void toggleMonitoring() {
+        if (session == null) {
+            return;
+        }
+        if (session.isMonitoring()) {
+            session.setMonitoring(false);
+            return;
+        }
+        if (!session.setMonitoring(true)) {
+            Toast.makeText(this, "Not connected!", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        btnPoll.setText("Poll");
+        uiHandler.removeCallbacks(liveRefresh);
+        showCharts(false);
+        uiHandler.post(monitorRefresh);
+    }
 
-                runOnUiThread(() -> {
-                    tvStatus.setText("Connected to: " + device.getName());
-                    startReading();
-                    Toast.makeText(SendCommandActivity.this,
-                            "Connected to " + device.getName(),
-                            Toast.LENGTH_SHORT).show();
-                });
+    /**
+     * Shows the monitor's per-ID table: rate, frame count and last data of
+     * the first {@link #MONITOR_ROWS} IDs, under a line of totals. The
+     * frames themselves never reach the terminal.
+     */
+    private final Runnable monitorRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (session == null) {
+                return;
+            }
+            CanMonitor monitor = session.getCanMonitor();
+            List<CanMonitor.IdStats> stats = monitor.getStats();
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "%d frames, %d IDs, %d filtered, %d errors, %d buffer full",
+                    monitor.getFrameCount(), stats.size(), monitor.getFilteredCount(),
+                    monitor.getErrorCount(), monitor.getBufferFullCount()));
+            for (int i = 0; i < stats.size() && i < MONITOR_ROWS; i++) {
+                sb.append('\n').append(stats.get(i));
+            }
+            tvLiveData.setText(sb);
+            if (session.isMonitoring()) {
+                uiHandler.postDelayed(this, LIVE_REFRESH_MS);
+            } else {
+                btnMonitor.setText("CAN");
+            }
+        }
+    };
 
+    private final Runnable liveRefresh = new Runnable() {
+        @Override
+        public void run() {
+            StringBuilder sb = new StringBuilder();
+            for (double[] entry : ObdService.DEFAULT_POLL_SET) {
+                int pid = (int) entry[0];
+                double value = liveValues[pid];
+                if (Double.isNaN(value)) continue;
+                if (sb.length() > 0) sb.append("  ");
+                sb.append(PidDecoder.label(pid)).append(' ')
+                        .append(String.format("%.0f", value)).append(PidDecoder.unit(pid));
+            }
+            if (session != null) {
+                sb.append('\n').append(session.getTripComputer().snapshot(tripSnapshot));
+            }
+            tvLiveData.setText(sb);
+            if (session != null && session.isPolling()) {
+                uiHandler.postDelayed(this, LIVE_REFRESH_MS);
+            }
+        }
+    };
 
+    /** Refreshes the compact link metrics readout under the status line, once a second. */
+    private final Runnable metricsRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (session == null) {
+                return;
+            }
+            ObdConnection connection = session.getConnection();
+            LinkMetrics.Snapshot now = connection.getMetrics().snapshot();
+            tvLinkMetrics.setText(now.summary(lastMetrics));
+            lastMetrics = now;
+            uiHandler.postDelayed(this, METRICS_REFRESH_MS);
+        }
+    };
 
-            } catch (IOException e) {
-                Log.e(TAG, "Error connecting", e);
-                runOnUiThread(() -> {
-                    tvStatus.setText("Connection failed");
-                    Toast.makeText(SendCommandActivity.this,
-                            "Connection failed: " + e.getMessage(),
-                            Toast.LENGTH_SHORT).show();
-                });
-                scheduleReconnection();
+    /** Writes a snapshot of the link metrics to files/metrics as JSON. */
+    private void exportMetrics() {
+        if (session == null) {
+            return;
+        }
+        ObdConnection connection = session.getConnection();
+        File dir = new File(getFilesDir(), "metrics");
+        String name = "metrics-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+                + "-" + deviceAddr.replaceAll("[^A-Za-z0-9]", "") + ".json";
+        File file = new File(dir, name);
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
             }
-        }).start();
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(connection.getMetrics().snapshot().toJson().getBytes(StandardCharsets.UTF_8));
+            }
+            Toast.makeText(this, "Metrics saved to " + file.getName(), Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.w(TAG, "Metrics export failed", e);
+            Toast.makeText(this, "Metrics export failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        }
     }
 
+    private void chooseExport() {
+        if (session == null) {
+            return;
+        }
+        String[] choices = {"Samples (CSV)", "Samples (binary)", "Session trace (CSV)"};
+        ObdService.ExportType[] types = {ObdService.ExportType.SAMPLES_CSV,
+                ObdService.ExportType.SAMPLES_BINARY, ObdService.ExportType.TRACE_CSV};
+        new AlertDialog.Builder(this)
+                .setTitle("Export")
+                .setItems(choices, (dialog, which) -> startExport(types[which]))
+                .show();
+    }
+
+    /** Runs an export on the service's export thread and shares the file when it is done. */
+    private void startExport(ObdService.ExportType type) {
+        if (session == null) {
+            return;
+        }
+        boolean started = session.export(type, new ObdService.ExportListener() {
+            private int shownQuarter;
 
-    private void startReading() {
-        stopReading = false;
-        readThread = new Thread(() -> {
-            byte[] buffer = new byte[1024];
-            int bytes;
-            while (!stopReading) {
-                try {
-                    if (inStream != null && (bytes = inStream.read(buffer)) > 0) {
-                        final String msg = new String(buffer, 0, bytes);
-                        msgTemp += msg;
-                        if (msg.contains("\r")) {
-                            runOnUiThread(() -> {
-                                msgTemp = msgTemp.replaceAll("\\r", "\n");
-                                tvResponse.append(msgTemp);
-                                msgTemp = "";
-                                findViewById(R.id.scrollViewResponse).post(() -> {
-                                    ((android.widget.ScrollView) findViewById(R.id.scrollViewResponse))
-                                            .fullScroll(android.view.View.FOCUS_DOWN);
-                                });
-                            });
-                        }
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Reading error, attempting reconnection", e);
-                    scheduleReconnection();
-                    break;
+            @Override
+            public void onExportProgress(int percent) {
+                if (percent / 25 > shownQuarter && !isDestroyed()) {
+                    shownQuarter = percent / 25;
+                    terminal.post("Export " + percent + "%");
                 }
             }
+
+            @Override
+            public void onExportDone(File file, IOException error) {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (error != null) {
+                    terminal.post("Export stopped: " + error.getMessage());
+                    return;
+                }
+                terminal.post("Exported " + file.getName() + " (" + file.length() / 1024 + " KiB)");
+                shareExport(file);
+            }
         });
-        readThread.start();
+        if (started) {
+            terminal.post("Exporting...");
+        } else {
+            Toast.makeText(this, "Nothing to export", Toast.LENGTH_SHORT).show();
+        }
     }
 
-    private void scheduleReconnection() {
-        if (isReconnecting) {
-            return;
-        }
-        isReconnecting = true;
-        // Use a Handler to post a delayed reconnection attempt.
-        new Handler(Looper.getMainLooper()).postDelayed(() -> {
-            // Run reconnection attempt on a background thread.
-            new Thread(() -> {
-                // Clean up existing resources.
-                closeConnection();
-                connectToDevice(deviceAddr);
-                isReconnecting = false;
-            }).start();
-        }, 5000);
+    private void shareExport(File file) {
+        Uri uri = FileProvider.getUriForFile(this, getPackageName() + ".exports", file);
+        Intent send = new Intent(Intent.ACTION_SEND)
+                .setType(file.getName().endsWith(".csv") ? "text/csv" : "application/octet-stream")
+                .putExtra(Intent.EXTRA_STREAM, uri)
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(send, "Share " + file.getName()));
     }
 
     private void sendOBDCommand(String command) {
-        command += "\r";
-        if (outStream != null) {
+        if (command.startsWith("@") || CommandScript.looksLikeScript(command)) {
+            runScript(command);
+            return;
+        }
+        if (session != null && session.isConnected()) {
             try {
-                outStream.write(command.getBytes());
-                outStream.flush();
+                session.send(command);
+                boolean monitoring = session.isMonitoring();
+                btnMonitor.setText(monitoring ? "Stop" : "CAN");
+                if (monitoring) {
+                    btnPoll.setText("Poll");
+                    uiHandler.removeCallbacks(liveRefresh);
+                    showCharts(false);
+                    uiHandler.post(monitorRefresh);
+                }
             } catch (IOException e) {
-                runOnUiThread(() ->
-                        Toast.makeText(this, "Send error: " + e.getMessage(), Toast.LENGTH_SHORT).show()
-                );
+                Toast.makeText(this, "Send error: " + e.getMessage(), Toast.LENGTH_SHORT).show();
             }
         } else {
             Toast.makeText(this, "Not connected!", Toast.LENGTH_SHORT).show();
         }
-        command = "";
     }
 
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        stopReading = true;
-        if (readThread != null && readThread.isAlive()) {
-            readThread.interrupt();
+    /** Runs typed script text or a saved {@code @macro}, or saves a new macro. */
+    private void runScript(String text) {
+        boolean saved = text.startsWith("@");
+        CommandScript script;
+        try {
+            if (saved) {
+                text = readMacro(text.substring(1).trim());
+            }
+            script = CommandScript.parse(text);
+        } catch (IOException | IllegalArgumentException e) {
+            Toast.makeText(this, "Script error: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            return;
         }
-        closeConnection();
+        if (!saved && script.getName() != null) {
+            saveMacro(script.getName(), text);
+            return;
+        }
+        if (session == null || !session.runScript(script)) {
+            Toast.makeText(this, "Not connected!", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        terminal.post("Running " + script.getSteps().size() + " steps...");
     }
 
-    private void closeConnection() {
-        try {
-            if (inStream != null) inStream.close();
-        } catch (Exception ignored) {}
-        try {
-            if (outStream != null) outStream.close();
-        } catch (Exception ignored) {}
+    private File macroFile(String name) throws IOException {
+        if (!name.matches("[A-Za-z0-9_-]+")) {
+            throw new IOException("Bad macro name " + name);
+        }
+        return new File(new File(getFilesDir(), "macros"), name + ".txt");
+    }
+
+    private String readMacro(String name) throws IOException {
+        File file = macroFile(name);
+        if (!file.isFile()) {
+            throw new IOException("No macro @" + name);
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void saveMacro(String name, String text) {
         try {
-            if (bluetoothSocket != null && bluetoothSocket.isConnected()) {
-                bluetoothSocket.close();
+            File file = macroFile(name);
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(text.getBytes(StandardCharsets.UTF_8));
             }
-        } catch (Exception ignored) {}
+            Toast.makeText(this, "Saved macro @" + name, Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.w(TAG, "Macro not saved", e);
+            Toast.makeText(this, "Macro not saved: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        uiHandler.removeCallbacksAndMessages(null);
+        // Leaving the terminal ends this device's session; rotation and the like keep it.
+        if (isFinishing() && deviceAddr != null) {
+            startService(serviceIntent().setAction(ObdService.ACTION_CLOSE));
+        }
     }
 }
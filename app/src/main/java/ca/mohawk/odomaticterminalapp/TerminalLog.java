@@ -0,0 +1,59 @@
+package ca.mohawk.odomaticterminalapp;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity ring of terminal lines. Once full, every new line evicts
+ * the oldest one, so memory use is bounded by the scrollback setting no
+ * matter how long the session runs. Not thread-safe; owned by the UI thread.
+ */
+public class TerminalLog {
+
+    private final String[] lines;
+    private int head;
+    private int size;
+    private long evicted;
+
+    public TerminalLog(int capacity) {
+        lines = new String[Math.max(1, capacity)];
+    }
+
+    public void append(String line) {
+        int capacity = lines.length;
+        if (size == capacity) {
+            lines[head] = line;
+            head = (head + 1) % capacity;
+            evicted++;
+        } else {
+            lines[(head + size) % capacity] = line;
+            size++;
+        }
+    }
+
+    /** Line {@code index} counted from the oldest one still kept. */
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        return lines[(head + index) % lines.length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return lines.length;
+    }
+
+    /** Total number of lines dropped off the front so far. */
+    public long getEvictedCount() {
+        return evicted;
+    }
+
+    public void clear() {
+        Arrays.fill(lines, null);
+        head = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,117 @@
+package ca.mohawk.odomaticterminalapp;
+
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayDeque;
+
+/**
+ * Shows a {@link TerminalLog} in a RecyclerView, so only the visible lines
+ * have views. Lines may be posted from any thread; they are staged and
+ * applied to the log at most once per display frame, followed by a single
+ * range notification and a scroll to the bottom if the user was already
+ * there.
+ */
+public class TerminalLogAdapter extends RecyclerView.Adapter<TerminalLogAdapter.LineHolder>
+        implements Choreographer.FrameCallback {
+
+    private final TerminalLog log;
+    private final RecyclerView recyclerView;
+    private final LinearLayoutManager layoutManager;
+    // Lines posted since the last frame, guarded by itself.
+    private final ArrayDeque<String> staged = new ArrayDeque<>();
+    private boolean frameScheduled = false;
+
+    public TerminalLogAdapter(RecyclerView recyclerView, int scrollback) {
+        this.log = new TerminalLog(scrollback);
+        this.recyclerView = recyclerView;
+        this.layoutManager = new LinearLayoutManager(recyclerView.getContext());
+        layoutManager.setStackFromEnd(true);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.setItemAnimator(null);
+        recyclerView.setAdapter(this);
+    }
+
+    /** Queues a line for display. Safe to call from any thread. */
+    public void post(String line) {
+        boolean schedule;
+        synchronized (staged) {
+            if (staged.size() == log.capacity()) {
+                staged.pollFirst();
+            }
+            staged.addLast(line);
+            schedule = !frameScheduled;
+            frameScheduled = true;
+        }
+        if (schedule) {
+            recyclerView.post(() -> Choreographer.getInstance().postFrameCallback(this));
+        }
+    }
+
+    /** Snapshot of the whole scrollback, oldest line first. */
+    public String getText() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < log.size(); i++) {
+            sb.append(log.get(i)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        int before = log.size();
+        long evictedBefore = log.getEvictedCount();
+        boolean atBottom = !recyclerView.canScrollVertically(1);
+        synchronized (staged) {
+            while (!staged.isEmpty()) {
+                log.append(staged.pollFirst());
+            }
+            frameScheduled = false;
+        }
+        int removed = (int) Math.min(before, log.getEvictedCount() - evictedBefore);
+        if (removed > 0) {
+            notifyItemRangeRemoved(0, removed);
+        }
+        int inserted = log.size() - (before - removed);
+        if (inserted > 0) {
+            notifyItemRangeInserted(log.size() - inserted, inserted);
+        }
+        if (atBottom && log.size() > 0) {
+            layoutManager.scrollToPosition(log.size() - 1);
+        }
+    }
+
+    @NonNull
+    @Override
+    public LineHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_terminal_line, parent, false);
+        return new LineHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull LineHolder holder, int position) {
+        holder.text.setText(log.get(position));
+    }
+
+    @Override
+    public int getItemCount() {
+        return log.size();
+    }
+
+    static class LineHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        LineHolder(View itemView) {
+            super(itemView);
+            text = (TextView) itemView;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package ca.mohawk.odomaticterminalapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TerminalLogTest {
+
+    @Test
+    public void keepsOnlyTheNewestLines() {
+        TerminalLog log = new TerminalLog(3);
+        for (int i = 1; i <= 5; i++) {
+            log.append("line " + i);
+        }
+        assertEquals(3, log.size());
+        assertEquals("line 3", log.get(0));
+        assertEquals("line 5", log.get(2));
+        assertEquals(2, log.getEvictedCount());
+    }
+}
@@ -0,0 +1,29 @@
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+// Sources carry non-ASCII units such as °C; don't depend on the platform charset.
+tasks.withType<JavaCompile>().configureEach {
+    options.encoding = "UTF-8"
+}
+
+dependencies {
+    jmh(project(":core"))
+}
+
+// Run with ./gradlew :benchmarks:jmh. The gc profiler reports bytes allocated
+// per operation next to the throughput / latency figures.
+jmh {
+    jmhVersion.set(libs.versions.jmhCore)
+    profilers.add("gc")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    resultFormat.set("JSON")
+}
@@ -0,0 +1,85 @@
+package ca.mohawk.odomaticterminalapp.bench;
+
+import ca.mohawk.odomaticterminalapp.obd.AlertRules;
+import ca.mohawk.odomaticterminalapp.obd.Pids;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples per second through {@link AlertRules} with {@link #rules} rules
+ * spread over the eight polled PIDs, a quarter of them rate rules and half
+ * with a hold time. Multiply by the rules per PID, {@code rules / 8}, for
+ * rule evaluations per second. The link delivers at most a few hundred
+ * samples per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AlertRulesBenchmark {
+
+    static final int SAMPLES = 4096;
+    private static final int[] PIDS = {
+            Pids.ENGINE_RPM, Pids.VEHICLE_SPEED, Pids.THROTTLE_POSITION, Pids.ENGINE_LOAD,
+            Pids.COOLANT_TEMP, Pids.FUEL_LEVEL, Pids.MAF_RATE, Pids.INTAKE_AIR_TEMP,
+    };
+
+    @Param({"8", "1000", "5000"})
+    public int rules;
+
+    private AlertRules alertRules;
+    private final int[] pids = new int[SAMPLES];
+    private final long[] times = new long[SAMPLES];
+    private final double[] values = new double[SAMPLES];
+    private long offset;
+    private long alerts;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(5);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < rules; i++) {
+            int pid = PIDS[i % PIDS.length];
+            text.append("r").append(i).append(": ").append(String.format("%02X", pid));
+            if (i % 4 == 3) {
+                text.append(" rate");
+            }
+            text.append(random.nextBoolean() ? " > " : " < ").append(random.nextInt(100));
+            if (i % 2 == 1) {
+                text.append(" for ").append(random.nextInt(2000)).append("ms");
+            }
+            text.append('\n');
+        }
+        alertRules = AlertRules.compile(text.toString(), (rule, raised, timeNanos, value) -> alerts++);
+        double[] level = new double[PIDS.length];
+        for (int i = 0; i < SAMPLES; i++) {
+            int p = i % PIDS.length;
+            level[p] = Math.max(0, Math.min(100, level[p] + random.nextGaussian() * 5));
+            pids[i] = PIDS[p];
+            times[i] = i * 5_000_000L;
+            values[i] = level[p];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long evaluate() {
+        // Time keeps moving forward from one invocation to the next.
+        long base = offset;
+        for (int i = 0; i < SAMPLES; i++) {
+            alertRules.onSample(pids[i], base + times[i], values[i]);
+        }
+        offset = base + SAMPLES * 5_000_000L;
+        return alerts;
+    }
+}
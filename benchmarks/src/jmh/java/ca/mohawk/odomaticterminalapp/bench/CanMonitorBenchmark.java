@@ -0,0 +1,95 @@
+package ca.mohawk.odomaticterminalapp.bench;
+
+import ca.mohawk.odomaticterminalapp.link.FrameBus;
+import ca.mohawk.odomaticterminalapp.obd.CanMonitor;
+import ca.mohawk.odomaticterminalapp.obd.CommandQueue;
+import ca.mohawk.odomaticterminalapp.obd.ResponseFramer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Monitored CAN frames per second through the read path: framing,
+ * {@link CanMonitor} parsing, filtering and per-ID statistics, and
+ * publishing on the {@link FrameBus}. One operation is one pass over a
+ * synthetic {@code ATMA} stream of {@link #FRAMES} frames from 40 IDs, in
+ * 1 KiB reads. An ELM327 clone on a 500 kbit/s bus tops out at a few
+ * thousand frames per second, an STN chip at around ten thousand.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CanMonitorBenchmark {
+
+    static final int FRAMES = 10_000;
+    private static final int READ_SIZE = 1024;
+
+    private byte[][] reads;
+    private CanMonitor monitor;
+    private ResponseFramer framer;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long frames;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            frames = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(7);
+        int[] ids = new int[40];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i % 4 == 0 ? 0x18FF0000 | random.nextInt(0x10000) : random.nextInt(0x800);
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int f = 0; f < FRAMES; f++) {
+            int id = ids[random.nextInt(ids.length)];
+            StringBuilder line = new StringBuilder(id > 0x7FF ? String.format("%08X", id) : String.format("%03X", id));
+            for (int b = 0; b < 8; b++) {
+                line.append(String.format(" %02X", random.nextInt(256)));
+            }
+            stream.write(line.append('\r').toString().getBytes(StandardCharsets.US_ASCII));
+        }
+        reads = Traces.chunk(stream.toByteArray(), READ_SIZE);
+
+        FrameBus bus = new FrameBus(4096);
+        monitor = new CanMonitor(null, bus::publishCanFrame);
+        monitor.start(new CommandQueue(command -> { }));
+        framer = new ResponseFramer(new ResponseFramer.FrameListener() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                monitor.onLine(buffer, offset, length);
+            }
+
+            @Override
+            public void onPrompt() {
+            }
+        });
+    }
+
+    @Benchmark
+    public void monitorStream(Counters counters) throws Exception {
+        long before = monitor.getFrameCount();
+        for (byte[] read : reads) {
+            framer.feed(read, 0, read.length);
+        }
+        counters.frames += monitor.getFrameCount() - before;
+    }
+}
@@ -0,0 +1,75 @@
+package ca.mohawk.odomaticterminalapp.bench;
+
+import ca.mohawk.odomaticterminalapp.chart.Decimator;
+import ca.mohawk.odomaticterminalapp.chart.SampleRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microseconds to decimate one chart frame: a dozen series of
+ * {@link #samples} each, 20 Hz with jitter, down to a 1200-pixel-wide
+ * tablet chart. At 60 fps a frame has about 16 ms, most of which belongs
+ * to drawing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChartDecimationBenchmark {
+
+    private static final int SERIES = 12;
+    private static final int WIDTH = 1200;
+
+    /** Samples in the visible window per series: 30 s, 5 min and 20 min at 20 Hz. */
+    @Param({"600", "6000", "24000"})
+    public int samples;
+
+    private final SampleRing[] rings = new SampleRing[SERIES];
+    private final float[] points = new float[Decimator.minMaxCapacity(WIDTH)];
+    private long from;
+    private long to;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(11);
+        for (int s = 0; s < SERIES; s++) {
+            rings[s] = new SampleRing(samples);
+            long t = 0;
+            double v = 50;
+            for (int i = 0; i < samples; i++) {
+                t += 50_000_000L + random.nextInt(5_000_000);
+                v += random.nextGaussian();
+                rings[s].add(t, v);
+            }
+        }
+        from = rings[0].time(0);
+        to = rings[0].lastTime();
+    }
+
+    @Benchmark
+    public int minMaxFrame() {
+        int n = 0;
+        for (SampleRing ring : rings) {
+            n += Decimator.minMax(ring, from, to, WIDTH, points);
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int lttbFrame() {
+        int n = 0;
+        for (SampleRing ring : rings) {
+            n += Decimator.lttb(ring, from, to, WIDTH, WIDTH, points);
+        }
+        return n;
+    }
+}
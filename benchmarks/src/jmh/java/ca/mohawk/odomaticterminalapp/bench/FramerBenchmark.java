@@ -0,0 +1,76 @@
+package ca.mohawk.odomaticterminalapp.bench;
+
+import ca.mohawk.odomaticterminalapp.obd.ResponseFramer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames per second through {@link ResponseFramer} when the recorded trace
+ * arrives in reads of {@code readSize} bytes. One operation is one pass
+ * over the whole trace; the "frames" and "bytes" counters give the rates
+ * per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FramerBenchmark {
+
+    @Param({"16", "64", "1024"})
+    public int readSize;
+
+    private byte[][] reads;
+    private ResponseFramer framer;
+    private Blackhole sink;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long frames;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            frames = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        sink = blackhole;
+        reads = Traces.chunk(Traces.inbound(Traces.CAN11_POLL), readSize);
+        framer = new ResponseFramer(new ResponseFramer.FrameListener() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                sink.consume(length);
+            }
+
+            @Override
+            public void onPrompt() {
+                sink.consume(true);
+            }
+        });
+    }
+
+    @Benchmark
+    public void frameTrace(Counters counters) throws Exception {
+        long before = framer.getFrameCount();
+        for (byte[] read : reads) {
+            framer.feed(read, 0, read.length);
+            counters.bytes += read.length;
+        }
+        counters.frames += framer.getFrameCount() - before;
+    }
+}
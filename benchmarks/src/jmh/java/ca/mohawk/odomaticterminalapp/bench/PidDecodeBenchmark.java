@@ -0,0 +1,92 @@
+package ca.mohawk.odomaticterminalapp.bench;
+
+import ca.mohawk.odomaticterminalapp.obd.CommandQueue;
+import ca.mohawk.odomaticterminalapp.obd.HexParser;
+import ca.mohawk.odomaticterminalapp.obd.PidDecoder;
+import ca.mohawk.odomaticterminalapp.obd.ResponseFramer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nanoseconds per decoded PID, from the first byte of a six-PID reply taken
+ * from the recorded trace to the decoded value, and for the individual
+ * stages on their own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PidDecodeBenchmark {
+
+    // Must match TraceGenerator.POLLED.length; annotations need a constant.
+    private static final int PIDS = 6;
+
+    private byte[] reply;
+    private byte[][] replyLines;
+    private final byte[] parsed = new byte[64];
+    private CommandQueue queue;
+    private ResponseFramer framer;
+    private CommandQueue.PidListener decoder;
+    private Blackhole sink;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        sink = blackhole;
+        for (Traces.Exchange exchange : Traces.exchanges(Traces.CAN11_POLL)) {
+            if (exchange.command.startsWith("01 ")) {
+                reply = exchange.reply;
+                break;
+            }
+        }
+        String text = new String(reply, StandardCharsets.US_ASCII);
+        String[] lines = text.substring(0, text.indexOf('>')).trim().split("\r");
+        replyLines = new byte[lines.length][];
+        for (int i = 0; i < lines.length; i++) {
+            replyLines[i] = lines[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        queue = new CommandQueue(command -> { });
+        framer = new ResponseFramer(queue);
+        decoder = (pid, data, offset, length, time) ->
+                sink.consume(PidDecoder.decode(pid, data, offset, length));
+    }
+
+    /** Queue a coalesced request, then frame, parse, split and decode its reply. */
+    @Benchmark
+    @OperationsPerInvocation(PIDS)
+    public void replyToValues() throws Exception {
+        queue.enqueuePids(TraceGenerator.POLLED, PIDS, decoder);
+        framer.feed(reply, 0, reply.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIDS)
+    public int parseHex() {
+        int count = 0;
+        for (byte[] line : replyLines) {
+            count += HexParser.parseLine(line, 0, line.length, parsed, count);
+        }
+        return count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIDS)
+    public void decodeValues() {
+        // 41 0C a b 0D a 05 a 0F a 10 a b 11 a, as laid out by parseHex().
+        sink.consume(PidDecoder.decode(0x0C, parsed, 2, 2));
+        sink.consume(PidDecoder.decode(0x0D, parsed, 5, 1));
+        sink.consume(PidDecoder.decode(0x05, parsed, 7, 1));
+        sink.consume(PidDecoder.decode(0x0F, parsed, 9, 1));
+        sink.consume(PidDecoder.decode(0x10, parsed, 11, 2));
+        sink.consume(PidDecoder.decode(0x11, parsed, 14, 1));
+    }
+}
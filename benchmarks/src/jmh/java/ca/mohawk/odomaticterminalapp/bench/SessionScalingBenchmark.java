@@ -0,0 +1,141 @@
+package ca.mohawk.odomaticterminalapp.bench;
+
+import ca.mohawk.odomaticterminalapp.link.Elm327Simulator;
+import ca.mohawk.odomaticterminalapp.link.ObdConnection;
+import ca.mohawk.odomaticterminalapp.link.SessionManager;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request rounds per second across {@code sessions} simulated adapters
+ * sharing one {@link SessionManager}. One operation sends a mode 01
+ * request to every session and waits for all replies. The "cpuNanos"
+ * counter is the CPU time of the manager's own threads, so its rate is
+ * their combined core usage times 1e9; it and the thread count should stay
+ * flat as sessions grow. The simulators run on threads of their own, which
+ * are not counted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SessionScalingBenchmark {
+
+    private static final int READERS = 2;
+    private static final int CONNECTORS = 2;
+
+    @Param({"1", "4", "16", "64"})
+    public int sessions;
+
+    private Elm327Simulator simulator;
+    private SessionManager manager;
+    private List<ObdConnection> connections;
+    private long[] managerThreadIds;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long replies;
+        public long cpuNanos;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            replies = 0;
+            cpuNanos = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        simulator = new Elm327Simulator();
+        manager = new SessionManager(READERS, CONNECTORS);
+        connections = new ArrayList<>();
+        CountDownLatch connected = new CountDownLatch(sessions);
+        for (int i = 0; i < sessions; i++) {
+            ObdConnection c = new ObdConnection(simulator.newTransport(), new ObdConnection.Listener() {
+                @Override
+                public void onConnected(String name) {
+                    connected.countDown();
+                }
+
+                @Override
+                public void onConnectFailed(IOException error) {
+                }
+
+                @Override
+                public void onDisconnected(IOException error) {
+                }
+
+                @Override
+                public void onLine(byte[] buffer, int offset, int length) {
+                }
+            });
+            connections.add(c);
+            manager.add(c);
+        }
+        if (!connected.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Sessions did not connect");
+        }
+        List<Long> ids = new ArrayList<>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("obd-read-") || t.getName().startsWith("obd-connect-")) {
+                ids.add(t.getId());
+            }
+        }
+        managerThreadIds = new long[ids.size()];
+        for (int i = 0; i < managerThreadIds.length; i++) {
+            managerThreadIds[i] = ids.get(i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        int started = manager.getThreadCount();
+        manager.close();
+        simulator.close();
+        if (started > READERS + CONNECTORS) {
+            throw new IllegalStateException("Manager started " + started + " threads");
+        }
+    }
+
+    @Benchmark
+    public void pollRound(Counters counters) throws Exception {
+        long cpuBefore = managerCpuNanos();
+        CountDownLatch done = new CountDownLatch(sessions);
+        for (ObdConnection c : connections) {
+            c.getCommandQueue().enqueueRaw("010C", (command, response, rtt) -> done.countDown());
+        }
+        if (!done.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Replies missing: " + done.getCount());
+        }
+        counters.replies += sessions;
+        counters.cpuNanos += managerCpuNanos() - cpuBefore;
+    }
+
+    private long managerCpuNanos() {
+        long total = 0;
+        for (long id : managerThreadIds) {
+            long t = threads.getThreadCpuTime(id);
+            if (t > 0) total += t;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,92 @@
+package ca.mohawk.odomaticterminalapp.bench;
+
+import ca.mohawk.odomaticterminalapp.link.Elm327Simulator;
+import ca.mohawk.odomaticterminalapp.link.ObdConnection;
+import ca.mohawk.odomaticterminalapp.link.SessionRecorder;
+import ca.mohawk.odomaticterminalapp.obd.CommandQueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Regenerates the bundled benchmark trace by recording a polling session
+ * against {@link Elm327Simulator}:
+ * <pre>
+ * java -cp ... ca.mohawk.odomaticterminalapp.bench.TraceGenerator \
+ *     benchmarks/src/jmh/resources/traces/can11_poll.odr
+ * </pre>
+ * The session resets the adapter, turns echo off and then polls six PIDs
+ * per request with slowly changing values, with a VIN and DTC read mixed in.
+ */
+public final class TraceGenerator {
+
+    static final int[] POLLED = {0x0C, 0x0D, 0x05, 0x0F, 0x10, 0x11};
+    private static final int BATCHES = 500;
+
+    private TraceGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File out = new File(args.length > 0 ? args[0] : "can11_poll.odr");
+        Elm327Simulator simulator = new Elm327Simulator();
+        simulator.addStoredDtc(0x0133);
+        CountDownLatch connected = new CountDownLatch(1);
+        ObdConnection connection = new ObdConnection(simulator.newTransport(), new ObdConnection.Listener() {
+            @Override
+            public void onConnected(String name) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectFailed(IOException error) {
+            }
+
+            @Override
+            public void onDisconnected(IOException error) {
+            }
+
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+            }
+        });
+        try (SessionRecorder recorder = new SessionRecorder(out)) {
+            connection.setRecorder(recorder);
+            connection.open();
+            if (!connected.await(5, TimeUnit.SECONDS)) {
+                throw new IOException("Simulator did not connect");
+            }
+            CommandQueue queue = connection.getCommandQueue();
+            for (String at : new String[]{"ATZ", "ATE0", "ATL0", "ATS1", "ATH0", "ATSP6"}) {
+                roundTrip(queue, at);
+            }
+            Random random = new Random(7);
+            int rpm = 3200;
+            for (int i = 0; i < BATCHES; i++) {
+                rpm = Math.max(2800, Math.min(12000, rpm + random.nextInt(201) - 100));
+                simulator.setPidData(0x0C, rpm >> 8, rpm & 0xFF);
+                simulator.setPidData(0x0D, 40 + random.nextInt(5));
+                simulator.setPidData(0x11, 0x30 + random.nextInt(32));
+                CountDownLatch done = new CountDownLatch(1);
+                queue.enqueuePids(POLLED, POLLED.length, (pid, data, off, len, time) -> {
+                    if (pid == POLLED[POLLED.length - 1]) done.countDown();
+                });
+                done.await(5, TimeUnit.SECONDS);
+                if (i % 100 == 50) {
+                    roundTrip(queue, "0902");
+                    roundTrip(queue, "03");
+                }
+            }
+            connection.close();
+        }
+        System.out.println("Wrote " + out + " (" + out.length() + " bytes)");
+    }
+
+    private static void roundTrip(CommandQueue queue, String command) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        queue.enqueueRaw(command, (cmd, response, rtt) -> done.countDown());
+        done.await(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,93 @@
+package ca.mohawk.odomaticterminalapp.bench;
+
+import ca.mohawk.odomaticterminalapp.link.SessionReader;
+import ca.mohawk.odomaticterminalapp.link.SessionRecorder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads the recorded traces bundled with the benchmarks.
+ */
+final class Traces {
+
+    static final String CAN11_POLL = "/traces/can11_poll.odr";
+
+    /** One request and the bytes the adapter sent back up to its prompt. */
+    static final class Exchange {
+        final String command;
+        final byte[] reply;
+
+        Exchange(String command, byte[] reply) {
+            this.command = command;
+            this.reply = reply;
+        }
+    }
+
+    private Traces() {
+    }
+
+    /** All bytes the adapter sent, in order. */
+    static byte[] inbound(String resource) {
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        try (SessionReader reader = open(resource)) {
+            while (reader.next()) {
+                if (reader.getDirection() == SessionRecorder.DIRECTION_IN) {
+                    in.write(reader.getPayload(), 0, reader.getLength());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return in.toByteArray();
+    }
+
+    /** Request/reply pairs, in order. */
+    static List<Exchange> exchanges(String resource) {
+        List<Exchange> exchanges = new ArrayList<>();
+        try (SessionReader reader = open(resource)) {
+            String command = null;
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            while (reader.next()) {
+                byte[] payload = reader.getPayload();
+                int length = reader.getLength();
+                if (reader.getDirection() == SessionRecorder.DIRECTION_OUT) {
+                    command = new String(payload, 0, length, StandardCharsets.US_ASCII).trim();
+                    reply.reset();
+                    continue;
+                }
+                reply.write(payload, 0, length);
+                if (command != null && length > 0 && payload[length - 1] == '>') {
+                    exchanges.add(new Exchange(command, reply.toByteArray()));
+                    command = null;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return exchanges;
+    }
+
+    /** Splits a stream into reads of {@code size} bytes, as a serial link delivers it. */
+    static byte[][] chunk(byte[] stream, int size) {
+        byte[][] chunks = new byte[(stream.length + size - 1) / size][];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = Arrays.copyOfRange(stream, i * size, Math.min(stream.length, (i + 1) * size));
+        }
+        return chunks;
+    }
+
+    private static SessionReader open(String resource) throws IOException {
+        InputStream stream = Traces.class.getResourceAsStream(resource);
+        if (stream == null) {
+            throw new IOException("Missing trace " + resource);
+        }
+        return new SessionReader(stream);
+    }
+}
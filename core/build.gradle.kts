@@ -0,0 +1,19 @@
+plugins {
+    `java-library`
+}
+
+// Plain JVM code shared by the app and the benchmarks: framing, hex parsing,
+// PID decoding, the command queue and the transports that need no Android.
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+// Sources carry non-ASCII units such as °C; don't depend on the platform charset.
+tasks.withType<JavaCompile>().configureEach {
+    options.encoding = "UTF-8"
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
@@ -0,0 +1,151 @@
+package ca.mohawk.odomaticterminalapp.chart;
+
+/**
+ * Reduces the samples of a time window to about as many points as there
+ * are pixels to draw them on, so a chart costs the same to draw at 1 Hz or
+ * at 100 Hz.
+ * <p>
+ * {@link #minMax} keeps, per pixel column, the first, lowest, highest and
+ * last sample (the M4 scheme of Jugel et al., VLDB 2014): the line drawn
+ * through them is pixel-identical to the line through every sample, so
+ * no spike is lost. {@link #lttb} picks one sample per bucket by Largest
+ * Triangle Three Buckets (Steinarsson, 2013), which keeps the visual shape
+ * with fewer points but may drop a narrow spike.
+ * <p>
+ * Both write {@code x, y} pairs into a caller's array: x is the pixel
+ * column as a float, from 0 at {@code from} to {@code width} at
+ * {@code to}, and y is the sample value. Nothing is allocated.
+ */
+public final class Decimator {
+
+    private Decimator() {
+    }
+
+    /** Floats {@link #minMax} may write for a chart {@code width} pixels wide. */
+    public static int minMaxCapacity(int width) {
+        // Columns -1, for the sample before the window, to width, for one at its very end.
+        return 8 * (width + 2);
+    }
+
+    /**
+     * Writes the M4 points of the samples in {@code [from, to]}, plus the
+     * last sample before {@code from} so the line enters from the left edge.
+     *
+     * @return the number of floats written, twice the number of points
+     */
+    public static int minMax(SampleRing ring, long from, long to, int width, float[] out) {
+        int i = Math.max(0, ring.indexAtOrAfter(from) - 1);
+        int n = 0;
+        int first = -1;
+        int last = -1;
+        int low = -1;
+        int high = -1;
+        double lowValue = 0;
+        double highValue = 0;
+        double span = Math.max(1, to - from);
+        double scale = width / span;
+        // Samples before this time stay in the current column; only crossing it costs a division.
+        long boundary = Long.MIN_VALUE;
+        for (int size = ring.size(); i < size; i++) {
+            long t = ring.time(i);
+            if (t > to) break;
+            double v = ring.value(i);
+            if (t >= boundary) {
+                n = emit(ring, from, width, span, first, low, high, last, out, n);
+                first = low = high = i;
+                lowValue = highValue = v;
+                long column = (long) Math.floor((t - from) * scale);
+                boundary = column < 0 ? from : from + (long) Math.ceil((column + 1) / scale);
+            } else if (v < lowValue) {
+                low = i;
+                lowValue = v;
+            } else if (v > highValue) {
+                high = i;
+                highValue = v;
+            }
+            last = i;
+        }
+        return emit(ring, from, width, span, first, low, high, last, out, n);
+    }
+
+    // Writes the distinct points among first <= {low, high} <= last, in sample order.
+    private static int emit(SampleRing ring, long from, int width, double span,
+                            int first, int low, int high, int last, float[] out, int n) {
+        if (first < 0) {
+            return n;
+        }
+        int a = Math.min(low, high);
+        int b = Math.max(low, high);
+        n = point(ring, from, width, span, first, out, n);
+        if (a != first) n = point(ring, from, width, span, a, out, n);
+        if (b != a && b != first) n = point(ring, from, width, span, b, out, n);
+        if (last != b && last != first) n = point(ring, from, width, span, last, out, n);
+        return n;
+    }
+
+    private static int point(SampleRing ring, long from, int width, double span, int index, float[] out, int n) {
+        out[n] = (float) ((ring.time(index) - from) * (width / span));
+        out[n + 1] = (float) ring.value(index);
+        return n + 2;
+    }
+
+    /**
+     * Writes at most {@code points} points chosen by LTTB from the samples
+     * in {@code [from, to]}; all of them if there are no more than that.
+     * {@code out} needs {@code 2 * points} floats.
+     *
+     * @return the number of floats written, twice the number of points
+     */
+    public static int lttb(SampleRing ring, long from, long to, int width, int points, float[] out) {
+        int start = ring.indexAtOrAfter(from);
+        int end = ring.indexAtOrAfter(to + 1);
+        int count = end - start;
+        double span = Math.max(1, to - from);
+        int n = 0;
+        if (count <= points || points < 3) {
+            for (int i = start; i < end && n < 2 * points; i++) {
+                n = point(ring, from, width, span, i, out, n);
+            }
+            return n;
+        }
+        // First and last are kept; the rest is split into points - 2 buckets.
+        double bucket = (double) (count - 2) / (points - 2);
+        int chosen = start;
+        n = point(ring, from, width, span, chosen, out, n);
+        for (int b = 0; b < points - 2; b++) {
+            int lo = start + 1 + (int) (b * bucket);
+            int hi = start + 1 + (int) ((b + 1) * bucket);
+            // Average of the next bucket, or the last point for the final one.
+            int nextLo = hi;
+            int nextHi = Math.min(end - 1, start + 1 + (int) ((b + 2) * bucket));
+            double avgT = 0;
+            double avgV = 0;
+            if (nextLo >= nextHi) {
+                avgT = ring.time(end - 1) - from;
+                avgV = ring.value(end - 1);
+            } else {
+                for (int j = nextLo; j < nextHi; j++) {
+                    avgT += ring.time(j) - from;
+                    avgV += ring.value(j);
+                }
+                avgT /= nextHi - nextLo;
+                avgV /= nextHi - nextLo;
+            }
+            double aT = ring.time(chosen) - from;
+            double aV = ring.value(chosen);
+            double best = -1;
+            int pick = lo;
+            for (int j = lo; j < hi; j++) {
+                double area = Math.abs((aT - avgT) * (ring.value(j) - aV)
+                        - (aT - (ring.time(j) - from)) * (avgV - aV));
+                if (area > best) {
+                    best = area;
+                    pick = j;
+                }
+            }
+            chosen = pick;
+            n = point(ring, from, width, span, chosen, out, n);
+        }
+        return point(ring, from, width, span, end - 1, out, n);
+    }
+}
@@ -0,0 +1,77 @@
+package ca.mohawk.odomaticterminalapp.chart;
+
+/**
+ * The most recent samples of one series in two primitive arrays used as a
+ * ring: once full, each new sample replaces the oldest. Times must not go
+ * backwards. Index 0 is the oldest sample held.
+ */
+public final class SampleRing {
+
+    private final long[] times;
+    private final double[] values;
+    private int start;
+    private int size;
+
+    public SampleRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        times = new long[capacity];
+        values = new double[capacity];
+    }
+
+    public void add(long time, double value) {
+        int slot = start + size;
+        if (slot >= times.length) slot -= times.length;
+        times[slot] = time;
+        values[slot] = value;
+        if (size < times.length) {
+            size++;
+        } else if (++start == times.length) {
+            start = 0;
+        }
+    }
+
+    public void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return times.length;
+    }
+
+    public long time(int index) {
+        int slot = start + index;
+        return times[slot >= times.length ? slot - times.length : slot];
+    }
+
+    public double value(int index) {
+        int slot = start + index;
+        return values[slot >= values.length ? slot - values.length : slot];
+    }
+
+    /** Time of the newest sample; only meaningful if not empty. */
+    public long lastTime() {
+        return time(size - 1);
+    }
+
+    /** Index of the first sample at or after {@code time}, or {@link #size()} if there is none. */
+    public int indexAtOrAfter(long time) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (time(mid) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
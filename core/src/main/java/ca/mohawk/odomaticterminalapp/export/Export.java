@@ -0,0 +1,183 @@
+package ca.mohawk.odomaticterminalapp.export;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * A resumable export of a log to a file, written a chunk at a time.
+ * <p>
+ * Rows go through one fixed-size {@link ExportBuffer}, so memory does not
+ * grow with the log. The caller runs {@link #step()} in a loop on a
+ * background thread, and can stop between steps at any time. After every
+ * step the output is flushed and a checkpoint saved beside it, holding
+ * how far the source has been read and how long the output was at that
+ * point. If the process dies mid-export, a new export to the same file
+ * cuts the output back to the checkpoint and carries on from there instead
+ * of starting over. The output is written as {@code NAME.part} and only
+ * renamed to its final name once complete.
+ */
+public abstract class Export implements Closeable {
+
+    private static final String BYTES = "bytes";
+    private static final String KIND = "kind";
+
+    private final File output;
+    private final File part;
+    private final File checkpoint;
+    private FileChannel channel;
+    private ExportBuffer out;
+    private boolean done;
+    private boolean resumed;
+
+    /** @param output the file to produce; its directory must exist */
+    protected Export(File output) {
+        this.output = output;
+        this.part = new File(output.getPath() + ".part");
+        this.checkpoint = new File(output.getPath() + ".checkpoint");
+    }
+
+    /**
+     * Opens the output, resuming from the checkpoint if one for the same
+     * kind of export is there. Must be called before the first step.
+     */
+    public void open() throws IOException {
+        Properties saved = new Properties();
+        if (part.isFile() && checkpoint.isFile()) {
+            try (InputStream in = new FileInputStream(checkpoint)) {
+                saved.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                saved.clear();
+            }
+        }
+        long bytes = -1;
+        if (kind().equals(saved.getProperty(KIND))) {
+            try {
+                bytes = Long.parseLong(saved.getProperty(BYTES, "-1"));
+                if (bytes >= 0 && bytes <= part.length() && !restore(saved)) {
+                    bytes = -1;
+                }
+            } catch (NumberFormatException e) {
+                bytes = -1;
+            }
+        }
+        channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (bytes >= 0) {
+            channel.truncate(bytes);
+            out = new ExportBuffer(channel, bytes);
+            resumed = true;
+        } else {
+            channel.truncate(0);
+            out = new ExportBuffer(channel, 0);
+            writeHeader(out);
+        }
+    }
+
+    /**
+     * Writes the next chunk and saves a checkpoint after it. Once the
+     * source is exhausted the output is moved to its final name.
+     *
+     * @return false when the export is complete
+     */
+    public boolean step() throws IOException {
+        if (done) {
+            return false;
+        }
+        boolean more = writeChunk(out);
+        out.flush();
+        channel.force(false);
+        if (more) {
+            Properties state = new Properties();
+            save(state);
+            state.setProperty(KIND, kind());
+            state.setProperty(BYTES, Long.toString(out.position()));
+            File tmp = new File(checkpoint.getPath() + ".tmp");
+            try (OutputStream o = new FileOutputStream(tmp)) {
+                state.store(o, null);
+            }
+            if (!tmp.renameTo(checkpoint)) {
+                throw new IOException("Cannot write " + checkpoint);
+            }
+            return true;
+        }
+        channel.close();
+        channel = null;
+        if (output.exists() && !output.delete()) {
+            throw new IOException("Cannot replace " + output);
+        }
+        if (!part.renameTo(output)) {
+            throw new IOException("Cannot rename " + part + " to " + output);
+        }
+        checkpoint.delete();
+        done = true;
+        return false;
+    }
+
+    /** Runs the remaining steps. */
+    public void run() throws IOException {
+        while (step()) {
+            // Each step commits its own checkpoint.
+        }
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /** True if {@link #open()} picked up an earlier, interrupted export. */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /** Bytes of output so far. */
+    public long getBytesWritten() {
+        return out == null ? 0 : out.position();
+    }
+
+    /** Rough fraction of the source exported so far, 0 to 1. */
+    public abstract double getProgress();
+
+    /** Stops writing; the checkpoint of the last step stays, so the export can be resumed. */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /** Identifies the source and format, so a checkpoint is only resumed by the same export. */
+    protected abstract String kind();
+
+    /** Writes what comes before the first row, e.g. a CSV header line. */
+    protected abstract void writeHeader(ExportBuffer out) throws IOException;
+
+    /**
+     * Writes the next chunk of rows.
+     *
+     * @return false if the source is exhausted
+     */
+    protected abstract boolean writeChunk(ExportBuffer out) throws IOException;
+
+    /** Records where the source has been read to. */
+    protected abstract void save(Properties state);
+
+    /**
+     * Moves the source to a saved position.
+     *
+     * @return false if the state does not fit the source, to start over
+     */
+    protected abstract boolean restore(Properties state) throws IOException;
+}
@@ -0,0 +1,173 @@
+package ca.mohawk.odomaticterminalapp.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed-size output buffer in front of a file. Numbers are formatted
+ * straight into the buffer and text is copied char by char, so writing a
+ * row allocates nothing and memory stays at {@link #CAPACITY} however
+ * long the export runs. Binary values are little-endian.
+ */
+public final class ExportBuffer {
+
+    public static final int CAPACITY = 64 * 1024;
+
+    private static final double[] POWERS = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] digits = new byte[20];
+    private long position;
+
+    /** Writes to {@code channel} from byte {@code position} on. */
+    public ExportBuffer(FileChannel channel, long position) {
+        this.channel = channel;
+        this.position = position;
+    }
+
+    /** File offset just past the last byte appended. */
+    public long position() {
+        return position + buffer.position();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    /** Writes out what is buffered. */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+
+    public ExportBuffer put(char c) throws IOException {
+        ensure(1);
+        buffer.put((byte) c);
+        return this;
+    }
+
+    /** Appends text as UTF-8, e.g. the degree sign of a unit; unpaired surrogates become '?'. */
+    public ExportBuffer put(CharSequence text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                put(c);
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                ensure(4);
+                buffer.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                put('?');
+            } else {
+                ensure(3);
+                buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    public ExportBuffer put(long value) throws IOException {
+        ensure(20);
+        if (value == Long.MIN_VALUE) {
+            return put("-9223372036854775808");
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) {
+            buffer.put(digits[--n]);
+        }
+        return this;
+    }
+
+    /**
+     * Appends {@code value} rounded to at most {@code decimals} places, with
+     * trailing zeros dropped; NaN appends nothing. Values too large for
+     * fixed-point fall back to {@link Double#toString}.
+     */
+    public ExportBuffer put(double value, int decimals) throws IOException {
+        if (Double.isNaN(value)) {
+            return this;
+        }
+        double scaled = Math.abs(value) * POWERS[decimals];
+        if (Double.isInfinite(value) || scaled >= 9e18) {
+            return put(Double.toString(value));
+        }
+        long units = Math.round(scaled);
+        if (units == 0) {
+            return put('0');
+        }
+        if (value < 0) {
+            put('-');
+        }
+        long whole = units / (long) POWERS[decimals];
+        long fraction = units % (long) POWERS[decimals];
+        put(whole);
+        if (fraction != 0) {
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                decimals--;
+            }
+            put('.');
+            for (long p = (long) POWERS[decimals - 1]; p > fraction && p > 1; p /= 10) {
+                put('0');
+            }
+            put(fraction);
+        }
+        return this;
+    }
+
+    /** Appends the low {@code digits} hex digits of {@code value}, upper case. */
+    public ExportBuffer putHex(long value, int digits) throws IOException {
+        ensure(digits);
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buffer.put((byte) "0123456789ABCDEF".charAt((int) (value >>> shift) & 0xF));
+        }
+        return this;
+    }
+
+    public ExportBuffer putShort(int value) throws IOException {
+        ensure(2);
+        buffer.putShort((short) value);
+        return this;
+    }
+
+    public ExportBuffer putLong(long value) throws IOException {
+        ensure(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    public ExportBuffer putDouble(double value) throws IOException {
+        ensure(8);
+        buffer.putDouble(value);
+        return this;
+    }
+
+    public ExportBuffer putBytes(byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            ensure(1);
+            buffer.put(b);
+        }
+        return this;
+    }
+}
@@ -0,0 +1,162 @@
+package ca.mohawk.odomaticterminalapp.export;
+
+import ca.mohawk.odomaticterminalapp.obd.PidDecoder;
+import ca.mohawk.odomaticterminalapp.store.SampleStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Exports the decoded samples of a {@link SampleStore}, one series after
+ * the other, each in time order, up to the time the export was started.
+ * <p>
+ * {@link Format#CSV} writes {@code time_ms,pid,name,value,unit} rows.
+ * {@link Format#BINARY} writes {@link #MAGIC} followed by fixed 18-byte
+ * records {@code [long time_ms][short pid][double value]}, little-endian,
+ * which loads straight into a structured array.
+ */
+public class SampleExport extends Export {
+
+    public static final byte[] MAGIC = "ODOSMP01".getBytes(StandardCharsets.US_ASCII);
+    public static final int RECORD_SIZE = 8 + 2 + 8;
+
+    public enum Format { CSV, BINARY }
+
+    /** Rows written per step, give or take one time slice. */
+    static final int STEP_ROWS = 20_000;
+    // Time slice read from the store at once.
+    private static final long SLICE_MILLIS = 60_000;
+
+    private final SampleStore store;
+    private final Format format;
+    private long until;
+    private int[] series;
+    private int seriesIndex;
+    private long cursor = Long.MIN_VALUE;
+    private long rows;
+    private final long total;
+    // Per step: the series being written and the first write error from the visitor.
+    private int pid;
+    private String name;
+    private String unit;
+    private IOException failure;
+    private ExportBuffer out;
+    private final SampleStore.SampleVisitor visitor = this::row;
+
+    /** Exports everything in {@code store} up to now. */
+    public SampleExport(SampleStore store, Format format, File output) {
+        super(output);
+        this.store = store;
+        this.format = format;
+        this.until = System.currentTimeMillis();
+        this.series = store.getSeries();
+        this.total = store.getSampleCount();
+    }
+
+    @Override
+    protected String kind() {
+        return "samples-" + format.name().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    protected void writeHeader(ExportBuffer out) throws IOException {
+        if (format == Format.CSV) {
+            out.put("time_ms,pid,name,value,unit\n");
+        } else {
+            out.putBytes(MAGIC);
+        }
+    }
+
+    @Override
+    protected boolean writeChunk(ExportBuffer out) throws IOException {
+        this.out = out;
+        long target = rows + STEP_ROWS;
+        while (rows < target && seriesIndex < series.length) {
+            int s = series[seriesIndex];
+            long from = store.nextTime(s, cursor);
+            if (from > until) {
+                seriesIndex++;
+                cursor = Long.MIN_VALUE;
+                continue;
+            }
+            pid = s;
+            name = PidDecoder.label(s);
+            unit = PidDecoder.unit(s);
+            long to = from > until - SLICE_MILLIS ? until : from + SLICE_MILLIS - 1;
+            store.query(s, from, to, visitor);
+            if (failure != null) {
+                throw failure;
+            }
+            cursor = to + 1;
+        }
+        return seriesIndex < series.length;
+    }
+
+    private void row(long timeMillis, double value) {
+        if (failure != null) {
+            return;
+        }
+        try {
+            if (format == Format.CSV) {
+                out.put(timeMillis).put(',').putHex(pid, pid > 0xFF ? 4 : 2).put(',').put(name).put(',')
+                        .put(value, 4).put(',').put(unit).put('\n');
+            } else {
+                out.putLong(timeMillis).putShort(pid).putDouble(value);
+            }
+            rows++;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    @Override
+    protected void save(Properties state) {
+        StringBuilder list = new StringBuilder();
+        for (int s : series) {
+            if (list.length() > 0) list.append(',');
+            list.append(s);
+        }
+        state.setProperty("until", Long.toString(until));
+        state.setProperty("series", list.toString());
+        state.setProperty("index", Integer.toString(seriesIndex));
+        state.setProperty("cursor", Long.toString(cursor));
+        state.setProperty("rows", Long.toString(rows));
+    }
+
+    @Override
+    protected boolean restore(Properties state) {
+        try {
+            String list = state.getProperty("series", "");
+            String[] parts = list.isEmpty() ? new String[0] : list.split(",");
+            int[] saved = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                saved[i] = Integer.parseInt(parts[i]);
+            }
+            int index = Integer.parseInt(state.getProperty("index"));
+            if (index < 0 || index > saved.length) {
+                return false;
+            }
+            until = Long.parseLong(state.getProperty("until"));
+            cursor = Long.parseLong(state.getProperty("cursor"));
+            rows = Long.parseLong(state.getProperty("rows"));
+            series = saved;
+            seriesIndex = index;
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /** Rows written so far. */
+    public long getRowCount() {
+        return rows;
+    }
+
+    @Override
+    public double getProgress() {
+        return total == 0 ? 1 : Math.min(1, (double) rows / total);
+    }
+}
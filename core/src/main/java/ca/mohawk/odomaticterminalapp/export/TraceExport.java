@@ -0,0 +1,149 @@
+package ca.mohawk.odomaticterminalapp.export;
+
+import ca.mohawk.odomaticterminalapp.link.SessionReader;
+import ca.mohawk.odomaticterminalapp.link.SessionRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Exports a {@link SessionRecorder} trace as CSV, one row per frame:
+ * {@code time_ms,dir,data}. Time is wall-clock to the microsecond, dir is
+ * {@code in} or {@code out}, and data is the frame's bytes in quotes, with
+ * CR and LF written as {@code \r} and {@code \n}, a backslash doubled and
+ * other non-printable bytes as {@code \xNN}.
+ * <p>
+ * The trace is read through a {@link SessionReader}, so one of any length
+ * takes no more memory than its largest frame. A trace still being
+ * recorded is exported up to the {@link SessionRecorder#length()} it had
+ * when the export was created; frames recorded after that are left out.
+ */
+public class TraceExport extends Export {
+
+    /** Frames written per step. */
+    static final int STEP_FRAMES = 10_000;
+
+    private final File trace;
+    private final long traceLength;
+    private SessionReader reader;
+    private long frames;
+
+    /** Exports a finished trace. */
+    public TraceExport(File trace, File output) {
+        this(trace, trace.length(), output);
+    }
+
+    /** Exports the frames {@code recorder} has written so far. */
+    public TraceExport(SessionRecorder recorder, File output) {
+        this(recorder.getFile(), recorder.length(), output);
+    }
+
+    private TraceExport(File trace, long traceLength, File output) {
+        super(output);
+        this.trace = trace;
+        this.traceLength = traceLength;
+    }
+
+    @Override
+    protected String kind() {
+        return "trace-csv:" + trace.getName();
+    }
+
+    @Override
+    protected void writeHeader(ExportBuffer out) throws IOException {
+        reader();
+        out.put("time_ms,dir,data\n");
+    }
+
+    private SessionReader reader() throws IOException {
+        if (reader == null) {
+            reader = new SessionReader(trace, traceLength);
+        }
+        return reader;
+    }
+
+    @Override
+    protected boolean writeChunk(ExportBuffer out) throws IOException {
+        SessionReader in = reader();
+        for (int n = 0; n < STEP_FRAMES; n++) {
+            if (!in.next()) {
+                return false;
+            }
+            out.put(in.getStartMillis() + (in.getFrameNanos() - in.getStartNanos()) / 1e6, 3)
+                    .put(in.getDirection() == SessionRecorder.DIRECTION_OUT ? ",out,\"" : ",in,\"");
+            byte[] data = in.getPayload();
+            for (int i = 0; i < in.getLength(); i++) {
+                int b = data[i] & 0xFF;
+                if (b == '\r') {
+                    out.put("\\r");
+                } else if (b == '\n') {
+                    out.put("\\n");
+                } else if (b == '\\') {
+                    out.put("\\\\");
+                } else if (b == '"') {
+                    out.put("\"\"");
+                } else if (b < 0x20 || b > 0x7E) {
+                    out.put("\\x").putHex(b, 2);
+                } else {
+                    out.put((char) b);
+                }
+            }
+            out.put("\"\n");
+            frames++;
+        }
+        return true;
+    }
+
+    @Override
+    protected void save(Properties state) {
+        long position = reader == null ? SessionRecorder.HEADER_SIZE : reader.getPosition();
+        state.setProperty("position", Long.toString(position));
+        state.setProperty("frames", Long.toString(frames));
+    }
+
+    /** Reads the trace again up to the saved frame; the trace is only appended to, so it is still there. */
+    @Override
+    protected boolean restore(Properties state) throws IOException {
+        long position;
+        long saved;
+        try {
+            position = Long.parseLong(state.getProperty("position"));
+            saved = Long.parseLong(state.getProperty("frames"));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        SessionReader in = new SessionReader(trace, traceLength);
+        long n = 0;
+        while (in.getPosition() < position && in.next()) {
+            n++;
+        }
+        if (in.getPosition() != position || n != saved) {
+            in.close();
+            return false;
+        }
+        reader = in;
+        frames = n;
+        return true;
+    }
+
+    /** Frames written so far. */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    @Override
+    public double getProgress() {
+        long position = reader == null ? 0 : reader.getPosition();
+        return traceLength == 0 ? 1 : Math.min(1, (double) position / traceLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for reconnect attempts. The first retry
+ * comes quickly, since most dropouts on cheap adapters are momentary; each
+ * further failure doubles the delay up to a ceiling. Jitter keeps several
+ * clients from retrying in lockstep.
+ */
+public class Backoff {
+
+    private final long initialMillis;
+    private final long maxMillis;
+    private final double jitter;
+    private final Random random;
+    private long nextMillis;
+    private int attempts;
+
+    /**
+     * @param jitter fraction of each delay that is randomized, 0 to 1; a
+     *               delay d becomes uniform in [d * (1 - jitter), d]
+     */
+    public Backoff(long initialMillis, long maxMillis, double jitter, Random random) {
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+        this.jitter = jitter;
+        this.random = random;
+        this.nextMillis = initialMillis;
+    }
+
+    /** Delay before the next attempt; each call doubles the one after it. */
+    public synchronized long nextDelayMillis() {
+        long base = nextMillis;
+        nextMillis = Math.min(maxMillis, nextMillis * 2);
+        attempts++;
+        return base - (long) (base * jitter * random.nextDouble());
+    }
+
+    /** Back to the short first delay, after a successful attempt. */
+    public synchronized void reset() {
+        nextMillis = initialMillis;
+        attempts = 0;
+    }
+
+    /** Attempts since the last reset. */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+}
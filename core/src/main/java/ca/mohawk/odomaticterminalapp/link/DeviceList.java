@@ -0,0 +1,186 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The adapters offered for connecting: recently used ones, paired ones and
+ * whatever discovery turns up, one entry per address. Discovery reports the
+ * same device many times; each report only updates its entry in place.
+ * <p>
+ * Adapters heard in the current scan come first, strongest signal on top,
+ * followed by the rest, most recently used first. {@link #getDevices()} is
+ * a live view suitable as the backing list of a list adapter. Not thread
+ * safe; meant for the main thread.
+ */
+public class DeviceList {
+
+    /** Signal strength of an adapter not heard in the current scan. */
+    public static final int NO_RSSI = Integer.MIN_VALUE;
+
+    private static final Comparator<Device> ORDER = (a, b) -> {
+        if (a.rssi != b.rssi) {
+            return a.rssi > b.rssi ? -1 : 1;
+        }
+        if (a.lastUsed != b.lastUsed) {
+            return a.lastUsed > b.lastUsed ? -1 : 1;
+        }
+        return a.name.compareToIgnoreCase(b.name);
+    };
+
+    /** One adapter. */
+    public static final class Device {
+        private final String address;
+        private String name;
+        private int rssi = NO_RSSI;
+        private boolean bonded;
+        private long lastUsed;
+        private String label;
+
+        Device(String address, String name) {
+            this.address = address;
+            this.name = name;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getRssi() {
+            return rssi;
+        }
+
+        public boolean isBonded() {
+            return bonded;
+        }
+
+        /** When the adapter was last connected to, in ms since the epoch, or 0. */
+        public long getLastUsed() {
+            return lastUsed;
+        }
+
+        /** The list text, e.g. "OBDII (Paired) -58 dBm". */
+        @Override
+        public String toString() {
+            if (label == null) {
+                StringBuilder sb = new StringBuilder(name);
+                if (bonded) sb.append(" (Paired)");
+                else if (lastUsed > 0) sb.append(" (Recent)");
+                if (rssi != NO_RSSI) sb.append(' ').append(rssi).append(" dBm");
+                label = sb.toString();
+            }
+            return label;
+        }
+    }
+
+    private final List<Device> devices = new ArrayList<>();
+    private final List<Device> view = Collections.unmodifiableList(devices);
+    private final Map<String, Device> byAddress = new HashMap<>();
+
+    /** True for names ELM327 adapters go by, such as "OBDII" or "ELM327 v2.1". */
+    public static boolean isAdapterName(String name) {
+        if (name == null) {
+            return false;
+        }
+        String upper = name.toUpperCase(Locale.ROOT);
+        return upper.contains("OBD") || upper.contains("ELM");
+    }
+
+    /** The entries in display order; changes as the list is updated. */
+    public List<Device> getDevices() {
+        return view;
+    }
+
+    public Device get(String address) {
+        return byAddress.get(address);
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    /** Adds a recently used adapter, e.g. from {@link RecentAdapters} at startup. */
+    public void addRecent(String address, String name, long lastUsed) {
+        Device d = entry(address, name);
+        if (lastUsed > d.lastUsed) {
+            d.lastUsed = lastUsed;
+            changed(d);
+        }
+    }
+
+    /** Adds a paired adapter. */
+    public void addBonded(String address, String name) {
+        Device d = entry(address, name);
+        if (!d.bonded) {
+            d.bonded = true;
+            changed(d);
+        }
+    }
+
+    /**
+     * Records a discovery report.
+     *
+     * @param name  the device name, or null if unknown
+     * @param rssi  signal strength in dBm, or {@link #NO_RSSI}
+     * @return true if the list changed and needs redrawing
+     */
+    public boolean onFound(String address, String name, int rssi, boolean bonded) {
+        Device d = byAddress.get(address);
+        if (d == null) {
+            d = entry(address, name);
+        } else if (d.rssi == rssi && d.bonded == bonded && (name == null || name.equals(d.name))) {
+            return false;
+        }
+        if (name != null) d.name = name;
+        d.rssi = rssi;
+        d.bonded |= bonded;
+        changed(d);
+        return true;
+    }
+
+    /**
+     * Starts a new scan: signal strengths are forgotten and adapters that
+     * were only ever seen by discovery are dropped until heard again.
+     */
+    public void startScan() {
+        for (int i = devices.size() - 1; i >= 0; i--) {
+            Device d = devices.get(i);
+            if (!d.bonded && d.lastUsed == 0) {
+                devices.remove(i);
+                byAddress.remove(d.address);
+            } else {
+                d.rssi = NO_RSSI;
+                d.label = null;
+            }
+        }
+        devices.sort(ORDER);
+    }
+
+    private Device entry(String address, String name) {
+        Device d = byAddress.get(address);
+        if (d == null) {
+            d = new Device(address, name == null ? address : name);
+            byAddress.put(address, d);
+            devices.add(d);
+        }
+        return d;
+    }
+
+    // Moves a changed entry to its place; the rest of the list is still in order.
+    private void changed(Device d) {
+        d.label = null;
+        devices.remove(d);
+        int i = 0;
+        while (i < devices.size() && ORDER.compare(devices.get(i), d) <= 0) i++;
+        devices.add(i, d);
+    }
+}
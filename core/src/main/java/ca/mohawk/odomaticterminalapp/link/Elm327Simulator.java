@@ -0,0 +1,767 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Pure-Java stand-in for an ELM327 adapter plugged into a CAN (11 bit,
+ * 500 kbit/s) vehicle, so the I/O path can be exercised without a car.
+ * <p>
+ * It answers the common AT commands (echo, headers, spaces, line feeds,
+ * protocol selection, identification), mode 01 current data including the
+ * supported-PID bitmaps and multi-PID requests, mode 02 freeze frame,
+ * mode 03/07/0A trouble codes, mode 06 monitor tests and mode 09 vehicle
+ * information. Further ECUs can be added that report trouble codes only.
+ * Replies longer than a single CAN frame are formatted the way the adapter
+ * does, with or without headers. ECU latency and jitter can be injected
+ * per request.
+ * <p>
+ * {@code ATMA} streams the bus traffic added through {@link #addBusFrame}
+ * as fast as the client reads it, through the {@code ATCRA}/{@code ATCF}/
+ * {@code ATCM} filters, until any character arrives.
+ * <p>
+ * Serve it in memory through {@link #newTransport()} or on a TCP port
+ * through {@link #listen(int)}.
+ */
+public class Elm327Simulator implements Closeable {
+
+    public static final String VERSION = "ELM327 v1.5";
+    private static final int ECU_ID = 0x7E8;
+
+    // Data bytes per mode 01 PID; null when the simulated ECU lacks the PID.
+    private final byte[][] pidData = new byte[256][];
+    private final List<Integer> storedDtcs = new ArrayList<>();
+    private final List<Integer> pendingDtcs = new ArrayList<>();
+    private final List<Integer> permanentDtcs = new ArrayList<>();
+    // Stored codes of ECUs besides the engine, by CAN response id.
+    private final Map<Integer, List<Integer>> otherEcus = new TreeMap<>();
+    // PID data captured when the freeze frame was stored; null without one.
+    private byte[][] freezeFrame;
+    private int freezeFrameDtc;
+    // Mode 06 records (mid tid uas value min max), 9 bytes each.
+    private final ByteList monitorTests = new ByteList();
+    private String vin = "1D4GP24R45B123456";
+    // Frames repeated while monitoring, the last data byte counting up.
+    private final List<Integer> busIds = new ArrayList<>();
+    private final List<byte[]> busData = new ArrayList<>();
+    private volatile int overflowAfter;
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+    private final Random random = new Random(42);
+    private final List<Closeable> open = new ArrayList<>();
+
+    public Elm327Simulator() {
+        setPidData(0x01, 0x00, 0x07, 0x65, 0x00);
+        setPidData(0x04, 0x80);
+        setPidData(0x05, 0x7B);
+        setPidData(0x0B, 0x21);
+        setPidData(0x0C, 0x1A, 0xF8);
+        setPidData(0x0D, 0x32);
+        setPidData(0x0E, 0x90);
+        setPidData(0x0F, 0x45);
+        setPidData(0x10, 0x01, 0x23);
+        setPidData(0x11, 0x40);
+        setPidData(0x1F, 0x00, 0x64);
+        setPidData(0x2F, 0xA0);
+        setPidData(0x42, 0x31, 0x00);
+    }
+
+    /** Sets the raw data bytes the ECU returns for a mode 01 PID. */
+    public synchronized void setPidData(int pid, int... data) {
+        byte[] bytes = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            bytes[i] = (byte) data[i];
+        }
+        pidData[pid] = bytes;
+    }
+
+    /** Makes the ECU answer NO DATA for a PID. */
+    public synchronized void removePid(int pid) {
+        pidData[pid] = null;
+    }
+
+    /** Adds a stored DTC as its 16-bit code, e.g. 0x0133 for P0133. */
+    public synchronized void addStoredDtc(int code) {
+        storedDtcs.add(code);
+    }
+
+    public synchronized void addPendingDtc(int code) {
+        pendingDtcs.add(code);
+    }
+
+    public synchronized void addPermanentDtc(int code) {
+        permanentDtcs.add(code);
+    }
+
+    /**
+     * Adds a stored DTC to another ECU answering from CAN id {@code ecu},
+     * e.g. 0x7E9 for the transmission, creating that ECU if needed.
+     */
+    public synchronized void addStoredDtc(int ecu, int code) {
+        otherEcus.computeIfAbsent(ecu, id -> new ArrayList<>()).add(code);
+    }
+
+    /** Stores freeze frame 0 for {@code dtc} from the current mode 01 data. */
+    public synchronized void storeFreezeFrame(int dtc) {
+        freezeFrameDtc = dtc;
+        freezeFrame = new byte[256][];
+        for (int pid = 0; pid < 256; pid++) {
+            freezeFrame[pid] = pidData[pid] == null ? null : pidData[pid].clone();
+        }
+    }
+
+    /** Adds a mode 06 test result for monitor {@code mid}. */
+    public synchronized void addMonitorTest(int mid, int tid, int unitAndScaling, int value, int min, int max) {
+        monitorTests.add(mid);
+        monitorTests.add(tid);
+        monitorTests.add(unitAndScaling);
+        for (int word : new int[]{value, min, max}) {
+            monitorTests.add(word >> 8);
+            monitorTests.add(word & 0xFF);
+        }
+    }
+
+    /**
+     * Adds a frame that is broadcast on the bus, seen in monitor mode. IDs
+     * above 0x7FF are 29-bit.
+     */
+    public synchronized void addBusFrame(int id, int... data) {
+        byte[] bytes = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            bytes[i] = (byte) data[i];
+        }
+        busIds.add(id);
+        busData.add(bytes);
+    }
+
+    /**
+     * Makes the next {@code ATMA} stop with {@code BUFFER FULL} after this
+     * many frames, as a real adapter does when the client reads too slowly.
+     */
+    public void overflowMonitorAfter(int frames) {
+        overflowAfter = frames;
+    }
+
+    public synchronized void setVin(String vin) {
+        this.vin = vin;
+    }
+
+    /**
+     * Delays every OBD reply by {@code latencyMillis} plus a uniformly
+     * distributed extra of up to {@code jitterMillis}.
+     */
+    public void setLatency(double latencyMillis, double jitterMillis) {
+        latencyNanos = (long) (latencyMillis * 1_000_000);
+        jitterNanos = (long) (jitterMillis * 1_000_000);
+    }
+
+    /** A transport that talks to this simulator through in-memory pipes. */
+    public Transport newTransport() {
+        return new Transport() {
+            private MemoryPipe toAdapter;
+            private MemoryPipe fromAdapter;
+
+            @Override
+            public synchronized void connect() {
+                toAdapter = new MemoryPipe(4096);
+                fromAdapter = new MemoryPipe(64 * 1024);
+                MemoryPipe in = toAdapter;
+                MemoryPipe out = fromAdapter;
+                Thread t = new Thread(() -> {
+                    try {
+                        serve(in.getInputStream(), out.getOutputStream());
+                    } catch (IOException ignored) {
+                        // Client went away.
+                    } finally {
+                        out.close();
+                    }
+                }, "elm327-sim");
+                t.setDaemon(true);
+                t.start();
+            }
+
+            @Override
+            public synchronized InputStream getInputStream() throws IOException {
+                if (fromAdapter == null) throw new IOException("Not connected");
+                return fromAdapter.getInputStream();
+            }
+
+            @Override
+            public synchronized OutputStream getOutputStream() throws IOException {
+                if (toAdapter == null) throw new IOException("Not connected");
+                return toAdapter.getOutputStream();
+            }
+
+            @Override
+            public synchronized boolean setReadTimeout(int millis) throws IOException {
+                if (fromAdapter == null) throw new IOException("Not connected");
+                fromAdapter.setReadTimeout(millis);
+                return true;
+            }
+
+            @Override
+            public String getName() {
+                return "ELM327 simulator";
+            }
+
+            @Override
+            public synchronized void close() {
+                if (toAdapter != null) toAdapter.close();
+                if (fromAdapter != null) fromAdapter.close();
+            }
+        };
+    }
+
+    /**
+     * Accepts TCP connections on {@code port} (0 picks a free one) and serves
+     * each on its own thread.
+     *
+     * @return the port actually bound
+     */
+    public int listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        synchronized (open) {
+            open.add(server);
+        }
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    synchronized (open) {
+                        open.add(socket);
+                    }
+                    Thread t = new Thread(() -> {
+                        try {
+                            serve(socket.getInputStream(), socket.getOutputStream());
+                        } catch (IOException ignored) {
+                            // Client went away.
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                    }, "elm327-sim-conn");
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "elm327-sim-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (open) {
+            for (Closeable c : open) {
+                c.close();
+            }
+            open.clear();
+        }
+    }
+
+    /**
+     * Runs one adapter session on the calling thread until the input ends.
+     */
+    public void serve(InputStream in, OutputStream out) throws IOException {
+        Session session = new Session(out);
+        StringBuilder line = new StringBuilder();
+        byte[] buffer = new byte[256];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            for (int i = 0; i < n; i++) {
+                char c = (char) (buffer[i] & 0xFF);
+                if (c == '\r') {
+                    boolean monitor = session.handle(line.toString());
+                    line.setLength(0);
+                    if (monitor) {
+                        // The character that stops monitoring is swallowed.
+                        boolean waiting = i + 1 < n;
+                        session.monitor(in, waiting);
+                        if (waiting) i++;
+                    }
+                } else if (c != '\n') {
+                    line.append(c);
+                }
+            }
+        }
+    }
+
+    private final class Session {
+        private final OutputStream out;
+        private final StringBuilder reply = new StringBuilder();
+        private boolean echo = true;
+        private boolean headers = false;
+        private boolean spaces = true;
+        private boolean linefeeds = false;
+        private int protocol = 0;
+        private boolean searched = false;
+        private String last = "";
+        // Receive filter: a frame passes if its ID matches the pattern in the mask bits.
+        private int filterPattern;
+        private int filterMask;
+
+        Session(OutputStream out) {
+            this.out = out;
+        }
+
+        /** Answers one command; true if it was ATMA, whose output is left to {@link #monitor}. */
+        boolean handle(String raw) throws IOException {
+            reply.setLength(0);
+            if (echo) {
+                reply.append(raw).append('\r');
+            }
+            String cmd = raw.replace(" ", "").toUpperCase();
+            if (cmd.isEmpty()) {
+                cmd = last;
+            }
+            last = cmd;
+            if (cmd.equals("ATMA")) {
+                write();
+                return true;
+            }
+            if (cmd.startsWith("AT")) {
+                handleAt(cmd.substring(2));
+            } else if (!cmd.isEmpty()) {
+                handleObd(cmd);
+            }
+            reply.append("\r>");
+            write();
+            return false;
+        }
+
+        private void write() throws IOException {
+            String text = reply.toString();
+            if (linefeeds) {
+                text = text.replace("\r", "\r\n");
+            }
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            reply.setLength(0);
+        }
+
+        /**
+         * Streams the bus frames until a byte is available on {@code in},
+         * which is consumed, or the overflow set up by
+         * {@link #overflowMonitorAfter} hits.
+         */
+        void monitor(InputStream in, boolean interrupted) throws IOException {
+            int sent = 0;
+            while (!interrupted) {
+                int before = sent;
+                synchronized (Elm327Simulator.this) {
+                    for (int f = 0; f < busIds.size(); f++) {
+                        int id = busIds.get(f);
+                        if ((id & filterMask) != (filterPattern & filterMask)) continue;
+                        byte[] data = busData.get(f);
+                        if (data.length > 0) data[data.length - 1]++;
+                        StringBuilder sb = new StringBuilder();
+                        if (headers) {
+                            if (id > 0x7FF) {
+                                for (int shift = 24; shift >= 0; shift -= 8) appendByte(sb, (id >> shift) & 0xFF);
+                            } else {
+                                sb.append(String.format("%03X", id));
+                            }
+                        }
+                        appendBytes(sb, data, 0, data.length);
+                        line(trim(sb));
+                        sent++;
+                    }
+                }
+                int limit = overflowAfter;
+                if (limit > 0 && sent >= limit) {
+                    overflowAfter = 0;
+                    line("BUFFER FULL");
+                    reply.append("\r>");
+                    write();
+                    return;
+                }
+                write();
+                if (sent == before) {
+                    pause(1_000_000L);
+                }
+                interrupted = in.available() > 0;
+            }
+            if (in.read() < 0) {
+                throw new IOException("Client went away");
+            }
+            line("STOPPED");
+            reply.append("\r>");
+            write();
+        }
+
+        private void line(String text) {
+            reply.append(text).append('\r');
+        }
+
+        private void handleAt(String at) {
+            if (at.equals("Z") || at.equals("WS") || at.equals("D")) {
+                filterPattern = 0;
+                filterMask = 0;
+                echo = true;
+                headers = false;
+                spaces = true;
+                linefeeds = false;
+                if (!at.equals("D")) {
+                    protocol = 0;
+                    searched = false;
+                    reply.append('\r');
+                    line(VERSION);
+                } else {
+                    line("OK");
+                }
+            } else if (at.equals("I")) {
+                line(VERSION);
+            } else if (at.equals("@1")) {
+                line("OBDII to RS232 Interpreter");
+            } else if (at.equals("RV")) {
+                line("12.6V");
+            } else if (at.equals("DPN")) {
+                line(protocol == 0 ? "A6" : Integer.toHexString(protocol).toUpperCase());
+            } else if (at.equals("DP")) {
+                line("ISO 15765-4 (CAN 11/500)");
+            } else if (at.matches("E[01]")) {
+                echo = at.charAt(1) == '1';
+                line("OK");
+            } else if (at.matches("H[01]")) {
+                headers = at.charAt(1) == '1';
+                line("OK");
+            } else if (at.matches("S[01]")) {
+                spaces = at.charAt(1) == '1';
+                line("OK");
+            } else if (at.matches("L[01]")) {
+                linefeeds = at.charAt(1) == '1';
+                line("OK");
+            } else if (at.matches("(SP|TP)A?[0-9A-C]")) {
+                int p = Character.digit(at.charAt(at.length() - 1), 16);
+                protocol = p;
+                searched = p != 0;
+                line("OK");
+            } else if (at.equals("CRA") || at.equals("AR")) {
+                filterPattern = 0;
+                filterMask = 0;
+                line("OK");
+            } else if (at.matches("CRA([0-9A-F]{3}|[0-9A-F]{8})")) {
+                filterPattern = (int) Long.parseLong(at.substring(3), 16);
+                filterMask = at.length() == 6 ? 0x7FF : 0x1FFFFFFF;
+                line("OK");
+            } else if (at.matches("C[FM]([0-9A-F]{3}|[0-9A-F]{8})")) {
+                int value = (int) Long.parseLong(at.substring(2), 16);
+                if (at.charAt(1) == 'F') {
+                    filterPattern = value;
+                } else {
+                    filterMask = value;
+                }
+                line("OK");
+            } else if (at.matches("(ST[0-9A-F]{2}|AT[0-2]|CAF[01]|CFC[01]|PC|M[01]|AL|NL"
+                    + "|SH[0-9A-F]{3,6}|D[01]|R[01])")) {
+                line("OK");
+            } else {
+                line("?");
+            }
+        }
+
+        private void handleObd(String cmd) throws IOException {
+            if ((cmd.length() & 1) == 1) {
+                // Trailing response-count digit, e.g. "010C1".
+                cmd = cmd.substring(0, cmd.length() - 1);
+            }
+            byte[] request = new byte[cmd.length() / 2];
+            for (int i = 0; i < request.length; i++) {
+                int hi = Character.digit(cmd.charAt(2 * i), 16);
+                int lo = Character.digit(cmd.charAt(2 * i + 1), 16);
+                if (hi < 0 || lo < 0) {
+                    line("?");
+                    return;
+                }
+                request[i] = (byte) ((hi << 4) | lo);
+            }
+            if (!searched) {
+                line("SEARCHING...");
+                searched = true;
+            }
+            ecuDelay();
+
+            byte[] response;
+            List<byte[]> others = new ArrayList<>();
+            List<Integer> otherIds = new ArrayList<>();
+            synchronized (Elm327Simulator.this) {
+                response = respond(request);
+                int mode = request[0] & 0xFF;
+                if (mode == 0x03 || mode == 0x07 || mode == 0x0A) {
+                    for (Map.Entry<Integer, List<Integer>> ecu : otherEcus.entrySet()) {
+                        otherIds.add(ecu.getKey());
+                        others.add(codes(mode, mode == 0x03 ? ecu.getValue() : new ArrayList<>()));
+                    }
+                }
+            }
+            if (response == null && others.isEmpty()) {
+                line("NO DATA");
+                return;
+            }
+            if (response != null) {
+                format(response, ECU_ID);
+            }
+            for (int i = 0; i < others.size(); i++) {
+                format(others.get(i), otherIds.get(i));
+            }
+        }
+
+        private void ecuDelay() throws InterruptedIOException {
+            long delay = latencyNanos;
+            if (jitterNanos > 0) {
+                delay += (long) (random.nextDouble() * jitterNanos);
+            }
+            pause(delay);
+        }
+
+        private void pause(long delay) throws InterruptedIOException {
+            if (delay <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /** Formats an ECU payload as single or multi-frame CAN output. */
+        private void format(byte[] payload, int ecu) {
+            String id = Integer.toHexString(ecu).toUpperCase();
+            if (payload.length <= 7) {
+                StringBuilder sb = new StringBuilder();
+                if (headers) {
+                    sb.append(id);
+                    appendByte(sb, payload.length);
+                }
+                appendBytes(sb, payload, 0, payload.length);
+                line(trim(sb));
+                return;
+            }
+            if (!headers) {
+                line(String.format("%03X", payload.length));
+            }
+            int index = 0;
+            int pos = 0;
+            while (pos < payload.length) {
+                StringBuilder sb = new StringBuilder();
+                int take;
+                if (headers) {
+                    sb.append(id);
+                    if (index == 0) {
+                        appendByte(sb, 0x10 | (payload.length >> 8));
+                        appendByte(sb, payload.length & 0xFF);
+                        take = 6;
+                    } else {
+                        appendByte(sb, 0x20 | (index & 0x0F));
+                        take = 7;
+                    }
+                } else {
+                    sb.append(Integer.toHexString(index & 0x0F).toUpperCase()).append(':');
+                    take = index == 0 ? 6 : 7;
+                }
+                int n = Math.min(take, payload.length - pos);
+                appendBytes(sb, payload, pos, n);
+                // The adapter pads the last frame with 00 bytes.
+                for (int i = n; i < take && !headers; i++) {
+                    appendByte(sb, 0);
+                }
+                line(trim(sb));
+                pos += n;
+                index++;
+            }
+        }
+
+        private String trim(StringBuilder sb) {
+            String s = sb.toString().trim();
+            return spaces ? s : s.replace(" ", "");
+        }
+
+        private void appendBytes(StringBuilder sb, byte[] data, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                appendByte(sb, data[i] & 0xFF);
+            }
+        }
+
+        private void appendByte(StringBuilder sb, int b) {
+            sb.append(' ');
+            if (b < 0x10) sb.append('0');
+            sb.append(Integer.toHexString(b).toUpperCase());
+        }
+    }
+
+    // Must hold the lock. Returns the ECU payload or null for NO DATA.
+    private byte[] respond(byte[] request) {
+        int mode = request[0] & 0xFF;
+        ByteList out = new ByteList();
+        out.add(mode + 0x40);
+        switch (mode) {
+            case 0x01:
+                for (int i = 1; i < request.length; i++) {
+                    int pid = request[i] & 0xFF;
+                    byte[] data = (pid & 0x1F) == 0 ? supportBitmap(pid) : pidData[pid];
+                    if (data != null) {
+                        out.add(pid);
+                        out.addAll(data);
+                    }
+                }
+                return out.size() > 1 ? out.toArray() : null;
+            case 0x02:
+                // Pairs of pid and frame number; only frame 0 exists.
+                if (freezeFrame == null) return null;
+                for (int i = 1; i + 1 < request.length; i += 2) {
+                    int pid = request[i] & 0xFF;
+                    byte[] data = pid == 0x02
+                            ? new byte[]{(byte) (freezeFrameDtc >> 8), (byte) freezeFrameDtc}
+                            : freezeFrame[pid];
+                    if (data != null && request[i + 1] == 0) {
+                        out.add(pid);
+                        out.add(0);
+                        out.addAll(data);
+                    }
+                }
+                return out.size() > 1 ? out.toArray() : null;
+            case 0x03:
+            case 0x07:
+            case 0x0A:
+                return codes(mode, mode == 0x07 ? pendingDtcs
+                        : mode == 0x03 ? storedDtcs : permanentDtcs);
+            case 0x06:
+                for (int i = 1; i < request.length; i++) {
+                    int mid = request[i] & 0xFF;
+                    if ((mid & 0x1F) == 0) {
+                        byte[] bitmap = monitorBitmap(mid);
+                        if (bitmap != null) {
+                            out.add(mid);
+                            out.addAll(bitmap);
+                        }
+                    } else {
+                        byte[] tests = monitorTests.toArray();
+                        for (int t = 0; t + 9 <= tests.length; t += 9) {
+                            if ((tests[t] & 0xFF) == mid) {
+                                out.addAll(Arrays.copyOfRange(tests, t, t + 9));
+                            }
+                        }
+                    }
+                }
+                return out.size() > 1 ? out.toArray() : null;
+            case 0x09:
+                if (request.length < 2) return null;
+                int info = request[1] & 0xFF;
+                out.add(info);
+                if (info == 0x00) {
+                    out.addAll(new byte[]{0x54, 0x40, 0x00, 0x00});
+                } else if (info == 0x02) {
+                    out.add(1);
+                    out.addAll(vin.getBytes(StandardCharsets.US_ASCII));
+                } else {
+                    return null;
+                }
+                return out.toArray();
+            default:
+                return null;
+        }
+    }
+
+    // Mode 03/07/0A payload on CAN: service, count, two bytes per code.
+    private static byte[] codes(int mode, List<Integer> codes) {
+        ByteList out = new ByteList();
+        out.add(mode + 0x40);
+        out.add(codes.size());
+        for (int code : codes) {
+            out.add(code >> 8);
+            out.add(code & 0xFF);
+        }
+        return out.toArray();
+    }
+
+    // Must hold the lock. Bitmap of monitors with tests in (base, base + 0x20], or null if none at all.
+    private byte[] monitorBitmap(int base) {
+        byte[] tests = monitorTests.toArray();
+        long bits = 0;
+        boolean above = false;
+        for (int t = 0; t + 9 <= tests.length; t += 9) {
+            int mid = tests[t] & 0xFF;
+            if (mid > base && mid <= base + 0x20) {
+                bits |= 1L << (32 - (mid - base));
+            }
+            above |= mid > base;
+        }
+        if (base > 0 && !above) {
+            return null;
+        }
+        // Advertise the next bitmap when there are monitors beyond this range.
+        for (int t = 0; t + 9 <= tests.length; t += 9) {
+            if ((tests[t] & 0xFF) > base + 0x20) bits |= 1;
+        }
+        return new byte[]{(byte) (bits >> 24), (byte) (bits >> 16), (byte) (bits >> 8), (byte) bits};
+    }
+
+    // Must hold the lock. Bitmap of supported PIDs in (base, base + 0x20].
+    private byte[] supportBitmap(int base) {
+        long bits = 0;
+        for (int i = 1; i <= 0x20; i++) {
+            int pid = base + i;
+            boolean supported = pid < 256 && ((pid & 0x1F) == 0
+                    ? hasPidAbove(pid) : pidData[pid] != null);
+            if (supported) {
+                bits |= 1L << (32 - i);
+            }
+        }
+        if (base > 0 && bits == 0 && !hasPidAbove(base)) {
+            return null;
+        }
+        return new byte[]{(byte) (bits >> 24), (byte) (bits >> 16), (byte) (bits >> 8), (byte) bits};
+    }
+
+    private boolean hasPidAbove(int pid) {
+        for (int p = pid + 1; p < 256; p++) {
+            if (pidData[p] != null) return true;
+        }
+        return false;
+    }
+
+    /** Minimal growable byte array. */
+    private static final class ByteList {
+        private byte[] data = new byte[32];
+        private int size;
+
+        void add(int b) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = (byte) b;
+        }
+
+        void addAll(byte[] bytes) {
+            for (byte b : bytes) add(b);
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
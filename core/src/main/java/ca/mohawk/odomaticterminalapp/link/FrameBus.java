@@ -0,0 +1,216 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single-producer, multi-consumer ring of link events: reply lines, status
+ * messages, decoded PID samples, monitored CAN frames and alerts.
+ * <p>
+ * The producer, normally the connection's I/O thread, never waits. It
+ * overwrites the oldest slot whether or not every subscriber has read it.
+ * Each {@link Subscriber} keeps its own cursor. One that falls more than
+ * the ring's capacity behind skips ahead to the oldest event still held and
+ * counts what it missed, so a slow view cannot slow the reader down.
+ * <p>
+ * Slots are preallocated and guarded by a per-slot sequence number
+ * (seqlock), so neither publishing nor polling allocates or locks.
+ */
+public class FrameBus {
+
+    public static final int LINE = 1;
+    public static final int STATUS = 2;
+    public static final int SAMPLE = 3;
+    /** A monitored CAN frame: {@code pid} holds the ID, {@code line} and {@code length} the data. */
+    public static final int CAN = 4;
+    /**
+     * An alert rule raised or cleared: {@code pid} holds the rule's id,
+     * {@code value} what set it off and {@code length} 1 if raised, 0 if cleared.
+     */
+    public static final int ALERT = 5;
+
+    /** Longer lines are truncated. */
+    public static final int MAX_LINE = 128;
+
+    private final Slot[] slots;
+    private final int mask;
+    // Sequence of the last published event, -1 before the first one.
+    private volatile long published = -1;
+
+    /** @param capacity number of events held, rounded up to a power of two */
+    public FrameBus(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /** Publishes a reply line. Producer thread only. */
+    public void publishLine(byte[] buffer, int offset, int length, long timeNanos) {
+        Slot slot = begin();
+        slot.type = LINE;
+        slot.timeNanos = timeNanos;
+        slot.length = Math.min(length, MAX_LINE);
+        System.arraycopy(buffer, offset, slot.line, 0, slot.length);
+        end(slot);
+    }
+
+    /** Publishes a status message, e.g. connected or reconnecting. Producer thread only. */
+    public void publishStatus(String text, long timeNanos) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        Slot slot = begin();
+        slot.type = STATUS;
+        slot.timeNanos = timeNanos;
+        slot.length = Math.min(bytes.length, MAX_LINE);
+        System.arraycopy(bytes, 0, slot.line, 0, slot.length);
+        end(slot);
+    }
+
+    /** Publishes a decoded PID value. Producer thread only. */
+    public void publishSample(int pid, long timeNanos, double value) {
+        Slot slot = begin();
+        slot.type = SAMPLE;
+        slot.timeNanos = timeNanos;
+        slot.pid = pid;
+        slot.value = value;
+        end(slot);
+    }
+
+    /** Publishes a frame seen in monitor mode. Producer thread only. */
+    public void publishCanFrame(int id, byte[] data, int offset, int dlc, long timeNanos) {
+        Slot slot = begin();
+        slot.type = CAN;
+        slot.timeNanos = timeNanos;
+        slot.pid = id;
+        slot.length = dlc;
+        System.arraycopy(data, offset, slot.line, 0, dlc);
+        end(slot);
+    }
+
+    /** Publishes an alert rule raised or cleared. Producer thread only. */
+    public void publishAlert(int rule, boolean raised, long timeNanos, double value) {
+        Slot slot = begin();
+        slot.type = ALERT;
+        slot.timeNanos = timeNanos;
+        slot.pid = rule;
+        slot.value = value;
+        slot.length = raised ? 1 : 0;
+        end(slot);
+    }
+
+    private Slot begin() {
+        Slot slot = slots[(int) (published + 1) & mask];
+        slot.sequence = -1;
+        // Payload writes must not become visible before the slot is marked busy.
+        VarHandle.storeStoreFence();
+        return slot;
+    }
+
+    private void end(Slot slot) {
+        long seq = published + 1;
+        slot.sequence = seq;
+        published = seq;
+    }
+
+    /** A consumer that sees events published from now on. */
+    public Subscriber subscribe() {
+        return new Subscriber(published + 1);
+    }
+
+    /**
+     * A consumer that first replays the events still held in the ring, e.g.
+     * for a view that is being recreated.
+     */
+    public Subscriber subscribeWithHistory() {
+        return new Subscriber(Math.max(0, published + 1 - slots.length));
+    }
+
+    /** One consumer's cursor. Use it from one thread at a time. */
+    public final class Subscriber {
+        private long next;
+        private long dropped;
+
+        Subscriber(long next) {
+            this.next = next;
+        }
+
+        /**
+         * Copies the next event into {@code into}. Returns false if there is
+         * none yet.
+         */
+        public boolean poll(Event into) {
+            while (true) {
+                long head = published;
+                if (next > head) {
+                    return false;
+                }
+                if (head - next >= slots.length) {
+                    skipTo(head - slots.length + 1);
+                }
+                Slot slot = slots[(int) next & mask];
+                if (slot.sequence != next) {
+                    // Being overwritten right now; the producer has lapped us.
+                    skipTo(next + 1);
+                    continue;
+                }
+                into.type = slot.type;
+                into.timeNanos = slot.timeNanos;
+                into.pid = slot.pid;
+                into.value = slot.value;
+                into.length = slot.length;
+                if (slot.type != SAMPLE && slot.type != ALERT) {
+                    System.arraycopy(slot.line, 0, into.line, 0, slot.length);
+                }
+                // The copy must be complete before the sequence is checked again.
+                VarHandle.loadLoadFence();
+                if (slot.sequence != next) {
+                    skipTo(next + 1);
+                    continue;
+                }
+                next++;
+                return true;
+            }
+        }
+
+        private void skipTo(long sequence) {
+            dropped += sequence - next;
+            next = sequence;
+        }
+
+        /** Events this subscriber missed because it fell too far behind. */
+        public long getDropped() {
+            return dropped;
+        }
+    }
+
+    /** Caller-owned copy of one event, reused across polls. */
+    public static final class Event {
+        public int type;
+        public long timeNanos;
+        public int pid;
+        public double value;
+        public final byte[] line = new byte[MAX_LINE];
+        public int length;
+
+        public String text() {
+            // Adapter output is plain ASCII; notes and status text may not be.
+            return new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Slot {
+        volatile long sequence = -1;
+        int type;
+        long timeNanos;
+        int pid;
+        double value;
+        final byte[] line = new byte[MAX_LINE];
+        int length;
+    }
+}
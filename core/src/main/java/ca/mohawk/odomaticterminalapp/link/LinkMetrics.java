@@ -0,0 +1,159 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for one adapter link: round-trip time
+ * per command, traffic in each direction, reply lines, error replies and
+ * reconnects.
+ * <p>
+ * The recording methods are called from the I/O path. Each costs a few
+ * atomic increments and never allocates. {@link #snapshot()} copies
+ * everything out for display or export.
+ */
+public class LinkMetrics {
+
+    private static final byte[] NO_DATA = "NO DATA".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BUFFER_FULL = "BUFFER FULL".getBytes(StandardCharsets.US_ASCII);
+
+    private final LatencyHistogram roundTrips = new LatencyHistogram();
+    private final LatencyHistogram reconnectTimes = new LatencyHistogram();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong noData = new AtomicLong();
+    private final AtomicLong bufferFull = new AtomicLong();
+    private final AtomicLong unknown = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+
+    public void onBytesIn(int count) {
+        bytesIn.addAndGet(count);
+    }
+
+    public void onBytesOut(int count) {
+        bytesOut.addAndGet(count);
+        commands.incrementAndGet();
+    }
+
+    /** Counts a reply line and classifies the adapter's error replies. */
+    public void onLine(byte[] buffer, int offset, int length) {
+        lines.incrementAndGet();
+        if (length == 1 && buffer[offset] == '?') {
+            unknown.incrementAndGet();
+        } else if (matches(buffer, offset, length, NO_DATA)) {
+            noData.incrementAndGet();
+        } else if (matches(buffer, offset, length, BUFFER_FULL)) {
+            bufferFull.incrementAndGet();
+        }
+    }
+
+    /** Time from writing a command to the prompt that ends its reply. */
+    public void onRoundTrip(long nanos) {
+        roundTrips.recordNanos(nanos);
+    }
+
+    /**
+     * Time from the link's last sign of life before it dropped to the next
+     * successful connect, so it includes the time taken to notice the drop.
+     */
+    public void onReconnect(long nanos) {
+        reconnectTimes.recordNanos(nanos);
+    }
+
+    public LatencyHistogram getRoundTrips() {
+        return roundTrips;
+    }
+
+    public Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        s.timeNanos = System.nanoTime();
+        s.wallMillis = System.currentTimeMillis();
+        s.uptimeNanos = s.timeNanos - startNanos;
+        s.bytesIn = bytesIn.get();
+        s.bytesOut = bytesOut.get();
+        s.commands = commands.get();
+        s.lines = lines.get();
+        s.noData = noData.get();
+        s.bufferFull = bufferFull.get();
+        s.unknown = unknown.get();
+        s.rttCount = roundTrips.getCount();
+        s.rttP50Micros = roundTrips.percentileMicros(0.50);
+        s.rttP99Micros = roundTrips.percentileMicros(0.99);
+        s.rttMaxMicros = roundTrips.getMaxMicros();
+        s.reconnects = reconnectTimes.getCount();
+        s.reconnectP50Micros = reconnectTimes.percentileMicros(0.50);
+        s.reconnectMaxMicros = reconnectTimes.getMaxMicros();
+        return s;
+    }
+
+    private static boolean matches(byte[] buffer, int offset, int length, byte[] text) {
+        if (length != text.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] != text[i]) return false;
+        }
+        return true;
+    }
+
+    /** Point-in-time copy of all metrics. */
+    public static final class Snapshot {
+        public long timeNanos;
+        public long wallMillis;
+        public long uptimeNanos;
+        public long bytesIn;
+        public long bytesOut;
+        public long commands;
+        public long lines;
+        public long noData;
+        public long bufferFull;
+        public long unknown;
+        public long rttCount;
+        public long rttP50Micros;
+        public long rttP99Micros;
+        public long rttMaxMicros;
+        public long reconnects;
+        public long reconnectP50Micros;
+        public long reconnectMaxMicros;
+
+        /** Incoming bytes per second since {@code previous}, or over the whole session if null. */
+        public double bytesPerSecond(Snapshot previous) {
+            return rate(bytesIn, previous == null ? 0 : previous.bytesIn, previous);
+        }
+
+        /** Reply lines per second since {@code previous}, or over the whole session if null. */
+        public double linesPerSecond(Snapshot previous) {
+            return rate(lines, previous == null ? 0 : previous.lines, previous);
+        }
+
+        private double rate(long now, long before, Snapshot previous) {
+            long elapsed = previous == null ? uptimeNanos : timeNanos - previous.timeNanos;
+            return elapsed <= 0 ? 0 : (now - before) * 1e9 / elapsed;
+        }
+
+        /** One-line readout for the status bar. */
+        public String summary(Snapshot previous) {
+            return String.format(Locale.US,
+                    "RTT %.0f/%.0f/%.0f ms  %.1f kB/s %.0f lines/s  NO DATA %d  FULL %d  ? %d  reconnects %d",
+                    rttP50Micros / 1000.0, rttP99Micros / 1000.0, rttMaxMicros / 1000.0,
+                    bytesPerSecond(previous) / 1000, linesPerSecond(previous),
+                    noData, bufferFull, unknown, reconnects);
+        }
+
+        public String toJson() {
+            return String.format(Locale.US, "{\"wallMillis\":%d,\"uptimeMillis\":%d,"
+                            + "\"bytesIn\":%d,\"bytesOut\":%d,\"commands\":%d,\"lines\":%d,"
+                            + "\"bytesPerSecond\":%.1f,\"linesPerSecond\":%.2f,"
+                            + "\"noData\":%d,\"bufferFull\":%d,\"unknown\":%d,"
+                            + "\"rtt\":{\"count\":%d,\"p50Micros\":%d,\"p99Micros\":%d,\"maxMicros\":%d},"
+                            + "\"reconnect\":{\"count\":%d,\"p50Micros\":%d,\"maxMicros\":%d}}",
+                    wallMillis, uptimeNanos / 1_000_000L, bytesIn, bytesOut, commands, lines,
+                    bytesPerSecond(null), linesPerSecond(null), noData, bufferFull, unknown,
+                    rttCount, rttP50Micros, rttP99Micros, rttMaxMicros,
+                    reconnects, reconnectP50Micros, reconnectMaxMicros);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One-way in-memory byte pipe with a bounded buffer. Unlike
+ * {@link java.io.PipedInputStream} it does not care which threads read and
+ * write, so either end may be handed between threads freely. Closing either
+ * end wakes up the other. Reads can be given a timeout, as a socket's can.
+ */
+public class MemoryPipe {
+
+    private final byte[] buffer;
+    private int head;
+    private int size;
+    private boolean closed;
+    private long readTimeoutNanos;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return MemoryPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (MemoryPipe.this) {
+                // Like a socket, even once closed; only a read reports the end.
+                return size;
+            }
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            MemoryPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    public MemoryPipe(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Makes a read that finds the pipe empty give up after {@code millis}
+     * with a {@link SocketTimeoutException}; 0 waits for ever.
+     */
+    public synchronized void setReadTimeout(int millis) {
+        readTimeoutNanos = millis * 1_000_000L;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long deadline = System.nanoTime() + readTimeoutNanos;
+        while (size == 0) {
+            if (closed) {
+                return -1;
+            }
+            if (readTimeoutNanos == 0) {
+                await(0);
+                continue;
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+            await(left);
+        }
+        int n = Math.min(len, size);
+        int first = Math.min(n, buffer.length - head);
+        System.arraycopy(buffer, head, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+        head = (head + n) % buffer.length;
+        size -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+            if (size == buffer.length) {
+                await(0);
+                continue;
+            }
+            int tail = (head + size) % buffer.length;
+            int n = Math.min(len, Math.min(buffer.length - size, buffer.length - tail));
+            System.arraycopy(b, off, buffer, tail, n);
+            size += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    // Waits for the other end, at most nanos unless that is 0.
+    private void await(long nanos) throws InterruptedIOException {
+        try {
+            if (nanos > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, nanos);
+            } else {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import ca.mohawk.odomaticterminalapp.obd.AdapterSettings;
+import ca.mohawk.odomaticterminalapp.obd.CanMonitor;
+import ca.mohawk.odomaticterminalapp.obd.CommandQueue;
+import ca.mohawk.odomaticterminalapp.obd.LinkTuner;
+import ca.mohawk.odomaticterminalapp.obd.ResponseFramer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One adapter session over any {@link Transport}: connects, reads and
+ * frames the reply stream, feeds the {@link CommandQueue}, records the raw
+ * traffic, measures it in {@link LinkMetrics} and reconnects after the
+ * link drops.
+ * <p>
+ * Reconnects back off exponentially from a short first retry. The first
+ * connection resets the adapter and applies the {@link AdapterSettings};
+ * later ones only re-apply the settings, without the reset.
+ * <p>
+ * All of it runs on the threads of a {@link SessionManager}, either a
+ * shared one or a private one started by {@link #open()}. While the link
+ * is up, the reader thread servicing it is the only thread that touches
+ * the socket. Commands queued from any other thread, such as the main
+ * thread, are handed over through a bounded outbox and written on the
+ * reader's next sweep, so a slow or stalled adapter never blocks the
+ * caller. Listener callbacks for one connection never overlap: they
+ * arrive on the thread that is connecting or reading at the time.
+ * <p>
+ * Polling {@link InputStream#available()} never shows end-of-stream: a
+ * socket whose other end has closed just reports 0. A link that has gone
+ * quiet therefore gets a read that gives up after a millisecond, if the
+ * transport supports {@link Transport#setReadTimeout(int)}. Otherwise,
+ * e.g. over RFCOMM, an idle link is sent a keepalive now and then. Either
+ * way a request left unanswered for a few seconds counts as a drop.
+ */
+public class ObdConnection {
+
+    public interface Listener {
+        void onConnected(String name);
+
+        /** Connecting failed; another attempt follows. */
+        void onConnectFailed(IOException error);
+
+        /** An established link dropped; a reconnect follows. */
+        void onDisconnected(IOException error);
+
+        /**
+         * A reply line that is not part of a polled PID batch, for display.
+         * The range is only valid during the call.
+         */
+        void onLine(byte[] buffer, int offset, int length);
+    }
+
+    private static final long FIRST_RETRY_MS = 250;
+    private static final long MAX_RETRY_MS = 15_000;
+    private static final double RETRY_JITTER = 0.5;
+    // A link that stayed up this long starts over from the short first retry.
+    private static final long STABLE_NANOS = 10_000_000_000L;
+    // A link this long without input is read with a timeout, to see whether it has ended.
+    private static final long PROBE_NANOS = 200_000_000L;
+    private static final int PROBE_READ_MILLIS = 1;
+    // Without timed reads an idle link is asked this harmless question this often.
+    private static final long KEEPALIVE_NANOS = 2_000_000_000L;
+    static final String KEEPALIVE = "ATRV";
+    // A request unanswered this long means the link is gone: three times the
+    // longest reply timeout the adapter can be set to (ATSTFF, about 1 s).
+    private static final long SILENT_LINK_NANOS = 3_000_000_000L;
+    // Commands waiting for the reader; the queue keeps only one request in flight.
+    public static final int OUTBOX_CAPACITY = 64;
+
+    private final Transport transport;
+    private final Listener listener;
+    private final CommandQueue queue;
+    private final ResponseFramer framer;
+    private final LinkTuner tuner;
+    private final LinkMetrics metrics = new LinkMetrics();
+    private final Backoff backoff = new Backoff(FIRST_RETRY_MS, MAX_RETRY_MS, RETRY_JITTER, new Random());
+    private volatile InputStream in;
+    private volatile OutputStream out;
+    private volatile SessionRecorder recorder;
+    private volatile AdapterSettings settings;
+    private volatile CanMonitor monitor;
+    private volatile boolean closed;
+    private final ArrayBlockingQueue<byte[]> outbox = new ArrayBlockingQueue<>(OUTBOX_CAPACITY);
+    // Reader thread servicing the link, which writes directly; null while it has none.
+    private volatile Thread owner;
+    private final AtomicLong outboxFull = new AtomicLong();
+    // Private manager started by open().
+    private SessionManager ownManager;
+    private boolean started;
+    // Only touched by the thread connecting or reading at the time, except for the volatile results.
+    private boolean initialized;
+    private boolean reconnecting;
+    private boolean timedReads;
+    private long lastProbeNanos;
+    private boolean keepaliveInFlight;
+    private long connectedAt;
+    private volatile long lastWriteNanos;
+    private long lastReadNanos;
+    // Last byte read, or timed read that found the link open while no reply was due.
+    private long lastAliveNanos;
+    private volatile long lastReconnectNanos = -1;
+    private volatile int reconnects;
+
+    public ObdConnection(Transport transport, Listener listener) {
+        this.transport = transport;
+        this.listener = listener;
+        this.queue = new CommandQueue(this::write);
+        this.tuner = new LinkTuner(queue);
+        this.framer = new ResponseFramer(new ResponseFramer.FrameListener() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                metrics.onLine(buffer, offset, length);
+                boolean polled = queue.isPidBatchInFlight();
+                queue.onLine(buffer, offset, length);
+                CanMonitor m = monitor;
+                if (!polled && !keepaliveInFlight && (m == null || !m.onLine(buffer, offset, length))) {
+                    listener.onLine(buffer, offset, length);
+                }
+            }
+
+            @Override
+            public void onPrompt() throws IOException {
+                long sent = lastWriteNanos;
+                if (sent != 0) {
+                    metrics.onRoundTrip(System.nanoTime() - sent);
+                    lastWriteNanos = 0;
+                }
+                queue.onPrompt();
+            }
+        });
+    }
+
+    public CommandQueue getCommandQueue() {
+        return queue;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /** Records all traffic from now on; pass null to stop. */
+    public void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Settings to apply on every (re)connect, before anything else is sent;
+     * null sends nothing. AT commands sent through {@link #send(String)}
+     * update them.
+     */
+    public void setSettings(AdapterSettings settings) {
+        this.settings = settings;
+        tuner.setSettings(settings);
+    }
+
+    /**
+     * Lets the {@link LinkTuner} adjust the adapter's timeouts and the
+     * response count of polled requests to the measured ECU latency.
+     */
+    public void setAdaptiveTiming(boolean enabled) {
+        queue.setBatchObserver(enabled ? tuner : null);
+        if (!enabled) {
+            queue.setResponseCount(0);
+        }
+    }
+
+    /**
+     * Hands the lines to {@code monitor} while it is running, so that
+     * monitored frames reach it instead of {@link Listener#onLine}; null
+     * removes it.
+     */
+    public void setCanMonitor(CanMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    public LinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    public LinkTuner getTuner() {
+        return tuner;
+    }
+
+    /**
+     * How long the link was out the last time it dropped, from its last
+     * sign of life to being back, or -1. This includes the time it took to
+     * notice the drop.
+     */
+    public long getLastReconnectMillis() {
+        long nanos = lastReconnectNanos;
+        return nanos < 0 ? -1 : nanos / 1_000_000L;
+    }
+
+    /** Number of times the link came back after dropping. */
+    public int getReconnectCount() {
+        return reconnects;
+    }
+
+    /** Commands refused because the reader had fallen {@link #OUTBOX_CAPACITY} writes behind. */
+    public long getOutboxFullCount() {
+        return outboxFull.get();
+    }
+
+    public boolean isConnected() {
+        return out != null;
+    }
+
+    /**
+     * Starts a private {@link SessionManager} of one reader and one
+     * connector thread, which connects and keeps the link up until
+     * {@link #close()}.
+     */
+    public synchronized void open() {
+        if (started) {
+            return;
+        }
+        ownManager = new SessionManager(1, 1);
+        ownManager.add(this);
+    }
+
+    /**
+     * Marks the connection as started, by {@link #open()} or by a
+     * {@link SessionManager}; false if it already was.
+     */
+    synchronized boolean claim() {
+        if (started) {
+            return false;
+        }
+        started = true;
+        closed = false;
+        return true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /** Queues a command typed by the user. */
+    public void send(String command) throws IOException {
+        if (out == null) {
+            throw new IOException("Not connected");
+        }
+        AdapterSettings s = settings;
+        if (s != null && command.trim().regionMatches(true, 0, "AT", 0, 2)) {
+            queue.enqueueRaw(command, (c, reply, rtt) -> s.onCommand(c, reply));
+        } else {
+            queue.enqueueRaw(command, null);
+        }
+    }
+
+    public void close() {
+        SessionManager own;
+        synchronized (this) {
+            closed = true;
+            started = false;
+            out = null;
+            outbox.clear();
+            try {
+                transport.close();
+            } catch (IOException ignored) {
+            }
+            own = ownManager;
+            ownManager = null;
+        }
+        if (own != null) {
+            try {
+                own.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Sets the reader thread servicing the link, or null when it is taken off. */
+    void setOwner(Thread thread) {
+        owner = thread;
+    }
+
+    /**
+     * Makes one connection attempt and queues the init sequence. A failure
+     * is reported to the listener and leaves the transport closed.
+     *
+     * @return true if the link is up
+     */
+    boolean connectOnce() {
+        try {
+            transport.connect();
+            in = transport.getInputStream();
+            queue.reset();
+            framer.reset();
+            // Whatever was handed over for the previous link is stale.
+            outbox.clear();
+            lastWriteNanos = 0;
+            keepaliveInFlight = false;
+            timedReads = transport.setReadTimeout(PROBE_READ_MILLIS);
+            out = transport.getOutputStream();
+            applySettings();
+        } catch (IOException e) {
+            closeTransport();
+            if (!closed) {
+                listener.onConnectFailed(e);
+            }
+            return false;
+        }
+        if (closed) {
+            // close() raced with the attempt and may have missed the new socket.
+            closeTransport();
+            return false;
+        }
+        connectedAt = System.nanoTime();
+        if (reconnecting) {
+            lastReconnectNanos = connectedAt - lastAliveNanos;
+            reconnects++;
+            metrics.onReconnect(lastReconnectNanos);
+            reconnecting = false;
+        }
+        lastReadNanos = connectedAt;
+        lastAliveNanos = connectedAt;
+        listener.onConnected(transport.getName());
+        return true;
+    }
+
+    /**
+     * Reads whatever the adapter has sent without blocking, for a
+     * {@link SessionManager} that services many connections per thread.
+     *
+     * @return bytes consumed, possibly 0, or -1 once the connection has
+     * been closed
+     * @throws IOException if the link dropped
+     */
+    int pump(byte[] buffer) throws IOException {
+        InputStream i = in;
+        if (closed || i == null) {
+            return -1;
+        }
+        byte[] command;
+        while ((command = outbox.poll()) != null) {
+            writeNow(command);
+        }
+        int n = i.available();
+        long now = System.nanoTime();
+        if (n > 0) {
+            n = i.read(buffer, 0, Math.min(n, buffer.length));
+        } else if (timedReads && now - Math.max(lastReadNanos, lastProbeNanos) > PROBE_NANOS) {
+            lastProbeNanos = now;
+            try {
+                n = i.read(buffer, 0, buffer.length);
+            } catch (SocketTimeoutException e) {
+                if (lastWriteNanos == 0) {
+                    // Still open, and nothing was missed.
+                    lastAliveNanos = now;
+                }
+                n = 0;
+            }
+        }
+        if (n < 0) {
+            throw new IOException("Connection closed by adapter");
+        }
+        if (n == 0) {
+            checkSilence(now);
+            return 0;
+        }
+        lastReadNanos = now;
+        lastAliveNanos = now;
+        consume(buffer, n);
+        return n;
+    }
+
+    // Drops a link that leaves a request unanswered, and keeps one without timed reads talking.
+    private void checkSilence(long now) throws IOException {
+        CanMonitor m = monitor;
+        if (m != null && m.isRunning()) {
+            // A monitored bus may simply be quiet.
+            return;
+        }
+        long sent = lastWriteNanos;
+        if (sent != 0) {
+            if (now - Math.max(sent, lastReadNanos) > SILENT_LINK_NANOS) {
+                throw new IOException("No reply from adapter");
+            }
+        } else if (!timedReads && now - lastReadNanos > KEEPALIVE_NANOS
+                && queue.enqueueRawIfIdle(KEEPALIVE, (c, reply, rtt) -> keepaliveInFlight = false)) {
+            // Written already, by this thread; its reply is not shown.
+            keepaliveInFlight = true;
+        }
+    }
+
+    /** True while a request is queued or in flight, or the CAN monitor is streaming. */
+    boolean isAwaitingReply() {
+        CanMonitor m = monitor;
+        return !queue.isIdle() || m != null && m.isRunning();
+    }
+
+    /** Books a dropped link and tells the listener; the caller schedules the reconnect. */
+    void dropped(IOException error) {
+        out = null;
+        if (closed) {
+            return;
+        }
+        long droppedAt = System.nanoTime();
+        reconnecting = true;
+        CanMonitor m = monitor;
+        if (m != null) {
+            // The reconnect starts the adapter over from its settings.
+            m.abort();
+        }
+        if (droppedAt - connectedAt > STABLE_NANOS) {
+            backoff.reset();
+        }
+        try {
+            listener.onDisconnected(error);
+        } finally {
+            closeTransport();
+        }
+    }
+
+    /** How long to wait before the next connection attempt. */
+    long retryDelayMillis() {
+        return backoff.nextDelayMillis();
+    }
+
+    private void consume(byte[] buffer, int n) throws IOException {
+        metrics.onBytesIn(n);
+        SessionRecorder r = recorder;
+        if (r != null) {
+            r.recordIn(buffer, 0, n);
+        }
+        framer.feed(buffer, 0, n);
+    }
+
+    // Queues the init sequence: a full one the first time, the short one after a drop.
+    private void applySettings() throws IOException {
+        AdapterSettings s = settings;
+        if (s == null) {
+            return;
+        }
+        for (String command : initialized ? s.warmStart() : s.coldStart()) {
+            queue.enqueueRaw(command, null);
+        }
+        initialized = true;
+    }
+
+    /**
+     * Writes one encoded request, called by the command queue on whatever
+     * thread queued it. Only the owning reader writes to the socket; any
+     * other thread hands the request over and wakes the reader.
+     */
+    private void write(byte[] command) throws IOException {
+        if (out == null) {
+            throw new IOException("Not connected");
+        }
+        Thread o = owner;
+        if (o == Thread.currentThread()) {
+            writeNow(command);
+            return;
+        }
+        if (!outbox.offer(command)) {
+            outboxFull.incrementAndGet();
+            throw new IOException("Send queue full");
+        }
+        if (o != null) {
+            LockSupport.unpark(o);
+        }
+    }
+
+    private void writeNow(byte[] command) throws IOException {
+        OutputStream o = out;
+        if (o == null) {
+            throw new IOException("Not connected");
+        }
+        // Recorded first so the trace never shows the reply before its request.
+        SessionRecorder r = recorder;
+        if (r != null) {
+            r.recordOut(command, 0, command.length);
+        }
+        lastWriteNanos = System.nanoTime();
+        o.write(command);
+        o.flush();
+        metrics.onBytesOut(command.length);
+    }
+
+    private void closeTransport() {
+        out = null;
+        in = null;
+        try {
+            transport.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
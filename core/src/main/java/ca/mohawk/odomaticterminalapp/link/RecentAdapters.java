@@ -0,0 +1,97 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The adapters connected to most recently, kept on disk so they can be
+ * listed, and tapped, the moment the app starts instead of after a scan.
+ * <p>
+ * Stored as one small properties file that is rewritten through a
+ * temporary file on every update, holding at most {@link #MAX_ENTRIES}
+ * adapters. A missing or unreadable file counts as empty.
+ */
+public class RecentAdapters {
+
+    public static final int MAX_ENTRIES = 8;
+
+    /** One remembered adapter. */
+    public static final class Entry {
+        public final String address;
+        public final String name;
+        public final long lastUsed;
+
+        Entry(String address, String name, long lastUsed) {
+            this.address = address;
+            this.name = name;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final File file;
+    private final Properties entries = new Properties();
+
+    public RecentAdapters(File file) {
+        this.file = file;
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                entries.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                entries.clear();
+            }
+        }
+    }
+
+    /** The remembered adapters, most recently used first. */
+    public synchronized List<Entry> list() {
+        List<Entry> list = new ArrayList<>();
+        for (String key : entries.stringPropertyNames()) {
+            if (!key.endsWith(".used")) {
+                continue;
+            }
+            String address = key.substring(0, key.length() - ".used".length());
+            long used;
+            try {
+                used = Long.parseLong(entries.getProperty(key));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            list.add(new Entry(address, entries.getProperty(address + ".name", address), used));
+        }
+        list.sort((a, b) -> Long.compare(b.lastUsed, a.lastUsed));
+        return list;
+    }
+
+    public synchronized boolean contains(String address) {
+        return entries.containsKey(address + ".used");
+    }
+
+    /** Remembers a connection to {@code address}, forgetting the oldest adapter beyond the limit. */
+    public synchronized void put(String address, String name, long usedMillis) throws IOException {
+        entries.setProperty(address + ".used", Long.toString(usedMillis));
+        if (name != null) {
+            entries.setProperty(address + ".name", name);
+        }
+        List<Entry> list = list();
+        for (int i = MAX_ENTRIES; i < list.size(); i++) {
+            entries.remove(list.get(i).address + ".used");
+            entries.remove(list.get(i).address + ".name");
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            entries.store(out, "Recently used OBD adapters");
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs any number of {@link ObdConnection}s on a fixed set of shared
+ * threads instead of one I/O thread each, so several adapters can be
+ * driven at once without the thread count growing with them.
+ * <p>
+ * Connection attempts and reconnect back-off delays run on a small
+ * scheduled pool; an attempt that is waiting out its delay holds no thread.
+ * Established links are spread over a few reader threads. A reader owns
+ * its links' sockets: each sweep writes the commands other threads have
+ * handed over, then only reads what {@link java.io.InputStream#available()}
+ * reports, so no thread ever blocks on one adapter for more than the
+ * millisecond a quiet link's timed read may take. When a sweep finds
+ * nothing it parks briefly, for longer the longer it stays idle, and for
+ * longer still once none of its links awaits a reply; a handed-over
+ * command wakes it.
+ * <p>
+ * Every session keeps its own command queue, settings, recorder and
+ * {@link LinkMetrics}. A session whose link drops, or whose listener
+ * throws, is taken off its reader and reconnected on its own back-off
+ * without disturbing the others. Listener callbacks of one session run on
+ * one thread at a time, but a slow callback delays the other sessions
+ * sharing its reader.
+ */
+public class SessionManager implements Closeable {
+
+    public static final int DEFAULT_READERS = 2;
+    public static final int DEFAULT_CONNECTORS = 2;
+    private static final int READ_BUFFER = 1024;
+    // Short parks right after traffic keep reply latency low, longer ones save CPU when idle.
+    private static final int BUSY_SWEEPS = 50;
+    private static final long BUSY_PARK_NANOS = 100_000L;
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+    // Nothing in flight: only unsolicited input or a drop can be missed, and a send unparks.
+    private static final long QUIET_PARK_NANOS = 50_000_000L;
+
+    private final ScheduledThreadPoolExecutor connector;
+    private final Reader[] readers;
+    private final List<ObdConnection> sessions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    public SessionManager() {
+        this(DEFAULT_READERS, DEFAULT_CONNECTORS);
+    }
+
+    /**
+     * @param readerThreads    threads that service established links
+     * @param connectorThreads most connection attempts made at the same time
+     */
+    public SessionManager(int readerThreads, int connectorThreads) {
+        if (readerThreads < 1 || connectorThreads < 1) {
+            throw new IllegalArgumentException("Need at least one thread of each kind");
+        }
+        connector = new ScheduledThreadPoolExecutor(connectorThreads, namedThreads("obd-connect-"));
+        connector.setRemoveOnCancelPolicy(true);
+        readers = new Reader[readerThreads];
+        ThreadFactory readerFactory = namedThreads("obd-read-");
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Reader();
+            readers[i].thread = readerFactory.newThread(readers[i]);
+            readers[i].thread.start();
+        }
+    }
+
+    /**
+     * Starts connecting a session and keeps it up until it is removed or the
+     * manager is closed. The connection must not have been opened on its own.
+     */
+    public void add(ObdConnection connection) {
+        if (closed) {
+            throw new IllegalStateException("Session manager closed");
+        }
+        if (!connection.claim()) {
+            throw new IllegalStateException("Connection already started: "
+                    + connection.getTransport().getName());
+        }
+        sessions.add(connection);
+        scheduleConnect(connection, 0);
+    }
+
+    /** Closes a session and stops reconnecting it. */
+    public void remove(ObdConnection connection) {
+        if (sessions.remove(connection)) {
+            connection.close();
+        }
+    }
+
+    /** All sessions, connected or not. */
+    public List<ObdConnection> getSessions() {
+        return new ArrayList<>(sessions);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /** Number of sessions whose link is up. */
+    public int getConnectedCount() {
+        int n = 0;
+        for (ObdConnection c : sessions) {
+            if (c.isConnected()) n++;
+        }
+        return n;
+    }
+
+    /** Threads the manager has started so far; bounded by the constructor arguments. */
+    public int getThreadCount() {
+        return readers.length + connector.getLargestPoolSize();
+    }
+
+    /** Sweeps over their links all readers have made, busy or idle. */
+    public long getSweeps() {
+        long n = 0;
+        for (Reader r : readers) {
+            n += r.sweeps;
+        }
+        return n;
+    }
+
+    /** Times a reader parked for the long quiet interval because none of its links awaited a reply. */
+    public long getQuietParks() {
+        long n = 0;
+        for (Reader r : readers) {
+            n += r.quietParks;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (ObdConnection c : sessions) {
+            c.close();
+        }
+        sessions.clear();
+        connector.shutdownNow();
+        for (Reader r : readers) {
+            LockSupport.unpark(r.thread);
+        }
+    }
+
+    private void scheduleConnect(ObdConnection connection, long delayMillis) {
+        if (closed || connection.isClosed()) {
+            return;
+        }
+        connector.schedule(() -> connect(connection), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on a connector thread.
+    private void connect(ObdConnection connection) {
+        if (closed || connection.isClosed()) {
+            return;
+        }
+        boolean up;
+        try {
+            up = connection.connectOnce();
+        } catch (RuntimeException e) {
+            // The listener threw from onConnected; treat it like a drop of this session only.
+            lost(connection, new IOException("Session failed: " + e, e));
+            return;
+        }
+        if (up) {
+            leastLoaded().add(connection);
+        } else {
+            scheduleConnect(connection, connection.retryDelayMillis());
+        }
+    }
+
+    private void lost(ObdConnection connection, IOException error) {
+        try {
+            connection.dropped(error);
+        } catch (RuntimeException ignored) {
+            // A throwing listener must not stop the reconnect.
+        }
+        scheduleConnect(connection, connection.retryDelayMillis());
+    }
+
+    private Reader leastLoaded() {
+        Reader best = readers[0];
+        for (Reader r : readers) {
+            if (r.links.length < best.links.length) {
+                best = r;
+            }
+        }
+        return best;
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread t = new Thread(runnable, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /** One reader thread and the links it services. */
+    private final class Reader implements Runnable {
+        Thread thread;
+        // Copied on change so a sweep never allocates or locks.
+        volatile ObdConnection[] links = new ObdConnection[0];
+        volatile long sweeps;
+        volatile long quietParks;
+
+        synchronized void add(ObdConnection connection) {
+            ObdConnection[] next = Arrays.copyOf(links, links.length + 1);
+            next[links.length] = connection;
+            links = next;
+            connection.setOwner(thread);
+            LockSupport.unpark(thread);
+        }
+
+        synchronized void remove(ObdConnection connection) {
+            ObdConnection[] current = links;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == connection) {
+                    connection.setOwner(null);
+                    ObdConnection[] next = new ObdConnection[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, next.length - i);
+                    links = next;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[READ_BUFFER];
+            int idle = 0;
+            while (!closed) {
+                ObdConnection[] current = links;
+                int total = 0;
+                for (ObdConnection c : current) {
+                    int n;
+                    try {
+                        n = c.pump(buffer);
+                    } catch (IOException e) {
+                        remove(c);
+                        lost(c, e);
+                        continue;
+                    } catch (RuntimeException e) {
+                        remove(c);
+                        lost(c, new IOException("Session failed: " + e, e));
+                        continue;
+                    }
+                    if (n < 0) {
+                        remove(c);
+                    } else {
+                        total += n;
+                    }
+                }
+                sweeps++;
+                if (total > 0) {
+                    idle = 0;
+                } else if (current.length == 0) {
+                    LockSupport.park(this);
+                } else if (idle < BUSY_SWEEPS) {
+                    idle++;
+                    LockSupport.parkNanos(this, BUSY_PARK_NANOS);
+                } else if (awaitsReply(current)) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                } else {
+                    quietParks++;
+                    LockSupport.parkNanos(this, QUIET_PARK_NANOS);
+                }
+            }
+        }
+
+        private boolean awaitsReply(ObdConnection[] current) {
+            for (ObdConnection c : current) {
+                if (c.isAwaitingReply()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
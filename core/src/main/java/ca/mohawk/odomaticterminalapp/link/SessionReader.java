@@ -0,0 +1,164 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads back the frames of a {@link SessionRecorder} trace one at a time,
+ * reusing a single payload buffer, so traces of any length can be walked
+ * in constant memory. A reader can be bounded to the length a live
+ * recorder had reached, so frames recorded after that are left alone.
+ */
+public class SessionReader implements Closeable {
+
+    private final InputStream in;
+    private final long startMillis;
+    private final long startNanos;
+    private final long end;
+    private byte[] payload = new byte[1024];
+    private long frameNanos;
+    private byte frameDirection;
+    private int frameLength;
+    private long position;
+
+    public SessionReader(File file) throws IOException {
+        this(new FileInputStream(file), Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads only the frames that end at or before {@code end}, a frame
+     * boundary such as {@link SessionRecorder#length()}.
+     */
+    public SessionReader(File file, long end) throws IOException {
+        this(new FileInputStream(file), end);
+    }
+
+    public SessionReader(InputStream stream) throws IOException {
+        this(stream, Long.MAX_VALUE);
+    }
+
+    private SessionReader(InputStream stream, long end) throws IOException {
+        this.end = end;
+        in = new BufferedInputStream(stream, 64 * 1024);
+        byte[] magic = new byte[SessionRecorder.MAGIC.length];
+        readFully(magic, magic.length);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != SessionRecorder.MAGIC[i]) {
+                in.close();
+                throw new IOException("Not a session recording");
+            }
+        }
+        startMillis = readLong();
+        startNanos = readLong();
+        position = SessionRecorder.HEADER_SIZE;
+    }
+
+    /** Wall-clock time the recording started, in ms since the epoch. */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /** {@link System#nanoTime()} at the start of the recording. */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Advances to the next frame.
+     *
+     * @return false at the end of the trace, including the zero-filled tail
+     * left behind when the recorder was not closed, or at the reader's bound
+     */
+    public boolean next() throws IOException {
+        if (position >= end) {
+            return false;
+        }
+        int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        long nanos = first;
+        for (int i = 1; i < 8; i++) {
+            nanos |= (long) readByte() << (8 * i);
+        }
+        byte direction = (byte) readByte();
+        int length = readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+        if (nanos == 0 && length == 0) {
+            return false;
+        }
+        if (length < 0) {
+            throw new IOException("Corrupt frame at offset " + position);
+        }
+        if (position + SessionRecorder.FRAME_OVERHEAD + length > end) {
+            throw new IOException("Frame at offset " + position + " runs past " + end);
+        }
+        if (length > payload.length) {
+            payload = new byte[Math.max(length, payload.length * 2)];
+        }
+        readFully(payload, length);
+        frameNanos = nanos;
+        frameDirection = direction;
+        frameLength = length;
+        position += SessionRecorder.FRAME_OVERHEAD + length;
+        return true;
+    }
+
+    public long getFrameNanos() {
+        return frameNanos;
+    }
+
+    public byte getDirection() {
+        return frameDirection;
+    }
+
+    /** Payload of the current frame; only valid until the next call to {@link #next()}. */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getLength() {
+        return frameLength;
+    }
+
+    /** Byte offset of the end of the current frame in the file. */
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private long readLong() throws IOException {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v |= (long) readByte() << (8 * i);
+        }
+        return v;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            int n = in.read(buffer, done, length - done);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            done += n;
+        }
+    }
+}
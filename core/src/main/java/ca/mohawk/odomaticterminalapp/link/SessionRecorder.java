@@ -0,0 +1,116 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only binary trace of every byte sent to and received from the
+ * adapter.
+ * <p>
+ * The file starts with a header ({@link #MAGIC}, wall-clock start time in
+ * ms, monotonic start time in ns) followed by frames of
+ * {@code [long nanoTime][byte direction][int length][length bytes]}, all
+ * little-endian. Frames are copied straight into a memory-mapped window of
+ * the file, so recording is a memcpy on the calling thread; the kernel
+ * writes pages back in the background. A new window is mapped when the
+ * current one fills up and the file is truncated to its real length on
+ * {@link #close()}. After a crash the tail is zero-filled, which readers
+ * treat as the end of the trace.
+ */
+public class SessionRecorder implements Closeable {
+
+    public static final byte[] MAGIC = "ODOREC01".getBytes(StandardCharsets.US_ASCII);
+    public static final int HEADER_SIZE = MAGIC.length + 8 + 8;
+    public static final int FRAME_OVERHEAD = 8 + 1 + 4;
+
+    public static final byte DIRECTION_IN = 0;
+    public static final byte DIRECTION_OUT = 1;
+
+    private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long frames;
+    private boolean closed;
+
+    public SessionRecorder(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        map(0, HEADER_SIZE);
+        window.put(MAGIC);
+        window.putLong(System.currentTimeMillis());
+        window.putLong(System.nanoTime());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Records bytes read from the adapter. */
+    public void recordIn(byte[] data, int offset, int length) {
+        record(DIRECTION_IN, data, offset, length);
+    }
+
+    /** Records bytes written to the adapter. */
+    public void recordOut(byte[] data, int offset, int length) {
+        record(DIRECTION_OUT, data, offset, length);
+    }
+
+    public synchronized void record(byte direction, byte[] data, int offset, int length) {
+        if (closed) {
+            return;
+        }
+        try {
+            int needed = FRAME_OVERHEAD + length;
+            if (window.remaining() < needed) {
+                map(windowStart + window.position(), needed);
+            }
+            window.putLong(System.nanoTime());
+            window.put(direction);
+            window.putInt(length);
+            window.put(data, offset, length);
+            frames++;
+        } catch (IOException e) {
+            // Losing the trace must never take the link down with it.
+            closed = true;
+        }
+    }
+
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    /** Bytes written so far, including the header. */
+    public synchronized long length() {
+        return windowStart + window.position();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        closed = true;
+        long end = windowStart + window.position();
+        window.force();
+        channel.truncate(end);
+        channel.close();
+    }
+
+    private void map(long position, int atLeast) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                Math.max(WINDOW_SIZE, atLeast));
+        window.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,86 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Transport over TCP, for Wi-Fi adapters and for the {@link Elm327Simulator}
+ * listening on a local port.
+ */
+public class SocketTransport implements Transport {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final String host;
+    private final int port;
+    private volatile Socket socket;
+
+    public SocketTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /** Parses "tcp://host:port". */
+    public static SocketTransport fromUri(String uri) {
+        String rest = uri.substring(uri.indexOf("://") + 3);
+        int colon = rest.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Missing port in " + uri);
+        }
+        return new SocketTransport(rest.substring(0, colon), Integer.parseInt(rest.substring(colon + 1)));
+    }
+
+    @Override
+    public void connect() throws IOException {
+        Socket s = new Socket();
+        s.setTcpNoDelay(true);
+        try {
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        socket = s;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return requireSocket().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return requireSocket().getOutputStream();
+    }
+
+    @Override
+    public boolean setReadTimeout(int millis) throws IOException {
+        requireSocket().setSoTimeout(millis);
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Socket s = socket;
+        socket = null;
+        if (s != null) {
+            s.close();
+        }
+    }
+
+    private Socket requireSocket() throws IOException {
+        Socket s = socket;
+        if (s == null) {
+            throw new IOException("Not connected");
+        }
+        return s;
+    }
+}
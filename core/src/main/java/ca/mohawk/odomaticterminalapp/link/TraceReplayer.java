@@ -0,0 +1,96 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Plays the adapter side of a recorded session back through a
+ * {@link Transport}: every inbound frame of the trace is delivered with its
+ * original spacing divided by {@code speed}. Whatever the client writes is
+ * discarded. A speed of 0 or less replays as fast as the reader consumes.
+ */
+public class TraceReplayer implements Transport {
+
+    private final File trace;
+    private final double speed;
+    private MemoryPipe fromAdapter;
+    private Thread player;
+
+    public TraceReplayer(File trace, double speed) {
+        this.trace = trace;
+        this.speed = speed;
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        SessionReader reader = new SessionReader(trace);
+        MemoryPipe pipe = new MemoryPipe(64 * 1024);
+        fromAdapter = pipe;
+        player = new Thread(() -> play(reader, pipe), "trace-replay");
+        player.setDaemon(true);
+        player.start();
+    }
+
+    private void play(SessionReader reader, MemoryPipe pipe) {
+        OutputStream out = pipe.getOutputStream();
+        long wallStart = System.nanoTime();
+        long traceStart = -1;
+        try {
+            while (reader.next()) {
+                if (reader.getDirection() != SessionRecorder.DIRECTION_IN) {
+                    continue;
+                }
+                if (traceStart < 0) {
+                    traceStart = reader.getFrameNanos();
+                }
+                if (speed > 0) {
+                    long due = wallStart + (long) ((reader.getFrameNanos() - traceStart) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+                }
+                out.write(reader.getPayload(), 0, reader.getLength());
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // Replay stopped or the client closed the transport.
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+            pipe.close();
+        }
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (fromAdapter == null) throw new IOException("Not connected");
+        return fromAdapter.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return OutputStream.nullOutputStream();
+    }
+
+    @Override
+    public synchronized boolean setReadTimeout(int millis) throws IOException {
+        if (fromAdapter == null) throw new IOException("Not connected");
+        fromAdapter.setReadTimeout(millis);
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return "Replay of " + trace.getName();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (fromAdapter != null) fromAdapter.close();
+        if (player != null) player.interrupt();
+    }
+}
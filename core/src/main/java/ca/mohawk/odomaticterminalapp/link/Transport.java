@@ -0,0 +1,37 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream to an ELM327 adapter. Implementations can be connected
+ * again after {@link #close()}, which is how reconnects are done.
+ */
+public interface Transport extends Closeable {
+
+    /** Opens the link; blocks until it is up or has failed. */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Makes a read of the input stream that finds no data give up after
+     * {@code millis} with a {@link java.net.SocketTimeoutException}. Only a
+     * read sees the other end close: {@link InputStream#available()} just
+     * reports 0. Call it after {@link #connect()}.
+     *
+     * @return false if reads of this transport cannot time out
+     */
+    boolean setReadTimeout(int millis) throws IOException;
+
+    /** Human readable name of the other end, e.g. the adapter's Bluetooth name. */
+    String getName();
+
+    /** Closes the link; a blocked read on the input stream must return or throw. */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,115 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The AT settings a session relies on, so they can be restored after a
+ * reconnect.
+ * <p>
+ * A cold start resets the adapter ({@code ATZ}) and applies every setting.
+ * A warm start, used when the link drops and comes back, skips the reset,
+ * which costs about a second on most adapters. It applies only the settings
+ * in effect. Once the vehicle's protocol is known, protocol selection tries
+ * it first ({@code ATSPA6}) instead of a full automatic search. Settings the
+ * user changes from the terminal are remembered once the adapter accepts
+ * them.
+ */
+public class AdapterSettings {
+
+    private static final String RESET = "ATZ";
+
+    // Setting name (e.g. "E", "SP") to the command that applies it, in order.
+    private final Map<String, String> settings = new LinkedHashMap<>();
+
+    public AdapterSettings() {
+        restoreDefaults();
+    }
+
+    private void restoreDefaults() {
+        settings.clear();
+        settings.put("E", "ATE0");
+        settings.put("L", "ATL0");
+        settings.put("S", "ATS1");
+        settings.put("H", "ATH0");
+        settings.put("SP", "ATSP0");
+    }
+
+    /** Reset followed by every setting. */
+    public synchronized List<String> coldStart() {
+        List<String> commands = new ArrayList<>(settings.size() + 1);
+        commands.add(RESET);
+        commands.addAll(settings.values());
+        return commands;
+    }
+
+    /** Every setting, without resetting the adapter first. */
+    public synchronized List<String> warmStart() {
+        return new ArrayList<>(settings.values());
+    }
+
+    /**
+     * Remembers the protocol the adapter settled on, as reported by
+     * {@code ATDPN} (e.g. "A6" or "6"), unless the user picked one.
+     */
+    public synchronized void setDetectedProtocol(String dpn) {
+        String p = dpn.trim().toUpperCase(Locale.US);
+        if (p.startsWith("A")) {
+            p = p.substring(1);
+        }
+        String current = settings.get("SP");
+        boolean automatic = current.equals("ATSP0") || current.startsWith("ATSPA");
+        if (automatic && p.length() == 1 && HexParser.digit(p.charAt(0)) > 0) {
+            settings.put("SP", "ATSPA" + p);
+        }
+    }
+
+    /**
+     * Called with every AT command sent from the terminal and its reply.
+     * Setting commands the adapter answered with OK are kept; a reset or
+     * defaults command forgets the user's changes. Resets answer with the
+     * version banner rather than OK, so any reply but an error counts.
+     */
+    public synchronized void onCommand(String command, String reply) {
+        String cmd = command.replace(" ", "").toUpperCase(Locale.US);
+        if (!cmd.startsWith("AT")) {
+            return;
+        }
+        String at = cmd.substring(2);
+        if (at.equals("Z") || at.equals("D") || at.equals("WS")) {
+            if (!reply.contains("?")) {
+                restoreDefaults();
+            }
+            return;
+        }
+        if (!reply.contains("OK")) {
+            return;
+        }
+        String key = settingKey(at);
+        if (key != null) {
+            settings.put(key, cmd);
+        }
+    }
+
+    /**
+     * The command that applies a setting, e.g. "ATH0" for "H", or null if
+     * the setting is left at the adapter's own default.
+     */
+    public synchronized String get(String name) {
+        return settings.get(name);
+    }
+
+    // Name of the setting a command changes, or null if it changes none worth replaying.
+    private static String settingKey(String at) {
+        if (at.matches("[ELSHR][01]")) return at.substring(0, 1);
+        if (at.matches("(SP|TP)A?[0-9A-C]")) return "SP";
+        if (at.matches("AT[012]")) return "AT";
+        if (at.matches("ST[0-9A-F]{2}")) return "ST";
+        if (at.matches("CAF[01]")) return "CAF";
+        if (at.matches("SH[0-9A-F]{3}([0-9A-F]{3})?")) return "SH";
+        return null;
+    }
+}
@@ -0,0 +1,345 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Threshold and alert rules evaluated on the decoded sample stream as the
+ * samples arrive, written one per line:
+ * <pre>
+ * # comment
+ * Coolant hot: ECT > 105 for 3s    above 105 for at least 3 s
+ * Rev spike: RPM rate > 4000       rising faster than 4000 rpm/s
+ * Low voltage: 42 &lt; 11.5 for 500ms  a PID by label or two hex digits
+ * New code: DTC new                a trouble code not seen before
+ * </pre>
+ * The name before the colon is optional. A rule is raised on the first
+ * sample at which its condition has held for the given time, so it fires
+ * within one sample period, and is cleared by the first sample at which
+ * the condition no longer holds. Trouble codes come in through
+ * {@link #onDtc}; their rules are raised once per new code and never
+ * cleared.
+ * <p>
+ * The text is compiled into flat primitive arrays grouped by PID, so a
+ * sample only visits the rules on its own PID and evaluation neither
+ * allocates nor locks. {@link #onSample} and {@link #onDtc} must be called
+ * from one thread, normally the link's.
+ */
+public final class AlertRules implements SampleListener {
+
+    /** Rules allowed in one set. */
+    public static final int MAX_RULES = 10_000;
+    /** {@link Rule#pid} of a trouble code rule. */
+    public static final int DTC = -1;
+
+    /** Told about every rule raised or cleared, on the thread that fed the sample. */
+    public interface Listener {
+        /**
+         * @param value the sample, or its rate per second for a rate rule,
+         *              or the two-byte code for a trouble code rule
+         */
+        void onAlert(Rule rule, boolean raised, long timeNanos, double value);
+    }
+
+    /** One parsed rule. */
+    public static final class Rule {
+        /** Index in {@link #getRules()}. */
+        public final int id;
+        public final String name;
+        /** Mode 01 PID, or {@link #DTC}. */
+        public final int pid;
+        private final String text;
+
+        Rule(int id, String name, int pid, String text) {
+            this.id = id;
+            this.name = name;
+            this.pid = pid;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return name.equals(text) ? text : name + ": " + text;
+        }
+    }
+
+    private static final long NONE = Long.MIN_VALUE;
+    private static final int RATE = 1;
+    private static final int BELOW = 2;
+
+    private final List<Rule> rules;
+    private final Listener listener;
+
+    // Sample rules by PID: those for pid p are at [first[p], first[p + 1]).
+    private final int[] first = new int[257];
+    private final Rule[] rule;
+    private final int[] flags;
+    private final double[] threshold;
+    private final long[] holdNanos;
+    // Since when the condition holds, NONE while it does not.
+    private final long[] since;
+    private final boolean[] raised;
+
+    // Previous sample of each PID that has rate rules.
+    private final boolean[] needsRate = new boolean[256];
+    private final double[] previousValue = new double[256];
+    private final long[] previousNanos = new long[256];
+
+    private final Rule[] dtcRules;
+    private final boolean[] seenDtc = new boolean[0x10000];
+
+    private AlertRules(List<Rule> rules, List<double[]> conditions, Listener listener) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.listener = listener;
+        int count = 0;
+        for (Rule r : rules) {
+            if (r.pid != DTC) {
+                first[r.pid + 1]++;
+                count++;
+            }
+        }
+        for (int p = 0; p < 256; p++) {
+            first[p + 1] += first[p];
+        }
+        rule = new Rule[count];
+        flags = new int[count];
+        threshold = new double[count];
+        holdNanos = new long[count];
+        since = new long[count];
+        raised = new boolean[count];
+        int[] next = first.clone();
+        List<Rule> dtc = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            Rule r = rules.get(i);
+            if (r.pid == DTC) {
+                dtc.add(r);
+                continue;
+            }
+            double[] c = conditions.get(i);
+            int j = next[r.pid]++;
+            rule[j] = r;
+            flags[j] = (int) c[0];
+            threshold[j] = c[1];
+            holdNanos[j] = (long) c[2];
+            if ((flags[j] & RATE) != 0) {
+                needsRate[r.pid] = true;
+            }
+        }
+        dtcRules = dtc.toArray(new Rule[0]);
+        reset();
+    }
+
+    /**
+     * Parses and compiles a rule set.
+     *
+     * @throws IllegalArgumentException naming the line, if a rule is malformed
+     */
+    public static AlertRules compile(String text, Listener listener) {
+        String[] lines = text.split("\r\n|\r|\n", -1);
+        List<Rule> rules = new ArrayList<>();
+        List<double[]> conditions = new ArrayList<>();
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            int number = i + 1;
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            need(rules.size() < MAX_RULES, number, "more than " + MAX_RULES + " rules");
+            String name = null;
+            int colon = line.indexOf(':');
+            if (colon >= 0) {
+                name = line.substring(0, colon).trim();
+                line = line.substring(colon + 1).trim();
+                need(!name.isEmpty(), number, "empty rule name");
+            }
+            String[] words = line.split("\\s+");
+            if (words[0].equalsIgnoreCase("DTC")) {
+                need(words.length == 2 && words[1].equalsIgnoreCase("new"), number,
+                        "trouble code rules read: DTC new");
+                rules.add(new Rule(rules.size(), name == null ? line : name, DTC, line));
+                conditions.add(null);
+                continue;
+            }
+            int pid = pid(words[0]);
+            need(pid >= 0, number, "unknown PID " + words[0]);
+            int w = 1;
+            int flag = 0;
+            if (w < words.length && words[w].equalsIgnoreCase("rate")) {
+                flag |= RATE;
+                w++;
+            }
+            need(w + 1 < words.length && (words[w].equals(">") || words[w].equals("<")), number,
+                    "expected PID [rate] > or < value [for time]");
+            if (words[w].equals("<")) {
+                flag |= BELOW;
+            }
+            double limit = number(words[w + 1], number);
+            w += 2;
+            long hold = 0;
+            if (w < words.length) {
+                need(w + 2 == words.length && words[w].equalsIgnoreCase("for"), number,
+                        "expected for and a time, e.g. for 3s");
+                hold = duration(words[w + 1], number);
+            }
+            rules.add(new Rule(rules.size(), name == null ? line : name, pid, line));
+            conditions.add(new double[]{flag, limit, hold});
+        }
+        return new AlertRules(rules, conditions, listener);
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    /** The rule with this id, or null. */
+    public Rule getRule(int id) {
+        return id >= 0 && id < rules.size() ? rules.get(id) : null;
+    }
+
+    @Override
+    public void onSample(int pid, long timeNanos, double value) {
+        if (pid < 0 || pid > 255 || Double.isNaN(value)) {
+            return;
+        }
+        int from = first[pid];
+        int to = first[pid + 1];
+        if (from == to) {
+            return;
+        }
+        double rate = Double.NaN;
+        if (needsRate[pid]) {
+            long previous = previousNanos[pid];
+            if (previous != NONE && timeNanos > previous) {
+                rate = (value - previousValue[pid]) * 1e9 / (timeNanos - previous);
+            }
+            previousValue[pid] = value;
+            previousNanos[pid] = timeNanos;
+        }
+        for (int j = from; j < to; j++) {
+            int f = flags[j];
+            double x = (f & RATE) != 0 ? rate : value;
+            // NaN, a rate without a previous sample, compares false either way.
+            boolean holds = (f & BELOW) != 0 ? x < threshold[j] : x > threshold[j];
+            if (!holds) {
+                since[j] = NONE;
+                if (raised[j]) {
+                    raised[j] = false;
+                    listener.onAlert(rule[j], false, timeNanos, x);
+                }
+            } else if (!raised[j]) {
+                if (since[j] == NONE) {
+                    since[j] = timeNanos;
+                }
+                if (timeNanos - since[j] >= holdNanos[j]) {
+                    raised[j] = true;
+                    listener.onAlert(rule[j], true, timeNanos, x);
+                }
+            }
+        }
+    }
+
+    /** Feeds a trouble code read from the vehicle, as its two-byte form, e.g. from a scan. */
+    public void onDtc(int code, long timeNanos) {
+        code &= 0xFFFF;
+        if (seenDtc[code]) {
+            return;
+        }
+        seenDtc[code] = true;
+        for (Rule r : dtcRules) {
+            listener.onAlert(r, true, timeNanos, code);
+        }
+    }
+
+    /** True while the rule is raised; trouble code rules never are. Same thread as {@link #onSample}. */
+    public boolean isRaised(int id) {
+        for (int j = 0; j < rule.length; j++) {
+            if (rule[j].id == id) {
+                return raised[j];
+            }
+        }
+        return false;
+    }
+
+    /**
+     * False while a small change in {@code pid} could raise or clear one of
+     * its rules: one is raised or timing its hold, the value is within
+     * {@code band} of a threshold, or the PID has a rate rule, which needs
+     * closely spaced samples. Polling may slow the PID down otherwise; see
+     * {@link PollScheduler.SlowdownGuard}. Same thread as {@link #onSample}.
+     */
+    public boolean maySlowDown(int pid, double value, double band) {
+        if (pid < 0 || pid > 255) {
+            return true;
+        }
+        for (int j = first[pid]; j < first[pid + 1]; j++) {
+            if ((flags[j] & RATE) != 0 || raised[j] || since[j] != NONE
+                    || Math.abs(value - threshold[j]) <= band) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Clears every rule without telling the listener, and forgets the codes seen, e.g. on reconnect. */
+    public void reset() {
+        Arrays.fill(since, NONE);
+        Arrays.fill(raised, false);
+        Arrays.fill(previousNanos, NONE);
+        Arrays.fill(seenDtc, false);
+    }
+
+    // A label such as RPM, or the PID in hex.
+    private static int pid(String word) {
+        for (int p = 0; p < 256; p++) {
+            if (PidDecoder.label(p).equalsIgnoreCase(word)) {
+                return p;
+            }
+        }
+        if (word.length() == 2) {
+            int hi = HexParser.digit(word.charAt(0));
+            int lo = HexParser.digit(word.charAt(1));
+            if (hi >= 0 && lo >= 0) {
+                return hi << 4 | lo;
+            }
+        }
+        return -1;
+    }
+
+    private static double number(String word, int number) {
+        try {
+            double value = Double.parseDouble(word);
+            need(!Double.isNaN(value) && !Double.isInfinite(value), number, "bad number " + word);
+            return value;
+        } catch (NumberFormatException e) {
+            throw error(number, "bad number " + word);
+        }
+    }
+
+    // 3s, 500ms or a plain number of seconds.
+    private static long duration(String word, int number) {
+        String w = word.toLowerCase(Locale.ROOT);
+        double scale = 1e9;
+        if (w.endsWith("ms")) {
+            w = w.substring(0, w.length() - 2);
+            scale = 1e6;
+        } else if (w.endsWith("s")) {
+            w = w.substring(0, w.length() - 1);
+        }
+        double value = number(w, number);
+        need(value >= 0, number, "negative time " + word);
+        return Math.round(value * scale);
+    }
+
+    private static void need(boolean condition, int number, String message) {
+        if (!condition) {
+            throw error(number, message);
+        }
+    }
+
+    private static IllegalArgumentException error(int number, String message) {
+        return new IllegalArgumentException("Line " + number + ": " + message);
+    }
+}
@@ -0,0 +1,467 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Monitor mode: lets the adapter stream every CAN frame on the bus
+ * ({@code ATMA}) and turns the stream into frames and per-ID statistics.
+ * <p>
+ * The adapter is switched to headers on and raw frames ({@code ATH1},
+ * {@code ATCAF0}) so each line is one frame, and the ID filter is also
+ * sent to the adapter ({@code ATCRA} for a single ID, {@code ATCF} and
+ * {@code ATCM} for a pattern) so it does not waste the serial link on
+ * frames that would be dropped anyway. The filter is applied again here,
+ * since not every adapter honours it. Lines are parsed straight out of the
+ * read buffer into an ID, a DLC and up to eight data bytes; nothing is
+ * allocated per frame.
+ * <p>
+ * When the adapter's own buffer overflows it prints {@code BUFFER FULL}
+ * and stops monitoring. That is counted and monitoring is resumed right
+ * away, until {@link #stop} is called.
+ * <p>
+ * {@link #onLine} is called on the read thread; the statistics may be read
+ * from any thread.
+ */
+public class CanMonitor {
+
+    /** Receives accepted frames on the read thread. */
+    public interface FrameListener {
+        /** The data range is only valid during the call. */
+        void onCanFrame(int id, byte[] data, int offset, int dlc, long timeNanos);
+    }
+
+    /** Distinct IDs tracked; frames of further IDs are counted but have no statistics. */
+    public static final int MAX_IDS = 1024;
+    public static final int MAX_STANDARD_ID = 0x7FF;
+    public static final int MAX_EXTENDED_ID = 0x1FFFFFFF;
+    private static final int MAX_DLC = 8;
+
+    private static final byte[] BUFFER_FULL = "BUFFER FULL".getBytes(StandardCharsets.US_ASCII);
+
+    /** Statistics of one CAN ID at the time of the snapshot. */
+    public static final class IdStats {
+        public final int id;
+        public final long count;
+        public final long changes;
+        public final long firstNanos;
+        public final long lastNanos;
+        public final byte[] lastData;
+
+        IdStats(int id, long count, long changes, long firstNanos, long lastNanos, byte[] lastData) {
+            this.id = id;
+            this.count = count;
+            this.changes = changes;
+            this.firstNanos = firstNanos;
+            this.lastNanos = lastNanos;
+            this.lastData = lastData;
+        }
+
+        /** Average frame rate, 0 until the ID has been seen twice. */
+        public double rateHz() {
+            long span = lastNanos - firstNanos;
+            return count < 2 || span <= 0 ? 0 : (count - 1) * 1e9 / span;
+        }
+
+        public boolean isExtended() {
+            return id > MAX_STANDARD_ID;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(isExtended() ? String.format("%08X", id) : String.format("%03X", id));
+            sb.append(String.format(" %6d %6.1f Hz ", count, rateHz()));
+            for (byte b : lastData) {
+                sb.append(String.format(" %02X", b & 0xFF));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final AdapterSettings settings;
+    private final FrameListener listener;
+    private volatile boolean running;
+    // Set from start until the adapter has actually stopped streaming, which trails stop.
+    private volatile boolean active;
+    // Filter: a frame passes if (id & mask) == pattern. A mask of 0 passes everything.
+    private volatile int pattern;
+    private volatile int mask;
+    private volatile boolean extendedFilter;
+    private boolean adapterFiltered;
+    // Sorted; replaced, never modified, so the read thread can use it without locking.
+    private volatile int[] ignored = new int[0];
+
+    // Parse scratch, read thread only.
+    private final byte[] data = new byte[MAX_DLC];
+    private int parsedId;
+    private int parsedDlc;
+
+    // Per-ID statistics in dense arrays, found through an open-addressing index.
+    private final int[] index = new int[MAX_IDS * 2];
+    private final int[] ids = new int[MAX_IDS];
+    private final long[] counts = new long[MAX_IDS];
+    private final long[] changes = new long[MAX_IDS];
+    private final long[] first = new long[MAX_IDS];
+    private final long[] last = new long[MAX_IDS];
+    private final byte[] dlcs = new byte[MAX_IDS];
+    private final byte[] lastData = new byte[MAX_IDS * MAX_DLC];
+    private int idCount;
+
+    private long frames;
+    private long filtered;
+    private long untracked;
+    private long errors;
+    private long bufferFull;
+    private long restarts;
+
+    /**
+     * @param settings the session's settings, for restoring the header and
+     *                 formatting mode afterwards; null restores the defaults
+     * @param listener receives every accepted frame; may be null
+     */
+    public CanMonitor(AdapterSettings settings, FrameListener listener) {
+        this.settings = settings;
+        this.listener = listener;
+        Arrays.fill(index, -1);
+    }
+
+    /**
+     * Only passes frames whose ID matches {@code pattern} in the bits set in
+     * {@code mask}, like the adapter's {@code ATCF}/{@code ATCM}. Takes
+     * effect in software at once and on the adapter at the next
+     * {@link #start}.
+     *
+     * @param extended true for 29-bit IDs
+     */
+    public void setFilter(int pattern, int mask, boolean extended) {
+        this.mask = mask & (extended ? MAX_EXTENDED_ID : MAX_STANDARD_ID);
+        this.pattern = pattern & this.mask;
+        this.extendedFilter = extended;
+    }
+
+    /** Only passes frames with exactly this ID ({@code ATCRA}). */
+    public void setReceiveAddress(int id) {
+        boolean extended = id > MAX_STANDARD_ID;
+        setFilter(id, extended ? MAX_EXTENDED_ID : MAX_STANDARD_ID, extended);
+    }
+
+    /** Passes every frame again. */
+    public void clearFilter() {
+        mask = 0;
+        pattern = 0;
+    }
+
+    /** Drops frames with this ID in software, e.g. a chatty ID the filter lets through. */
+    public synchronized void ignore(int id) {
+        int[] current = ignored;
+        if (Arrays.binarySearch(current, id) >= 0) {
+            return;
+        }
+        int[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = id;
+        Arrays.sort(next);
+        ignored = next;
+    }
+
+    /** True from {@link #start} until the adapter has stopped streaming after {@link #stop}. */
+    public boolean isRunning() {
+        return active;
+    }
+
+    /**
+     * Queues the monitor set-up and {@code ATMA}. Polling should be
+     * stopped first; every queued request waits until {@link #stop}.
+     */
+    public void start(CommandQueue queue) throws IOException {
+        running = true;
+        active = true;
+        queue.enqueueRaw("ATH1", null);
+        queue.enqueueRaw("ATCAF0", null);
+        int m = mask;
+        adapterFiltered = m != 0;
+        if (m != 0) {
+            String format = extendedFilter ? "%08X" : "%03X";
+            if (m == (extendedFilter ? MAX_EXTENDED_ID : MAX_STANDARD_ID)) {
+                queue.enqueueRaw("ATCRA" + String.format(format, pattern), null);
+            } else {
+                queue.enqueueRaw("ATCF" + String.format(format, pattern), null);
+                queue.enqueueRaw("ATCM" + String.format(format, m), null);
+            }
+        }
+        monitor(queue);
+    }
+
+    /** Ends monitoring and queues the commands that put the adapter's settings back. */
+    public void stop(CommandQueue queue) throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            if (!queue.interrupt()) {
+                // ATMA had not gone out yet and has been dropped.
+                active = false;
+            }
+        } catch (IOException e) {
+            active = false;
+            throw e;
+        }
+        queue.enqueueRaw(restore("H", "ATH0"), null);
+        queue.enqueueRaw(restore("CAF", "ATCAF1"), null);
+        if (adapterFiltered) {
+            // Without an address, ATCRA resets all receive filters.
+            queue.enqueueRaw("ATCRA", null);
+        }
+    }
+
+    /**
+     * Forgets the monitoring session without talking to the adapter, e.g.
+     * because the link dropped and the adapter starts over anyway.
+     */
+    public void abort() {
+        running = false;
+        active = false;
+    }
+
+    private void monitor(CommandQueue queue) throws IOException {
+        queue.enqueueUnbuffered("ATMA", (command, reply, rtt) -> onMonitorEnded(queue));
+    }
+
+    // The adapter stopped on its own, most likely after BUFFER FULL.
+    private void onMonitorEnded(CommandQueue queue) {
+        if (!running) {
+            active = false;
+            return;
+        }
+        synchronized (this) {
+            restarts++;
+        }
+        try {
+            monitor(queue);
+        } catch (IOException ignored) {
+            // Link dropped; monitoring is not resumed on reconnect.
+            running = false;
+            active = false;
+        }
+    }
+
+    private String restore(String setting, String fallback) {
+        String command = settings == null ? null : settings.get(setting);
+        return command == null ? fallback : command;
+    }
+
+    /**
+     * Handles one line while monitoring. Read thread only.
+     *
+     * @return true if the line was a frame or an overflow notice and has
+     * been dealt with; false for anything else, e.g. the echo or
+     * {@code STOPPED}, and for every line while not running
+     */
+    public boolean onLine(byte[] buffer, int offset, int length) {
+        if (!active) {
+            return false;
+        }
+        if (matches(buffer, offset, length, BUFFER_FULL)) {
+            synchronized (this) {
+                bufferFull++;
+            }
+            return true;
+        }
+        int result = parse(buffer, offset, length);
+        if (result == 0) {
+            return false;
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (result < 0) {
+                errors++;
+                return true;
+            }
+            if (!accept(parsedId)) {
+                filtered++;
+                return true;
+            }
+            frames++;
+            record(parsedId, now);
+        }
+        FrameListener l = listener;
+        if (l != null) {
+            l.onCanFrame(parsedId, data, 0, parsedDlc, now);
+        }
+        return true;
+    }
+
+    /**
+     * Parses "7E8 03 41 0D 32 00 00 00 00" or "18DAF110034105..." into the
+     * scratch fields. An odd digit count means a 3-digit 11-bit ID, an even
+     * one the eight digits of a 29-bit ID.
+     *
+     * @return 1 for a frame, -1 for a damaged one, 0 for a line that is no frame
+     */
+    private int parse(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        int digits = 0;
+        for (int i = offset; i < end; i++) {
+            byte c = buffer[i];
+            if (c == ' ') continue;
+            if (HexParser.digit(c) < 0) {
+                // "7E8 03 41 <RX ERROR" and the like.
+                return c == '<' && digits > 0 ? -1 : 0;
+            }
+            digits++;
+        }
+        int idDigits = (digits & 1) == 1 ? 3 : 8;
+        if (digits < idDigits) {
+            return 0;
+        }
+        if (digits - idDigits > 2 * MAX_DLC) {
+            return -1;
+        }
+        int id = 0;
+        int n = 0;
+        int high = -1;
+        for (int i = offset; i < end; i++) {
+            byte c = buffer[i];
+            if (c == ' ') continue;
+            int d = HexParser.digit(c);
+            if (n < idDigits) {
+                id = (id << 4) | d;
+                n++;
+            } else if (high < 0) {
+                high = d;
+            } else {
+                data[(n - idDigits) / 2] = (byte) ((high << 4) | d);
+                high = -1;
+                n += 2;
+            }
+        }
+        parsedId = id;
+        parsedDlc = (n - idDigits) / 2;
+        return 1;
+    }
+
+    private boolean accept(int id) {
+        int m = mask;
+        if (m != 0 && ((id & m) != pattern || (id > MAX_STANDARD_ID) != extendedFilter)) {
+            return false;
+        }
+        int[] skip = ignored;
+        return skip.length == 0 || Arrays.binarySearch(skip, id) < 0;
+    }
+
+    // Must hold the lock.
+    private void record(int id, long now) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            untracked++;
+            return;
+        }
+        int base = slot * MAX_DLC;
+        if (counts[slot] == 0) {
+            first[slot] = now;
+        } else if (dlcs[slot] != parsedDlc || !sameData(base)) {
+            changes[slot]++;
+        }
+        counts[slot]++;
+        last[slot] = now;
+        dlcs[slot] = (byte) parsedDlc;
+        System.arraycopy(data, 0, lastData, base, parsedDlc);
+    }
+
+    private boolean sameData(int base) {
+        for (int i = 0; i < parsedDlc; i++) {
+            if (lastData[base + i] != data[i]) return false;
+        }
+        return true;
+    }
+
+    // Must hold the lock. Dense slot of the ID, added if there is room, or -1.
+    private int slotOf(int id) {
+        int m = index.length - 1;
+        int h = (id * 0x9E3779B9) >>> 16;
+        for (int probe = 0; probe < index.length; probe++) {
+            int i = (h + probe) & m;
+            int slot = index[i];
+            if (slot < 0) {
+                if (idCount == MAX_IDS) {
+                    return -1;
+                }
+                slot = idCount++;
+                index[i] = slot;
+                ids[slot] = id;
+                return slot;
+            }
+            if (ids[slot] == id) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] buffer, int offset, int length, byte[] text) {
+        if (length < text.length) {
+            return false;
+        }
+        for (int i = 0; i < text.length; i++) {
+            if (buffer[offset + i] != text[i]) return false;
+        }
+        return true;
+    }
+
+    /** Statistics of every ID seen, lowest ID first. */
+    public synchronized List<IdStats> getStats() {
+        List<IdStats> list = new ArrayList<>(idCount);
+        for (int slot = 0; slot < idCount; slot++) {
+            list.add(new IdStats(ids[slot], counts[slot], changes[slot], first[slot], last[slot],
+                    Arrays.copyOfRange(lastData, slot * MAX_DLC, slot * MAX_DLC + dlcs[slot])));
+        }
+        list.sort((a, b) -> Integer.compare(a.id, b.id));
+        return list;
+    }
+
+    /** Forgets the statistics, the counters and the IDs seen. */
+    public synchronized void reset() {
+        Arrays.fill(index, -1);
+        Arrays.fill(counts, 0, idCount, 0);
+        Arrays.fill(changes, 0, idCount, 0);
+        idCount = 0;
+        frames = filtered = untracked = errors = bufferFull = restarts = 0;
+    }
+
+    /** Frames that passed the filter. */
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    /** Frames the software filter dropped. */
+    public synchronized long getFilteredCount() {
+        return filtered;
+    }
+
+    /** Accepted frames of IDs beyond the first {@link #MAX_IDS}. */
+    public synchronized long getUntrackedCount() {
+        return untracked;
+    }
+
+    /** Damaged or oversized frames, e.g. with {@code <RX ERROR}. */
+    public synchronized long getErrorCount() {
+        return errors;
+    }
+
+    /** Times the adapter reported {@code BUFFER FULL}. */
+    public synchronized long getBufferFullCount() {
+        return bufferFull;
+    }
+
+    /** Times monitoring was resumed after the adapter stopped on its own. */
+    public synchronized long getRestartCount() {
+        return restarts;
+    }
+
+    public synchronized int getIdCount() {
+        return idCount;
+    }
+}
@@ -0,0 +1,71 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * On-disk cache of {@link VehicleCapabilities}, keyed by adapter address
+ * plus VIN, so a reconnect does not have to walk every support bitmap and
+ * read the VIN again before live data can flow.
+ * <p>
+ * The whole cache is one small properties file that is rewritten through a
+ * temporary file on every update. A missing or unreadable file is treated
+ * as an empty cache.
+ */
+public class CapabilityCache {
+
+    private final File file;
+    private final Properties entries = new Properties();
+
+    public CapabilityCache(File file) {
+        this.file = file;
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                entries.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                entries.clear();
+            }
+        }
+    }
+
+    /** The vehicle last seen through this adapter, or null. */
+    public synchronized VehicleCapabilities getLast(String adapter) {
+        String vin = entries.getProperty(adapter + ".last");
+        return vin == null ? null : get(adapter, vin);
+    }
+
+    public synchronized VehicleCapabilities get(String adapter, String vin) {
+        String key = adapter + "|" + vin;
+        String pids = entries.getProperty(key + ".pids");
+        if (pids == null) {
+            return null;
+        }
+        VehicleCapabilities caps = new VehicleCapabilities();
+        caps.setVin(vin);
+        caps.setProtocol(entries.getProperty(key + ".protocol"));
+        caps.supportFromHex(pids);
+        return caps;
+    }
+
+    /** Stores {@code caps} and makes it the last vehicle seen through {@code adapter}. */
+    public synchronized void put(String adapter, VehicleCapabilities caps) throws IOException {
+        String key = adapter + "|" + caps.getVin();
+        entries.setProperty(key + ".pids", caps.supportToHex());
+        entries.setProperty(key + ".protocol", caps.getProtocol());
+        entries.setProperty(adapter + ".last", caps.getVin());
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            entries.store(out, "OBD capability cache");
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds out what the vehicle behind an adapter supports, using the
+ * {@link CapabilityCache} where it can.
+ * <p>
+ * Every probe starts with {@code 0100} and {@code ATDPN}. If the answers
+ * match the vehicle last seen through the same adapter, the VIN
+ * ({@code 0902}) is read as well, since vehicles of one model share a
+ * protocol and bitmap. A cached entry for that VIN with the same answers
+ * is trusted and the probe is done after three requests. Otherwise the
+ * remaining support bitmaps ({@code 0120}, {@code 0140}, ...) and, if not
+ * read yet, the VIN are read and the cache is updated.
+ * <p>
+ * A probe is used once per connection. Its callbacks arrive on the read
+ * thread. If the link drops mid-probe the listener is never called; the
+ * next connection starts a new probe.
+ */
+public class CapabilityProbe {
+
+    public interface Listener {
+        /**
+         * @param cached true if the cached entry was confirmed rather than
+         *               probed in full
+         */
+        void onCapabilities(VehicleCapabilities capabilities, boolean cached);
+
+        /** The vehicle did not answer {@code 0100}, e.g. ignition off. */
+        void onProbeFailed(String reply);
+    }
+
+    private static final int VIN_LENGTH = 17;
+
+    private final CapabilityCache cache;
+    private final String adapter;
+    private final Listener listener;
+    private final VehicleCapabilities found = new VehicleCapabilities();
+    private final byte[] bytes = new byte[256];
+    private CommandQueue queue;
+    private boolean answered;
+    private String firstReply = "";
+    // Null until read.
+    private String vin;
+
+    public CapabilityProbe(CapabilityCache cache, String adapter, Listener listener) {
+        this.cache = cache;
+        this.adapter = adapter;
+        this.listener = listener;
+    }
+
+    /** Queues the first requests; the rest follow as replies arrive. */
+    public void start(CommandQueue queue) throws IOException {
+        this.queue = queue;
+        queue.enqueueRaw("0100", (command, reply, rtt) -> {
+            firstReply = reply;
+            answered = addBitmaps(Pids.SUPPORTED_01_20, reply);
+        });
+        queue.enqueueRaw("ATDPN", (command, reply, rtt) -> onProtocol(reply));
+    }
+
+    private void onProtocol(String reply) {
+        if (!answered) {
+            listener.onProbeFailed(firstReply);
+            return;
+        }
+        found.setProtocol(reply.trim());
+        if (matches(cache.getLast(adapter))) {
+            request("0902", (command, r, rtt) -> onVin(parseVin(r)));
+            return;
+        }
+        nextBitmap(Pids.SUPPORTED_01_20 + 0x20);
+    }
+
+    // Trusts the cached entry of this VIN if it answers the same, else probes in full.
+    private void onVin(String vin) {
+        this.vin = vin;
+        VehicleCapabilities known = cache.get(adapter, vin);
+        if (!matches(known)) {
+            nextBitmap(Pids.SUPPORTED_01_20 + 0x20);
+            return;
+        }
+        VehicleCapabilities last = cache.getLast(adapter);
+        if (last == null || !last.getVin().equals(vin)) {
+            try {
+                cache.put(adapter, known);
+            } catch (IOException ignored) {
+                // Only the last-seen marker is stale; the entry itself is good.
+            }
+        }
+        listener.onCapabilities(known, true);
+    }
+
+    private boolean matches(VehicleCapabilities cached) {
+        return cached != null && cached.getProtocol().equals(found.getProtocol())
+                && cached.sameSupport(found, Pids.SUPPORTED_01_20);
+    }
+
+    // Asks for the bitmap at base if the previous one says it exists, else moves on to the VIN.
+    private void nextBitmap(int base) {
+        if (base <= 0xE0 && found.isSupported(base)) {
+            request(String.format("01%02X", base), (command, reply, rtt) -> {
+                addBitmaps(base, reply);
+                nextBitmap(base + 0x20);
+            });
+        } else if (vin != null) {
+            finish(vin);
+        } else {
+            request("0902", (command, reply, rtt) -> finish(parseVin(reply)));
+        }
+    }
+
+    private void finish(String vin) {
+        found.setVin(vin);
+        try {
+            cache.put(adapter, found);
+        } catch (IOException ignored) {
+            // Still good for this session; the next one probes in full.
+        }
+        listener.onCapabilities(found, false);
+    }
+
+    private void request(String command, CommandQueue.ResponseListener handler) {
+        try {
+            queue.enqueueRaw(command, handler);
+        } catch (IOException ignored) {
+            // Link dropped; the next connection runs its own probe.
+        }
+    }
+
+    /**
+     * Adds every {@code 41 base a b c d} bitmap in a reply, one per
+     * answering ECU. Returns false if there was none.
+     */
+    private boolean addBitmaps(int base, String reply) {
+        int count = parse(reply);
+        boolean any = false;
+        int i = 0;
+        while (i + 6 <= count) {
+            if ((bytes[i] & 0xFF) == 0x40 + Pids.MODE_CURRENT_DATA && (bytes[i + 1] & 0xFF) == base) {
+                found.addSupportBitmap(base, bytes, i + 2);
+                any = true;
+                i += 6;
+            } else {
+                i++;
+            }
+        }
+        return any;
+    }
+
+    private int parse(String reply) {
+        int count = 0;
+        for (String line : reply.split("\n")) {
+            byte[] text = line.getBytes(StandardCharsets.US_ASCII);
+            count += HexParser.parseLine(text, 0, text.length, bytes, count);
+        }
+        return count;
+    }
+
+    /**
+     * Extracts the VIN from a mode 09 PID 02 reply, either one CAN
+     * multi-frame message or the older one-line-per-4-bytes form. Returns ""
+     * if the vehicle has none.
+     */
+    static String parseVin(String reply) {
+        byte[] data = new byte[64];
+        StringBuilder vin = new StringBuilder(VIN_LENGTH);
+        for (String line : reply.split("\n")) {
+            byte[] text = line.getBytes(StandardCharsets.US_ASCII);
+            int n = HexParser.parseLine(text, 0, text.length, data, 0);
+            int from = (n >= 3 && data[0] == 0x49 && data[1] == 0x02) ? 3 : 0;
+            for (int i = from; i < n; i++) {
+                int b = data[i] & 0xFF;
+                if (b > 0x20 && b < 0x7F) vin.append((char) b);
+            }
+        }
+        return vin.length() > VIN_LENGTH ? vin.substring(vin.length() - VIN_LENGTH) : vin.toString();
+    }
+}
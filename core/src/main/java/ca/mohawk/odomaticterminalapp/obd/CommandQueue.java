@@ -0,0 +1,476 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Queue of ELM327 requests that correlates every command with the reply
+ * that ends at the next {@code >} prompt. Reply frames come in through the
+ * {@link ResponseFramer.FrameListener} callbacks on the read thread.
+ * <p>
+ * Single mode 01 PIDs are coalesced into multi-PID requests (up to six per
+ * request, e.g. {@code 01 0C 0D 05 0F 10 11}) and the reply is split back
+ * per PID. The request at the head of the queue is always encoded ahead of
+ * time so it can be written the moment the prompt arrives, before the
+ * previous reply is even decoded.
+ */
+public class CommandQueue implements ResponseFramer.FrameListener {
+
+    /** Sends encoded command bytes to the adapter. */
+    public interface Writer {
+        void write(byte[] command) throws IOException;
+    }
+
+    /** Receives the full text reply to a raw command. */
+    public interface ResponseListener {
+        void onResponse(String command, String response, long roundTripNanos);
+    }
+
+    /** Receives the data bytes of one PID out of a mode 01 reply. */
+    public interface PidListener {
+        void onPidData(int pid, byte[] data, int offset, int length, long timeNanos);
+    }
+
+    /**
+     * Told about every completed mode 01 batch, for tuning the adapter's
+     * timing. Called on the read thread.
+     */
+    public interface BatchObserver {
+        /**
+         * @param requested number of PIDs asked for
+         * @param answered  number of PIDs that came back; 0 for NO DATA or
+         *                  an error reply
+         * @param responses number of ECU messages in the reply
+         */
+        void onBatchReply(int requested, int answered, int responses, long roundTripNanos);
+    }
+
+    /**
+     * Supplies follow-up requests, e.g. a polling scheduler. Called on the
+     * read thread whenever nothing is left waiting behind the request that
+     * was just sent, so the next request is queued before its prompt.
+     */
+    public interface RequestSource {
+        void onQueueDrained(CommandQueue queue) throws IOException;
+    }
+
+    private static final long DEFAULT_TIMEOUT_NANOS = 5_000_000_000L;
+    // Any character stops a streaming command; a space cannot start a command of its own.
+    private static final byte[] INTERRUPT = {' '};
+
+    private final Writer writer;
+    private final ArrayDeque<Request> pending = new ArrayDeque<>();
+    // Reply state of the in-flight request, only touched by the read thread.
+    private final byte[] replyBytes = new byte[512];
+    private final StringBuilder replyText = new StringBuilder();
+    private int replyCount;
+    private Request inFlight;
+    private long timeoutNanos = DEFAULT_TIMEOUT_NANOS;
+    private long timeouts;
+    private volatile RequestSource source;
+    // Outstanding holdSource() calls; guarded by this.
+    private int sourceHolds;
+    private volatile BatchObserver batchObserver;
+    private volatile int responseCount;
+    // Outcome of the last demultiplexed reply, read thread only.
+    private int answered;
+    private int responses;
+
+    public CommandQueue(Writer writer) {
+        this.writer = writer;
+    }
+
+    public void setRequestSource(RequestSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Stops asking the {@link RequestSource} for requests until a matching
+     * {@link #releaseSource()}, for a sequence that needs the adapter to
+     * itself, e.g. one that turns headers on. Holds nest; {@link #reset()}
+     * drops them along with the requests.
+     */
+    public synchronized void holdSource() {
+        sourceHolds++;
+    }
+
+    /** Ends a {@link #holdSource()}; the source is asked again at once if the queue is idle. */
+    public void releaseSource() throws IOException {
+        synchronized (this) {
+            if (sourceHolds == 0) {
+                return;
+            }
+            sourceHolds--;
+        }
+        kick();
+    }
+
+    public void setBatchObserver(BatchObserver observer) {
+        this.batchObserver = observer;
+    }
+
+    /**
+     * Appends the ELM327 response-count digit to mode 01 batches encoded
+     * from now on, so the adapter returns as soon as that many ECUs have
+     * answered instead of waiting out its timeout. 0 turns it off.
+     */
+    public void setResponseCount(int count) {
+        responseCount = Math.max(0, Math.min(0xF, count));
+    }
+
+    public int getResponseCount() {
+        return responseCount;
+    }
+
+    public void setTimeoutMillis(long millis) {
+        timeoutNanos = millis * 1_000_000L;
+    }
+
+    /**
+     * Queues a command exactly as typed. It is never merged with other
+     * requests.
+     */
+    public void enqueueRaw(String command, ResponseListener listener) throws IOException {
+        Request request = new Request();
+        request.command = command.trim();
+        request.listener = listener;
+        request.encode(0);
+        Request toSend;
+        synchronized (this) {
+            pending.addLast(request);
+            toSend = takeNextIfIdle();
+        }
+        send(toSend);
+    }
+
+    /**
+     * Queues a raw command only if nothing is queued or in flight, so it
+     * goes out at once and never holds up another request, e.g. a
+     * keepalive.
+     *
+     * @return false if the queue was busy and nothing was queued
+     */
+    public boolean enqueueRawIfIdle(String command, ResponseListener listener) throws IOException {
+        Request request = new Request();
+        request.command = command.trim();
+        request.listener = listener;
+        request.encode(0);
+        Request toSend;
+        synchronized (this) {
+            if (inFlight != null || !pending.isEmpty()) {
+                return false;
+            }
+            pending.addLast(request);
+            toSend = takeNextIfIdle();
+        }
+        send(toSend);
+        return true;
+    }
+
+    /**
+     * Queues a command whose output streams until it is interrupted, such as
+     * {@code ATMA}. The lines are not collected; the listener is told with
+     * an empty reply once the prompt finally arrives. It never times out,
+     * see {@link #interrupt()}.
+     */
+    public void enqueueUnbuffered(String command, ResponseListener listener) throws IOException {
+        Request request = new Request();
+        request.command = command.trim();
+        request.listener = listener;
+        request.unbuffered = true;
+        request.encode(0);
+        Request toSend;
+        synchronized (this) {
+            pending.addLast(request);
+            toSend = takeNextIfIdle();
+        }
+        send(toSend);
+    }
+
+    /**
+     * Stops an unbuffered command: the adapter is sent a single character if
+     * one is in flight, and unbuffered commands still queued are dropped.
+     * The prompt that follows completes it as usual.
+     *
+     * @return true if one was in flight and has been told to stop
+     */
+    public boolean interrupt() throws IOException {
+        boolean streaming;
+        synchronized (this) {
+            streaming = inFlight != null && inFlight.unbuffered;
+            pending.removeIf(r -> r.unbuffered);
+        }
+        if (streaming) {
+            writer.write(INTERRUPT);
+        }
+        return streaming;
+    }
+
+    /**
+     * Queues a single mode 01 PID. It is folded into a pending multi-PID
+     * request when one has room, otherwise a new request is started.
+     */
+    public void enqueuePid(int pid, PidListener listener) throws IOException {
+        enqueuePids(new int[]{pid}, 1, listener);
+    }
+
+    /**
+     * Queues several mode 01 PIDs at once so that none of them goes out on
+     * its own just because the queue happened to be idle.
+     */
+    public void enqueuePids(int[] pids, int count, PidListener listener) throws IOException {
+        Request toSend;
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                addPid(pids[i], listener);
+            }
+            toSend = takeNextIfIdle();
+        }
+        send(toSend);
+    }
+
+    // Must hold the lock.
+    private void addPid(int pid, PidListener listener) {
+        Request batch = null;
+        for (Iterator<Request> it = pending.iterator(); it.hasNext(); ) {
+            Request r = it.next();
+            if (r.isPidBatch() && r.pidCount < Pids.MAX_PIDS_PER_REQUEST && !r.hasPid(pid)) {
+                batch = r;
+                break;
+            }
+        }
+        if (batch == null) {
+            batch = new Request();
+            batch.pids = new int[Pids.MAX_PIDS_PER_REQUEST];
+            batch.pidListeners = new PidListener[Pids.MAX_PIDS_PER_REQUEST];
+            pending.addLast(batch);
+        }
+        batch.pids[batch.pidCount] = pid;
+        batch.pidListeners[batch.pidCount] = listener;
+        batch.pidCount++;
+        batch.encode(responseCount);
+    }
+
+    @Override
+    public void onLine(byte[] buffer, int offset, int length) {
+        Request request;
+        synchronized (this) {
+            request = inFlight;
+        }
+        if (request == null || HexParser.isEcho(buffer, offset, length, request.encoded)) {
+            return;
+        }
+        if (request.isPidBatch()) {
+            replyCount += HexParser.parseLine(buffer, offset, length, replyBytes, replyCount);
+        } else if (request.listener != null && !request.unbuffered) {
+            if (replyText.length() > 0) replyText.append('\n');
+            for (int i = offset; i < offset + length; i++) {
+                replyText.append((char) (buffer[i] & 0xFF));
+            }
+        }
+    }
+
+    /**
+     * Completes the in-flight request. The next queued request is written
+     * before the reply is dispatched to its listeners.
+     */
+    @Override
+    public void onPrompt() throws IOException {
+        long now = System.nanoTime();
+        Request done;
+        Request next;
+        synchronized (this) {
+            done = inFlight;
+            inFlight = null;
+            next = takeNextIfIdle();
+        }
+        send(next);
+        refill();
+        if (done != null) {
+            dispatch(done, now);
+        }
+        replyCount = 0;
+        replyText.setLength(0);
+    }
+
+    /**
+     * Sends the head of the queue if nothing is waiting for a prompt, e.g.
+     * right after the link has been (re)established.
+     */
+    public void kick() throws IOException {
+        Request toSend;
+        synchronized (this) {
+            toSend = takeNextIfIdle();
+        }
+        send(toSend);
+        refill();
+    }
+
+    private void refill() throws IOException {
+        RequestSource s = source;
+        boolean drained;
+        synchronized (this) {
+            drained = pending.isEmpty() && sourceHolds == 0;
+        }
+        if (s != null && drained) {
+            s.onQueueDrained(this);
+        }
+    }
+
+    /** Drops the in-flight request and everything queued behind it. */
+    public synchronized void reset() {
+        inFlight = null;
+        pending.clear();
+        sourceHolds = 0;
+    }
+
+    public synchronized int size() {
+        return pending.size() + (inFlight == null ? 0 : 1);
+    }
+
+    /** True while the adapter is answering a coalesced mode 01 request. */
+    public synchronized boolean isPidBatchInFlight() {
+        return inFlight != null && inFlight.isPidBatch();
+    }
+
+    public synchronized boolean isIdle() {
+        return inFlight == null && pending.isEmpty();
+    }
+
+    /** Number of requests abandoned because no prompt arrived in time. */
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    // Must hold the lock. Abandons an in-flight request that has waited too long.
+    private Request takeNextIfIdle() {
+        if (inFlight != null) {
+            if (inFlight.unbuffered || System.nanoTime() - inFlight.sentNanos < timeoutNanos) {
+                return null;
+            }
+            timeouts++;
+            inFlight = null;
+        }
+        Request next = pending.pollFirst();
+        if (next != null) {
+            next.sentNanos = System.nanoTime();
+            inFlight = next;
+        }
+        return next;
+    }
+
+    private void send(Request request) throws IOException {
+        if (request == null) {
+            return;
+        }
+        try {
+            writer.write(request.encoded);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (inFlight == request) {
+                    inFlight = null;
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void dispatch(Request request, long now) {
+        if (request.isPidBatch()) {
+            demultiplex(request, replyCount, now);
+            BatchObserver observer = batchObserver;
+            if (observer != null) {
+                observer.onBatchReply(request.pidCount, answered, responses, now - request.sentNanos);
+            }
+        } else if (request.listener != null) {
+            request.listener.onResponse(request.command, replyText.toString(), now - request.sentNanos);
+        }
+    }
+
+    /**
+     * Walks a mode 01 reply ({@code 41 pid data pid data ...}) and hands each
+     * requested PID its data bytes. A second {@code 41} where a PID is
+     * expected starts the reply of another ECU.
+     */
+    private void demultiplex(Request request, int count, long now) {
+        answered = 0;
+        responses = 0;
+        int i = 0;
+        while (i < count && (replyBytes[i] & 0xFF) != 0x40 + Pids.MODE_CURRENT_DATA) i++;
+        if (i < count) {
+            responses = 1;
+        }
+        i++;
+        while (i < count) {
+            int pid = replyBytes[i] & 0xFF;
+            int slot = request.slotOf(pid);
+            if (slot < 0) {
+                if (pid == 0x40 + Pids.MODE_CURRENT_DATA) {
+                    responses++;
+                    i++;
+                    continue;
+                }
+                break;
+            }
+            int dataLen = Pids.dataLength(pid);
+            if (dataLen == 0 || i + 1 + dataLen > count) {
+                break;
+            }
+            answered++;
+            PidListener listener = request.pidListeners[slot];
+            if (listener != null) {
+                listener.onPidData(pid, replyBytes, i + 1, dataLen, now);
+            }
+            i += 1 + dataLen;
+        }
+    }
+
+    private static final class Request {
+        String command;
+        ResponseListener listener;
+        int[] pids;
+        PidListener[] pidListeners;
+        int pidCount;
+        boolean unbuffered;
+        byte[] encoded;
+        long sentNanos;
+
+        boolean isPidBatch() {
+            return pids != null;
+        }
+
+        boolean hasPid(int pid) {
+            return slotOf(pid) >= 0;
+        }
+
+        int slotOf(int pid) {
+            for (int i = 0; i < pidCount; i++) {
+                if (pids[i] == pid) return i;
+            }
+            return -1;
+        }
+
+        String command(int responseCount) {
+            if (!isPidBatch()) {
+                return command;
+            }
+            StringBuilder sb = new StringBuilder(3 + pidCount * 3);
+            sb.append("01");
+            for (int i = 0; i < pidCount; i++) {
+                sb.append(' ');
+                if (pids[i] < 0x10) sb.append('0');
+                sb.append(Integer.toHexString(pids[i]).toUpperCase());
+            }
+            if (responseCount > 0) {
+                sb.append(' ').append(Character.toUpperCase(Character.forDigit(responseCount, 16)));
+            }
+            return sb.toString();
+        }
+
+        void encode(int responseCount) {
+            encoded = (command(responseCount) + "\r").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A batch of adapter commands written as a small script, run by a
+ * {@link ScriptRunner}.
+ * <p>
+ * One command per line, optionally followed by {@code =>} and text the
+ * reply must contain (case and spaces are ignored). Besides commands a
+ * script knows:
+ * <pre>
+ * # comment
+ * macro setup              saves the script under this name instead of running it
+ * set HDR 7E0              variable, used as $HDR or ${HDR}
+ * onfail continue          or "stop", the default
+ * repeat 3 ... end         runs the lines in between three times
+ * for PID in 0C 0D ... end runs them once per value, with $PID set
+ * </pre>
+ * Loops nest. The script is expanded into its flat list of {@link Step}s
+ * when parsed, so a typo fails before anything has been sent. Expansion is
+ * bounded by {@link #MAX_STEPS} and {@link #MAX_LINES_READ}, so parsing a
+ * script is quick enough for the UI thread.
+ */
+public final class CommandScript {
+
+    /** Expanded steps allowed, against a runaway loop. */
+    public static final int MAX_STEPS = 10_000;
+    /**
+     * Script lines read while expanding, counting every pass through a loop,
+     * against loops that expand to few or no steps but still take long.
+     */
+    public static final int MAX_LINES_READ = 10 * MAX_STEPS;
+
+    /** One command to send, after variables and loops have been expanded. */
+    public static final class Step {
+        /** 1-based line of the script the step came from. */
+        public final int line;
+        public final String command;
+        /** Text the reply must contain, or null to accept any reply. */
+        public final String expected;
+
+        Step(int line, String command, String expected) {
+            this.line = line;
+            this.command = command;
+            this.expected = expected;
+        }
+
+        /** True if {@code reply} satisfies the expectation. */
+        public boolean accepts(String reply) {
+            return expected == null || compact(reply).contains(compact(expected));
+        }
+
+        @Override
+        public String toString() {
+            return expected == null ? command : command + " => " + expected;
+        }
+    }
+
+    private final String name;
+    private final List<Step> steps;
+    private final boolean stopOnFailure;
+
+    private CommandScript(String name, List<Step> steps, boolean stopOnFailure) {
+        this.name = name;
+        this.steps = Collections.unmodifiableList(steps);
+        this.stopOnFailure = stopOnFailure;
+    }
+
+    /**
+     * Parses and expands a script.
+     *
+     * @throws IllegalArgumentException naming the line, if the script is malformed
+     */
+    public static CommandScript parse(String text) {
+        String[] lines = text.split("\r\n|\r|\n", -1);
+        Parser parser = new Parser(lines);
+        parser.expand(0, lines.length, new HashMap<>());
+        return new CommandScript(parser.name, parser.steps, parser.stopOnFailure);
+    }
+
+    /** True if the text has more than one line, or a script keyword, and should be run as a script. */
+    public static boolean looksLikeScript(String text) {
+        String first = text.trim();
+        if (first.indexOf('\n') >= 0 || first.indexOf('\r') >= 0) {
+            return true;
+        }
+        String keyword = keyword(first);
+        return keyword.equals("repeat") || keyword.equals("for") || keyword.equals("macro")
+                || first.contains("=>");
+    }
+
+    /** The name given by a {@code macro} line, or null. */
+    public String getName() {
+        return name;
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    public boolean isStopOnFailure() {
+        return stopOnFailure;
+    }
+
+    private static String keyword(String line) {
+        int space = line.indexOf(' ');
+        return (space < 0 ? line : line.substring(0, space)).toLowerCase(Locale.ROOT);
+    }
+
+    static String compact(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(Character.toUpperCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static final class Parser {
+        final String[] lines;
+        final List<Step> steps = new ArrayList<>();
+        String name;
+        boolean stopOnFailure = true;
+        int linesRead;
+
+        Parser(String[] lines) {
+            this.lines = lines;
+        }
+
+        // Expands lines [from, to) into steps.
+        void expand(int from, int to, Map<String, String> vars) {
+            int i = from;
+            while (i < to) {
+                String line = lines[i].trim();
+                int number = i + 1;
+                i++;
+                read(number);
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] words = line.split("\\s+");
+                switch (words[0].toLowerCase(Locale.ROOT)) {
+                    case "macro":
+                        need(words.length == 2, number, "macro needs a name");
+                        name = words[1];
+                        break;
+                    case "set": {
+                        need(words.length >= 3, number, "set needs a name and a value");
+                        String value = line.substring(3).trim().substring(words[1].length()).trim();
+                        vars.put(words[1], substitute(value, vars, number));
+                        break;
+                    }
+                    case "onfail":
+                        need(words.length == 2 && (words[1].equalsIgnoreCase("stop")
+                                || words[1].equalsIgnoreCase("continue")), number, "onfail takes stop or continue");
+                        stopOnFailure = words[1].equalsIgnoreCase("stop");
+                        break;
+                    case "repeat": {
+                        need(words.length == 2, number, "repeat needs a count");
+                        int count;
+                        try {
+                            count = Integer.parseInt(substitute(words[1], vars, number));
+                        } catch (NumberFormatException e) {
+                            throw error(number, "bad repeat count " + words[1]);
+                        }
+                        need(count >= 0 && count <= MAX_STEPS, number, "bad repeat count " + words[1]);
+                        int end = matchingEnd(i, number);
+                        for (int n = 0; n < count; n++) {
+                            expand(i, end, vars);
+                        }
+                        i = end + 1;
+                        break;
+                    }
+                    case "for": {
+                        need(words.length >= 4 && words[2].equalsIgnoreCase("in"), number,
+                                "for needs a variable and values: for NAME in A B C");
+                        int end = matchingEnd(i, number);
+                        String previous = vars.get(words[1]);
+                        for (int w = 3; w < words.length; w++) {
+                            vars.put(words[1], substitute(words[w], vars, number));
+                            expand(i, end, vars);
+                        }
+                        if (previous == null) {
+                            vars.remove(words[1]);
+                        } else {
+                            vars.put(words[1], previous);
+                        }
+                        i = end + 1;
+                        break;
+                    }
+                    case "end":
+                        throw error(number, "end without repeat or for");
+                    default:
+                        addStep(line, vars, number);
+                }
+            }
+        }
+
+        private void addStep(String line, Map<String, String> vars, int number) {
+            need(steps.size() < MAX_STEPS, number, "more than " + MAX_STEPS + " steps");
+            String command = line;
+            String expected = null;
+            int arrow = line.indexOf("=>");
+            if (arrow >= 0) {
+                command = line.substring(0, arrow).trim();
+                expected = substitute(line.substring(arrow + 2).trim(), vars, number);
+                need(!expected.isEmpty(), number, "nothing after =>");
+            }
+            need(!command.isEmpty(), number, "no command");
+            steps.add(new Step(number, substitute(command, vars, number), expected));
+        }
+
+        private void read(int number) {
+            need(++linesRead <= MAX_LINES_READ, number, "loops read more than " + MAX_LINES_READ + " lines");
+        }
+
+        // Index of the "end" closing the block that starts at line index from.
+        private int matchingEnd(int from, int number) {
+            int depth = 0;
+            for (int i = from; i < lines.length; i++) {
+                read(number);
+                String k = keyword(lines[i].trim());
+                if (k.equals("repeat") || k.equals("for")) {
+                    depth++;
+                } else if (k.equals("end")) {
+                    if (depth == 0) {
+                        return i;
+                    }
+                    depth--;
+                }
+            }
+            throw error(number, "missing end");
+        }
+
+        private static String substitute(String text, Map<String, String> vars, int number) {
+            if (text.indexOf('$') < 0) {
+                return text;
+            }
+            StringBuilder sb = new StringBuilder();
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (c != '$') {
+                    sb.append(c);
+                    i++;
+                    continue;
+                }
+                int start;
+                int end;
+                int next;
+                if (i + 1 < text.length() && text.charAt(i + 1) == '{') {
+                    start = i + 2;
+                    end = text.indexOf('}', start);
+                    need(end >= 0, number, "unclosed ${");
+                    next = end + 1;
+                } else {
+                    start = i + 1;
+                    end = start;
+                    while (end < text.length()
+                            && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_')) {
+                        end++;
+                    }
+                    next = end;
+                }
+                String value = vars.get(text.substring(start, end));
+                need(value != null, number, "unknown variable $" + text.substring(start, end));
+                sb.append(value);
+                i = next;
+            }
+            return sb.toString();
+        }
+
+        private static void need(boolean condition, int number, String message) {
+            if (!condition) {
+                throw error(number, message);
+            }
+        }
+
+        private static IllegalArgumentException error(int number, String message) {
+            return new IllegalArgumentException("Line " + number + ": " + message);
+        }
+    }
+}
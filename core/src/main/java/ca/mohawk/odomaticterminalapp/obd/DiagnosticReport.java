@@ -0,0 +1,168 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Result of a {@link DiagnosticScan}: trouble codes, freeze frame and
+ * on-board monitor (mode 06) results, per answering ECU.
+ */
+public class DiagnosticReport {
+
+    /** One mode 06 test: value and limits, all raw, scaled per the unit and scaling id. */
+    public static final class TestResult {
+        public final int mid;
+        public final int tid;
+        public final int unitAndScaling;
+        public final int value;
+        public final int min;
+        public final int max;
+
+        TestResult(int mid, int tid, int unitAndScaling, int value, int min, int max) {
+            this.mid = mid;
+            this.tid = tid;
+            this.unitAndScaling = unitAndScaling;
+            this.value = value;
+            this.min = min;
+            this.max = max;
+        }
+
+        public boolean passed() {
+            return value >= min && value <= max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("MID %02X TID %02X %d [%d..%d] %s",
+                    mid, tid, value, min, max, passed() ? "pass" : "FAIL");
+        }
+    }
+
+    /** Everything one ECU reported. */
+    public static final class Ecu {
+        private final int id;
+        final List<String> stored = new ArrayList<>();
+        final List<String> pending = new ArrayList<>();
+        final List<String> permanent = new ArrayList<>();
+        final Map<Integer, Double> freezeFrame = new LinkedHashMap<>();
+        String freezeFrameDtc;
+        final List<TestResult> tests = new ArrayList<>();
+
+        Ecu(int id) {
+            this.id = id;
+        }
+
+        /** CAN id the ECU answered from, e.g. 0x7E8, or {@link IsoTpAssembler#UNKNOWN_ECU}. */
+        public int getId() {
+            return id;
+        }
+
+        /** Mode 03 confirmed codes, e.g. "P0133". */
+        public List<String> getStored() {
+            return stored;
+        }
+
+        /** Mode 07 codes from the current or last drive cycle. */
+        public List<String> getPending() {
+            return pending;
+        }
+
+        /** Mode 0A codes that clearing does not erase. */
+        public List<String> getPermanent() {
+            return permanent;
+        }
+
+        /** Decoded freeze frame 0 values by mode 01 PID, see {@link PidDecoder}. */
+        public Map<Integer, Double> getFreezeFrame() {
+            return freezeFrame;
+        }
+
+        /** The code that stored freeze frame 0, or null if there is none. */
+        public String getFreezeFrameDtc() {
+            return freezeFrameDtc;
+        }
+
+        public List<TestResult> getTests() {
+            return tests;
+        }
+    }
+
+    private final Map<Integer, Ecu> ecus = new TreeMap<>();
+    long elapsedNanos;
+    int requests;
+
+    Ecu ecu(int id) {
+        return ecus.computeIfAbsent(id, Ecu::new);
+    }
+
+    /** The ECUs that answered, lowest id first. */
+    public Collection<Ecu> getEcus() {
+        return ecus.values();
+    }
+
+    public Ecu getEcu(int id) {
+        return ecus.get(id);
+    }
+
+    /** Total stored, pending and permanent codes over all ECUs. */
+    public int getDtcCount() {
+        int n = 0;
+        for (Ecu e : ecus.values()) {
+            n += e.stored.size() + e.pending.size() + e.permanent.size();
+        }
+        return n;
+    }
+
+    /** Requests the scan sent, AT commands included. */
+    public int getRequestCount() {
+        return requests;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedNanos / 1_000_000L;
+    }
+
+    /** Multi-line text for the terminal. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Scan: ").append(ecus.size()).append(" ECU(s), ")
+                .append(getDtcCount()).append(" code(s), ")
+                .append(requests).append(" requests in ").append(getElapsedMillis()).append(" ms");
+        for (Ecu e : ecus.values()) {
+            sb.append('\n').append(e.id == IsoTpAssembler.UNKNOWN_ECU ? "ECU" : String.format("ECU %X", e.id)).append(':');
+            appendCodes(sb, "stored", e.stored);
+            appendCodes(sb, "pending", e.pending);
+            appendCodes(sb, "permanent", e.permanent);
+            if (e.freezeFrameDtc != null) {
+                sb.append("\n  freeze frame (").append(e.freezeFrameDtc).append("):");
+                for (Map.Entry<Integer, Double> v : e.freezeFrame.entrySet()) {
+                    sb.append(' ').append(PidDecoder.label(v.getKey())).append('=')
+                            .append(String.format("%.1f", v.getValue())).append(PidDecoder.unit(v.getKey()));
+                }
+            }
+            int failed = 0;
+            for (TestResult t : e.tests) {
+                if (!t.passed()) failed++;
+            }
+            if (!e.tests.isEmpty()) {
+                sb.append("\n  monitors: ").append(e.tests.size()).append(" tests, ")
+                        .append(failed).append(" failed");
+                for (TestResult t : e.tests) {
+                    if (!t.passed()) sb.append("\n    ").append(t);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendCodes(StringBuilder sb, String kind, List<String> codes) {
+        if (!codes.isEmpty()) {
+            sb.append("\n  ").append(kind).append(": ").append(String.join(" ", codes));
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads every ECU's trouble codes, freeze frame and on-board monitor test
+ * results in one pass over the link.
+ * <p>
+ * The scan turns headers on ({@code ATH1}, with {@code ATCAF1}) so replies
+ * from several ECUs can be told apart and their multi-frame messages
+ * reassembled by {@link IsoTpAssembler}. It then queues mode 03, 07 and 0A,
+ * the freeze frame (mode 02, frame 0, three PIDs per request) and the
+ * mode 06 support bitmaps all at once, so they go out back to back. The
+ * mode 06 tests the vehicle reports are queued as soon as the bitmaps
+ * arrive, followed by the commands that restore the header settings.
+ * <p>
+ * The queue's {@link CommandQueue.RequestSource}, normally the poller, is
+ * held off from the first request until the headers have been restored,
+ * so polled requests cannot slip in while headers are on. Only CAN vehicles
+ * (ISO 15765-4) answer in the layout decoded here. The callback arrives on
+ * the read thread; if the link drops mid-scan it never arrives.
+ */
+public class DiagnosticScan {
+
+    public interface Listener {
+        void onScanComplete(DiagnosticReport report);
+    }
+
+    private static final int MODE_FREEZE_FRAME = 0x02;
+    private static final int MODE_MONITOR_TESTS = 0x06;
+    /** Freeze frame PIDs asked for, besides PID 02, the code that stored it. */
+    static final int[] FREEZE_FRAME_PIDS = {
+            Pids.ENGINE_LOAD, Pids.COOLANT_TEMP, 0x06, 0x07, 0x0B,
+            Pids.ENGINE_RPM, Pids.VEHICLE_SPEED, Pids.INTAKE_AIR_TEMP, Pids.THROTTLE_POSITION,
+    };
+    // Mode 02 requests carry pid/frame pairs; three fit in one CAN frame.
+    private static final int FREEZE_PIDS_PER_REQUEST = 3;
+    private static final int MONITOR_RECORD = 9;
+
+    private enum Kind { STORED, PENDING, PERMANENT }
+
+    private final Listener listener;
+    private final AdapterSettings settings;
+    private final DiagnosticReport report = new DiagnosticReport();
+    private CommandQueue queue;
+    private long startNanos;
+
+    /**
+     * @param settings the session's settings, for restoring the header mode
+     *                 afterwards; null restores the defaults
+     */
+    public DiagnosticScan(AdapterSettings settings, Listener listener) {
+        this.settings = settings;
+        this.listener = listener;
+    }
+
+    /** Queues the whole first pass. */
+    public void start(CommandQueue queue) throws IOException {
+        this.queue = queue;
+        startNanos = System.nanoTime();
+        queue.holdSource();
+        send("ATH1", null);
+        send("ATCAF1", null);
+        send("03", (command, reply, rtt) -> addCodes(reply, 0x43, Kind.STORED));
+        send("07", (command, reply, rtt) -> addCodes(reply, 0x47, Kind.PENDING));
+        send("0A", (command, reply, rtt) -> addCodes(reply, 0x4A, Kind.PERMANENT));
+        StringBuilder freeze = new StringBuilder("020200");
+        int inRequest = 1;
+        for (int pid : FREEZE_FRAME_PIDS) {
+            if (inRequest == FREEZE_PIDS_PER_REQUEST) {
+                send(freeze.toString(), (command, reply, rtt) -> addFreezeFrame(reply));
+                freeze.setLength(0);
+                freeze.append("02");
+                inRequest = 0;
+            }
+            freeze.append(String.format("%02X00", pid));
+            inRequest++;
+        }
+        send(freeze.toString(), (command, reply, rtt) -> addFreezeFrame(reply));
+        // Support bitmaps for monitors 01-C0; several bitmaps fit one request on CAN.
+        send("060020406080A0", (command, reply, rtt) -> onMonitorSupport(reply));
+    }
+
+    private void send(String command, CommandQueue.ResponseListener handler) throws IOException {
+        report.requests++;
+        queue.enqueueRaw(command, handler);
+    }
+
+    // Second pass: one request per supported monitor, then the settings are put back.
+    private void onMonitorSupport(String reply) {
+        // Monitors 01-100; a bitmap at base b covers b+1 to b+20.
+        boolean[] supported = new boolean[0x101];
+        for (IsoTpAssembler.Message m : IsoTpAssembler.assemble(reply, true)) {
+            if (m.length() < 1 || m.get(0) != 0x40 + MODE_MONITOR_TESTS) continue;
+            for (int i = 1; i + 5 <= m.length(); i += 5) {
+                int base = m.get(i);
+                if ((base & 0x1F) != 0 || base > 0xE0) {
+                    continue;
+                }
+                for (int bit = 0; bit < 32; bit++) {
+                    if ((m.get(i + 1 + bit / 8) & (0x80 >> (bit % 8))) != 0) {
+                        supported[base + bit + 1] = true;
+                    }
+                }
+            }
+        }
+        try {
+            for (int mid = 1; mid < 0xC0; mid++) {
+                if (supported[mid] && (mid & 0x1F) != 0) {
+                    send(String.format("06%02X", mid), (command, r, rtt) -> addTests(r));
+                }
+            }
+            send(restore("H", "ATH0"), null);
+            send(restore("CAF", "ATCAF1"), (command, r, rtt) -> finish());
+        } catch (IOException ignored) {
+            // Link dropped; the adapter starts over from its settings on reconnect.
+        }
+    }
+
+    private String restore(String setting, String fallback) {
+        String command = settings == null ? null : settings.get(setting);
+        return command == null ? fallback : command;
+    }
+
+    private void finish() {
+        report.elapsedNanos = System.nanoTime() - startNanos;
+        try {
+            listener.onScanComplete(report);
+        } finally {
+            try {
+                queue.releaseSource();
+            } catch (IOException ignored) {
+                // Link dropped; polling resumes on reconnect.
+            }
+        }
+    }
+
+    private void addCodes(String reply, int service, Kind kind) {
+        for (IsoTpAssembler.Message m : IsoTpAssembler.assemble(reply, true)) {
+            if (m.length() < 2 || m.get(0) != service) continue;
+            DiagnosticReport.Ecu ecu = report.ecu(m.ecu);
+            List<String> codes = kind == Kind.STORED ? ecu.stored
+                    : kind == Kind.PENDING ? ecu.pending : ecu.permanent;
+            // On CAN the byte after the service is the number of codes.
+            int count = m.get(1);
+            for (int i = 0; i < count && 2 + 2 * i + 1 < m.length(); i++) {
+                int code = (m.get(2 + 2 * i) << 8) | m.get(3 + 2 * i);
+                if (code != 0) {
+                    codes.add(Dtc.format(code));
+                }
+            }
+        }
+    }
+
+    // 42 pid frame data [pid frame data ...]
+    private void addFreezeFrame(String reply) {
+        for (IsoTpAssembler.Message m : IsoTpAssembler.assemble(reply, true)) {
+            if (m.length() < 1 || m.get(0) != 0x40 + MODE_FREEZE_FRAME) continue;
+            DiagnosticReport.Ecu ecu = report.ecu(m.ecu);
+            int i = 1;
+            while (i + 2 < m.length()) {
+                int pid = m.get(i);
+                int len = Pids.dataLength(pid);
+                if (len == 0 || i + 2 + len > m.length()) {
+                    break;
+                }
+                if (pid == 0x02) {
+                    int code = (m.get(i + 2) << 8) | m.get(i + 3);
+                    ecu.freezeFrameDtc = code == 0 ? null : Dtc.format(code);
+                } else {
+                    ecu.freezeFrame.put(pid, PidDecoder.decode(pid, m.data, i + 2, len));
+                }
+                i += 2 + len;
+            }
+        }
+    }
+
+    // 46 mid tid uas value(2) min(2) max(2), repeated per test.
+    private void addTests(String reply) {
+        for (IsoTpAssembler.Message m : IsoTpAssembler.assemble(reply, true)) {
+            if (m.length() < 1 || m.get(0) != 0x40 + MODE_MONITOR_TESTS) continue;
+            DiagnosticReport.Ecu ecu = report.ecu(m.ecu);
+            for (int i = 1; i + MONITOR_RECORD <= m.length(); i += MONITOR_RECORD) {
+                ecu.tests.add(new DiagnosticReport.TestResult(m.get(i), m.get(i + 1), m.get(i + 2),
+                        word(m, i + 3), word(m, i + 5), word(m, i + 7)));
+            }
+        }
+    }
+
+    private static int word(IsoTpAssembler.Message m, int i) {
+        return (m.get(i) << 8) | m.get(i + 1);
+    }
+}
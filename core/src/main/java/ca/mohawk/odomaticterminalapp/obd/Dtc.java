@@ -0,0 +1,47 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+/**
+ * SAE J2012 diagnostic trouble code notation.
+ */
+public final class Dtc {
+
+    private static final char[] SYSTEMS = {'P', 'C', 'B', 'U'};
+
+    private Dtc() {
+    }
+
+    /**
+     * Formats the two bytes a mode 03/07/0A reply carries per code, e.g.
+     * 0x0133 as "P0133" or 0xC123 as "U0123".
+     */
+    public static String format(int code) {
+        char[] text = new char[5];
+        text[0] = SYSTEMS[(code >> 14) & 0x3];
+        text[1] = Character.forDigit((code >> 12) & 0x3, 16);
+        for (int i = 0; i < 3; i++) {
+            text[2 + i] = Character.toUpperCase(Character.forDigit((code >> (8 - 4 * i)) & 0xF, 16));
+        }
+        return new String(text);
+    }
+
+    /** Parses "P0133" and the like back to the two-byte form; -1 if malformed. */
+    public static int parse(String text) {
+        if (text == null || text.length() != 5) {
+            return -1;
+        }
+        int system = "PCBU".indexOf(Character.toUpperCase(text.charAt(0)));
+        int first = HexParser.digit(text.charAt(1));
+        if (system < 0 || first < 0 || first > 3) {
+            return -1;
+        }
+        int code = (system << 14) | (first << 12);
+        for (int i = 2; i < 5; i++) {
+            int d = HexParser.digit(text.charAt(i));
+            if (d < 0) {
+                return -1;
+            }
+            code |= d << (4 * (4 - i));
+        }
+        return code;
+    }
+}
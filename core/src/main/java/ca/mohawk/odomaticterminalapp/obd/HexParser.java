@@ -0,0 +1,93 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+/**
+ * Turns ELM327 text replies into raw bytes.
+ */
+public final class HexParser {
+
+    private HexParser() {
+    }
+
+    /**
+     * Returns the value of a hex digit, or -1 if {@code c} is not one.
+     */
+    public static int digit(int c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+
+    /**
+     * Parses one reply line into {@code out}, starting at {@code outOff}.
+     * <p>
+     * The CAN multi-frame decorations the adapter adds when headers are off
+     * (the 3-digit byte count line and the "0:", "1:" frame prefixes) are
+     * dropped. Lines that are not pure hex, such as "NO DATA" or
+     * "SEARCHING...", yield nothing.
+     *
+     * @return the number of bytes written
+     */
+    public static int parseLine(byte[] line, int offset, int length, byte[] out, int outOff) {
+        int start = offset;
+        int end = offset + length;
+        while (start < end && line[start] == ' ') start++;
+        while (end > start && line[end - 1] == ' ') end--;
+
+        // Byte count line of a multi-frame reply, e.g. "00C".
+        if (end - start == 3) {
+            return 0;
+        }
+        // Frame index prefix, e.g. "1: 05 7B 0F".
+        if (end - start >= 2 && line[start + 1] == ':' && digit(line[start]) >= 0) {
+            start += 2;
+        }
+
+        int count = 0;
+        int high = -1;
+        for (int i = start; i < end; i++) {
+            byte c = line[i];
+            if (c == ' ') continue;
+            int d = digit(c);
+            if (d < 0) {
+                return 0;
+            }
+            if (high < 0) {
+                high = d;
+            } else {
+                if (outOff + count >= out.length) {
+                    return count;
+                }
+                out[outOff + count++] = (byte) ((high << 4) | d);
+                high = -1;
+            }
+        }
+        return high < 0 ? count : 0;
+    }
+
+    /**
+     * True if a reply line is the adapter echoing {@code command} back;
+     * spaces, case and the trailing carriage return are ignored.
+     */
+    public static boolean isEcho(byte[] line, int offset, int length, byte[] command) {
+        int i = offset;
+        int end = offset + length;
+        int j = 0;
+        while (true) {
+            while (i < end && line[i] == ' ') i++;
+            while (j < command.length && (command[j] == ' ' || command[j] == '\r')) j++;
+            if (i == end || j == command.length) {
+                return i == end && j == command.length;
+            }
+            if (upper(line[i]) != upper(command[j])) {
+                return false;
+            }
+            i++;
+            j++;
+        }
+    }
+
+    private static int upper(byte b) {
+        return (b >= 'a' && b <= 'z') ? b - 32 : b;
+    }
+}
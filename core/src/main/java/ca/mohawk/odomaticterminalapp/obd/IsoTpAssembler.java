@@ -0,0 +1,211 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reassembles the ISO 15765-2 (ISO-TP) messages in a CAN reply, one per
+ * answering ECU.
+ * <p>
+ * With headers on ({@code ATH1}) every line is one CAN frame: the 11-bit
+ * ({@code 7E8}) or 29-bit ({@code 18 DA F1 10}) identifier, the PCI byte(s)
+ * and the data. Frames of different ECUs may interleave; each ECU's
+ * first and consecutive frames are collected separately and checked
+ * against the announced length and sequence numbers. With headers off the
+ * adapter has already reassembled the message and only the
+ * {@code 014 / 0: / 1:} decoration is left, which leaves no way to tell
+ * ECUs apart, so those messages all come from {@link #UNKNOWN_ECU}.
+ */
+public final class IsoTpAssembler {
+
+    /** ECU id of messages read with headers off. */
+    public static final int UNKNOWN_ECU = -1;
+
+    private static final int MAX_MESSAGE = 4095;
+
+    /** One complete message from one ECU, starting at the service byte. */
+    public static final class Message {
+        public final int ecu;
+        public final byte[] data;
+
+        Message(int ecu, byte[] data) {
+            this.ecu = ecu;
+            this.data = data;
+        }
+
+        /** The unsigned byte at {@code i}. */
+        public int get(int i) {
+            return data[i] & 0xFF;
+        }
+
+        public int length() {
+            return data.length;
+        }
+    }
+
+    // A message still missing consecutive frames.
+    private static final class Partial {
+        final byte[] data;
+        int filled;
+        int nextSeq = 1;
+
+        Partial(int length) {
+            data = new byte[length];
+        }
+    }
+
+    private final boolean headers;
+    private final byte[] frame = new byte[MAX_MESSAGE + 8];
+    private final Map<Integer, Partial> partials = new LinkedHashMap<>();
+    private final List<Message> messages = new ArrayList<>();
+    private int errors;
+    // Headers off: the length from a "014" line and the bytes collected since.
+    private byte[] unframed;
+    private int unframedFilled;
+
+    /** @param headers true if the reply was read with {@code ATH1} */
+    public IsoTpAssembler(boolean headers) {
+        this.headers = headers;
+    }
+
+    /** Splits a whole reply, as passed to a {@link CommandQueue.ResponseListener}, into messages. */
+    public static List<Message> assemble(String reply, boolean headers) {
+        IsoTpAssembler assembler = new IsoTpAssembler(headers);
+        for (String line : reply.split("\n")) {
+            assembler.addLine(line);
+        }
+        return assembler.getMessages();
+    }
+
+    public void addLine(String line) {
+        String text = line.trim();
+        if (text.isEmpty()) {
+            return;
+        }
+        if (headers) {
+            addFrame(text);
+        } else {
+            addUnframed(text);
+        }
+    }
+
+    /** The messages completed so far, in the order they completed. */
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    /** Frames dropped for being out of sequence or not fitting the message announced. */
+    public int getErrors() {
+        return errors;
+    }
+
+    private void addFrame(String text) {
+        String hex = text.replace(" ", "");
+        // An odd digit count means a 3-digit 11-bit id, an even one the four bytes of a 29-bit id.
+        int headerDigits = (hex.length() & 1) == 1 ? 3 : 8;
+        if (hex.length() < headerDigits + 2 || !isHex(hex)) {
+            // NO DATA, SEARCHING... and the like.
+            return;
+        }
+        int id = (int) Long.parseLong(hex.substring(0, headerDigits), 16);
+        byte[] b = frame;
+        int n = 0;
+        for (int i = headerDigits; i + 1 < hex.length() && n < b.length; i += 2) {
+            b[n++] = (byte) Integer.parseInt(hex.substring(i, i + 2), 16);
+        }
+        int pci = b[0] & 0xFF;
+        switch (pci >> 4) {
+            case 0: {
+                int len = pci & 0x0F;
+                if (len == 0 || len > n - 1) {
+                    errors++;
+                    return;
+                }
+                messages.add(new Message(id, copy(b, 1, len)));
+                partials.remove(id);
+                return;
+            }
+            case 1: {
+                if (n < 2) {
+                    errors++;
+                    return;
+                }
+                int len = ((pci & 0x0F) << 8) | (b[1] & 0xFF);
+                if (partials.containsKey(id)) {
+                    errors++;
+                }
+                Partial p = new Partial(len);
+                p.filled = Math.min(len, n - 2);
+                System.arraycopy(b, 2, p.data, 0, p.filled);
+                partials.put(id, p);
+                complete(id, p);
+                return;
+            }
+            case 2: {
+                Partial p = partials.get(id);
+                if (p == null || (pci & 0x0F) != (p.nextSeq & 0x0F)) {
+                    errors++;
+                    partials.remove(id);
+                    return;
+                }
+                p.nextSeq++;
+                int take = Math.min(n - 1, p.data.length - p.filled);
+                System.arraycopy(b, 1, p.data, p.filled, take);
+                p.filled += take;
+                complete(id, p);
+                return;
+            }
+            default:
+                // Flow control frames are the tester's business.
+        }
+    }
+
+    private void complete(int id, Partial p) {
+        if (p.filled == p.data.length) {
+            messages.add(new Message(id, p.data));
+            partials.remove(id);
+        }
+    }
+
+    private void addUnframed(String text) {
+        byte[] line = text.getBytes(StandardCharsets.US_ASCII);
+        String compact = text.replace(" ", "");
+        if (compact.length() == 3 && isHex(compact)) {
+            unframed = new byte[Integer.parseInt(compact, 16)];
+            unframedFilled = 0;
+            return;
+        }
+        int n = HexParser.parseLine(line, 0, line.length, frame, 0);
+        if (n == 0) {
+            return;
+        }
+        if (unframed == null) {
+            messages.add(new Message(UNKNOWN_ECU, copy(frame, 0, n)));
+            return;
+        }
+        // The last frame is padded; only take what the length line announced.
+        int take = Math.min(n, unframed.length - unframedFilled);
+        System.arraycopy(frame, 0, unframed, unframedFilled, take);
+        unframedFilled += take;
+        if (unframedFilled == unframed.length) {
+            messages.add(new Message(UNKNOWN_ECU, unframed));
+            unframed = null;
+        }
+    }
+
+    private static byte[] copy(byte[] b, int off, int len) {
+        byte[] out = new byte[len];
+        System.arraycopy(b, off, out, 0, len);
+        return out;
+    }
+
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (HexParser.digit(s.charAt(i)) < 0) return false;
+        }
+        return true;
+    }
+}
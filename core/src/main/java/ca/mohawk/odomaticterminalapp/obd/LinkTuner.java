@@ -0,0 +1,143 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.io.IOException;
+
+/**
+ * Tunes the adapter's timing to the vehicle from measured mode 01 replies.
+ * <p>
+ * By default the ELM327 waits up to 200 ms ({@code ATST32}) after the last
+ * ECU message, in case another ECU answers. The tuner watches a window of
+ * batches. When every batch was answered by the same number of ECUs, it
+ * appends that number to each request so the adapter returns as soon as
+ * they have all replied. Once replies no longer wait out the timeout, the
+ * next window shows the real latency. The tuner then sets {@code ATST}
+ * from the worst latency seen, with a margin. It picks aggressive adaptive
+ * timing ({@code ATAT2}) when latency is steady, and the normal mode
+ * ({@code ATAT1}) otherwise.
+ * <p>
+ * A batch that comes back with no data, or short while a response count is
+ * in use, undoes all of it. It also doubles the number of batches that
+ * must be seen before tightening again.
+ * <p>
+ * All callbacks arrive on the read thread.
+ */
+public class LinkTuner implements CommandQueue.BatchObserver {
+
+    public static final int DEFAULT_TIMEOUT_MS = 200;
+    private static final int MIN_TIMEOUT_MS = 24;
+    private static final int WINDOW = 16;
+    private static final int MAX_HOLD_OFF = WINDOW * 64;
+    // Latency spread, relative to the worst case, below which ATAT2 is used.
+    private static final double STEADY_SPREAD = 0.25;
+
+    private final CommandQueue queue;
+    private volatile AdapterSettings settings;
+    private int samples;
+    private long minRtt;
+    private long maxRtt;
+    private int minResponses;
+    private int maxResponses;
+    private int holdOff = WINDOW;
+    private volatile int timeoutMs = DEFAULT_TIMEOUT_MS;
+    private volatile int adaptiveMode = 1;
+    private volatile int backoffs;
+
+    public LinkTuner(CommandQueue queue) {
+        this.queue = queue;
+    }
+
+    /** Settings that should remember the tuned values for reconnects, or null. */
+    public void setSettings(AdapterSettings settings) {
+        this.settings = settings;
+    }
+
+    /** The ATST timeout currently in effect. */
+    public int getTimeoutMillis() {
+        return timeoutMs;
+    }
+
+    /** The ATAT mode currently in effect, 1 or 2. */
+    public int getAdaptiveMode() {
+        return adaptiveMode;
+    }
+
+    /** Number of times the tuning was undone after a failed batch. */
+    public int getBackoffCount() {
+        return backoffs;
+    }
+
+    @Override
+    public void onBatchReply(int requested, int answered, int responses, long roundTripNanos) {
+        if (answered == 0 || (queue.getResponseCount() > 0 && answered < requested)) {
+            backOff();
+            return;
+        }
+        if (samples == 0) {
+            minRtt = maxRtt = roundTripNanos;
+            minResponses = maxResponses = responses;
+        } else {
+            minRtt = Math.min(minRtt, roundTripNanos);
+            maxRtt = Math.max(maxRtt, roundTripNanos);
+            minResponses = Math.min(minResponses, responses);
+            maxResponses = Math.max(maxResponses, responses);
+        }
+        if (++samples >= holdOff) {
+            tighten();
+            samples = 0;
+        }
+    }
+
+    private void tighten() {
+        boolean counted = queue.getResponseCount() > 0;
+        if (minResponses == maxResponses && minResponses > 0) {
+            queue.setResponseCount(minResponses);
+        }
+        if (!counted) {
+            // Every reply in this window also waited out the timeout, so the
+            // ECU latency cannot be told apart from it yet.
+            return;
+        }
+
+        long latencyMs = maxRtt / 1_000_000L;
+        int timeout = (int) Math.max(MIN_TIMEOUT_MS, Math.min(DEFAULT_TIMEOUT_MS, 2 * latencyMs));
+        if (Math.abs(timeout - timeoutMs) >= 8) {
+            timeoutMs = timeout;
+            send(String.format("ATST%02X", (timeout + 3) / 4));
+        }
+
+        int mode = (maxRtt - minRtt) < STEADY_SPREAD * maxRtt ? 2 : 1;
+        if (mode != adaptiveMode) {
+            adaptiveMode = mode;
+            send("ATAT" + mode);
+        }
+    }
+
+    private void backOff() {
+        samples = 0;
+        boolean tuned = queue.getResponseCount() > 0 || timeoutMs != DEFAULT_TIMEOUT_MS
+                || adaptiveMode != 1;
+        if (!tuned) {
+            return;
+        }
+        backoffs++;
+        holdOff = Math.min(MAX_HOLD_OFF, holdOff * 2);
+        queue.setResponseCount(0);
+        if (timeoutMs != DEFAULT_TIMEOUT_MS) {
+            timeoutMs = DEFAULT_TIMEOUT_MS;
+            send(String.format("ATST%02X", DEFAULT_TIMEOUT_MS / 4));
+        }
+        if (adaptiveMode != 1) {
+            adaptiveMode = 1;
+            send("ATAT1");
+        }
+    }
+
+    private void send(String command) {
+        AdapterSettings s = settings;
+        try {
+            queue.enqueueRaw(command, s == null ? null : (c, reply, rtt) -> s.onCommand(c, reply));
+        } catch (IOException ignored) {
+            // Link dropped; the settings are replayed, or re-tuned, after reconnecting.
+        }
+    }
+}
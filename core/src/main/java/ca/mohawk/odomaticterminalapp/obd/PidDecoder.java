@@ -0,0 +1,105 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+/**
+ * Converts mode 01 PID data bytes into engineering units (SAE J1979).
+ */
+public final class PidDecoder {
+
+    private PidDecoder() {
+    }
+
+    /**
+     * Decodes the data bytes of a PID. PIDs without a known formula decode
+     * to their raw big-endian value; NaN is returned only when there are no
+     * data bytes or more than four.
+     */
+    public static double decode(int pid, byte[] data, int offset, int length) {
+        if (length <= 0 || length > 4) {
+            return Double.NaN;
+        }
+        int a = data[offset] & 0xFF;
+        int b = length > 1 ? data[offset + 1] & 0xFF : 0;
+        int ab = (a << 8) | b;
+        switch (pid) {
+            case 0x04: case 0x11: case 0x2C: case 0x2E: case 0x2F: case 0x45:
+            case 0x47: case 0x48: case 0x49: case 0x4A: case 0x4B: case 0x4C:
+            case 0x52: case 0x5A: case 0x5B:
+                return a * 100.0 / 255.0;
+            case 0x05: case 0x0F: case 0x46: case 0x5C:
+                return a - 40;
+            case 0x06: case 0x07: case 0x08: case 0x09: case 0x2D:
+                return (a - 128) * 100.0 / 128.0;
+            case 0x0A:
+                return 3 * a;
+            case 0x0C:
+                return ab / 4.0;
+            case 0x0E:
+                return a / 2.0 - 64.0;
+            case 0x10:
+                return ab / 100.0;
+            case 0x22:
+                return 0.079 * ab;
+            case 0x23:
+                return 10.0 * ab;
+            case 0x3C: case 0x3D: case 0x3E: case 0x3F:
+                return ab / 10.0 - 40.0;
+            case 0x42:
+                return ab / 1000.0;
+            case 0x43:
+                return ab * 100.0 / 255.0;
+            case 0x44:
+                return ab * 2.0 / 65536.0;
+            case 0x5D:
+                return ab / 128.0 - 210.0;
+            case 0x5E:
+                return ab / 20.0;
+            case 0x61: case 0x62:
+                return a - 125;
+            default:
+                long raw = 0;
+                for (int i = 0; i < length; i++) {
+                    raw = (raw << 8) | (data[offset + i] & 0xFF);
+                }
+                return raw;
+        }
+    }
+
+    /** Short display label for a PID, e.g. "RPM". */
+    public static String label(int pid) {
+        switch (pid) {
+            case Pids.ENGINE_LOAD: return "LOAD";
+            case Pids.COOLANT_TEMP: return "ECT";
+            case Pids.ENGINE_RPM: return "RPM";
+            case Pids.VEHICLE_SPEED: return "SPD";
+            case Pids.INTAKE_AIR_TEMP: return "IAT";
+            case Pids.MAF_RATE: return "MAF";
+            case Pids.THROTTLE_POSITION: return "TPS";
+            case Pids.FUEL_LEVEL: return "FUEL";
+            default: return String.format("PID %02X", pid);
+        }
+    }
+
+    /** Unit of the decoded value, or an empty string. */
+    public static String unit(int pid) {
+        switch (pid) {
+            case 0x04: case 0x11: case 0x2C: case 0x2E: case 0x2F: case 0x45:
+            case 0x47: case 0x48: case 0x49: case 0x4A: case 0x4B: case 0x4C:
+            case 0x52: case 0x5A: case 0x5B: case 0x43:
+            case 0x06: case 0x07: case 0x08: case 0x09: case 0x2D:
+                return "%";
+            case 0x05: case 0x0F: case 0x46: case 0x5C: case 0x3C: case 0x3D:
+            case 0x3E: case 0x3F:
+                return "°C";
+            case 0x0C:
+                return "rpm";
+            case 0x0D:
+                return "km/h";
+            case 0x10:
+                return "g/s";
+            case 0x5E:
+                return "L/h";
+            default:
+                return "";
+        }
+    }
+}
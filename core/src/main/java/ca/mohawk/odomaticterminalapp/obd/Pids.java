@@ -0,0 +1,86 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+/**
+ * Static facts about SAE J1979 mode 01 PIDs.
+ */
+public final class Pids {
+
+    public static final int MODE_CURRENT_DATA = 0x01;
+
+    /** The ELM327 accepts at most six PIDs in one mode 01 request. */
+    public static final int MAX_PIDS_PER_REQUEST = 6;
+
+    public static final int SUPPORTED_01_20 = 0x00;
+    public static final int ENGINE_LOAD = 0x04;
+    public static final int COOLANT_TEMP = 0x05;
+    public static final int ENGINE_RPM = 0x0C;
+    public static final int VEHICLE_SPEED = 0x0D;
+    public static final int INTAKE_AIR_TEMP = 0x0F;
+    public static final int MAF_RATE = 0x10;
+    public static final int THROTTLE_POSITION = 0x11;
+    public static final int FUEL_LEVEL = 0x2F;
+    public static final int ENGINE_FUEL_RATE = 0x5E;
+
+    // Number of data bytes that follow each PID in a mode 01 reply, 0 when unknown.
+    private static final byte[] DATA_LENGTH = new byte[256];
+
+    static {
+        DATA_LENGTH[0x00] = 4;
+        DATA_LENGTH[0x01] = 4;
+        set(2, 0x02, 0x03);
+        set(1, 0x04, 0x0B);
+        DATA_LENGTH[0x0C] = 2;
+        set(1, 0x0D, 0x0F);
+        DATA_LENGTH[0x10] = 2;
+        set(1, 0x11, 0x13);
+        set(2, 0x14, 0x1B);
+        set(1, 0x1C, 0x1E);
+        set(2, 0x1F, 0x1F);
+        DATA_LENGTH[0x20] = 4;
+        set(2, 0x21, 0x23);
+        set(4, 0x24, 0x2B);
+        set(1, 0x2C, 0x30);
+        set(2, 0x31, 0x32);
+        DATA_LENGTH[0x33] = 1;
+        set(4, 0x34, 0x3B);
+        set(2, 0x3C, 0x3F);
+        set(4, 0x40, 0x41);
+        set(2, 0x42, 0x44);
+        set(1, 0x45, 0x4C);
+        set(2, 0x4D, 0x4E);
+        set(4, 0x4F, 0x50);
+        set(1, 0x51, 0x52);
+        set(2, 0x53, 0x59);
+        set(1, 0x5A, 0x5C);
+        set(2, 0x5D, 0x5E);
+        DATA_LENGTH[0x5F] = 1;
+        DATA_LENGTH[0x60] = 4;
+        set(1, 0x61, 0x62);
+        DATA_LENGTH[0x63] = 2;
+        DATA_LENGTH[0x64] = 5;
+    }
+
+    private Pids() {
+    }
+
+    private static void set(int length, int from, int to) {
+        for (int pid = from; pid <= to; pid++) {
+            DATA_LENGTH[pid] = (byte) length;
+        }
+    }
+
+    /**
+     * Returns how many data bytes follow the given PID in a mode 01 reply,
+     * or 0 if the PID is not known.
+     */
+    public static int dataLength(int pid) {
+        return (pid < 0 || pid > 0xFF) ? 0 : DATA_LENGTH[pid];
+    }
+
+    /**
+     * True for the "supported PIDs" bitmap PIDs (00, 20, 40, ...).
+     */
+    public static boolean isSupportBitmap(int pid) {
+        return (pid & 0x1F) == 0 && pid <= 0xE0;
+    }
+}
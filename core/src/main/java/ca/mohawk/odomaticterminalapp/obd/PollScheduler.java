@@ -0,0 +1,365 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.io.IOException;
+import java.util.function.LongSupplier;
+
+/**
+ * Polls mode 01 PIDs continuously, each at its own target rate, over the
+ * single adapter channel.
+ * <p>
+ * Whenever the command queue drains, the scheduler picks up to six PIDs
+ * that are due (or will be by the time the request goes out) and queues
+ * them as one coalesced request. Candidates are ranked by priority and then
+ * by lateness relative to their own period, so slow PIDs are not starved by
+ * fast ones once they fall behind. Achieved rates are measured over a
+ * sliding window and reported when they fall short of the target.
+ * <p>
+ * A PID given a dead-band with {@link #setDeadBand} is polled adaptively:
+ * while its value stays within the band around the last value reported,
+ * each new sample is dropped before it reaches the {@link SampleListener},
+ * and so storage and the UI, and the PID's polling period doubles, down to
+ * a floor rate. The first sample outside the band is reported and puts the
+ * PID back on its full rate. A steady value is still reported every
+ * {@link #MAX_SUPPRESS_NANOS}.
+ * <p>
+ * Consumers that integrate over time or time how long a value is held,
+ * such as a trip computer or alert rules, take every sample from
+ * {@link #setEverySampleListener} instead. A {@link SlowdownGuard} keeps a
+ * PID on its full rate while such a consumer needs it, e.g. while an alert
+ * on it is close to changing.
+ */
+public class PollScheduler implements CommandQueue.RequestSource, CommandQueue.PidListener {
+
+    /** Told when a PID's achieved rate drops below, or recovers to, its target. */
+    public interface RateListener {
+        void onRateChanged(int pid, double targetHz, double achievedHz, boolean met);
+    }
+
+    /** Asked, on the read thread, before a steady dead-banded PID is slowed down. */
+    public interface SlowdownGuard {
+        /** @param band the PID's dead-band; false keeps it on its full rate */
+        boolean maySlowDown(int pid, double value, double band);
+    }
+
+    private static final long STALE_NANOS = 2_000_000_000L;
+    private static final long RATE_WINDOW_NANOS = 5_000_000_000L;
+    private static final double RATE_TOLERANCE = 0.8;
+    /** Longest a dead-banded PID goes without a reported sample. */
+    public static final long MAX_SUPPRESS_NANOS = 2_000_000_000L;
+    /** Slowest and fastest rates a PID can be polled at: once a day, and 1000 Hz. */
+    public static final double MIN_HZ = 1.0 / 86_400;
+    public static final double MAX_HZ = 1000;
+
+    private final Entry[] entries = new Entry[256];
+    private final int[] active = new int[256];
+    private final int[] picked = new int[Pids.MAX_PIDS_PER_REQUEST];
+    private int activeCount;
+    private long suppressed;
+    private final SampleListener samples;
+    private final LongSupplier clock;
+    private volatile SampleListener everySample;
+    private volatile SlowdownGuard slowdownGuard;
+    private VehicleCapabilities capabilities;
+    private volatile RateListener rateListener;
+    private volatile boolean running;
+    // Smoothed time from queueing a PID to receiving its value.
+    private long cycleNanos = 100_000_000L;
+
+    public PollScheduler(SampleListener samples) {
+        this(samples, System::nanoTime);
+    }
+
+    /** @param clock monotonic time in ns, in the time base of the samples */
+    PollScheduler(SampleListener samples, LongSupplier clock) {
+        this.samples = samples;
+        this.clock = clock;
+    }
+
+    public void setRateListener(RateListener listener) {
+        this.rateListener = listener;
+    }
+
+    /** Told about every sample, including those a dead-band drops, before the main listener. */
+    public void setEverySampleListener(SampleListener listener) {
+        this.everySample = listener;
+    }
+
+    public void setSlowdownGuard(SlowdownGuard guard) {
+        this.slowdownGuard = guard;
+    }
+
+    /**
+     * Adds a PID or changes its rate.
+     *
+     * @param hz       target samples per second, from {@link #MIN_HZ} to
+     *                 {@link #MAX_HZ}
+     * @param priority higher values win when more PIDs are due than fit in
+     *                 one request
+     */
+    public synchronized void addPid(int pid, double hz, int priority) {
+        checkPid(pid);
+        if (!(hz >= MIN_HZ && hz <= MAX_HZ)) {
+            throw new IllegalArgumentException("Rate must be from once a day to 1000 Hz: " + hz);
+        }
+        Entry e = entries[pid];
+        if (e == null) {
+            e = new Entry();
+            entries[pid] = e;
+            active[activeCount++] = pid;
+        }
+        e.basePeriodNanos = (long) (1_000_000_000L / hz);
+        e.periodNanos = e.basePeriodNanos;
+        e.maxPeriodNanos = Math.max(e.maxPeriodNanos, e.basePeriodNanos);
+        e.targetHz = hz;
+        e.priority = priority;
+        e.nextDue = clock.getAsLong();
+        e.windowStart = e.nextDue;
+        e.windowCount = 0;
+    }
+
+    /**
+     * Polls an added PID adaptively, see the class comment.
+     *
+     * @param band  largest change, in the PID's unit, that counts as no
+     *              change; 0 turns adaptive polling off
+     * @param minHz rate the PID slows down to at most while it is steady
+     */
+    public synchronized void setDeadBand(int pid, double band, double minHz) {
+        checkPid(pid);
+        Entry e = entries[pid];
+        if (e == null) {
+            throw new IllegalArgumentException("PID " + pid + " is not polled");
+        }
+        if (!(band >= 0) || !(minHz >= MIN_HZ)) {
+            throw new IllegalArgumentException("Dead-band must not be negative and the floor rate at least once a day");
+        }
+        e.band = band;
+        e.maxPeriodNanos = Math.max(e.basePeriodNanos, (long) (1_000_000_000L / minHz));
+        e.periodNanos = e.basePeriodNanos;
+        e.reportedAt = Long.MIN_VALUE;
+    }
+
+    /**
+     * Restricts polling to the PIDs the vehicle supports; the others stay
+     * registered but are never requested. Pass null to poll everything.
+     */
+    public synchronized void setCapabilities(VehicleCapabilities capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    public synchronized void removePid(int pid) {
+        if (entries[pid] == null) {
+            return;
+        }
+        entries[pid] = null;
+        for (int i = 0; i < activeCount; i++) {
+            if (active[i] == pid) {
+                active[i] = active[--activeCount];
+                break;
+            }
+        }
+    }
+
+    public void start() {
+        running = true;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Rate a PID is being polled at now, below its target while a dead-band has slowed it; 0 if not polled. */
+    public synchronized double getPollHz(int pid) {
+        Entry e = entries[pid];
+        return e == null ? 0 : 1e9 / e.periodNanos;
+    }
+
+    /** Samples dropped so far because they stayed within their PID's dead-band. */
+    public synchronized long getSuppressedCount() {
+        return suppressed;
+    }
+
+    /** Last measured rate of a PID, or 0 if it is not being polled. */
+    public synchronized double getAchievedHz(int pid) {
+        Entry e = entries[pid];
+        return e == null ? 0 : e.achievedHz;
+    }
+
+    /**
+     * Time until the next PID falls due, for arming a timer while the link
+     * is idle. Returns -1 when nothing is scheduled.
+     */
+    public synchronized long nanosUntilDue(long now) {
+        if (!running || activeCount == 0) {
+            return -1;
+        }
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < activeCount; i++) {
+            Entry e = entries[active[i]];
+            if (!e.outstanding && isSupported(active[i])) {
+                earliest = Math.min(earliest, e.nextDue);
+            }
+        }
+        return earliest == Long.MAX_VALUE ? STALE_NANOS : Math.max(0, earliest - cycleNanos - now);
+    }
+
+    @Override
+    public synchronized void onQueueDrained(CommandQueue queue) throws IOException {
+        if (!running) {
+            return;
+        }
+        int count = pick(clock.getAsLong());
+        if (count > 0) {
+            queue.enqueuePids(picked, count, this);
+        }
+    }
+
+    @Override
+    public void onPidData(int pid, byte[] data, int offset, int length, long timeNanos) {
+        double value = PidDecoder.decode(pid, data, offset, length);
+        SampleListener all = everySample;
+        if (all != null) {
+            all.onSample(pid, timeNanos, value);
+        }
+        boolean report = true;
+        synchronized (this) {
+            Entry e = entries[pid];
+            if (e != null) {
+                e.outstanding = false;
+                e.windowCount++;
+                cycleNanos += (timeNanos - e.requestedAt - cycleNanos) >> 3;
+                if (e.band > 0 && !Double.isNaN(value)) {
+                    report = deadBand(pid, e, timeNanos, value);
+                }
+                e.nextDue += e.periodNanos;
+                if (e.nextDue < timeNanos - e.periodNanos) {
+                    e.nextDue = timeNanos;
+                }
+            }
+        }
+        if (report && samples != null) {
+            samples.onSample(pid, timeNanos, value);
+        }
+    }
+
+    // Adapts the period to a new sample of a dead-banded PID; false if the sample is dropped.
+    private boolean deadBand(int pid, Entry e, long timeNanos, double value) {
+        boolean reported = e.reportedAt != Long.MIN_VALUE;
+        if (reported && Math.abs(value - e.reported) <= e.band) {
+            SlowdownGuard guard = slowdownGuard;
+            e.periodNanos = guard == null || guard.maySlowDown(pid, value, e.band)
+                    ? Math.min(2 * e.periodNanos, e.maxPeriodNanos) : e.basePeriodNanos;
+            if (timeNanos - e.reportedAt < MAX_SUPPRESS_NANOS) {
+                suppressed++;
+                return false;
+            }
+        } else {
+            e.periodNanos = e.basePeriodNanos;
+        }
+        e.reported = value;
+        e.reportedAt = timeNanos;
+        return true;
+    }
+
+    // Chooses the PIDs for the next request into picked[]; returns how many.
+    private synchronized int pick(long now) {
+        updateRates(now);
+        long horizon = now + cycleNanos;
+        int count = 0;
+        while (count < picked.length) {
+            int best = -1;
+            double bestScore = 0;
+            for (int i = 0; i < activeCount; i++) {
+                Entry e = entries[active[i]];
+                if (e.outstanding && now - e.requestedAt > STALE_NANOS) {
+                    // No reply (e.g. NO DATA); treat as a missed sample.
+                    e.outstanding = false;
+                }
+                if (e.outstanding || e.nextDue > horizon || !isSupported(active[i])
+                        || isPicked(active[i], count)) {
+                    continue;
+                }
+                double score = e.priority + (double) (horizon - e.nextDue) / e.periodNanos;
+                if (best < 0 || score > bestScore) {
+                    best = active[i];
+                    bestScore = score;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            Entry e = entries[best];
+            e.outstanding = true;
+            e.requestedAt = now;
+            picked[count++] = best;
+        }
+        return count;
+    }
+
+    private static void checkPid(int pid) {
+        if (pid < 0 || pid > 0xFF) {
+            throw new IllegalArgumentException("PID out of range: " + pid);
+        }
+    }
+
+    private boolean isSupported(int pid) {
+        return capabilities == null || capabilities.isSupported(pid);
+    }
+
+    private boolean isPicked(int pid, int count) {
+        for (int i = 0; i < count; i++) {
+            if (picked[i] == pid) return true;
+        }
+        return false;
+    }
+
+    private void updateRates(long now) {
+        RateListener listener = rateListener;
+        for (int i = 0; i < activeCount; i++) {
+            int pid = active[i];
+            Entry e = entries[pid];
+            if (!isSupported(pid)) {
+                continue;
+            }
+            long window = Math.max(RATE_WINDOW_NANOS, 3 * e.periodNanos);
+            long elapsed = now - e.windowStart;
+            if (elapsed < window) {
+                continue;
+            }
+            e.achievedHz = e.windowCount * 1e9 / elapsed;
+            e.windowStart = now;
+            e.windowCount = 0;
+            // A PID its dead-band has slowed down is short of its target on purpose.
+            boolean met = e.periodNanos > e.basePeriodNanos || e.achievedHz >= e.targetHz * RATE_TOLERANCE;
+            if (met != e.met) {
+                e.met = met;
+                if (listener != null) {
+                    listener.onRateChanged(pid, e.targetHz, e.achievedHz, met);
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        // Current period; longer than the base one while a dead-band has slowed the PID.
+        long periodNanos;
+        long basePeriodNanos;
+        long maxPeriodNanos;
+        double band;
+        double reported;
+        long reportedAt = Long.MIN_VALUE;
+        double targetHz;
+        int priority;
+        long nextDue;
+        long requestedAt;
+        boolean outstanding;
+        long windowStart;
+        int windowCount;
+        double achievedHz;
+        boolean met = true;
+    }
+}
@@ -0,0 +1,114 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.io.IOException;
+
+/**
+ * Splits the raw byte stream coming from the adapter into lines (ended by
+ * {@code \r}) and prompts ({@code >}) without allocating.
+ * <p>
+ * Lines that arrive whole inside one {@link #feed} call are handed out as a
+ * slice of the caller's buffer. Partial lines are carried over in a
+ * reusable buffer and handed out from it once they are complete. Slices
+ * are only valid for the duration of the callback. Line feeds and empty
+ * lines are dropped.
+ */
+public final class ResponseFramer {
+
+    /** Receives frames; the byte range must not be kept after returning. */
+    public interface FrameListener {
+        void onLine(byte[] buffer, int offset, int length);
+
+        void onPrompt() throws IOException;
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final FrameListener listener;
+    private final byte[] carry;
+    private int size;
+    private long frames;
+    private long overflows;
+
+    public ResponseFramer(FrameListener listener) {
+        this(listener, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity longest line that is delivered whole
+     */
+    public ResponseFramer(FrameListener listener, int capacity) {
+        this.listener = listener;
+        this.carry = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Feeds bytes as read from the input stream. Exceptions thrown by the
+     * listener while handling a prompt are passed on.
+     */
+    public void feed(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '\r' || b == '>') {
+                emit(buffer, lineStart, i);
+                if (b == '>') {
+                    frames++;
+                    listener.onPrompt();
+                }
+                lineStart = i + 1;
+            } else if (b == '\n') {
+                append(buffer, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        append(buffer, lineStart, end);
+    }
+
+    /** Discards any partial line, e.g. after the link has been re-established. */
+    public void reset() {
+        size = 0;
+    }
+
+    /** Number of lines and prompts delivered so far. */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /** Number of lines that were longer than the buffer and got split. */
+    public long getOverflowCount() {
+        return overflows;
+    }
+
+    private void emit(byte[] buffer, int from, int to) {
+        if (size == 0) {
+            if (to > from) {
+                frames++;
+                listener.onLine(buffer, from, to - from);
+            }
+            return;
+        }
+        append(buffer, from, to);
+        flushCarry();
+    }
+
+    private void flushCarry() {
+        int n = size;
+        size = 0;
+        frames++;
+        listener.onLine(carry, 0, n);
+    }
+
+    private void append(byte[] buffer, int from, int to) {
+        while (from < to) {
+            if (size == carry.length) {
+                overflows++;
+                flushCarry();
+            }
+            int n = Math.min(to - from, carry.length - size);
+            System.arraycopy(buffer, from, carry, size, n);
+            size += n;
+            from += n;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+/**
+ * Receives decoded PID samples. Called on the read thread, so
+ * implementations must be quick and should not allocate.
+ */
+public interface SampleListener {
+    void onSample(int pid, long timeNanos, double value);
+}
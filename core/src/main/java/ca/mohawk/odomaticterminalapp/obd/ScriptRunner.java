@@ -0,0 +1,213 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs a {@link CommandScript} through a {@link CommandQueue}, pipelined:
+ * the next step is always queued behind the one in flight, so it is
+ * written the moment the prompt arrives and the script runs as fast as
+ * the adapter answers. Each reply is checked against the step's
+ * expectation and timed from the write to the prompt.
+ * <p>
+ * Keeping only one step queued ahead, rather than the whole script, lets
+ * a failed check stop the script after at most one more step and lets
+ * typed commands take their turn. The queue's
+ * {@link CommandQueue.RequestSource}, normally the poller, is held off
+ * until the script completes, so polled requests neither skew its timings
+ * nor go out under adapter settings it has changed. AT commands update the
+ * session's {@link AdapterSettings} the way typed ones do. Callbacks arrive
+ * on the read thread; if the link drops mid-script the completion never
+ * arrives.
+ */
+public class ScriptRunner {
+
+    public interface Listener {
+        /** A step's reply came back. */
+        void onStep(StepResult result);
+
+        void onScriptComplete(Result result);
+    }
+
+    /** What one step got back. */
+    public static final class StepResult {
+        public final int index;
+        public final CommandScript.Step step;
+        public final String reply;
+        public final long roundTripNanos;
+        public final boolean passed;
+
+        StepResult(int index, CommandScript.Step step, String reply, long roundTripNanos) {
+            this.index = index;
+            this.step = step;
+            this.reply = reply;
+            this.roundTripNanos = roundTripNanos;
+            this.passed = step.accepts(reply);
+        }
+
+        @Override
+        public String toString() {
+            String text = String.format("%3d %6.1f ms  %s", index + 1, roundTripNanos / 1e6, step.command);
+            if (!passed) {
+                text += "  FAILED (line " + step.line + ", expected " + step.expected + "): "
+                        + reply.replace('\n', ' ');
+            }
+            return text;
+        }
+    }
+
+    /** Outcome of the whole run. */
+    public static final class Result {
+        private final List<StepResult> steps;
+        private final int total;
+        private final long elapsedNanos;
+
+        Result(List<StepResult> steps, int total, long elapsedNanos) {
+            this.steps = Collections.unmodifiableList(steps);
+            this.total = total;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** The steps that ran, in order. */
+        public List<StepResult> getSteps() {
+            return steps;
+        }
+
+        public int getFailureCount() {
+            int n = 0;
+            for (StepResult r : steps) {
+                if (!r.passed) n++;
+            }
+            return n;
+        }
+
+        /** True if every step ran and passed. */
+        public boolean isSuccess() {
+            return steps.size() == total && getFailureCount() == 0;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1_000_000L;
+        }
+
+        /** One line: steps run, failures and timing. */
+        @Override
+        public String toString() {
+            double perStep = steps.isEmpty() ? 0 : elapsedNanos / 1e6 / steps.size();
+            return String.format("Script: %d of %d steps in %d ms (%.1f ms/step), %d failed",
+                    steps.size(), total, getElapsedMillis(), perStep, getFailureCount());
+        }
+    }
+
+    // Steps queued at once: the one in flight and the next, already encoded.
+    private static final int WINDOW = 2;
+
+    private final CommandScript script;
+    private final AdapterSettings settings;
+    private final Listener listener;
+    private final List<StepResult> results = new ArrayList<>();
+    private CommandQueue queue;
+    private long startNanos;
+    // Guarded by this.
+    private int nextStep;
+    private int outstanding;
+    private boolean stopped;
+    private boolean finished;
+
+    /**
+     * @param settings updated with the AT commands the script sends; may be null
+     */
+    public ScriptRunner(CommandScript script, AdapterSettings settings, Listener listener) {
+        this.script = script;
+        this.settings = settings;
+        this.listener = listener;
+    }
+
+    /** Queues the first steps; the rest follow as replies come in. */
+    public void start(CommandQueue queue) throws IOException {
+        this.queue = queue;
+        startNanos = System.nanoTime();
+        queue.holdSource();
+        if (script.getSteps().isEmpty()) {
+            finish();
+            return;
+        }
+        for (int i = 0; i < WINDOW; i++) {
+            sendNext();
+        }
+    }
+
+    /** Sends no further steps; the ones already queued still complete. */
+    public synchronized void cancel() {
+        stopped = true;
+    }
+
+    private void sendNext() throws IOException {
+        int index;
+        synchronized (this) {
+            if (stopped || nextStep == script.getSteps().size()) {
+                return;
+            }
+            index = nextStep++;
+            outstanding++;
+        }
+        CommandScript.Step step = script.getSteps().get(index);
+        try {
+            queue.enqueueRaw(step.command, (command, reply, rtt) -> onReply(index, step, reply, rtt));
+        } catch (IOException e) {
+            synchronized (this) {
+                outstanding--;
+                stopped = true;
+            }
+            throw e;
+        }
+    }
+
+    private void onReply(int index, CommandScript.Step step, String reply, long rtt) {
+        if (settings != null && step.command.regionMatches(true, 0, "AT", 0, 2)) {
+            settings.onCommand(step.command, reply);
+        }
+        StepResult result = new StepResult(index, step, reply, rtt);
+        boolean done;
+        synchronized (this) {
+            results.add(result);
+            outstanding--;
+            if (!result.passed && script.isStopOnFailure()) {
+                stopped = true;
+            }
+            done = outstanding == 0 && (stopped || nextStep == script.getSteps().size());
+        }
+        listener.onStep(result);
+        if (done) {
+            finish();
+            return;
+        }
+        try {
+            sendNext();
+        } catch (IOException e) {
+            // Link dropped; the script ends with it.
+        }
+    }
+
+    private void finish() {
+        Result result;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            result = new Result(new ArrayList<>(results), script.getSteps().size(), System.nanoTime() - startNanos);
+        }
+        try {
+            listener.onScriptComplete(result);
+        } finally {
+            try {
+                queue.releaseSource();
+            } catch (IOException ignored) {
+                // Link dropped; polling resumes on reconnect.
+            }
+        }
+    }
+}
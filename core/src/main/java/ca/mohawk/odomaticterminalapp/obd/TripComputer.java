@@ -0,0 +1,236 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import java.util.Locale;
+
+/**
+ * Trip statistics derived from the decoded sample stream: distance, fuel
+ * used, instantaneous and trip fuel economy, idle, moving and engine-on
+ * time, and the engine load integral.
+ * <p>
+ * Every quantity is a running integral or extreme kept in a primitive
+ * field, updated by the trapezoid rule from the previous sample of the
+ * same PID, so a sample costs O(1) and history is never looked at again.
+ * Only PIDs already being polled are used: speed, RPM and engine load,
+ * plus engine fuel rate (01 5E) when the vehicle reports it, otherwise
+ * mass air flow (01 10) converted with a fixed air-fuel ratio and fuel
+ * density. Two samples further apart than {@link #MAX_GAP_NANOS}, e.g.
+ * across a dropped link, are not integrated between.
+ * <p>
+ * {@link #onSample} runs on the link's thread; {@link #snapshot} may be
+ * called from any thread.
+ */
+public class TripComputer implements SampleListener {
+
+    /** Stoichiometric air-fuel mass ratio and density in g/L of gasoline. */
+    public static final double GASOLINE_AIR_FUEL_RATIO = 14.7;
+    public static final double GASOLINE_DENSITY = 745;
+    public static final double DIESEL_AIR_FUEL_RATIO = 14.5;
+    public static final double DIESEL_DENSITY = 832;
+
+    public static final long MAX_GAP_NANOS = 5_000_000_000L;
+    /** Below this the vehicle counts as stopped. */
+    static final double STOPPED_KMH = 1;
+    /** Below this instantaneous economy per distance is meaningless and reported as NaN. */
+    static final double ECONOMY_MIN_KMH = 5;
+    static final double RUNNING_RPM = 300;
+
+    private static final double NANOS_PER_HOUR = 3600e9;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /** Copy of the figures at one moment. */
+    public static final class Snapshot {
+        public double distanceKm;
+        public double fuelLiters;
+        /** Current fuel flow, NaN until known. */
+        public double fuelRateLph;
+        /** L/100 km at the current speed; NaN when stopped or unknown. */
+        public double instantLitersPer100Km;
+        /** L/100 km over the trip; NaN before any distance. */
+        public double tripLitersPer100Km;
+        public double maxSpeedKmh;
+        public double averageSpeedKmh;
+        /** Mean engine load while the load was being sampled, in %. */
+        public double averageLoad;
+        /** Engine load integrated over time, in %·s. */
+        public double loadIntegral;
+        public double movingSeconds;
+        public double idleSeconds;
+        public double engineSeconds;
+        public double elapsedSeconds;
+
+        /** A few lines for display. */
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "Trip %.2f km in %s, avg %.0f km/h, max %.0f km/h%n"
+                            + "Fuel %.2f L, %s L/100km trip, %s now, %s L/h%n"
+                            + "Idle %s, engine on %s, avg load %.0f%%",
+                    distanceKm, duration(elapsedSeconds), averageSpeedKmh, maxSpeedKmh,
+                    fuelLiters, number(tripLitersPer100Km), number(instantLitersPer100Km), number(fuelRateLph),
+                    duration(idleSeconds), duration(engineSeconds), averageLoad);
+        }
+
+        private static String number(double value) {
+            return Double.isNaN(value) ? "-" : String.format(Locale.US, "%.1f", value);
+        }
+
+        private static String duration(double seconds) {
+            long s = Math.round(seconds);
+            return String.format(Locale.US, "%d:%02d:%02d", s / 3600, s / 60 % 60, s % 60);
+        }
+    }
+
+    // Time of an input not seen yet.
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final double airFuelRatio;
+    private final double fuelDensity;
+
+    // Last sample of each input.
+    private long speedNanos = NONE;
+    private double speed;
+    private long rpmNanos = NONE;
+    private double rpm;
+    private long loadNanos = NONE;
+    private double load;
+    private long fuelNanos = NONE;
+    private double fuelRate = Double.NaN;
+    // Once the vehicle reports fuel rate, MAF is no longer used.
+    private boolean fuelRateReported;
+    private long firstNanos = NONE;
+    private long lastNanos = NONE;
+
+    private double distanceKm;
+    private double fuelLiters;
+    private double maxSpeed;
+    private double loadIntegral;
+    private double loadSeconds;
+    private double movingSeconds;
+    private double idleSeconds;
+    private double engineSeconds;
+
+    /** A trip computer for a gasoline engine. */
+    public TripComputer() {
+        this(GASOLINE_AIR_FUEL_RATIO, GASOLINE_DENSITY);
+    }
+
+    /**
+     * @param airFuelRatio mass of air per mass of fuel, used to get fuel flow from MAF
+     * @param fuelDensity  in g/L
+     */
+    public TripComputer(double airFuelRatio, double fuelDensity) {
+        if (!(airFuelRatio > 0) || !(fuelDensity > 0)) {
+            throw new IllegalArgumentException("Air-fuel ratio and density must be positive");
+        }
+        this.airFuelRatio = airFuelRatio;
+        this.fuelDensity = fuelDensity;
+    }
+
+    @Override
+    public synchronized void onSample(int pid, long timeNanos, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        switch (pid) {
+            case Pids.VEHICLE_SPEED:
+                onSpeed(timeNanos, value);
+                break;
+            case Pids.ENGINE_RPM:
+                onRpm(timeNanos, value);
+                break;
+            case Pids.ENGINE_LOAD:
+                if (within(loadNanos, timeNanos)) {
+                    double seconds = (timeNanos - loadNanos) / NANOS_PER_SECOND;
+                    loadIntegral += (load + value) / 2 * seconds;
+                    loadSeconds += seconds;
+                }
+                loadNanos = timeNanos;
+                load = value;
+                break;
+            case Pids.ENGINE_FUEL_RATE:
+                fuelRateReported = true;
+                onFuelRate(timeNanos, value);
+                break;
+            case Pids.MAF_RATE:
+                if (!fuelRateReported) {
+                    onFuelRate(timeNanos, value * 3600 / airFuelRatio / fuelDensity);
+                }
+                break;
+            default:
+                return;
+        }
+        if (firstNanos == NONE) {
+            firstNanos = timeNanos;
+        }
+        lastNanos = Math.max(lastNanos, timeNanos);
+    }
+
+    private void onSpeed(long timeNanos, double value) {
+        if (within(speedNanos, timeNanos)) {
+            long dt = timeNanos - speedNanos;
+            distanceKm += (speed + value) / 2 * (dt / NANOS_PER_HOUR);
+            double seconds = dt / NANOS_PER_SECOND;
+            if (speed >= STOPPED_KMH || value >= STOPPED_KMH) {
+                movingSeconds += seconds;
+            } else if (rpm >= RUNNING_RPM && within(rpmNanos, timeNanos)) {
+                idleSeconds += seconds;
+            }
+        }
+        speedNanos = timeNanos;
+        speed = value;
+        maxSpeed = Math.max(maxSpeed, value);
+    }
+
+    private void onRpm(long timeNanos, double value) {
+        if (within(rpmNanos, timeNanos) && rpm >= RUNNING_RPM && value >= RUNNING_RPM) {
+            engineSeconds += (timeNanos - rpmNanos) / NANOS_PER_SECOND;
+        }
+        rpmNanos = timeNanos;
+        rpm = value;
+    }
+
+    private void onFuelRate(long timeNanos, double litersPerHour) {
+        if (within(fuelNanos, timeNanos)) {
+            fuelLiters += (fuelRate + litersPerHour) / 2 * ((timeNanos - fuelNanos) / NANOS_PER_HOUR);
+        }
+        fuelNanos = timeNanos;
+        fuelRate = litersPerHour;
+    }
+
+    private static boolean within(long previousNanos, long timeNanos) {
+        return previousNanos != NONE && timeNanos >= previousNanos && timeNanos - previousNanos <= MAX_GAP_NANOS;
+    }
+
+    /** Copies the current figures into {@code out}, so a display can refresh without allocating. */
+    public synchronized Snapshot snapshot(Snapshot out) {
+        out.distanceKm = distanceKm;
+        out.fuelLiters = fuelLiters;
+        boolean fuelKnown = fuelNanos != NONE && within(fuelNanos, lastNanos);
+        out.fuelRateLph = fuelKnown ? fuelRate : Double.NaN;
+        out.instantLitersPer100Km = fuelKnown && speedNanos != NONE && speed >= ECONOMY_MIN_KMH
+                ? fuelRate / speed * 100 : Double.NaN;
+        out.tripLitersPer100Km = distanceKm > 0 && fuelNanos != NONE ? fuelLiters / distanceKm * 100 : Double.NaN;
+        out.maxSpeedKmh = maxSpeed;
+        out.elapsedSeconds = firstNanos == NONE ? 0 : (lastNanos - firstNanos) / NANOS_PER_SECOND;
+        out.averageSpeedKmh = out.elapsedSeconds > 0 ? distanceKm / (out.elapsedSeconds / 3600) : 0;
+        out.loadIntegral = loadIntegral;
+        out.averageLoad = loadSeconds > 0 ? loadIntegral / loadSeconds : 0;
+        out.movingSeconds = movingSeconds;
+        out.idleSeconds = idleSeconds;
+        out.engineSeconds = engineSeconds;
+        return out;
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(new Snapshot());
+    }
+
+    /** Starts a new trip. */
+    public synchronized void reset() {
+        speedNanos = rpmNanos = loadNanos = fuelNanos = firstNanos = lastNanos = NONE;
+        fuelRate = Double.NaN;
+        fuelRateReported = false;
+        distanceKm = fuelLiters = maxSpeed = 0;
+        loadIntegral = loadSeconds = movingSeconds = idleSeconds = engineSeconds = 0;
+    }
+}
@@ -0,0 +1,111 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+/**
+ * What one vehicle answers to: its VIN, the protocol the adapter settled
+ * on and the set of supported mode 01 PIDs.
+ */
+public final class VehicleCapabilities {
+
+    // One bit per mode 01 PID.
+    private final long[] supported = new long[4];
+    private String vin = "";
+    private String protocol = "";
+
+    public String getVin() {
+        return vin;
+    }
+
+    public void setVin(String vin) {
+        this.vin = vin == null ? "" : vin;
+    }
+
+    /** The protocol number reported by ATDPN, e.g. "A6". */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol == null ? "" : protocol;
+    }
+
+    /** PID 00 is always supported; it is how support is asked about. */
+    public boolean isSupported(int pid) {
+        if (pid == Pids.SUPPORTED_01_20) {
+            return true;
+        }
+        return pid > 0 && pid <= 0xFF && (supported[pid >> 6] & (1L << (pid & 63))) != 0;
+    }
+
+    public void setSupported(int pid, boolean value) {
+        if (value) {
+            supported[pid >> 6] |= 1L << (pid & 63);
+        } else {
+            supported[pid >> 6] &= ~(1L << (pid & 63));
+        }
+    }
+
+    /**
+     * Adds the 4-byte bitmap a support PID ({@code base} = 00, 20, 40, ...)
+     * returned for PIDs {@code base + 1} to {@code base + 0x20}. Bitmaps from
+     * several ECUs are combined.
+     */
+    public void addSupportBitmap(int base, byte[] data, int offset) {
+        for (int i = 0; i < 32 && base + 1 + i <= 0xFF; i++) {
+            if ((data[offset + (i >> 3)] & (0x80 >> (i & 7))) != 0) {
+                setSupported(base + 1 + i, true);
+            }
+        }
+    }
+
+    /** True if both agree on PIDs {@code base + 1} to {@code base + 0x20}. */
+    public boolean sameSupport(VehicleCapabilities other, int base) {
+        for (int pid = base + 1; pid <= base + 0x20 && pid <= 0xFF; pid++) {
+            if (isSupported(pid) != other.isSupported(pid)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getSupportedCount() {
+        int count = 0;
+        for (long bits : supported) {
+            count += Long.bitCount(bits);
+        }
+        return count;
+    }
+
+    /** The supported set as 64 hex digits, PID 00 first. */
+    public String supportToHex() {
+        StringBuilder sb = new StringBuilder(64);
+        for (int pid = 0; pid < 256; pid += 4) {
+            int nibble = 0;
+            for (int i = 0; i < 4; i++) {
+                if (pid + i > 0 && isSupported(pid + i)) nibble |= 8 >> i;
+            }
+            sb.append(Character.forDigit(nibble, 16));
+        }
+        return sb.toString();
+    }
+
+    /** Restores a set written by {@link #supportToHex()}; ignores malformed input. */
+    public void supportFromHex(String hex) {
+        if (hex == null || hex.length() != 64) {
+            return;
+        }
+        for (int i = 0; i < 64; i++) {
+            int nibble = HexParser.digit(hex.charAt(i));
+            for (int bit = 0; bit < 4 && nibble > 0; bit++) {
+                if ((nibble & (8 >> bit)) != 0 && i * 4 + bit > 0) {
+                    setSupported(i * 4 + bit, true);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VIN " + (vin.isEmpty() ? "unknown" : vin) + ", protocol " + protocol
+                + ", " + getSupportedCount() + " PIDs";
+    }
+}
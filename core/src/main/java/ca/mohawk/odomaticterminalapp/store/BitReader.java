@@ -0,0 +1,43 @@
+package ca.mohawk.odomaticterminalapp.store;
+
+/** Reads back what a {@link BitWriter} wrote. Past the end it reads zeros. */
+final class BitReader {
+
+    private byte[] bytes;
+    private int pos;
+    private int end;
+    private int current;
+    private int available;
+
+    void reset(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.pos = offset;
+        this.end = offset + length;
+        this.available = 0;
+    }
+
+    /** Reads {@code bits} bits, 1 to 64, as an unsigned value. */
+    long read(int bits) {
+        if (bits == 64) {
+            return (read(32) << 32) | read(32);
+        }
+        long result = 0;
+        while (bits > 0) {
+            if (available == 0) {
+                current = pos < end ? bytes[pos] & 0xFF : 0;
+                pos++;
+                available = 8;
+            }
+            int take = Math.min(bits, available);
+            int shift = available - take;
+            result = (result << take) | ((current >>> shift) & ((1 << take) - 1));
+            available -= take;
+            bits -= take;
+        }
+        return result;
+    }
+
+    boolean readBit() {
+        return read(1) != 0;
+    }
+}
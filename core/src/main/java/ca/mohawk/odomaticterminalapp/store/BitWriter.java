@@ -0,0 +1,81 @@
+package ca.mohawk.odomaticterminalapp.store;
+
+import java.util.Arrays;
+
+/**
+ * Growable big-endian bit stream. Bits are gathered in a 64-bit
+ * accumulator and moved to the byte array a whole word at a time.
+ */
+final class BitWriter {
+
+    private byte[] bytes = new byte[256];
+    private int size;
+    private long acc;
+    private int accBits;
+
+    /** Writes the low {@code bits} bits of {@code value}, most significant first; 1 to 64 bits. */
+    void write(long value, int bits) {
+        if (bits == 64) {
+            write(value >>> 32, 32);
+            write(value, 32);
+            return;
+        }
+        value &= (1L << bits) - 1;
+        int free = 64 - accBits;
+        if (bits < free) {
+            acc = (acc << bits) | value;
+            accBits += bits;
+            return;
+        }
+        int rest = bits - free;
+        acc = (acc << free) | (value >>> rest);
+        flushWord();
+        acc = value & ((1L << rest) - 1);
+        accBits = rest;
+    }
+
+    void writeBit(boolean bit) {
+        write(bit ? 1 : 0, 1);
+    }
+
+    private void flushWord() {
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes[size++] = (byte) (acc >>> shift);
+        }
+        acc = 0;
+        accBits = 0;
+    }
+
+    private void ensure(int more) {
+        if (size + more > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+        }
+    }
+
+    int bitLength() {
+        return size * 8 + accBits;
+    }
+
+    /** Bytes needed to hold every bit written so far. */
+    int byteLength() {
+        return size + (accBits + 7) / 8;
+    }
+
+    /** Copies the stream, zero-padded to a whole byte, to {@code out} at {@code offset}. */
+    void copyTo(byte[] out, int offset) {
+        System.arraycopy(bytes, 0, out, offset, size);
+        int pos = offset + size;
+        int shift = accBits;
+        while (shift > 0) {
+            shift -= 8;
+            out[pos++] = (byte) (shift >= 0 ? acc >>> shift : acc << -shift);
+        }
+    }
+
+    void reset() {
+        size = 0;
+        acc = 0;
+        accBits = 0;
+    }
+}
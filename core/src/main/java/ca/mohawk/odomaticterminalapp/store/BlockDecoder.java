@@ -0,0 +1,111 @@
+package ca.mohawk.odomaticterminalapp.store;
+
+/**
+ * Walks the rows of a block written by {@link BlockEncoder}. Reused from
+ * block to block; nothing is allocated per row.
+ */
+final class BlockDecoder {
+
+    private final BitReader times = new BitReader();
+    private BitReader[] values = new BitReader[0];
+    private long[] previous = new long[0];
+    private int[] leading = new int[0];
+    private int[] trailing = new int[0];
+    private double[] row = new double[0];
+    private int columns;
+    private int count;
+    private int index;
+    private long time;
+    private long delta;
+    private long firstTime;
+
+    /**
+     * @param lengths byte length of the timestamp column, then of each value column
+     */
+    void reset(byte[] payload, int offset, int count, long firstTime, int[] lengths, int columns) {
+        if (values.length < columns) {
+            values = new BitReader[columns];
+            for (int i = 0; i < columns; i++) {
+                values[i] = new BitReader();
+            }
+            previous = new long[columns];
+            leading = new int[columns];
+            trailing = new int[columns];
+            row = new double[columns];
+        }
+        this.columns = columns;
+        this.count = count;
+        this.firstTime = firstTime;
+        this.index = 0;
+        times.reset(payload, offset, lengths[0]);
+        offset += lengths[0];
+        for (int c = 0; c < columns; c++) {
+            values[c].reset(payload, offset, lengths[c + 1]);
+            offset += lengths[c + 1];
+        }
+    }
+
+    /** Moves to the next row; false after the last one. */
+    boolean next() {
+        if (index == count) {
+            return false;
+        }
+        if (index == 0) {
+            time = firstTime;
+            delta = 0;
+        } else {
+            long dod;
+            if (!times.readBit()) {
+                dod = 0;
+            } else if (!times.readBit()) {
+                dod = signed(times.read(7), 7);
+            } else if (!times.readBit()) {
+                dod = signed(times.read(9), 9);
+            } else if (!times.readBit()) {
+                dod = signed(times.read(12), 12);
+            } else {
+                dod = times.read(64);
+            }
+            delta += dod;
+            time += delta;
+        }
+        for (int c = 0; c < columns; c++) {
+            row[c] = readValue(c);
+        }
+        index++;
+        return true;
+    }
+
+    private double readValue(int c) {
+        BitReader in = values[c];
+        if (index == 0) {
+            previous[c] = in.read(64);
+        } else if (in.readBit()) {
+            if (in.readBit()) {
+                leading[c] = (int) in.read(5);
+                int meaningful = (int) in.read(6);
+                if (meaningful == 0) {
+                    meaningful = 64;
+                }
+                trailing[c] = 64 - leading[c] - meaningful;
+            }
+            int meaningful = 64 - leading[c] - trailing[c];
+            previous[c] ^= in.read(meaningful) << trailing[c];
+        }
+        return Double.longBitsToDouble(previous[c]);
+    }
+
+    // The encoder writes dod in two's complement, but a range like -63..64 needs the top value mapped back.
+    private static long signed(long raw, int bits) {
+        long limit = 1L << (bits - 1);
+        return raw > limit ? raw - (1L << bits) : raw;
+    }
+
+    long time() {
+        return time;
+    }
+
+    double value(int column) {
+        return row[column];
+    }
+}
@@ -0,0 +1,183 @@
+package ca.mohawk.odomaticterminalapp.store;
+
+/**
+ * Compresses one block of a time series, Gorilla style (Pelkonen et al.,
+ * VLDB 2015), one column at a time: the timestamps as delta-of-deltas and
+ * each value column as the XOR with the previous value.
+ * <p>
+ * A regularly polled PID has near-constant sample intervals, so most
+ * timestamps cost one or two bits plus a few for jitter, and a slowly
+ * changing value shares its sign, exponent and high mantissa bits with the
+ * one before, so only the differing bits in the middle are stored. Typical
+ * OBD data ends up at one to three bytes per sample.
+ * <p>
+ * Column 0 also keeps min, max and sum so whole blocks can be summarised
+ * without decoding them.
+ */
+final class BlockEncoder {
+
+    private final int columns;
+    private final BitWriter times = new BitWriter();
+    private final BitWriter[] values;
+    private final long[] previous;
+    private final int[] leading;
+    private final int[] trailing;
+    private int count;
+    private long firstTime;
+    private long lastTime;
+    private long lastDelta;
+    private double min;
+    private double max;
+    private double sum;
+    // Column the next value belongs to.
+    private int column;
+
+    BlockEncoder(int columns) {
+        this.columns = columns;
+        values = new BitWriter[columns];
+        for (int i = 0; i < columns; i++) {
+            values[i] = new BitWriter();
+        }
+        previous = new long[columns];
+        leading = new int[columns];
+        trailing = new int[columns];
+        reset();
+    }
+
+    void reset() {
+        times.reset();
+        for (BitWriter w : values) {
+            w.reset();
+        }
+        count = 0;
+        column = 0;
+        lastDelta = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        sum = 0;
+    }
+
+    /**
+     * Starts a row; its {@link #columns} values follow through {@link #value}.
+     * Times must not go backwards.
+     */
+    void time(long timeMillis) {
+        if (count == 0) {
+            firstTime = timeMillis;
+        } else {
+            long delta = timeMillis - lastTime;
+            long dod = delta - lastDelta;
+            if (dod == 0) {
+                times.writeBit(false);
+            } else if (dod >= -63 && dod <= 64) {
+                times.write(0b10, 2);
+                times.write(dod, 7);
+            } else if (dod >= -255 && dod <= 256) {
+                times.write(0b110, 3);
+                times.write(dod, 9);
+            } else if (dod >= -2047 && dod <= 2048) {
+                times.write(0b1110, 4);
+                times.write(dod, 12);
+            } else {
+                times.write(0b1111, 4);
+                times.write(dod, 64);
+            }
+            lastDelta = delta;
+        }
+        lastTime = timeMillis;
+        count++;
+        column = 0;
+    }
+
+    void value(double value) {
+        int c = column++;
+        long bits = Double.doubleToRawLongBits(value);
+        BitWriter out = values[c];
+        if (c == 0) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        if (count == 1) {
+            out.write(bits, 64);
+            previous[c] = bits;
+            leading[c] = -1;
+            return;
+        }
+        long xor = bits ^ previous[c];
+        previous[c] = bits;
+        if (xor == 0) {
+            out.writeBit(false);
+            return;
+        }
+        out.writeBit(true);
+        int lead = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trail = Long.numberOfTrailingZeros(xor);
+        if (leading[c] >= 0 && lead >= leading[c] && trail >= trailing[c]) {
+            // Fits the previous window of meaningful bits.
+            out.writeBit(false);
+            out.write(xor >>> trailing[c], 64 - leading[c] - trailing[c]);
+            return;
+        }
+        int meaningful = 64 - lead - trail;
+        out.writeBit(true);
+        out.write(lead, 5);
+        // 64 meaningful bits do not fit in 6 bits and are written as 0.
+        out.write(meaningful & 0x3F, 6);
+        out.write(xor >>> trail, meaningful);
+        leading[c] = lead;
+        trailing[c] = trail;
+    }
+
+    int columns() {
+        return columns;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long firstTime() {
+        return firstTime;
+    }
+
+    long lastTime() {
+        return lastTime;
+    }
+
+    double min() {
+        return min;
+    }
+
+    double max() {
+        return max;
+    }
+
+    double sum() {
+        return sum;
+    }
+
+    /** Size of the payload {@link #copyTo} writes. */
+    int payloadLength() {
+        int n = times.byteLength();
+        for (BitWriter w : values) {
+            n += w.byteLength();
+        }
+        return n;
+    }
+
+    /** Byte length of the timestamp column, then of each value column. */
+    int columnLength(int index) {
+        return index == 0 ? times.byteLength() : values[index - 1].byteLength();
+    }
+
+    /** Writes the columns back to back, each padded to a whole byte. */
+    void copyTo(byte[] out, int offset) {
+        times.copyTo(out, offset);
+        offset += times.byteLength();
+        for (BitWriter w : values) {
+            w.copyTo(out, offset);
+            offset += w.byteLength();
+        }
+    }
+}
@@ -0,0 +1,680 @@
+package ca.mohawk.odomaticterminalapp.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * On-device time-series store for decoded samples, e.g. one per adapter.
+ * <p>
+ * Each series (a mode 01 PID, or any other id up to {@link #MAX_SERIES})
+ * is cut into blocks of up to {@link #BLOCK_ROWS} samples, compressed by
+ * {@link BlockEncoder}. Sealed blocks are appended to segment files in the
+ * store's directory, which are never rewritten; a new segment is started
+ * once the current one passes {@link #SEGMENT_BYTES}. Blocks still being
+ * filled live in memory until {@link #flush()} or {@link #close()}, so a
+ * writer that may be killed should flush every so often; what a crash
+ * loses is then bounded by that interval.
+ * <p>
+ * Every sample also feeds two rollups, per second and per minute, which
+ * keep min, max, mean and count per bucket as series of their own, so a
+ * long range can be drawn from a few hundred buckets instead of every
+ * sample: see {@link #queryAuto}.
+ * <p>
+ * Segment layout, little-endian: {@link #MAGIC}, creation time in ms, then
+ * blocks of
+ * {@code [int key][int rows][long first][long last][double min, max, sum]
+ * [byte columns][int length per column, timestamps first][int crc32][payload]}.
+ * An index of the block headers is built when the store is opened; a torn
+ * block at the end of the last segment, left by a crash, is cut off, and a
+ * last segment whose header never reached the disk is deleted.
+ */
+public class SampleStore implements Closeable {
+
+    public static final byte[] MAGIC = "ODOTSD01".getBytes(StandardCharsets.US_ASCII);
+    public static final int MAX_SERIES = 0xFFFF;
+    public static final int BLOCK_ROWS = 1024;
+    public static final long SEGMENT_BYTES = 4L * 1024 * 1024;
+
+    /** Raw samples, then the rollup levels. */
+    public static final int RAW = 0;
+    public static final int SECONDS = 1;
+    public static final int MINUTES = 2;
+    private static final long[] BUCKET_MILLIS = {0, 1_000, 60_000};
+    private static final int ROLLUP_COLUMNS = 4;
+
+    private static final int SEGMENT_HEADER = MAGIC.length + 8;
+    private static final int BLOCK_FIXED = 4 + 4 + 8 + 8 + 8 * 3 + 1;
+
+    /** Receives raw samples from a query. */
+    public interface SampleVisitor {
+        void onSample(long timeMillis, double value);
+    }
+
+    /** Receives rollup buckets, or raw samples as buckets of one. */
+    public interface BucketVisitor {
+        void onBucket(long startMillis, double min, double max, double mean, int count);
+    }
+
+    // Where a sealed block is, and what it holds.
+    private static final class BlockRef {
+        final int segment;
+        final long payloadOffset;
+        final int rows;
+        final long first;
+        final long last;
+        final int columns;
+        final int[] lengths;
+        final int crc;
+
+        BlockRef(int segment, long payloadOffset, int rows, long first, long last, int columns, int[] lengths, int crc) {
+            this.segment = segment;
+            this.payloadOffset = payloadOffset;
+            this.rows = rows;
+            this.first = first;
+            this.last = last;
+            this.columns = columns;
+            this.lengths = lengths;
+            this.crc = crc;
+        }
+
+        int payloadLength() {
+            int n = 0;
+            for (int l : lengths) n += l;
+            return n;
+        }
+    }
+
+    // Bucket being filled for one series and level.
+    private static final class Bucket {
+        long start = Long.MIN_VALUE;
+        double min;
+        double max;
+        double sum;
+        int count;
+    }
+
+    private final File dir;
+    private final List<File> segments = new ArrayList<>();
+    private final Map<Integer, List<BlockRef>> index = new HashMap<>();
+    private final Map<Integer, BlockEncoder> open = new HashMap<>();
+    private final Map<Integer, Bucket> buckets = new HashMap<>();
+    private final BlockDecoder decoder = new BlockDecoder();
+    private final CRC32 crc = new CRC32();
+    private byte[] scratch = new byte[4096];
+    private FileChannel channel;
+    private long segmentSize;
+    private long sealedBytes;
+    private long corruptBlocks;
+    // Newest sample time appended, across all series.
+    private long newestMillis = Long.MIN_VALUE;
+    private boolean closed;
+
+    /** Opens the store in {@code dir}, creating it if needed, and indexes what is there. */
+    public SampleStore(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File[] files = dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".tsd"));
+        if (files != null) {
+            Arrays.sort(files);
+            for (int i = 0; i < files.length; i++) {
+                if (i == files.length - 1 && isTornSegment(files[i])) {
+                    if (!files[i].delete()) {
+                        throw new IOException("Cannot delete torn segment " + files[i]);
+                    }
+                    break;
+                }
+                segments.add(files[i]);
+                scan(segments.size() - 1);
+            }
+        }
+    }
+
+    // Reads the block headers of one segment into the index, cutting off a torn tail.
+    private void scan(int segment) throws IOException {
+        File file = segments.get(segment);
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            ByteBuffer head = ByteBuffer.allocate(SEGMENT_HEADER);
+            if (size < SEGMENT_HEADER || ch.read(head, 0) < SEGMENT_HEADER || !hasMagic(head)) {
+                throw new IOException("Not a sample segment: " + file);
+            }
+            long pos = SEGMENT_HEADER;
+            ByteBuffer fixed = ByteBuffer.allocate(BLOCK_FIXED).order(ByteOrder.LITTLE_ENDIAN);
+            while (pos < size) {
+                fixed.clear();
+                if (ch.read(fixed, pos) < BLOCK_FIXED) break;
+                fixed.flip();
+                int key = fixed.getInt();
+                int rows = fixed.getInt();
+                long first = fixed.getLong();
+                long last = fixed.getLong();
+                fixed.position(fixed.position() + 24);
+                int columns = fixed.get();
+                if (rows <= 0 || columns <= 0 || columns > ROLLUP_COLUMNS) break;
+                ByteBuffer tail = ByteBuffer.allocate(4 * (columns + 2)).order(ByteOrder.LITTLE_ENDIAN);
+                if (ch.read(tail, pos + BLOCK_FIXED) < tail.capacity()) break;
+                tail.flip();
+                int[] lengths = new int[columns + 1];
+                long payload = 0;
+                for (int i = 0; i < lengths.length; i++) {
+                    lengths[i] = tail.getInt();
+                    payload += lengths[i];
+                }
+                int sum = tail.getInt();
+                long payloadOffset = pos + BLOCK_FIXED + tail.capacity();
+                if (payload < 0 || payloadOffset + payload > size) break;
+                index.computeIfAbsent(key, k -> new ArrayList<>())
+                        .add(new BlockRef(segment, payloadOffset, rows, first, last, columns, lengths, sum));
+                pos = payloadOffset + payload;
+            }
+            if (pos < size) {
+                ch.truncate(pos);
+            }
+            sealedBytes += pos;
+            segmentSize = pos;
+        }
+    }
+
+    // True if a crash came between creating the segment and its header reaching the disk.
+    private static boolean isTornSegment(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(SEGMENT_HEADER);
+            while (head.hasRemaining() && ch.read(head) >= 0) {
+            }
+            if (head.hasRemaining()) {
+                return true;
+            }
+            for (int i = 0; i < SEGMENT_HEADER; i++) {
+                if (head.get(i) != 0) return false;
+            }
+            return true;
+        }
+    }
+
+    private static boolean hasMagic(ByteBuffer head) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (head.get(i) != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    private static int key(int level, int series) {
+        return level << 16 | series;
+    }
+
+    /**
+     * Adds a sample. Samples of one series must come in time order; one
+     * older than the last is dropped.
+     *
+     * @return false if the sample was dropped
+     */
+    public synchronized boolean append(int series, long timeMillis, double value) throws IOException {
+        if (closed) {
+            throw new IOException("Store closed");
+        }
+        if (series < 0 || series > MAX_SERIES) {
+            throw new IllegalArgumentException("Series out of range: " + series);
+        }
+        BlockEncoder raw = encoder(key(RAW, series), 1);
+        if (timeMillis < lastTime(series, raw)) {
+            return false;
+        }
+        raw.time(timeMillis);
+        raw.value(value);
+        newestMillis = Math.max(newestMillis, timeMillis);
+        if (raw.count() == BLOCK_ROWS) {
+            seal(key(RAW, series), raw);
+        }
+        for (int level = SECONDS; level <= MINUTES; level++) {
+            addToBucket(level, series, timeMillis, value);
+        }
+        return true;
+    }
+
+    private long lastTime(int series, BlockEncoder raw) {
+        if (raw.count() > 0) {
+            return raw.lastTime();
+        }
+        List<BlockRef> sealed = index.get(key(RAW, series));
+        return sealed == null ? Long.MIN_VALUE : sealed.get(sealed.size() - 1).last;
+    }
+
+    private BlockEncoder encoder(int key, int columns) {
+        BlockEncoder e = open.get(key);
+        if (e == null) {
+            e = new BlockEncoder(columns);
+            open.put(key, e);
+        }
+        return e;
+    }
+
+    private void addToBucket(int level, int series, long timeMillis, double value) throws IOException {
+        int key = key(level, series);
+        Bucket b = buckets.get(key);
+        if (b == null) {
+            b = new Bucket();
+            buckets.put(key, b);
+        }
+        long start = timeMillis - Math.floorMod(timeMillis, BUCKET_MILLIS[level]);
+        if (b.count > 0 && start != b.start) {
+            emit(key, b);
+        }
+        if (b.count == 0) {
+            b.start = start;
+            b.min = value;
+            b.max = value;
+            b.sum = 0;
+        }
+        b.min = Math.min(b.min, value);
+        b.max = Math.max(b.max, value);
+        b.sum += value;
+        b.count++;
+    }
+
+    private void emit(int key, Bucket b) throws IOException {
+        BlockEncoder e = encoder(key, ROLLUP_COLUMNS);
+        e.time(b.start);
+        e.value(b.min);
+        e.value(b.max);
+        e.value(b.sum / b.count);
+        e.value(b.count);
+        b.count = 0;
+        if (e.count() == BLOCK_ROWS) {
+            seal(key, e);
+        }
+    }
+
+    private void seal(int key, BlockEncoder e) throws IOException {
+        if (e.count() == 0) {
+            return;
+        }
+        int columns = e.columns();
+        int payload = e.payloadLength();
+        int header = BLOCK_FIXED + 4 * (columns + 2);
+        if (scratch.length < header + payload) {
+            scratch = new byte[Math.max(scratch.length * 2, header + payload)];
+        }
+        e.copyTo(scratch, header);
+        crc.reset();
+        crc.update(scratch, header, payload);
+        ByteBuffer buf = ByteBuffer.wrap(scratch, 0, header).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(key).putInt(e.count()).putLong(e.firstTime()).putLong(e.lastTime())
+                .putDouble(e.min()).putDouble(e.max()).putDouble(e.sum()).put((byte) columns);
+        int[] lengths = new int[columns + 1];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = e.columnLength(i);
+            buf.putInt(lengths[i]);
+        }
+        buf.putInt((int) crc.getValue());
+
+        FileChannel ch = channel();
+        long pos = segmentSize;
+        ByteBuffer out = ByteBuffer.wrap(scratch, 0, header + payload);
+        while (out.hasRemaining()) {
+            ch.write(out, pos + out.position());
+        }
+        segmentSize += header + payload;
+        sealedBytes += header + payload;
+        index.computeIfAbsent(key, k -> new ArrayList<>()).add(new BlockRef(segments.size() - 1,
+                pos + header, e.count(), e.firstTime(), e.lastTime(), columns, lengths, (int) crc.getValue()));
+        e.reset();
+    }
+
+    // The segment being appended to, starting a new one when it is full or none is open.
+    private FileChannel channel() throws IOException {
+        if (channel != null && segmentSize < SEGMENT_BYTES) {
+            return channel;
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        if (segments.isEmpty() || segmentSize >= SEGMENT_BYTES) {
+            File file = new File(dir, String.format("segment-%06d.tsd", segments.size() + 1));
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer head = ByteBuffer.allocate(SEGMENT_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            head.put(MAGIC).putLong(System.currentTimeMillis()).flip();
+            channel.write(head, 0);
+            // A crash must not leave the next open a segment without its header.
+            channel.force(true);
+            segments.add(file);
+            segmentSize = SEGMENT_HEADER;
+            sealedBytes += SEGMENT_HEADER;
+        } else {
+            channel = FileChannel.open(segments.get(segments.size() - 1).toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    /**
+     * Seals every open block, so everything appended so far is on disk,
+     * along with every rollup bucket that ended before the newest sample.
+     * Buckets still being filled stay open. Each call seals a block per
+     * series and level, so calling it far more often than every few seconds
+     * costs compression.
+     */
+    public synchronized void flush() throws IOException {
+        for (Map.Entry<Integer, Bucket> e : buckets.entrySet()) {
+            Bucket b = e.getValue();
+            // Even a series that has gone quiet gets its finished buckets written.
+            if (b.count > 0 && b.start + BUCKET_MILLIS[e.getKey() >>> 16] <= newestMillis) {
+                emit(e.getKey(), b);
+            }
+        }
+        for (Map.Entry<Integer, BlockEncoder> e : open.entrySet()) {
+            seal(e.getKey(), e.getValue());
+        }
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Visits the raw samples of {@code series} in {@code [from, to]}, in time
+     * order.
+     *
+     * @return the number of samples visited
+     */
+    public synchronized int query(int series, long from, long to, SampleVisitor visitor) throws IOException {
+        int key = key(RAW, series);
+        int n = 0;
+        for (BlockRef ref : blocks(key)) {
+            if (ref.last < from || ref.first > to) continue;
+            if (!load(ref)) continue;
+            n += visitRaw(from, to, visitor);
+        }
+        BlockEncoder e = open.get(key);
+        if (e != null && e.count() > 0 && e.lastTime() >= from && e.firstTime() <= to) {
+            loadOpen(e);
+            n += visitRaw(from, to, visitor);
+        }
+        return n;
+    }
+
+    private int visitRaw(long from, long to, SampleVisitor visitor) {
+        int n = 0;
+        while (decoder.next()) {
+            long t = decoder.time();
+            if (t > to) break;
+            if (t >= from) {
+                visitor.onSample(t, decoder.value(0));
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Visits the rollup buckets of {@code series} at {@code level}
+     * ({@link #SECONDS} or {@link #MINUTES}) that start in {@code [from, to]},
+     * including the one still being filled. A bucket split by closing and
+     * reopening the store is merged back into one.
+     *
+     * @return the number of buckets visited
+     */
+    public synchronized int queryRollup(int series, int level, long from, long to, BucketVisitor visitor)
+            throws IOException {
+        if (level < SECONDS || level > MINUTES) {
+            throw new IllegalArgumentException("No rollup level " + level);
+        }
+        int key = key(level, series);
+        Merger merger = new Merger(visitor);
+        for (BlockRef ref : blocks(key)) {
+            if (ref.last < from || ref.first > to) continue;
+            if (!load(ref)) continue;
+            visitBuckets(from, to, merger);
+        }
+        BlockEncoder e = open.get(key);
+        if (e != null && e.count() > 0 && e.lastTime() >= from && e.firstTime() <= to) {
+            loadOpen(e);
+            visitBuckets(from, to, merger);
+        }
+        Bucket b = buckets.get(key);
+        if (b != null && b.count > 0 && b.start >= from && b.start <= to) {
+            merger.add(b.start, b.min, b.max, b.sum, b.count);
+        }
+        return merger.finish();
+    }
+
+    private void visitBuckets(long from, long to, Merger merger) {
+        while (decoder.next()) {
+            long t = decoder.time();
+            if (t > to) break;
+            if (t >= from) {
+                int count = (int) decoder.value(3);
+                merger.add(t, decoder.value(0), decoder.value(1), decoder.value(2) * count, count);
+            }
+        }
+    }
+
+    // Holds back one bucket so a following one with the same start can be folded into it.
+    private static final class Merger {
+        final BucketVisitor visitor;
+        final Bucket pending = new Bucket();
+        int visited;
+
+        Merger(BucketVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        void add(long start, double min, double max, double sum, int count) {
+            if (pending.count > 0 && pending.start == start) {
+                pending.min = Math.min(pending.min, min);
+                pending.max = Math.max(pending.max, max);
+                pending.sum += sum;
+                pending.count += count;
+                return;
+            }
+            finish();
+            pending.start = start;
+            pending.min = min;
+            pending.max = max;
+            pending.sum = sum;
+            pending.count = count;
+        }
+
+        int finish() {
+            if (pending.count > 0) {
+                visitor.onBucket(pending.start, pending.min, pending.max, pending.sum / pending.count, pending.count);
+                pending.count = 0;
+                visited++;
+            }
+            return visited;
+        }
+    }
+
+    /**
+     * Visits {@code [from, to]} at the finest resolution that yields no more
+     * than about {@code maxPoints} points: raw samples as buckets of one if
+     * there are few enough, otherwise per-second or per-minute rollups.
+     *
+     * @return the level used
+     */
+    public synchronized int queryAuto(int series, long from, long to, int maxPoints, BucketVisitor visitor)
+            throws IOException {
+        int level = levelFor(series, from, to, maxPoints);
+        if (level == RAW) {
+            query(series, from, to, (t, v) -> visitor.onBucket(t, v, v, v, 1));
+        } else {
+            queryRollup(series, level, from, to, visitor);
+        }
+        return level;
+    }
+
+    /** The level {@link #queryAuto} would use. */
+    public synchronized int levelFor(int series, long from, long to, int maxPoints) {
+        if (countRaw(series, from, to) <= maxPoints) {
+            return RAW;
+        }
+        return (to - from) / BUCKET_MILLIS[SECONDS] <= maxPoints ? SECONDS : MINUTES;
+    }
+
+    // Estimate of the raw samples in a range from the block headers alone, taking
+    // a block that sticks out of the range to be sampled evenly.
+    private long countRaw(int series, long from, long to) {
+        int key = key(RAW, series);
+        long n = 0;
+        for (BlockRef ref : blocks(key)) {
+            n += overlap(ref.rows, ref.first, ref.last, from, to);
+        }
+        BlockEncoder e = open.get(key);
+        if (e != null && e.count() > 0) {
+            n += overlap(e.count(), e.firstTime(), e.lastTime(), from, to);
+        }
+        return n;
+    }
+
+    private static long overlap(int rows, long first, long last, long from, long to) {
+        if (last < from || first > to) {
+            return 0;
+        }
+        if (first >= from && last <= to) {
+            return rows;
+        }
+        double covered = (double) (Math.min(last, to) - Math.max(first, from) + 1) / (last - first + 1);
+        return (long) Math.ceil(rows * covered);
+    }
+
+    private List<BlockRef> blocks(int key) {
+        List<BlockRef> list = index.get(key);
+        return list == null ? new ArrayList<>() : list;
+    }
+
+    // Reads a sealed block into the decoder; false if it fails its checksum.
+    private boolean load(BlockRef ref) throws IOException {
+        int length = ref.payloadLength();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(scratch.length * 2, length)];
+        }
+        ByteBuffer buf = ByteBuffer.wrap(scratch, 0, length);
+        if (ref.segment == segments.size() - 1 && channel != null) {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, ref.payloadOffset + buf.position()) < 0) break;
+            }
+        } else {
+            try (FileChannel ch = FileChannel.open(segments.get(ref.segment).toPath(), StandardOpenOption.READ)) {
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, ref.payloadOffset + buf.position()) < 0) break;
+                }
+            }
+        }
+        crc.reset();
+        crc.update(scratch, 0, length);
+        if (buf.hasRemaining() || (int) crc.getValue() != ref.crc) {
+            corruptBlocks++;
+            return false;
+        }
+        decoder.reset(scratch, 0, ref.rows, ref.first, ref.lengths, ref.columns);
+        return true;
+    }
+
+    private void loadOpen(BlockEncoder e) {
+        int length = e.payloadLength();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(scratch.length * 2, length)];
+        }
+        e.copyTo(scratch, 0);
+        int[] lengths = new int[e.columns() + 1];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = e.columnLength(i);
+        }
+        decoder.reset(scratch, 0, e.count(), e.firstTime(), lengths, e.columns());
+    }
+
+    /** The series holding raw samples, in ascending order. */
+    public synchronized int[] getSeries() {
+        int[] series = new int[index.size() + open.size()];
+        int n = 0;
+        for (Integer key : index.keySet()) {
+            if (key >>> 16 == RAW) series[n++] = key;
+        }
+        for (Map.Entry<Integer, BlockEncoder> e : open.entrySet()) {
+            if (e.getKey() >>> 16 == RAW && e.getValue().count() > 0 && !index.containsKey(e.getKey())) {
+                series[n++] = e.getKey();
+            }
+        }
+        series = Arrays.copyOf(series, n);
+        Arrays.sort(series);
+        return series;
+    }
+
+    /**
+     * Where to look for the next sample of {@code series} at or after
+     * {@code from}: {@code from} itself if a block spans it, else the start
+     * of the next block, or {@link Long#MAX_VALUE} if there is none. Lets a
+     * reader walk a series in time slices without stepping through gaps.
+     */
+    public synchronized long nextTime(int series, long from) {
+        int key = key(RAW, series);
+        long next = Long.MAX_VALUE;
+        for (BlockRef ref : blocks(key)) {
+            if (ref.last >= from) next = Math.min(next, Math.max(ref.first, from));
+        }
+        BlockEncoder e = open.get(key);
+        if (e != null && e.count() > 0 && e.lastTime() >= from) {
+            next = Math.min(next, Math.max(e.firstTime(), from));
+        }
+        return next;
+    }
+
+    /** Raw samples held, sealed or not. */
+    public synchronized long getSampleCount() {
+        long n = 0;
+        for (Map.Entry<Integer, List<BlockRef>> e : index.entrySet()) {
+            if (e.getKey() >>> 16 != RAW) continue;
+            for (BlockRef ref : e.getValue()) n += ref.rows;
+        }
+        for (Map.Entry<Integer, BlockEncoder> e : open.entrySet()) {
+            if (e.getKey() >>> 16 == RAW) n += e.getValue().count();
+        }
+        return n;
+    }
+
+    /** Bytes on disk plus the compressed size of the open blocks. */
+    public synchronized long getSizeBytes() {
+        long n = sealedBytes;
+        for (BlockEncoder e : open.values()) {
+            n += e.payloadLength();
+        }
+        return n;
+    }
+
+    /** Blocks skipped by queries because their checksum did not match. */
+    public synchronized long getCorruptBlockCount() {
+        return corruptBlocks;
+    }
+
+    /** Writes out the open blocks and the buckets still being filled. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        for (Map.Entry<Integer, Bucket> e : buckets.entrySet()) {
+            if (e.getValue().count > 0) {
+                emit(e.getKey(), e.getValue());
+            }
+        }
+        flush();
+        closed = true;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
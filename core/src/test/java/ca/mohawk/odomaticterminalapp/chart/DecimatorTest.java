@@ -0,0 +1,90 @@
+package ca.mohawk.odomaticterminalapp.chart;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DecimatorTest {
+
+    private static SampleRing ramp(int count, int capacity) {
+        SampleRing ring = new SampleRing(capacity);
+        for (int i = 0; i < count; i++) {
+            ring.add(i * 10L, i % 100);
+        }
+        return ring;
+    }
+
+    @Test
+    public void ringKeepsTheNewestSamplesInOrder() {
+        SampleRing ring = ramp(250, 100);
+        assertEquals(100, ring.size());
+        assertEquals(1500, ring.time(0));
+        assertEquals(2490, ring.lastTime());
+        assertEquals(49, ring.value(99), 0);
+        assertEquals(0, ring.indexAtOrAfter(0));
+        assertEquals(1, ring.indexAtOrAfter(1501));
+        assertEquals(100, ring.indexAtOrAfter(2491));
+        ring.clear();
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void minMaxKeepsEverySpikeAndAtMostFourPointsPerColumn() {
+        SampleRing ring = new SampleRing(20_000);
+        for (int i = 0; i < 20_000; i++) {
+            ring.add(i, i == 12_345 ? 1000 : i == 777 ? -1000 : Math.sin(i / 100.0));
+        }
+        int width = 200;
+        float[] out = new float[Decimator.minMaxCapacity(width)];
+        int n = Decimator.minMax(ring, 0, 19_999, width, out);
+        assertTrue(n <= 8 * (width + 1));
+        float max = -Float.MAX_VALUE;
+        float min = Float.MAX_VALUE;
+        for (int i = 0; i < n; i += 2) {
+            if (i > 0) assertTrue(out[i] >= out[i - 2]);
+            assertTrue(out[i] >= 0 && out[i] <= width);
+            max = Math.max(max, out[i + 1]);
+            min = Math.min(min, out[i + 1]);
+        }
+        assertEquals(1000, max, 0);
+        assertEquals(-1000, min, 0);
+        // Starts and ends where the data does.
+        assertEquals(0, out[1], 0);
+        assertEquals((float) Math.sin(19_999 / 100.0), out[n - 1], 0);
+    }
+
+    @Test
+    public void minMaxStartsFromTheSampleBeforeTheWindow() {
+        SampleRing ring = ramp(100, 100);
+        float[] out = new float[Decimator.minMaxCapacity(10)];
+        int n = Decimator.minMax(ring, 505, 990, 10, out);
+        assertTrue(out[0] < 0);
+        assertEquals(50, out[1], 0);
+        assertEquals(10, out[n - 2], 0);
+        assertEquals(0, Decimator.minMax(new SampleRing(4), 0, 100, 10, out));
+    }
+
+    @Test
+    public void lttbReducesToThePointBudgetKeepingTheEnds() {
+        SampleRing ring = new SampleRing(10_000);
+        for (int i = 0; i < 10_000; i++) {
+            ring.add(i, i == 5000 ? 500 : (i / 50) % 2);
+        }
+        float[] out = new float[2 * 100];
+        int n = Decimator.lttb(ring, 0, 9_999, 400, 100, out);
+        assertEquals(200, n);
+        assertEquals(0, out[0], 0);
+        assertEquals(400, out[n - 2], 0.01);
+        boolean spike = false;
+        for (int i = 0; i < n; i += 2) {
+            if (i > 0) assertTrue(out[i] > out[i - 2]);
+            spike |= out[i + 1] == 500;
+        }
+        assertTrue(spike);
+
+        // Few enough samples pass through untouched.
+        n = Decimator.lttb(ramp(30, 30), 0, 290, 100, 100, out);
+        assertEquals(60, n);
+        assertEquals(29, out[59], 0);
+    }
+}
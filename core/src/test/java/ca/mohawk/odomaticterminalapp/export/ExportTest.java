@@ -0,0 +1,190 @@
+package ca.mohawk.odomaticterminalapp.export;
+
+import ca.mohawk.odomaticterminalapp.link.SessionRecorder;
+import ca.mohawk.odomaticterminalapp.store.SampleStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class ExportTest {
+
+    private static final long START = 1_700_000_000_000L;
+
+    private File dir;
+    private SampleStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("export").toFile();
+        store = new SampleStore(new File(dir, "series"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        delete(dir);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) delete(c);
+        }
+        f.delete();
+    }
+
+    private static String read(File f) throws IOException {
+        return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void writesSamplesAsCsvInSeriesAndTimeOrder() throws IOException {
+        store.append(0x0D, START, 42);
+        store.append(0x0C, START + 5, 812.25);
+        store.append(0x0C, START + 105, 0.0625);
+        store.append(0x0D, START + 100, -3.5);
+        store.append(0x05, START, 91);
+        File csv = new File(dir, "samples.csv");
+        try (SampleExport export = new SampleExport(store, SampleExport.Format.CSV, csv)) {
+            export.open();
+            export.run();
+            assertTrue(export.isDone());
+            assertEquals(5, export.getRowCount());
+            assertEquals(1, export.getProgress(), 0);
+        }
+        assertEquals("time_ms,pid,name,value,unit\n"
+                + START + ",05,ECT,91,\u00B0C\n"
+                + (START + 5) + ",0C,RPM,812.25,rpm\n"
+                + (START + 105) + ",0C,RPM,0.0625,rpm\n"
+                + START + ",0D,SPD,42,km/h\n"
+                + (START + 100) + ",0D,SPD,-3.5,km/h\n", read(csv));
+        assertFalse(new File(dir, "samples.csv.part").exists());
+        assertFalse(new File(dir, "samples.csv.checkpoint").exists());
+    }
+
+    @Test
+    public void resumesAnInterruptedBinaryExport() throws IOException {
+        int perSeries = 30_000;
+        for (int i = 0; i < perSeries; i++) {
+            for (int pid = 1; pid <= 3; pid++) {
+                store.append(pid, START + i * 100L, i % 200 + pid / 10.0);
+            }
+        }
+        File whole = new File(dir, "whole.bin");
+        try (SampleExport export = new SampleExport(store, SampleExport.Format.BINARY, whole)) {
+            export.open();
+            export.run();
+        }
+
+        // Two steps, then the process "dies".
+        File resumed = new File(dir, "resumed.bin");
+        SampleExport first = new SampleExport(store, SampleExport.Format.BINARY, resumed);
+        first.open();
+        assertTrue(first.step());
+        assertTrue(first.step());
+        double progress = first.getProgress();
+        assertTrue(progress > 0.3 && progress < 0.7);
+        first.close();
+        assertFalse(resumed.exists());
+
+        SampleExport second = new SampleExport(store, SampleExport.Format.BINARY, resumed);
+        second.open();
+        assertTrue(second.isResumed());
+        second.run();
+        second.close();
+        assertEquals(3L * perSeries, second.getRowCount());
+
+        byte[] bytes = Files.readAllBytes(resumed.toPath());
+        assertArrayEquals(Files.readAllBytes(whole.toPath()), bytes);
+        assertEquals(SampleExport.MAGIC.length + 3L * perSeries * SampleExport.RECORD_SIZE, bytes.length);
+        ByteBuffer records = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        records.position(SampleExport.MAGIC.length + perSeries * SampleExport.RECORD_SIZE);
+        assertEquals(START, records.getLong());
+        assertEquals(2, records.getShort());
+        assertEquals(0.2, records.getDouble(), 0);
+    }
+
+    @Test
+    public void startsOverWhenTheCheckpointIsForAnotherExport() throws IOException {
+        for (int i = 0; i < 50_000; i++) {
+            store.append(1, START + i, i);
+        }
+        File out = new File(dir, "out");
+        SampleExport binary = new SampleExport(store, SampleExport.Format.BINARY, out);
+        binary.open();
+        assertTrue(binary.step());
+        binary.close();
+
+        SampleExport csv = new SampleExport(store, SampleExport.Format.CSV, out);
+        csv.open();
+        assertFalse(csv.isResumed());
+        csv.run();
+        assertTrue(read(out).startsWith("time_ms,pid,name,value,unit\n" + START + ",01,"));
+    }
+
+    @Test
+    public void writesTraceFramesAsEscapedCsv() throws IOException {
+        File trace = new File(dir, "session.odr");
+        try (SessionRecorder recorder = new SessionRecorder(trace)) {
+            byte[] out = "010C\r".getBytes(StandardCharsets.US_ASCII);
+            recorder.recordOut(out, 0, out.length);
+            byte[] in = "41 0C \"1A\" \\ F8\r\n\u0001>".getBytes(StandardCharsets.US_ASCII);
+            recorder.recordIn(in, 0, in.length);
+        }
+        File csv = new File(dir, "session.csv");
+        try (TraceExport export = new TraceExport(trace, csv)) {
+            export.open();
+            export.run();
+            assertEquals(2, export.getFrameCount());
+        }
+        String[] lines = read(csv).split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("time_ms,dir,data", lines[0]);
+        assertTrue(lines[1], lines[1].matches("\\d+(\\.\\d+)?,out,\"010C\\\\r\""));
+        assertTrue(lines[2], lines[2].endsWith(",in,\"41 0C \"\"1A\"\" \\\\ F8\\r\\n\\x01>\""));
+    }
+
+    @Test
+    public void exportsALiveTraceUpToItsLengthAtTheStart() throws IOException {
+        File trace = new File(dir, "live.odr");
+        File csv = new File(dir, "live.csv");
+        byte[] frame = "41 0C 1A F8\r".getBytes(StandardCharsets.US_ASCII);
+        try (SessionRecorder recorder = new SessionRecorder(trace)) {
+            recorder.recordIn(frame, 0, frame.length);
+            recorder.recordIn(frame, 0, frame.length);
+            try (TraceExport export = new TraceExport(recorder, csv)) {
+                recorder.recordIn(frame, 0, frame.length);
+                export.open();
+                recorder.recordIn(frame, 0, frame.length);
+                export.run();
+                assertEquals(2, export.getFrameCount());
+                assertEquals(1.0, export.getProgress(), 0);
+            }
+        }
+        assertEquals(3, read(csv).split("\n").length);
+    }
+
+    @Test
+    public void formatsNumbersWithoutGoingThroughStrings() throws IOException {
+        File file = new File(dir, "numbers");
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ExportBuffer out = new ExportBuffer(ch, 0);
+            out.put(0.005, 3).put(' ').put(-0.0001, 3).put(' ').put(1.05, 4).put(' ').put(-12.0, 2).put(' ')
+                    .put(Double.NaN, 2).put(' ').put(Long.MIN_VALUE).put(' ').put(1e300, 2).put(' ').putHex(0x7E8, 3);
+            out.flush();
+        }
+        assertEquals("0.005 0 1.05 -12  -9223372036854775808 1.0E300 7E8", read(file));
+    }
+}
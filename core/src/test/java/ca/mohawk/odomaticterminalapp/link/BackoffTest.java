@@ -0,0 +1,33 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+
+    @Test
+    public void doublesUpToCeilingAndResets() {
+        Backoff backoff = new Backoff(250, 2000, 0, new Random(1));
+        assertEquals(250, backoff.nextDelayMillis());
+        assertEquals(500, backoff.nextDelayMillis());
+        assertEquals(1000, backoff.nextDelayMillis());
+        assertEquals(2000, backoff.nextDelayMillis());
+        assertEquals(2000, backoff.nextDelayMillis());
+        assertEquals(5, backoff.getAttempts());
+
+        backoff.reset();
+        assertEquals(250, backoff.nextDelayMillis());
+    }
+
+    @Test
+    public void jitterOnlyShortensDelay() {
+        Backoff backoff = new Backoff(1000, 1000, 0.5, new Random(7));
+        for (int i = 0; i < 100; i++) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay >= 500 && delay <= 1000);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeviceListTest {
+
+    private static final String A = "00:1D:A5:00:00:0A";
+    private static final String B = "00:1D:A5:00:00:0B";
+    private static final String C = "00:1D:A5:00:00:0C";
+
+    private static String order(DeviceList list) {
+        StringBuilder sb = new StringBuilder();
+        for (DeviceList.Device d : list.getDevices()) {
+            sb.append(d.getAddress().charAt(d.getAddress().length() - 1));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void repeatedReportsUpdateOneEntry() {
+        DeviceList list = new DeviceList();
+        assertTrue(list.onFound(A, "OBDII", -70, false));
+        assertFalse(list.onFound(A, "OBDII", -70, false));
+        assertTrue(list.onFound(A, null, -60, false));
+        assertEquals(1, list.size());
+        assertEquals("OBDII -60 dBm", list.get(A).toString());
+    }
+
+    @Test
+    public void strongestSignalFirstThenMostRecent() {
+        DeviceList list = new DeviceList();
+        list.addRecent(A, "ELM327 A", 1000);
+        list.addRecent(B, "ELM327 B", 2000);
+        assertEquals("BA", order(list));
+        list.onFound(C, "OBDII", -80, false);
+        list.onFound(A, "ELM327 A", -50, false);
+        assertEquals("ACB", order(list));
+        list.onFound(C, "OBDII", -40, false);
+        assertEquals("CAB", order(list));
+    }
+
+    @Test
+    public void newScanKeepsOnlyKnownAdapters() {
+        DeviceList list = new DeviceList();
+        list.addBonded(A, "OBDII");
+        list.addRecent(B, "Vgate ELM", 5);
+        list.onFound(C, "OBDII", -30, false);
+        list.onFound(A, "OBDII", -60, true);
+        list.startScan();
+        assertEquals(2, list.size());
+        assertNull(list.get(C));
+        assertEquals(DeviceList.NO_RSSI, list.get(A).getRssi());
+        assertEquals("OBDII (Paired)", list.get(A).toString());
+        assertEquals("Vgate ELM (Recent)", list.get(B).toString());
+    }
+
+    @Test
+    public void recognisesAdapterNames() {
+        assertTrue(DeviceList.isAdapterName("OBDII"));
+        assertTrue(DeviceList.isAdapterName("vLinker elm327"));
+        assertFalse(DeviceList.isAdapterName("Pixel Buds"));
+        assertFalse(DeviceList.isAdapterName(null));
+    }
+}
@@ -0,0 +1,86 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import ca.mohawk.odomaticterminalapp.obd.Pids;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class Elm327SimulatorTest {
+
+    private final Elm327Simulator simulator = new Elm327Simulator();
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final List<String> lines = new ArrayList<>();
+    private ObdConnection connection;
+
+    private ObdConnection open(Transport transport) throws InterruptedException {
+        connection = new ObdConnection(transport, new ObdConnection.Listener() {
+            @Override
+            public void onConnected(String name) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectFailed(IOException error) {
+            }
+
+            @Override
+            public void onDisconnected(IOException error) {
+            }
+
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                synchronized (lines) {
+                    lines.add(new String(buffer, offset, length));
+                }
+            }
+        });
+        connection.open();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        return connection;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) connection.close();
+        simulator.close();
+    }
+
+    @Test
+    public void answersMultiPidRequestInMemory() throws Exception {
+        ObdConnection c = open(simulator.newTransport());
+        int[] values = new int[256];
+        CountDownLatch done = new CountDownLatch(3);
+        c.getCommandQueue().enqueueRaw("ATE0", null);
+        c.getCommandQueue().enqueuePids(new int[]{Pids.ENGINE_RPM, Pids.VEHICLE_SPEED, Pids.COOLANT_TEMP}, 3,
+                (pid, data, off, len, time) -> {
+                    values[pid] = (data[off] & 0xFF) << 8 | (len > 1 ? data[off + 1] & 0xFF : 0);
+                    done.countDown();
+                });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0x1AF8, values[Pids.ENGINE_RPM]);
+        assertEquals(0x3200, values[Pids.VEHICLE_SPEED]);
+        assertEquals(0x7B00, values[Pids.COOLANT_TEMP]);
+    }
+
+    @Test
+    public void servesVinOverTcp() throws Exception {
+        int port = simulator.listen(0);
+        ObdConnection c = open(new SocketTransport("127.0.0.1", port));
+        String[] reply = new String[1];
+        CountDownLatch done = new CountDownLatch(1);
+        c.getCommandQueue().enqueueRaw("0902", (cmd, response, rtt) -> {
+            reply[0] = response;
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(reply[0], reply[0].contains("0: 49 02 01 31 44 34"));
+    }
+}
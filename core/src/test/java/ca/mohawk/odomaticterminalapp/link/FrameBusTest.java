@@ -0,0 +1,94 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class FrameBusTest {
+
+    private final FrameBus bus = new FrameBus(8);
+    private final FrameBus.Event event = new FrameBus.Event();
+
+    private void line(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        bus.publishLine(bytes, 0, bytes.length, 0);
+    }
+
+    @Test
+    public void everySubscriberSeesEveryEvent() {
+        FrameBus.Subscriber a = bus.subscribe();
+        FrameBus.Subscriber b = bus.subscribe();
+        line("41 0C 1A F8");
+        bus.publishSample(0x0C, 5, 1726.0);
+        bus.publishAlert(3, true, 6, 106.5);
+
+        assertTrue(a.poll(event));
+        assertEquals(FrameBus.LINE, event.type);
+        assertEquals("41 0C 1A F8", event.text());
+        assertTrue(a.poll(event));
+        assertEquals(FrameBus.SAMPLE, event.type);
+        assertEquals(1726.0, event.value, 0);
+        assertTrue(a.poll(event));
+        assertEquals(FrameBus.ALERT, event.type);
+        assertEquals(3, event.pid);
+        assertEquals(1, event.length);
+        assertEquals(106.5, event.value, 0);
+        assertFalse(a.poll(event));
+
+        assertTrue(b.poll(event));
+        assertEquals("41 0C 1A F8", event.text());
+    }
+
+    @Test
+    public void slowSubscriberSkipsAheadAndCountsDrops() {
+        FrameBus.Subscriber slow = bus.subscribe();
+        for (int i = 0; i < 20; i++) {
+            bus.publishSample(i, i, i);
+        }
+        assertTrue(slow.poll(event));
+        assertEquals(20 - bus.capacity(), event.pid);
+        assertEquals(20 - bus.capacity(), slow.getDropped());
+    }
+
+    @Test
+    public void historySubscriberReplaysWhatTheRingHolds() {
+        for (int i = 0; i < 3; i++) {
+            line("line " + i);
+        }
+        FrameBus.Subscriber late = bus.subscribeWithHistory();
+        assertTrue(late.poll(event));
+        assertEquals("line 0", event.text());
+        assertFalse(bus.subscribe().poll(event));
+    }
+
+    @Test
+    public void concurrentReaderSeesConsistentEventsInOrder() throws Exception {
+        FrameBus big = new FrameBus(64);
+        FrameBus.Subscriber reader = big.subscribe();
+        int total = 200_000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < total; i++) {
+                big.publishSample(i & 0xFF, i, i);
+            }
+        });
+        producer.start();
+        FrameBus.Event e = new FrameBus.Event();
+        long seen = 0;
+        long last = -1;
+        boolean done = false;
+        while (!done) {
+            done = !producer.isAlive();
+            while (reader.poll(e)) {
+                assertTrue(e.timeNanos > last);
+                assertEquals(e.timeNanos, (long) e.value);
+                assertEquals(e.timeNanos & 0xFF, e.pid);
+                last = e.timeNanos;
+                seen++;
+            }
+        }
+        producer.join();
+        assertEquals(total, seen + reader.getDropped());
+    }
+}
@@ -0,0 +1,54 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class LinkMetricsTest {
+
+    private final LinkMetrics metrics = new LinkMetrics();
+
+    private void line(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        metrics.onLine(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void histogramPercentilesWithinBucketError() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int ms = 1; ms <= 100; ms++) {
+            h.recordMicros(ms * 1000L);
+        }
+        assertEquals(100, h.getCount());
+        assertEquals(100_000, h.getMaxMicros());
+        assertEquals(50_000, h.percentileMicros(0.50), 50_000 * 0.07);
+        assertEquals(99_000, h.percentileMicros(0.99), 99_000 * 0.07);
+        assertEquals(100_000, h.percentileMicros(1.0));
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (long v = 0; v < 1 << 20; v += 7) {
+            int i = LatencyHistogram.index(v);
+            assertTrue(v <= LatencyHistogram.upperBound(i));
+            assertTrue(i == 0 || v > LatencyHistogram.upperBound(i - 1));
+        }
+    }
+
+    @Test
+    public void countsErrorReplies() {
+        line("41 0C 1A F8");
+        line("NO DATA");
+        line("NO DATA");
+        line("BUFFER FULL");
+        line("?");
+        LinkMetrics.Snapshot s = metrics.snapshot();
+        assertEquals(5, s.lines);
+        assertEquals(2, s.noData);
+        assertEquals(1, s.bufferFull);
+        assertEquals(1, s.unknown);
+        assertTrue(s.toJson().contains("\"noData\":2"));
+    }
+}
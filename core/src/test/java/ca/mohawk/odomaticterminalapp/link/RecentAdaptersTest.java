@@ -0,0 +1,49 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecentAdaptersTest {
+
+    private final File file;
+
+    public RecentAdaptersTest() throws IOException {
+        file = File.createTempFile("recent", ".properties");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void survivesRestartMostRecentFirst() throws IOException {
+        RecentAdapters recent = new RecentAdapters(file);
+        recent.put("00:1D:A5:68:98:8B", "OBDII", 100);
+        recent.put("AA:BB:CC:DD:EE:FF", "ELM327", 200);
+
+        List<RecentAdapters.Entry> list = new RecentAdapters(file).list();
+        assertEquals(2, list.size());
+        assertEquals("AA:BB:CC:DD:EE:FF", list.get(0).address);
+        assertEquals("OBDII", list.get(1).name);
+        assertEquals(100, list.get(1).lastUsed);
+    }
+
+    @Test
+    public void forgetsOldestBeyondLimit() throws IOException {
+        RecentAdapters recent = new RecentAdapters(file);
+        for (int i = 0; i <= RecentAdapters.MAX_ENTRIES; i++) {
+            recent.put("adapter" + i, "OBD " + i, i + 1);
+        }
+        assertEquals(RecentAdapters.MAX_ENTRIES, recent.list().size());
+        assertFalse(recent.contains("adapter0"));
+        assertTrue(new RecentAdapters(file).contains("adapter" + RecentAdapters.MAX_ENTRIES));
+    }
+}
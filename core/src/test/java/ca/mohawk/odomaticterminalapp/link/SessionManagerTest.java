@@ -0,0 +1,391 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class SessionManagerTest {
+
+    private final Elm327Simulator simulator = new Elm327Simulator();
+    private final SessionManager manager = new SessionManager(2, 2);
+
+    @After
+    public void tearDown() throws IOException {
+        manager.close();
+        simulator.close();
+    }
+
+    /** Counts connects and passes everything else through. */
+    private static class Counting implements ObdConnection.Listener {
+        final AtomicInteger connects = new AtomicInteger();
+        final AtomicInteger lines = new AtomicInteger();
+        volatile CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+
+        @Override
+        public void onConnected(String name) {
+            connects.incrementAndGet();
+            connected.countDown();
+        }
+
+        @Override
+        public void onConnectFailed(IOException error) {
+        }
+
+        @Override
+        public void onDisconnected(IOException error) {
+            disconnected.countDown();
+        }
+
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            lines.incrementAndGet();
+        }
+    }
+
+    /** Simulator transport the test can cut from the adapter side. */
+    private static class Cuttable implements Transport {
+        final Transport inner;
+
+        Cuttable(Transport inner) {
+            this.inner = inner;
+        }
+
+        void cut() throws IOException {
+            inner.close();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            inner.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return inner.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return inner.getOutputStream();
+        }
+
+        @Override
+        public boolean setReadTimeout(int millis) throws IOException {
+            return inner.setReadTimeout(millis);
+        }
+
+        @Override
+        public String getName() {
+            return inner.getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            inner.close();
+        }
+    }
+
+    /** Simulator transport whose writes are slow and remember the thread that made them. */
+    private static class SlowWrites extends Cuttable {
+        final Set<String> writers = ConcurrentHashMap.newKeySet();
+        final long writeMillis;
+
+        SlowWrites(Transport inner, long writeMillis) {
+            super(inner);
+            this.writeMillis = writeMillis;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return new FilterOutputStream(inner.getOutputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    writers.add(Thread.currentThread().getName());
+                    try {
+                        Thread.sleep(writeMillis);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    out.write(b, off, len);
+                }
+            };
+        }
+    }
+
+    /** Simulator transport whose reads cannot time out, like RFCOMM, and whose adapter can go mute. */
+    private static class Untimed extends Cuttable {
+        final StringBuffer written = new StringBuffer();
+        volatile boolean mute;
+
+        Untimed(Transport inner) {
+            super(inner);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return new FilterOutputStream(inner.getOutputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    written.append(new String(b, off, len, StandardCharsets.US_ASCII));
+                    if (!mute) {
+                        out.write(b, off, len);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public boolean setReadTimeout(int millis) {
+            return false;
+        }
+    }
+
+    private static String ask(ObdConnection c, String command) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        String[] reply = new String[1];
+        c.getCommandQueue().enqueueRaw(command, (cmd, response, rtt) -> {
+            reply[0] = response;
+            done.countDown();
+        });
+        assertTrue("no reply to " + command, done.await(5, TimeUnit.SECONDS));
+        return reply[0];
+    }
+
+    @Test
+    public void runsManySessionsOnFixedThreads() throws Exception {
+        int count = 8;
+        ObdConnection[] sessions = new ObdConnection[count];
+        Counting[] listeners = new Counting[count];
+        for (int i = 0; i < count; i++) {
+            listeners[i] = new Counting();
+            sessions[i] = new ObdConnection(simulator.newTransport(), listeners[i]);
+            manager.add(sessions[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            assertTrue(listeners[i].connected.await(5, TimeUnit.SECONDS));
+        }
+        for (int round = 0; round < 3; round++) {
+            for (ObdConnection c : sessions) {
+                assertEquals(Elm327Simulator.VERSION, ask(c, "ATI"));
+            }
+        }
+        assertEquals(count, manager.getConnectedCount());
+        assertTrue(manager.getThreadCount() <= 4);
+        for (ObdConnection c : sessions) {
+            assertEquals(3, c.getMetrics().getRoundTrips().getCount());
+        }
+    }
+
+    @Test
+    public void droppedSessionReconnectsWithoutDisturbingOthers() throws Exception {
+        Counting steadyListener = new Counting();
+        ObdConnection steady = new ObdConnection(simulator.newTransport(), steadyListener);
+        Counting flakyListener = new Counting();
+        Cuttable flakyTransport = new Cuttable(simulator.newTransport());
+        ObdConnection flaky = new ObdConnection(flakyTransport, flakyListener);
+        manager.add(steady);
+        manager.add(flaky);
+        assertTrue(steadyListener.connected.await(5, TimeUnit.SECONDS));
+        assertTrue(flakyListener.connected.await(5, TimeUnit.SECONDS));
+
+        flakyListener.connected = new CountDownLatch(1);
+        flakyTransport.cut();
+        assertEquals(Elm327Simulator.VERSION, ask(steady, "ATI"));
+        assertTrue(flakyListener.connected.await(5, TimeUnit.SECONDS));
+        assertEquals(1, flaky.getReconnectCount());
+        assertEquals(Elm327Simulator.VERSION, ask(flaky, "ATI"));
+        assertEquals(0, steady.getReconnectCount());
+        assertEquals(1, steadyListener.connects.get());
+    }
+
+    @Test
+    public void onlyReadersWriteAndSendersNeverWaitOnTheAdapter() throws Exception {
+        int count = 4;
+        int sendersPerSession = 2;
+        int sendsEach = 10;
+        ObdConnection[] sessions = new ObdConnection[count];
+        SlowWrites[] transports = new SlowWrites[count];
+        Counting[] listeners = new Counting[count];
+        for (int i = 0; i < count; i++) {
+            listeners[i] = new Counting();
+            transports[i] = new SlowWrites(simulator.newTransport(), 50);
+            sessions[i] = new ObdConnection(transports[i], listeners[i]);
+            manager.add(sessions[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            assertTrue(listeners[i].connected.await(5, TimeUnit.SECONDS));
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        AtomicLong slowestSendNanos = new AtomicLong();
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < count * sendersPerSession; i++) {
+            ObdConnection c = sessions[i % count];
+            senders.add(new Thread(() -> {
+                for (int n = 0; n < sendsEach; n++) {
+                    long start = System.nanoTime();
+                    try {
+                        c.send("ATI");
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                    slowestSendNanos.accumulateAndGet(System.nanoTime() - start, Math::max);
+                }
+            }, "sender-" + i));
+        }
+        long startedBefore = threads.getTotalStartedThreadCount();
+        for (Thread t : senders) {
+            t.start();
+        }
+        for (Thread t : senders) {
+            t.join(5000);
+        }
+        // Sends only queue; each session then works through its queue one slow write at a time.
+        long deadline = System.currentTimeMillis() + 20_000;
+        for (ObdConnection c : sessions) {
+            while (!c.getCommandQueue().isIdle() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertTrue(c.getCommandQueue().isIdle());
+        }
+        assertEquals(senders.size(), threads.getTotalStartedThreadCount() - startedBefore);
+        assertTrue("a send waited " + slowestSendNanos.get() / 1_000_000L + " ms",
+                slowestSendNanos.get() < 25_000_000L);
+        for (int i = 0; i < count; i++) {
+            for (String writer : transports[i].writers) {
+                assertTrue(writer, writer.startsWith("obd-read-"));
+            }
+            assertEquals(sendersPerSession * sendsEach, sessions[i].getMetrics().getRoundTrips().getCount());
+            assertEquals(0, sessions[i].getOutboxFullCount());
+        }
+        assertTrue(manager.getThreadCount() <= 4);
+    }
+
+    @Test
+    public void readersParkLongOnlyWhileNothingAwaitsAReply() throws Exception {
+        simulator.setLatency(2000, 0);
+        Counting listener = new Counting();
+        SlowWrites transport = new SlowWrites(simulator.newTransport(), 0);
+        ObdConnection c = new ObdConnection(transport, listener);
+        manager.add(c);
+        assertTrue(listener.connected.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (manager.getQuietParks() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(manager.getQuietParks() > 0);
+
+        // A request the adapter takes its time over keeps the reader on short parks.
+        CountDownLatch done = new CountDownLatch(1);
+        c.getCommandQueue().enqueueRaw("010C", (cmd, response, rtt) -> done.countDown());
+        while (transport.writers.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(transport.writers.isEmpty());
+        long quiet = manager.getQuietParks();
+        Thread.sleep(300);
+        long during = manager.getQuietParks();
+        // The reader only goes back to long parks after the reply is in.
+        if (done.getCount() > 0) {
+            assertEquals(quiet, during);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        while (manager.getQuietParks() == during && System.currentTimeMillis() < deadline + 5000) {
+            Thread.sleep(20);
+        }
+        assertTrue(manager.getQuietParks() > during);
+    }
+
+    @Test
+    public void noticesAnIdleSocketClosedByTheAdapter() throws Exception {
+        int port = simulator.listen(0);
+        Counting listener = new Counting();
+        ObdConnection c = new ObdConnection(new SocketTransport("127.0.0.1", port), listener);
+        manager.add(c);
+        assertTrue(listener.connected.await(5, TimeUnit.SECONDS));
+        assertEquals(Elm327Simulator.VERSION, ask(c, "ATI"));
+
+        // Nothing is in flight, and available() on the socket just reports 0 from now on.
+        simulator.close();
+        assertTrue(listener.disconnected.await(2, TimeUnit.SECONDS));
+        assertFalse(c.isConnected());
+    }
+
+    @Test
+    public void keepsAnIdleLinkWithoutTimedReadsTalking() throws Exception {
+        Counting listener = new Counting();
+        Untimed transport = new Untimed(simulator.newTransport());
+        ObdConnection c = new ObdConnection(transport, listener);
+        manager.add(c);
+        assertTrue(listener.connected.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!transport.written.toString().contains(ObdConnection.KEEPALIVE + "\r")
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(ObdConnection.KEEPALIVE + "\r", transport.written.toString());
+        while (!c.getCommandQueue().isIdle() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(c.getCommandQueue().isIdle());
+        // The keepalive's reply is not shown.
+        assertEquals(0, listener.lines.get());
+
+        // An adapter that stops answering is dropped a few seconds after the next keepalive.
+        listener.connected = new CountDownLatch(1);
+        transport.mute = true;
+        assertTrue(listener.disconnected.await(10, TimeUnit.SECONDS));
+        transport.mute = false;
+        assertTrue(listener.connected.await(5, TimeUnit.SECONDS));
+        // The outage counts from the last reply, not from when it was noticed.
+        assertTrue(c.getLastReconnectMillis() + " ms", c.getLastReconnectMillis() >= 5000);
+    }
+
+    @Test
+    public void removedSessionStaysClosed() throws Exception {
+        Counting listener = new Counting();
+        ObdConnection c = new ObdConnection(simulator.newTransport(), listener);
+        manager.add(c);
+        assertTrue(listener.connected.await(5, TimeUnit.SECONDS));
+        manager.remove(c);
+        assertFalse(c.isConnected());
+        assertEquals(0, manager.getSessionCount());
+        try {
+            c.send("ATI");
+            fail("sent on a removed session");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsConnectionAlreadyOpen() throws Exception {
+        ObdConnection c = new ObdConnection(simulator.newTransport(), new Counting());
+        c.open();
+        try {
+            manager.add(c);
+            fail("added a connection running on its own thread");
+        } catch (IllegalStateException expected) {
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package ca.mohawk.odomaticterminalapp.link;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SessionRecorderTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("session", ".rec");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static void out(SessionRecorder recorder, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        recorder.recordOut(bytes, 0, bytes.length);
+    }
+
+    private static void in(SessionRecorder recorder, String text) {
+        byte[] bytes = ("xx" + text).getBytes(StandardCharsets.US_ASCII);
+        recorder.recordIn(bytes, 2, bytes.length - 2);
+    }
+
+    private static String frame(SessionReader reader) {
+        return (reader.getDirection() == SessionRecorder.DIRECTION_IN ? "< " : "> ")
+                + new String(reader.getPayload(), 0, reader.getLength(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void readsBackEveryFrameInOrderWithItsTime() throws IOException {
+        long beforeMillis = System.currentTimeMillis();
+        long before = System.nanoTime();
+        SessionRecorder recorder = new SessionRecorder(file);
+        out(recorder, "ATZ\r");
+        in(recorder, "ELM327 v1.5\r\r>");
+        out(recorder, "010C\r");
+        in(recorder, "");
+        in(recorder, "41 0C 1A F8\r\r>");
+        long after = System.nanoTime();
+        assertEquals(5, recorder.getFrameCount());
+        long length = recorder.length();
+        recorder.close();
+        assertEquals(length, file.length());
+
+        String[] expected = {"> ATZ\r", "< ELM327 v1.5\r\r>", "> 010C\r", "< ", "< 41 0C 1A F8\r\r>"};
+        try (SessionReader reader = new SessionReader(file)) {
+            assertTrue(reader.getStartMillis() >= beforeMillis);
+            assertTrue(reader.getStartNanos() >= before && reader.getStartNanos() <= after);
+            long previous = reader.getStartNanos();
+            for (String text : expected) {
+                assertTrue(reader.next());
+                assertEquals(text, frame(reader));
+                assertTrue(reader.getFrameNanos() >= previous && reader.getFrameNanos() <= after);
+                previous = reader.getFrameNanos();
+            }
+            assertFalse(reader.next());
+            assertEquals(length, reader.getPosition());
+        }
+    }
+
+    @Test
+    public void growsPastTheMappedWindow() throws IOException {
+        byte[] payload = new byte[999];
+        int count = 5000;
+        try (SessionRecorder recorder = new SessionRecorder(file)) {
+            for (int i = 0; i < count; i++) {
+                payload[0] = (byte) i;
+                payload[payload.length - 1] = (byte) (i >> 8);
+                recorder.record((byte) (i & 1), payload, 0, payload.length);
+            }
+            assertEquals(SessionRecorder.HEADER_SIZE + (long) count * (SessionRecorder.FRAME_OVERHEAD + payload.length),
+                    recorder.length());
+        }
+        assertTrue(file.length() > 4 * 1024 * 1024);
+        try (SessionReader reader = new SessionReader(file)) {
+            for (int i = 0; i < count; i++) {
+                assertTrue(reader.next());
+                assertEquals(i & 1, reader.getDirection());
+                assertEquals(payload.length, reader.getLength());
+                assertEquals((byte) i, reader.getPayload()[0]);
+                assertEquals((byte) (i >> 8), reader.getPayload()[payload.length - 1]);
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void unclosedTraceEndsAtItsZeroTailAndReopeningStartsOver() throws IOException {
+        SessionRecorder crashed = new SessionRecorder(file);
+        out(crashed, "0100\r");
+        in(crashed, "41 00 BE 3F A8 13\r\r>");
+        // Not closed: the file is still a whole zero-filled window long.
+        assertTrue(file.length() > crashed.length());
+        try (SessionReader reader = new SessionReader(file)) {
+            assertTrue(reader.next());
+            assertTrue(reader.next());
+            assertEquals("< 41 00 BE 3F A8 13\r\r>", frame(reader));
+            assertFalse(reader.next());
+        }
+        crashed.close();
+
+        // A new recording over the old file truncates it rather than appending.
+        try (SessionRecorder recorder = new SessionRecorder(file)) {
+            out(recorder, "ATI\r");
+        }
+        try (SessionReader reader = new SessionReader(file)) {
+            assertTrue(reader.next());
+            assertEquals("> ATI\r", frame(reader));
+            assertFalse(reader.next());
+        }
+        assertEquals(SessionRecorder.HEADER_SIZE + SessionRecorder.FRAME_OVERHEAD + 4, file.length());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        try (SessionRecorder recorder = new SessionRecorder(file)) {
+            out(recorder, "ATI\r");
+        }
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.write('X');
+        }
+        try {
+            new SessionReader(file).close();
+            fail("read a file without the magic");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AdapterSettingsTest {
+
+    private final AdapterSettings settings = new AdapterSettings();
+
+    @Test
+    public void warmStartSkipsResetAndTriesKnownProtocolFirst() {
+        assertEquals(List.of("ATZ", "ATE0", "ATL0", "ATS1", "ATH0", "ATSP0"), settings.coldStart());
+        settings.setDetectedProtocol("A6");
+        assertEquals(List.of("ATE0", "ATL0", "ATS1", "ATH0", "ATSPA6"), settings.warmStart());
+    }
+
+    @Test
+    public void remembersAcceptedUserSettings() {
+        settings.onCommand("at h1", "OK");
+        settings.onCommand("ATSP3", "OK");
+        settings.onCommand("ATS0", "?");
+        settings.onCommand("ATRV", "12.6V");
+        settings.setDetectedProtocol("3");
+        assertEquals(List.of("ATE0", "ATL0", "ATS1", "ATH1", "ATSP3"), settings.warmStart());
+
+        settings.onCommand("ATZ", "ELM327 v1.5");
+        assertEquals(List.of("ATE0", "ATL0", "ATS1", "ATH0", "ATSP0"), settings.warmStart());
+    }
+
+    @Test
+    public void everyResetForgetsUserSettings() {
+        List<String> defaults = settings.warmStart();
+        String[][] resets = {{"ATWS", "\nELM327 v1.5"}, {"AT D", "OK"}, {"atz", "ELM327 v1.5"}};
+        for (String[] reset : resets) {
+            settings.onCommand("ATH1", "OK");
+            settings.onCommand("ATSP6", "OK");
+            settings.onCommand(reset[0], "?");
+            assertEquals(List.of("ATE0", "ATL0", "ATS1", "ATH1", "ATSP6"), settings.warmStart());
+            settings.onCommand(reset[0], reset[1]);
+            assertEquals(reset[0], defaults, settings.warmStart());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AlertRulesTest {
+
+    private static final long MS = 1_000_000L;
+
+    private final List<String> alerts = new ArrayList<>();
+
+    private AlertRules compile(String text) {
+        return AlertRules.compile(text, (rule, raised, timeNanos, value) ->
+                alerts.add((raised ? "+" : "-") + rule.name + "@" + timeNanos / MS));
+    }
+
+    @Test
+    public void raisesAfterTheHoldTimeAndClearsWhenTheConditionEnds() {
+        AlertRules rules = compile("# engine\nCoolant hot: ECT > 105 for 3s\n");
+        rules.onSample(Pids.COOLANT_TEMP, 0, 106);
+        rules.onSample(Pids.COOLANT_TEMP, 2000 * MS, 107);
+        // Dipping below restarts the hold.
+        rules.onSample(Pids.COOLANT_TEMP, 2500 * MS, 104);
+        rules.onSample(Pids.COOLANT_TEMP, 3000 * MS, 106);
+        rules.onSample(Pids.COOLANT_TEMP, 5500 * MS, 106);
+        assertTrue(alerts.isEmpty());
+        rules.onSample(Pids.COOLANT_TEMP, 6000 * MS, 108);
+        rules.onSample(Pids.COOLANT_TEMP, 6500 * MS, 109);
+        assertTrue(rules.isRaised(0));
+        rules.onSample(Pids.COOLANT_TEMP, 7000 * MS, 100);
+        assertEquals("[+Coolant hot@6000, -Coolant hot@7000]", alerts.toString());
+        assertFalse(rules.isRaised(0));
+    }
+
+    @Test
+    public void rateRulesCatchSpikesOnTheSamplesOwnPid() {
+        AlertRules rules = compile("Rev spike: RPM rate > 4000\nstall: RPM < 300\n0D > 200");
+        assertEquals(3, rules.getRules().size());
+        assertEquals(Pids.VEHICLE_SPEED, rules.getRule(2).pid);
+        rules.onSample(Pids.ENGINE_RPM, 0, 800);
+        rules.onSample(Pids.ENGINE_RPM, 100 * MS, 1000);
+        rules.onSample(Pids.VEHICLE_SPEED, 150 * MS, 50);
+        rules.onSample(Pids.ENGINE_RPM, 200 * MS, 1600);
+        rules.onSample(Pids.ENGINE_RPM, 300 * MS, 1700);
+        rules.onSample(Pids.ENGINE_RPM, 400 * MS, 250);
+        assertEquals("[+Rev spike@200, -Rev spike@300, +stall@400]", alerts.toString());
+        assertEquals("0D > 200", rules.getRule(2).toString());
+    }
+
+    @Test
+    public void troubleCodesAlertOncePerNewCode() {
+        AlertRules rules = compile("New code: DTC new");
+        rules.onDtc(Dtc.parse("P0133"), 10 * MS);
+        rules.onDtc(Dtc.parse("P0133"), 20 * MS);
+        rules.onDtc(Dtc.parse("U0100"), 30 * MS);
+        assertEquals("[+New code@10, +New code@30]", alerts.toString());
+        rules.reset();
+        rules.onDtc(Dtc.parse("P0133"), 40 * MS);
+        assertEquals(3, alerts.size());
+    }
+
+    @Test
+    public void malformedRulesNameTheLine() {
+        String[] bad = {"XYZ > 3", "RPM >= 3", "RPM > fast", "ECT > 100 for", "ECT > 100 for -1s", "DTC old", ": RPM > 1"};
+        for (String text : bad) {
+            try {
+                compile("\n" + text);
+                fail(text);
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().startsWith("Line 2: "));
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import ca.mohawk.odomaticterminalapp.link.Elm327Simulator;
+import ca.mohawk.odomaticterminalapp.link.ObdConnection;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CanMonitorTest {
+
+    private final Elm327Simulator simulator = new Elm327Simulator();
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final List<String> shown = new ArrayList<>();
+    private ObdConnection connection;
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) connection.close();
+        simulator.close();
+    }
+
+    private static void feed(CanMonitor monitor, String line) {
+        byte[] b = line.getBytes(StandardCharsets.US_ASCII);
+        monitor.onLine(b, 0, b.length);
+    }
+
+    private static CanMonitor started(CanMonitor monitor, ByteArrayOutputStream sent) throws IOException {
+        monitor.start(new CommandQueue(sent::writeBytes));
+        return monitor;
+    }
+
+    @Test
+    public void parsesStandardAndExtendedFrames() throws IOException {
+        int[] last = new int[2];
+        CanMonitor monitor = started(new CanMonitor(null, (id, data, off, dlc, t) -> {
+            last[0] = id;
+            last[1] = dlc;
+        }), new ByteArrayOutputStream());
+
+        feed(monitor, "7E8 03 41 0D 32 00 00 00 00");
+        assertEquals(0x7E8, last[0]);
+        assertEquals(8, last[1]);
+        feed(monitor, "18DAF11003410D33");
+        assertEquals(0x18DAF110, last[0]);
+        assertEquals(4, last[1]);
+        feed(monitor, "18 DA F1 10 03 41 0D 34");
+        feed(monitor, "7E8 03 41 0D 33 00 00 00 00");
+
+        List<CanMonitor.IdStats> stats = monitor.getStats();
+        assertEquals(2, stats.size());
+        assertEquals(0x7E8, stats.get(0).id);
+        assertEquals(2, stats.get(0).count);
+        assertEquals(1, stats.get(0).changes);
+        assertEquals(0x33, stats.get(0).lastData[3]);
+        assertTrue(stats.get(1).isExtended());
+        assertEquals(2, stats.get(1).count);
+        assertEquals(4, monitor.getFrameCount());
+    }
+
+    @Test
+    public void countsOverflowAndDamagedFramesAndLeavesOtherLines() throws IOException {
+        CanMonitor monitor = started(new CanMonitor(null, null), new ByteArrayOutputStream());
+        byte[] full = "BUFFER FULL".getBytes(StandardCharsets.US_ASCII);
+        assertTrue(monitor.onLine(full, 0, full.length));
+        feed(monitor, "7E8 03 41 <RX ERROR");
+        byte[] stopped = "STOPPED".getBytes(StandardCharsets.US_ASCII);
+        assertFalse(monitor.onLine(stopped, 0, stopped.length));
+        byte[] echo = "ATMA".getBytes(StandardCharsets.US_ASCII);
+        assertFalse(monitor.onLine(echo, 0, echo.length));
+
+        assertEquals(1, monitor.getBufferFullCount());
+        assertEquals(1, monitor.getErrorCount());
+        assertEquals(0, monitor.getFrameCount());
+    }
+
+    @Test
+    public void ignoresLinesWhileStopped() {
+        CanMonitor monitor = new CanMonitor(null, null);
+        byte[] frame = "7E8 03 41 0D 32".getBytes(StandardCharsets.US_ASCII);
+        assertFalse(monitor.onLine(frame, 0, frame.length));
+        assertEquals(0, monitor.getFrameCount());
+    }
+
+    @Test
+    public void filtersInSoftwareAndSendsTheFilterToTheAdapter() throws IOException {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        CanMonitor monitor = new CanMonitor(null, null);
+        monitor.setFilter(0x7E8, 0x7F8, false);
+        monitor.ignore(0x7E9);
+        CommandQueue queue = new CommandQueue(sent::writeBytes);
+        monitor.start(queue);
+        for (int i = 0; i < 4; i++) {
+            queue.onPrompt();
+        }
+        String commands = sent.toString(StandardCharsets.US_ASCII);
+        assertEquals("ATH1\rATCAF0\rATCF7E8\rATCM7F8\rATMA\r", commands);
+
+        feed(monitor, "7E8 03 41 0D 32");
+        feed(monitor, "7E9 03 41 0D 32");
+        feed(monitor, "7EF 03 41 0D 32");
+        feed(monitor, "7DF 02 01 0D");
+        assertEquals(2, monitor.getFrameCount());
+        assertEquals(2, monitor.getFilteredCount());
+
+        sent.reset();
+        monitor.stop(queue);
+        for (int i = 0; i < 3; i++) {
+            queue.onPrompt();
+        }
+        assertEquals(" ATH0\rATCAF1\rATCRA\r", sent.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void exactAddressUsesReceiveAddressFilter() throws IOException {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        CanMonitor monitor = new CanMonitor(null, null);
+        monitor.setReceiveAddress(0x18DAF110);
+        CommandQueue queue = new CommandQueue(sent::writeBytes);
+        monitor.start(queue);
+        for (int i = 0; i < 3; i++) {
+            queue.onPrompt();
+        }
+        assertEquals("ATH1\rATCAF0\rATCRA18DAF110\rATMA\r", sent.toString(StandardCharsets.US_ASCII));
+    }
+
+    private void connect() throws InterruptedException {
+        connection = new ObdConnection(simulator.newTransport(), new ObdConnection.Listener() {
+            @Override
+            public void onConnected(String name) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectFailed(IOException error) {
+            }
+
+            @Override
+            public void onDisconnected(IOException error) {
+            }
+
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                synchronized (shown) {
+                    shown.add(new String(buffer, offset, length, StandardCharsets.US_ASCII));
+                }
+            }
+        });
+        connection.setSettings(new AdapterSettings());
+        connection.open();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+    }
+
+    /** Checks the counter in the last data byte of every frame, per ID, for gaps. */
+    private static final class Continuity implements CanMonitor.FrameListener {
+        final Map<Integer, Integer> next = new HashMap<>();
+        volatile int gaps;
+        volatile long frames;
+
+        @Override
+        public void onCanFrame(int id, byte[] data, int offset, int dlc, long timeNanos) {
+            int counter = data[offset + dlc - 1] & 0xFF;
+            Integer expected = next.put(id, (counter + 1) & 0xFF);
+            if (expected != null && expected != counter) {
+                gaps++;
+            }
+            frames++;
+        }
+    }
+
+    private static void awaitFrames(Continuity c, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (c.frames < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("only " + c.frames + " frames", c.frames >= count);
+    }
+
+    @Test
+    public void keepsUpWithTheAdapterAndRestoresSettings() throws Exception {
+        simulator.addBusFrame(0x0C9, 0x10, 0x20, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00);
+        simulator.addBusFrame(0x3E9, 0x01, 0x02, 0x03, 0x00);
+        simulator.addBusFrame(0x18FEF100, 0xFF, 0x00);
+        connect();
+        Continuity continuity = new Continuity();
+        CanMonitor monitor = new CanMonitor(new AdapterSettings(), continuity);
+        connection.setCanMonitor(monitor);
+        CommandQueue queue = connection.getCommandQueue();
+        monitor.start(queue);
+        awaitFrames(continuity, 20_000);
+
+        CountDownLatch answered = new CountDownLatch(1);
+        String[] reply = new String[1];
+        monitor.stop(queue);
+        queue.enqueueRaw("010D", (c, r, rtt) -> {
+            reply[0] = r;
+            answered.countDown();
+        });
+        assertTrue(answered.await(5, TimeUnit.SECONDS));
+        assertTrue(reply[0], reply[0].endsWith("41 0D 32"));
+
+        assertEquals(0, continuity.gaps);
+        assertEquals(3, monitor.getIdCount());
+        assertEquals(0, monitor.getErrorCount());
+        assertEquals(continuity.frames, monitor.getFrameCount());
+        synchronized (shown) {
+            assertTrue(shown.contains("STOPPED"));
+            // Frames are kept away from the terminal.
+            for (String line : shown) {
+                assertFalse(line, line.startsWith("0C9"));
+            }
+        }
+    }
+
+    @Test
+    public void resumesAfterBufferFull() throws Exception {
+        simulator.addBusFrame(0x0C9, 0x10, 0x00);
+        simulator.addBusFrame(0x3E9, 0x20, 0x00);
+        simulator.overflowMonitorAfter(100);
+        connect();
+        Continuity continuity = new Continuity();
+        CanMonitor monitor = new CanMonitor(null, continuity);
+        connection.setCanMonitor(monitor);
+        monitor.start(connection.getCommandQueue());
+        awaitFrames(continuity, 1000);
+
+        assertEquals(1, monitor.getBufferFullCount());
+        assertEquals(1, monitor.getRestartCount());
+        monitor.stop(connection.getCommandQueue());
+    }
+
+    @Test
+    public void adapterAppliesTheReceiveAddress() throws Exception {
+        simulator.addBusFrame(0x0C9, 0x10, 0x00);
+        simulator.addBusFrame(0x3E9, 0x20, 0x00);
+        connect();
+        Continuity continuity = new Continuity();
+        CanMonitor monitor = new CanMonitor(null, continuity);
+        monitor.setReceiveAddress(0x3E9);
+        connection.setCanMonitor(monitor);
+        monitor.start(connection.getCommandQueue());
+        awaitFrames(continuity, 500);
+        monitor.stop(connection.getCommandQueue());
+
+        assertEquals(1, monitor.getIdCount());
+        assertEquals(0x3E9, monitor.getStats().get(0).id);
+        assertEquals(0, monitor.getFilteredCount());
+    }
+}
@@ -0,0 +1,162 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CapabilityProbeTest {
+
+    private static final String ADAPTER = "00:1D:A5:68:98:8B";
+    private static final String VIN_REPLY = "014\r0: 49 02 01 31 44 34\r1: 47 50 32 34 52 34 35\r"
+            + "2: 42 31 32 33 34 35 36\r\r";
+
+    private final File file;
+    private final List<String> written = new ArrayList<>();
+    private VehicleCapabilities result;
+    private boolean resultCached;
+    private ResponseFramer framer;
+
+    public CapabilityProbeTest() throws IOException {
+        file = File.createTempFile("caps", ".properties");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void startProbe(CapabilityCache cache) throws Exception {
+        written.clear();
+        result = null;
+        CommandQueue queue = new CommandQueue(
+                bytes -> written.add(new String(bytes, StandardCharsets.US_ASCII).trim()));
+        framer = new ResponseFramer(queue);
+        new CapabilityProbe(cache, ADAPTER, new CapabilityProbe.Listener() {
+            @Override
+            public void onCapabilities(VehicleCapabilities capabilities, boolean cached) {
+                result = capabilities;
+                resultCached = cached;
+            }
+
+            @Override
+            public void onProbeFailed(String reply) {
+                fail("probe failed: " + reply);
+            }
+        }).start(queue);
+    }
+
+    private void reply(String text) throws Exception {
+        byte[] bytes = (text + ">").getBytes(StandardCharsets.US_ASCII);
+        framer.feed(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void probesInFullOnceThenConfirmsFromCache() throws Exception {
+        startProbe(new CapabilityCache(file));
+        reply("SEARCHING...\r41 00 BE 3F A8 13\r\r");
+        reply("A6\r\r");
+        reply("41 20 80 02 00 01\r\r");
+        reply("41 40 40 00 00 00\r\r");
+        reply(VIN_REPLY);
+        assertEquals(List.of("0100", "ATDPN", "0120", "0140", "0902"), written);
+        assertFalse(resultCached);
+        assertEquals("1D4GP24R45B123456", result.getVin());
+        assertTrue(result.isSupported(Pids.ENGINE_RPM));
+        assertTrue(result.isSupported(Pids.FUEL_LEVEL));
+        assertTrue(result.isSupported(0x42));
+        assertFalse(result.isSupported(0x09));
+
+        // Reconnect with the cache read back from disk.
+        startProbe(new CapabilityCache(file));
+        reply("41 00 BE 3F A8 13\r\r");
+        reply("A6\r\r");
+        reply(VIN_REPLY);
+        assertEquals(List.of("0100", "ATDPN", "0902"), written);
+        assertTrue(resultCached);
+        assertEquals("1D4GP24R45B123456", result.getVin());
+        assertTrue(result.isSupported(0x42));
+    }
+
+    @Test
+    public void reprobesWhenAnotherVehicleAnswers() throws Exception {
+        CapabilityCache cache = new CapabilityCache(file);
+        startProbe(cache);
+        reply("41 00 BE 3F A8 12\r\r");
+        reply("A6\r\r");
+        reply(VIN_REPLY);
+        assertFalse(resultCached);
+
+        startProbe(cache);
+        reply("41 00 88 18 80 10\r\r");
+        reply("A6\r\r");
+        assertEquals("0902", written.get(written.size() - 1));
+        reply("NO DATA\r\r");
+        assertFalse(resultCached);
+        assertEquals("", result.getVin());
+        assertFalse(result.isSupported(Pids.ENGINE_LOAD));
+    }
+
+    @Test
+    public void reprobesAnotherVehicleOfTheSameModel() throws Exception {
+        CapabilityCache cache = new CapabilityCache(file);
+        startProbe(cache);
+        reply("41 00 BE 3F A8 13\r\r");
+        reply("A6\r\r");
+        reply("41 20 00 00 00 00\r\r");
+        reply(VIN_REPLY);
+
+        // Same protocol and 01-20 bitmap, different VIN and more PIDs from 0x20 up.
+        startProbe(cache);
+        reply("41 00 BE 3F A8 13\r\r");
+        reply("A6\r\r");
+        reply(VIN_REPLY.replace("36\r\r", "37\r\r"));
+        reply("41 20 80 02 00 01\r\r");
+        reply("41 40 40 00 00 00\r\r");
+        assertEquals(List.of("0100", "ATDPN", "0902", "0120", "0140"), written);
+        assertFalse(resultCached);
+        assertEquals("1D4GP24R45B123457", result.getVin());
+        assertTrue(result.isSupported(0x42));
+
+        // Back to the first car: its own entry, not the last one, is confirmed.
+        startProbe(cache);
+        reply("41 00 BE 3F A8 13\r\r");
+        reply("A6\r\r");
+        reply(VIN_REPLY);
+        assertTrue(resultCached);
+        assertEquals("1D4GP24R45B123456", result.getVin());
+        assertFalse(result.isSupported(0x42));
+        assertEquals("1D4GP24R45B123456", cache.getLast(ADAPTER).getVin());
+    }
+
+    @Test
+    public void parsesLegacyVinLines() {
+        String reply = "49 02 01 00 00 00 31\n49 02 02 44 34 47 50\n49 02 03 32 34 52 34\n"
+                + "49 02 04 35 42 31 32\n49 02 05 33 34 35 36";
+        assertEquals("1D4GP24R45B123456", CapabilityProbe.parseVin(reply));
+    }
+
+    @Test
+    public void schedulerSkipsUnsupportedPids() throws Exception {
+        PollScheduler scheduler = new PollScheduler(null);
+        scheduler.addPid(Pids.ENGINE_RPM, 10, 0);
+        scheduler.addPid(Pids.FUEL_LEVEL, 10, 0);
+        VehicleCapabilities caps = new VehicleCapabilities();
+        caps.setSupported(Pids.ENGINE_RPM, true);
+        scheduler.setCapabilities(caps);
+        scheduler.start();
+
+        List<String> sent = new ArrayList<>();
+        CommandQueue queue = new CommandQueue(
+                bytes -> sent.add(new String(bytes, StandardCharsets.US_ASCII).trim()));
+        scheduler.onQueueDrained(queue);
+        assertEquals(List.of("01 0C"), sent);
+    }
+}
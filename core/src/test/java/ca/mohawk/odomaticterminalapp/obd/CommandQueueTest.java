@@ -0,0 +1,68 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CommandQueueTest {
+
+    private final List<String> written = new ArrayList<>();
+    private final CommandQueue queue = new CommandQueue(
+            bytes -> written.add(new String(bytes, StandardCharsets.US_ASCII)));
+    private final ResponseFramer framer = new ResponseFramer(queue);
+
+    private void reply(String text) throws Exception {
+        byte[] bytes = (text + ">").getBytes(StandardCharsets.US_ASCII);
+        framer.feed(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void coalescesUpToSixPidsPerRequest() throws Exception {
+        queue.enqueueRaw("ATE0", null);
+        for (int pid : new int[]{0x0C, 0x0D, 0x05, 0x0F, 0x10, 0x11, 0x2F}) {
+            queue.enqueuePid(pid, null);
+        }
+        assertEquals(1, written.size());
+
+        reply("OK\r\r");
+        assertEquals("01 0C 0D 05 0F 10 11\r", written.get(1));
+        reply("NO DATA\r\r");
+        assertEquals("01 2F\r", written.get(2));
+    }
+
+    @Test
+    public void splitsMultiFrameReplyPerPid() throws Exception {
+        int[] values = new int[0x100];
+        CommandQueue.PidListener listener = (pid, data, off, len, time) -> {
+            int v = 0;
+            for (int i = 0; i < len; i++) v = (v << 8) | (data[off + i] & 0xFF);
+            values[pid] = v;
+        };
+        queue.enqueueRaw("ATH0", null);
+        queue.enqueuePid(0x0C, listener);
+        queue.enqueuePid(0x0D, listener);
+        queue.enqueuePid(0x05, listener);
+        queue.enqueuePid(0x10, listener);
+
+        reply("OK\r\r");
+        reply("01 0C 0D 05 10\r00B\r0: 41 0C 1A F8 0D 32\r1: 05 7B 10 01 23 00 00\r\r");
+
+        assertEquals(0x1AF8, values[0x0C]);
+        assertEquals(0x32, values[0x0D]);
+        assertEquals(0x7B, values[0x05]);
+        assertEquals(0x0123, values[0x10]);
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void rawReplyGoesToItsOwnListener() throws Exception {
+        String[] reply = new String[1];
+        queue.enqueueRaw("ATI", (cmd, response, rtt) -> reply[0] = response);
+        reply("ATI\rELM327 v1.5\r\r");
+        assertEquals("ELM327 v1.5", reply[0]);
+    }
+}
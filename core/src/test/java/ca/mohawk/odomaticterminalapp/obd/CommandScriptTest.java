@@ -0,0 +1,99 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CommandScriptTest {
+
+    private static List<String> commands(CommandScript script) {
+        List<String> list = new ArrayList<>();
+        for (CommandScript.Step step : script.getSteps()) {
+            list.add(step.command);
+        }
+        return list;
+    }
+
+    @Test
+    public void expandsVariablesAndNestedLoops() {
+        CommandScript script = CommandScript.parse(
+                "# adapter setup\n"
+                        + "macro setup\n"
+                        + "set HDR 7E0\n"
+                        + "ATZ => ELM327\n"
+                        + "ATSH ${HDR}\n"
+                        + "repeat 2\n"
+                        + "  for PID in 0C 0D\n"
+                        + "    01$PID => 41 $PID\n"
+                        + "  end\n"
+                        + "end\n"
+                        + "ATH0\n");
+        assertEquals("setup", script.getName());
+        assertEquals(Arrays.asList("ATZ", "ATSH 7E0", "010C", "010D", "010C", "010D", "ATH0"),
+                commands(script));
+        CommandScript.Step step = script.getSteps().get(3);
+        assertEquals("41 0D", step.expected);
+        assertEquals(8, step.line);
+        assertTrue(step.accepts("SEARCHING...\n410D32"));
+        assertFalse(step.accepts("NO DATA"));
+        assertTrue(script.isStopOnFailure());
+    }
+
+    @Test
+    public void reportsTheLineOfAnError() {
+        String[] bad = {
+                "ATZ\nrepeat 2\n010C",
+                "ATZ\nend",
+                "ATSH $NOPE",
+                "for X 1 2\nend",
+                "repeat -1\nend",
+                "010C =>",
+        };
+        String[] lines = {"Line 2", "Line 2", "Line 1", "Line 1", "Line 1", "Line 1"};
+        for (int i = 0; i < bad.length; i++) {
+            try {
+                CommandScript.parse(bad[i]);
+                fail(bad[i]);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith(lines[i] + ":"));
+            }
+        }
+    }
+
+    @Test
+    public void capsRunawayLoops() {
+        try {
+            CommandScript.parse("repeat 10000\nrepeat 10000\n0100\nend\nend");
+            fail("nested loops expanded");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("steps"));
+        }
+        // Loops that expand to nothing are capped as well, and fail fast.
+        String[] empty = {"repeat 10000\nrepeat 10000\nset X 1\nend\nend",
+                "repeat 10000\nrepeat 10000\nrepeat 0\n0100\nend\nend\nend",
+                "for A in 1 2 3 4 5 6 7 8 9 10\nrepeat 10000\n# nothing\nend\nend"};
+        for (String text : empty) {
+            long start = System.nanoTime();
+            try {
+                CommandScript.parse(text);
+                fail(text);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("lines"));
+            }
+            assertTrue(System.nanoTime() - start < 1_000_000_000L);
+        }
+        assertEquals(1000, CommandScript.parse("repeat 1000\nset X 1\n0100\nend").getSteps().size());
+    }
+
+    @Test
+    public void tellsScriptsFromSingleCommands() {
+        assertFalse(CommandScript.looksLikeScript("010C"));
+        assertFalse(CommandScript.looksLikeScript("  AT SP 6 "));
+        assertTrue(CommandScript.looksLikeScript("ATZ\nATE0"));
+        assertTrue(CommandScript.looksLikeScript("0100 => 41 00"));
+    }
+}
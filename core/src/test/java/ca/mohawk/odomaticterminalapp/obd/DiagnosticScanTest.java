@@ -0,0 +1,248 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import ca.mohawk.odomaticterminalapp.link.Elm327Simulator;
+import ca.mohawk.odomaticterminalapp.link.ObdConnection;
+import ca.mohawk.odomaticterminalapp.link.Transport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DiagnosticScanTest {
+
+    private final Elm327Simulator simulator = new Elm327Simulator();
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final AdapterSettings settings = new AdapterSettings();
+    private ObdConnection connection;
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) connection.close();
+        simulator.close();
+    }
+
+    private DiagnosticReport scan() throws Exception {
+        return scan(simulator.newTransport());
+    }
+
+    private DiagnosticReport scan(Transport transport) throws Exception {
+        connect(transport);
+        return runScan();
+    }
+
+    private void connect(Transport transport) throws Exception {
+        connection = new ObdConnection(transport, new ObdConnection.Listener() {
+            @Override
+            public void onConnected(String name) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectFailed(IOException error) {
+            }
+
+            @Override
+            public void onDisconnected(IOException error) {
+            }
+
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+            }
+        });
+        connection.setSettings(settings);
+        connection.open();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+    }
+
+    private DiagnosticReport runScan() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        DiagnosticReport[] result = new DiagnosticReport[1];
+        new DiagnosticScan(settings, report -> {
+            result[0] = report;
+            done.countDown();
+        }).start(connection.getCommandQueue());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    @Test
+    public void readsCodesFreezeFrameAndMonitorsFromEveryEcu() throws Exception {
+        simulator.addStoredDtc(0x0133);
+        simulator.addStoredDtc(0x0220);
+        simulator.addStoredDtc(0x0300);
+        simulator.addStoredDtc(0xC123);
+        simulator.addPendingDtc(0x0171);
+        simulator.addPermanentDtc(0x0133);
+        simulator.addStoredDtc(0x7E9, 0x0700);
+        simulator.storeFreezeFrame(0x0133);
+        simulator.addMonitorTest(0x01, 0x80, 0x0A, 0x0BB0, 0x0B1A, 0x0C1C);
+        simulator.addMonitorTest(0x21, 0x81, 0x01, 500, 0, 400);
+
+        DiagnosticReport report = scan();
+        assertEquals(2, report.getEcus().size());
+        DiagnosticReport.Ecu engine = report.getEcu(0x7E8);
+        assertEquals(Arrays.asList("P0133", "P0220", "P0300", "U0123"), engine.getStored());
+        assertEquals(Arrays.asList("P0171"), engine.getPending());
+        assertEquals(Arrays.asList("P0133"), engine.getPermanent());
+        assertEquals(Arrays.asList("P0700"), report.getEcu(0x7E9).getStored());
+        assertTrue(report.getEcu(0x7E9).getPending().isEmpty());
+
+        assertEquals("P0133", engine.getFreezeFrameDtc());
+        assertEquals(1726.0, engine.getFreezeFrame().get(Pids.ENGINE_RPM), 1e-9);
+        assertEquals(50.0, engine.getFreezeFrame().get(Pids.VEHICLE_SPEED), 1e-9);
+        assertEquals(83.0, engine.getFreezeFrame().get(Pids.COOLANT_TEMP), 1e-9);
+
+        assertEquals(2, engine.getTests().size());
+        assertTrue(engine.getTests().get(0).passed());
+        assertFalse(engine.getTests().get(1).passed());
+        assertEquals(0x21, engine.getTests().get(1).mid);
+        assertEquals(7, report.getDtcCount());
+    }
+
+    @Test
+    public void restoresHeadersAfterwards() throws Exception {
+        DiagnosticReport report = scan();
+        assertEquals(0, report.getDtcCount());
+        assertNull(report.getEcu(0x7E8).getFreezeFrameDtc());
+
+        CountDownLatch done = new CountDownLatch(1);
+        String[] reply = new String[1];
+        connection.getCommandQueue().enqueueRaw("010D", (command, r, rtt) -> {
+            reply[0] = r;
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("41 0D 32", reply[0]);
+    }
+
+    @Test
+    public void ignoresMonitorBitmapsWithABadBase() throws Exception {
+        List<String> written = new ArrayList<>();
+        CommandQueue queue = new CommandQueue(bytes -> written.add(new String(bytes, StandardCharsets.US_ASCII)));
+        ResponseFramer framer = new ResponseFramer(queue);
+        DiagnosticReport[] result = new DiagnosticReport[1];
+        new DiagnosticScan(null, report -> result[0] = report).start(queue);
+        while (!written.get(written.size() - 1).startsWith("060020")) {
+            reply(framer, "NO DATA\r\r");
+        }
+        // Bases that are not a multiple of 0x20, or past E0, are dropped; E0 itself stays in range.
+        reply(framer, "7E8 06 46 E1 FF FF FF FF\r7E9 06 46 E0 FF FF FF FF\r"
+                + "7EA 06 46 00 80 00 00 01\r7EB 06 46 FF 80 00 00 00\r\r");
+        assertEquals("0601\r", written.get(written.size() - 1));
+        reply(framer, "NO DATA\r\r");
+        reply(framer, "OK\r\r");
+        reply(framer, "OK\r\r");
+        assertEquals(Arrays.asList("ATH0\r", "ATCAF1\r"), written.subList(written.size() - 2, written.size()));
+        assertNotNull(result[0]);
+    }
+
+    private static void reply(ResponseFramer framer, String text) throws IOException {
+        byte[] bytes = (text + ">").getBytes(StandardCharsets.US_ASCII);
+        framer.feed(bytes, 0, bytes.length);
+    }
+
+    /** Simulator transport that keeps a copy of everything written to the adapter. */
+    private static class Tapped implements Transport {
+        final Transport inner;
+        final StringBuffer written = new StringBuffer();
+
+        Tapped(Transport inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            inner.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return inner.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return new FilterOutputStream(inner.getOutputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    written.append(new String(b, off, len, StandardCharsets.US_ASCII));
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public boolean setReadTimeout(int millis) throws IOException {
+            return inner.setReadTimeout(millis);
+        }
+
+        @Override
+        public String getName() {
+            return inner.getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            inner.close();
+        }
+    }
+
+    @Test
+    public void pollingPausesWhileHeadersAreOn() throws Exception {
+        Tapped transport = new Tapped(simulator.newTransport());
+        connect(transport);
+        List<Double> rpm = new CopyOnWriteArrayList<>();
+        // A poller with RPM always due: asked for work, it always has some.
+        CommandQueue queue = connection.getCommandQueue();
+        queue.setRequestSource(q -> q.enqueuePid(Pids.ENGINE_RPM, (pid, data, offset, length, timeNanos) ->
+                rpm.add(PidDecoder.decode(pid, data, offset, length))));
+        queue.kick();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (rpm.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        DiagnosticReport report = runScan();
+        assertNotNull(report.getEcu(0x7E8));
+        int afterScan = rpm.size();
+        while (rpm.size() < afterScan + 5 && System.currentTimeMillis() < deadline + 5000) {
+            Thread.sleep(5);
+        }
+        assertTrue("polling did not resume", rpm.size() >= afterScan + 5);
+        queue.setRequestSource(null);
+
+        String written = transport.written.toString();
+        int on = written.indexOf("ATH1\r");
+        int off = written.indexOf("ATH0\r", on);
+        assertTrue(written, on > 0 && off > on);
+        for (String command : written.substring(on, off).split("\r")) {
+            assertFalse(written, command.startsWith("01"));
+        }
+        for (double value : rpm) {
+            assertEquals(1726.0, value, 1e-9);
+        }
+    }
+
+    @Test
+    public void formatsAndParsesCodes() {
+        assertEquals("P0133", Dtc.format(0x0133));
+        assertEquals("C1234", Dtc.format(0x5234));
+        assertEquals("B2A0F", Dtc.format(0xAA0F));
+        assertEquals("U0123", Dtc.format(0xC123));
+        assertEquals(0xAA0F, Dtc.parse("B2A0F"));
+        assertEquals(-1, Dtc.parse("X0133"));
+    }
+}
@@ -0,0 +1,57 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IsoTpAssemblerTest {
+
+    @Test
+    public void reassemblesInterleavedEcus() {
+        String reply = "7E8 10 0A 43 04 01 33 02 20\n"
+                + "7E9 04 43 01 07 00\n"
+                + "7E8 21 03 00 C1 23 00 00 00";
+        List<IsoTpAssembler.Message> messages = IsoTpAssembler.assemble(reply, true);
+        assertEquals(2, messages.size());
+        assertEquals(0x7E9, messages.get(0).ecu);
+        assertArrayEquals(new byte[]{0x43, 0x01, 0x07, 0x00}, messages.get(0).data);
+        IsoTpAssembler.Message engine = messages.get(1);
+        assertEquals(0x7E8, engine.ecu);
+        assertEquals(10, engine.length());
+        assertEquals(0xC1, engine.get(8));
+        assertEquals(0x23, engine.get(9));
+    }
+
+    @Test
+    public void dropsMessageWithMissingFrame() {
+        IsoTpAssembler assembler = new IsoTpAssembler(true);
+        assembler.addLine("7E8 10 14 49 02 01 31 44 34");
+        assembler.addLine("7E8 22 47 50 32 34 52 34 35");
+        assembler.addLine("NO DATA");
+        assertTrue(assembler.getMessages().isEmpty());
+        assertEquals(1, assembler.getErrors());
+    }
+
+    @Test
+    public void reads29BitIdsAndCompactLines() {
+        List<IsoTpAssembler.Message> messages = IsoTpAssembler.assemble(
+                "18DAF110064100BE3FA813\n18 DA F1 1A 03 41 0D 32", true);
+        assertEquals(2, messages.size());
+        assertEquals(0x18DAF110, messages.get(0).ecu);
+        assertEquals(6, messages.get(0).length());
+        assertEquals(0x18DAF11A, messages.get(1).ecu);
+        assertEquals(0x32, messages.get(1).get(2));
+    }
+
+    @Test
+    public void headersOffUsesLengthLine() {
+        List<IsoTpAssembler.Message> messages = IsoTpAssembler.assemble(
+                "00A\n0: 43 04 01 33 02 20\n1: 03 00 C1 23 00 00 00\n43 00", false);
+        assertEquals(2, messages.size());
+        assertEquals(IsoTpAssembler.UNKNOWN_ECU, messages.get(0).ecu);
+        assertEquals(10, messages.get(0).length());
+        assertEquals(2, messages.get(1).length());
+    }
+}
@@ -0,0 +1,83 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LinkTunerTest {
+
+    private static final int[] PIDS = {Pids.ENGINE_RPM, Pids.VEHICLE_SPEED};
+
+    private final List<String> written = new ArrayList<>();
+    private final CommandQueue queue = new CommandQueue(
+            bytes -> written.add(new String(bytes, StandardCharsets.US_ASCII).trim()));
+    private final ResponseFramer framer = new ResponseFramer(queue);
+    private final AdapterSettings settings = new AdapterSettings();
+    private final LinkTuner tuner = new LinkTuner(queue);
+
+    @Before
+    public void setUp() {
+        tuner.setSettings(settings);
+        queue.setBatchObserver(tuner);
+    }
+
+    private void reply(String text) throws Exception {
+        byte[] bytes = (text + ">").getBytes(StandardCharsets.US_ASCII);
+        framer.feed(bytes, 0, bytes.length);
+    }
+
+    // Polls one batch and answers it, and any AT command the tuner sends, until idle.
+    private void poll(String batchReply) throws Exception {
+        queue.enqueuePids(PIDS, PIDS.length, null);
+        while (!queue.isIdle()) {
+            String last = written.get(written.size() - 1);
+            reply(last.startsWith("AT") ? "OK\r\r" : batchReply);
+        }
+    }
+
+    @Test
+    public void usesResponseCountThenShortTimeout() throws Exception {
+        for (int i = 0; i < 16; i++) {
+            poll("41 0C 1A F8 0D 32\r\r");
+        }
+        assertEquals(1, queue.getResponseCount());
+        poll("41 0C 1A F8 0D 32\r\r");
+        assertTrue(written.contains("01 0C 0D 1"));
+
+        for (int i = 0; i < 16; i++) {
+            poll("41 0C 1A F8 0D 32\r\r");
+        }
+        assertTrue(written.contains("ATST06"));
+        assertEquals(24, tuner.getTimeoutMillis());
+        assertTrue(settings.warmStart().contains("ATST06"));
+    }
+
+    @Test
+    public void keepsWaitingWhenEcuCountVaries() throws Exception {
+        for (int i = 0; i < 16; i++) {
+            poll(i % 2 == 0 ? "41 0C 1A F8 0D 32\r\r" : "41 0C 1A F8\r41 0D 32\r\r");
+        }
+        assertEquals(0, queue.getResponseCount());
+        assertEquals(LinkTuner.DEFAULT_TIMEOUT_MS, tuner.getTimeoutMillis());
+    }
+
+    @Test
+    public void noDataUndoesTuning() throws Exception {
+        for (int i = 0; i < 32; i++) {
+            poll("41 0C 1A F8 0D 32\r\r");
+        }
+        assertEquals(24, tuner.getTimeoutMillis());
+
+        poll("NO DATA\r\r");
+        assertEquals(0, queue.getResponseCount());
+        assertEquals(LinkTuner.DEFAULT_TIMEOUT_MS, tuner.getTimeoutMillis());
+        assertEquals(1, tuner.getAdaptiveMode());
+        assertTrue(written.contains("ATST32"));
+        assertEquals(1, tuner.getBackoffCount());
+    }
+}
@@ -0,0 +1,239 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PollSchedulerTest {
+
+    private static final long MS = 1_000_000L;
+
+    private final List<String> written = new ArrayList<>();
+    private final CommandQueue queue = new CommandQueue(
+            bytes -> written.add(new String(bytes, StandardCharsets.US_ASCII)));
+    private final ResponseFramer framer = new ResponseFramer(queue);
+    private final List<double[]> reported = new ArrayList<>();
+    // The scheduler's clock, moved on by the tests.
+    private long now = System.nanoTime();
+    private final PollScheduler scheduler = new PollScheduler((pid, timeNanos, value) ->
+            reported.add(new double[]{pid, timeNanos / MS, value}), () -> now);
+
+    private void reply(String text) throws Exception {
+        byte[] bytes = (text + ">").getBytes(StandardCharsets.US_ASCII);
+        framer.feed(bytes, 0, bytes.length);
+    }
+
+    private void speed(long timeMillis, int kmh) {
+        scheduler.onPidData(Pids.VEHICLE_SPEED, new byte[]{(byte) kmh}, 0, 1, timeMillis * MS);
+    }
+
+    @Test
+    public void fillsEachRequestWithTheSixMostUrgentPids() throws Exception {
+        scheduler.addPid(Pids.FUEL_LEVEL, 0.2, 0);
+        scheduler.addPid(Pids.COOLANT_TEMP, 0.2, 0);
+        scheduler.addPid(Pids.ENGINE_LOAD, 1, 0);
+        scheduler.addPid(Pids.INTAKE_AIR_TEMP, 0.2, 0);
+        scheduler.addPid(Pids.VEHICLE_SPEED, 1, 1);
+        scheduler.addPid(Pids.MAF_RATE, 0.2, 0);
+        scheduler.addPid(Pids.THROTTLE_POSITION, 0.2, 0);
+        scheduler.addPid(Pids.ENGINE_RPM, 2, 2);
+        queue.setRequestSource(scheduler);
+        scheduler.start();
+        queue.kick();
+
+        // Priority first, then lateness against each PID's own period; equally late ones in the order added.
+        assertEquals(List.of("01 0C 0D 04 2F 05 0F\r"), written);
+        reply("41 0C 1A F8 0D 32 04 40 2F 80 05 7B 0F 50\r\r");
+        int[] order = {0x0C, 0x0D, 0x04, 0x2F, 0x05, 0x0F};
+        assertEquals(order.length, reported.size());
+        for (int i = 0; i < order.length; i++) {
+            assertEquals(order[i], reported.get(i)[0], 0);
+        }
+        assertEquals(1726, reported.get(0)[2], 0);
+        assertEquals("01 10 11\r", written.get(1));
+        reply("41 10 01 23 11 20\r\r");
+
+        // Nothing else falls due for a while.
+        assertEquals(2, written.size());
+        assertTrue(queue.isIdle());
+        assertTrue(scheduler.nanosUntilDue(now) > 100_000_000L);
+    }
+
+    @Test
+    public void asksAgainForAPidThatNeverAnswered() throws Exception {
+        scheduler.addPid(Pids.ENGINE_RPM, 10, 0);
+        queue.setRequestSource(scheduler);
+        scheduler.start();
+        queue.kick();
+        reply("NO DATA\r\r");
+        // Still counted as outstanding, so not asked for again yet.
+        queue.kick();
+        assertEquals(List.of("01 0C\r"), written);
+        assertEquals(2_000_000_000L, scheduler.nanosUntilDue(now));
+
+        now += 2_100_000_000L;
+        queue.kick();
+        assertEquals(List.of("01 0C\r", "01 0C\r"), written);
+    }
+
+    @Test
+    public void reportsWhenARateFallsShortAndRecovers() throws Exception {
+        List<String> changes = new ArrayList<>();
+        scheduler.setRateListener((pid, targetHz, achievedHz, met) ->
+                changes.add(String.format("%02X %s", pid, met ? "met" : "short")));
+        scheduler.addPid(Pids.ENGINE_RPM, 10, 0);
+        scheduler.start();
+
+        // Nothing for a whole measuring window.
+        now += 5_100_000_000L;
+        scheduler.onQueueDrained(queue);
+        assertEquals(List.of("0C short"), changes);
+        assertEquals(0, scheduler.getAchievedHz(Pids.ENGINE_RPM), 0);
+
+        // Sixty samples in the next window, about 12 Hz against a target of 10.
+        byte[] rpm = {0x1A, (byte) 0xF8};
+        for (int i = 0; i < 60; i++) {
+            now += 85_000_000L;
+            scheduler.onPidData(Pids.ENGINE_RPM, rpm, 0, rpm.length, now);
+        }
+        now += 5_100_000_000L - 60 * 85_000_000L;
+        scheduler.onQueueDrained(queue);
+        assertEquals(List.of("0C short", "0C met"), changes);
+        assertEquals(60 / 5.1, scheduler.getAchievedHz(Pids.ENGINE_RPM), 1e-9);
+    }
+
+    @Test
+    public void steadyValuesSlowThePidDownAndAreDropped() {
+        scheduler.addPid(Pids.VEHICLE_SPEED, 10, 1);
+        scheduler.setDeadBand(Pids.VEHICLE_SPEED, 1, 1);
+        speed(0, 100);
+        speed(100, 101);
+        speed(300, 100);
+        speed(700, 99);
+        assertEquals(1, reported.size());
+        assertEquals(3, scheduler.getSuppressedCount());
+        assertEquals(1.25, scheduler.getPollHz(Pids.VEHICLE_SPEED), 1e-9);
+        speed(1500, 100);
+        assertEquals(1, scheduler.getPollHz(Pids.VEHICLE_SPEED), 1e-9);
+
+        // A change gets through at once and restores the full rate.
+        speed(2500, 104);
+        assertEquals(2, reported.size());
+        assertEquals(104, reported.get(1)[2], 0);
+        assertEquals(10, scheduler.getPollHz(Pids.VEHICLE_SPEED), 1e-9);
+
+        // A steady value is still reported now and then.
+        for (long t = 2600; t <= 4500; t += 100) {
+            speed(t, 104);
+        }
+        assertEquals(3, reported.size());
+        assertEquals(4500, reported.get(2)[1], 0);
+    }
+
+    @Test
+    public void highwayCruiseLogsAnOrderOfMagnitudeFewerSamples() {
+        scheduler.addPid(Pids.VEHICLE_SPEED, 10, 1);
+        scheduler.addPid(Pids.ENGINE_RPM, 20, 2);
+        scheduler.setDeadBand(Pids.VEHICLE_SPEED, 1, 1);
+        Random random = new Random(3);
+        int polled = 0;
+        long t = 0;
+        // Ten minutes at 100 km/h, wandering a km/h either way, polled at whatever rate the scheduler asks for.
+        while (t < 600_000) {
+            speed(t, 100 + random.nextInt(2));
+            polled++;
+            t += Math.round(1000 / scheduler.getPollHz(Pids.VEHICLE_SPEED));
+        }
+        assertTrue("polled " + polled, polled < 6000 / 5);
+        assertTrue("reported " + reported.size(), reported.size() * 10 < 6000);
+        assertEquals(20, scheduler.getPollHz(Pids.ENGINE_RPM), 1e-9);
+    }
+
+    @Test
+    public void alertsSeeEverySampleAndHoldTheFullRateNearAThreshold() {
+        List<String> alerts = new ArrayList<>();
+        AlertRules rules = AlertRules.compile("Over-rev: RPM > 6500 for 500ms\nCoolant hot: ECT > 105 for 3s",
+                (rule, raised, timeNanos, value) -> alerts.add(rule.name + "@" + timeNanos / MS));
+        scheduler.setEverySampleListener(rules);
+        scheduler.setSlowdownGuard(rules::maySlowDown);
+        scheduler.addPid(Pids.ENGINE_RPM, 20, 2);
+        scheduler.setDeadBand(Pids.ENGINE_RPM, 50, 2);
+        scheduler.addPid(Pids.COOLANT_TEMP, 0.5, 0);
+        scheduler.setDeadBand(Pids.COOLANT_TEMP, 1, 0.1);
+
+        // Far from any threshold both PIDs slow down to their floor.
+        long t = poll(Pids.ENGINE_RPM, 0, 10_000, 3000);
+        assertEquals(2, scheduler.getPollHz(Pids.ENGINE_RPM), 1e-9);
+        long end = poll(Pids.COOLANT_TEMP, 0, 60_000, 90);
+        assertEquals(0.1, scheduler.getPollHz(Pids.COOLANT_TEMP), 1e-9);
+
+        // The over-rev is timed on full-rate samples that storage never sees.
+        int stored = reported.size();
+        t = poll(Pids.ENGINE_RPM, t, t + 1000, 6600);
+        assertEquals("[Over-rev@" + (t - 1000 + 500) + "]", alerts.toString());
+        assertEquals(20, scheduler.getPollHz(Pids.ENGINE_RPM), 1e-9);
+        assertEquals(stored + 1, reported.size());
+
+        // Within a band of its threshold the coolant stays on 0.5 Hz.
+        end = poll(Pids.COOLANT_TEMP, end, end + 60_000, 104);
+        assertEquals(0.5, scheduler.getPollHz(Pids.COOLANT_TEMP), 1e-9);
+        long hot = end;
+        poll(Pids.COOLANT_TEMP, hot, hot + 5000, 106);
+        assertEquals("Coolant hot@" + (hot + 4000), alerts.get(1));
+    }
+
+    // Polls pid at the rate the scheduler asks for from startMillis until before endMillis; returns the next due time.
+    private long poll(int pid, long startMillis, long endMillis, int value) {
+        long t = startMillis;
+        while (t < endMillis) {
+            if (pid == Pids.ENGINE_RPM) {
+                scheduler.onPidData(pid, new byte[]{(byte) (value * 4 >> 8), (byte) (value * 4)}, 0, 2, t * MS);
+            } else {
+                scheduler.onPidData(pid, new byte[]{(byte) (value + 40)}, 0, 1, t * MS);
+            }
+            t += Math.round(1000 / scheduler.getPollHz(pid));
+        }
+        return t;
+    }
+
+    @Test
+    public void rejectsRatesThatCannotBeScheduled() {
+        double[] bad = {0, -1, Double.NaN, Double.POSITIVE_INFINITY, 1e-9, 1e6};
+        for (double hz : bad) {
+            try {
+                scheduler.addPid(Pids.ENGINE_RPM, hz, 0);
+                fail("rate " + hz);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        int[] pids = {-1, 0x100};
+        for (int pid : pids) {
+            try {
+                scheduler.addPid(pid, 1, 0);
+                fail("PID " + pid);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertEquals(0, scheduler.getPollHz(Pids.ENGINE_RPM), 0);
+    }
+
+    @Test
+    public void deadBandNeedsAPolledPid() {
+        try {
+            scheduler.setDeadBand(Pids.COOLANT_TEMP, 1, 0.1);
+            fail("dead-band on a PID that is not polled");
+        } catch (IllegalArgumentException expected) {
+        }
+        scheduler.addPid(Pids.COOLANT_TEMP, 1, 0);
+        try {
+            scheduler.setDeadBand(Pids.COOLANT_TEMP, 1, 0);
+            fail("zero floor rate");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ResponseFramerTest {
+
+    private final List<String> frames = new ArrayList<>();
+    private final ResponseFramer framer = new ResponseFramer(new ResponseFramer.FrameListener() {
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            frames.add(new String(buffer, offset, length, StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        public void onPrompt() {
+            frames.add(">");
+        }
+    });
+
+    private void feed(String text) throws Exception {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        framer.feed(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void splitsOnCarriageReturnAndPrompt() throws Exception {
+        feed("010C\r41 0C 1A F8\r\r>");
+        assertEquals(List.of("010C", "41 0C 1A F8", ">"), frames);
+    }
+
+    @Test
+    public void joinsLinesSplitAcrossReads() throws Exception {
+        feed("41 0");
+        feed("C 1A");
+        feed(" F8\r\n>");
+        assertEquals(List.of("41 0C 1A F8", ">"), frames);
+    }
+
+    @Test
+    public void splitsLinesLongerThanCapacity() throws Exception {
+        ResponseFramer small = new ResponseFramer(new ResponseFramer.FrameListener() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                frames.add(new String(buffer, offset, length, StandardCharsets.US_ASCII));
+            }
+
+            @Override
+            public void onPrompt() {
+            }
+        }, 16);
+        byte[] line = "0123456789ABCDEF0123\r".getBytes(StandardCharsets.US_ASCII);
+        for (byte b : line) {
+            small.feed(new byte[]{b}, 0, 1);
+        }
+        assertEquals(List.of("0123456789ABCDEF", "0123"), frames);
+        assertEquals(1, small.getOverflowCount());
+    }
+
+    @Test
+    public void steadyStateFramingDoesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] sink = new long[1];
+        ResponseFramer counting = new ResponseFramer(new ResponseFramer.FrameListener() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                sink[0] += length;
+            }
+
+            @Override
+            public void onPrompt() {
+                sink[0]++;
+            }
+        });
+        // Reads that cut lines in odd places, as the RFCOMM stream does.
+        byte[] stream = "7E8 03 41 0D 32\r7E8 04 41 0C 1A F8\r7E9 03 41 05 7B\r\r>"
+                .getBytes(StandardCharsets.US_ASCII);
+        int chunk = 7;
+        for (int i = 0; i < 20_000; i++) {
+            for (int off = 0; off < stream.length; off += chunk) {
+                counting.feed(stream, off, Math.min(chunk, stream.length - off));
+            }
+        }
+
+        long framesBefore = counting.getFrameCount();
+        long tid = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < 100_000; i++) {
+            for (int off = 0; off < stream.length; off += chunk) {
+                counting.feed(stream, off, Math.min(chunk, stream.length - off));
+            }
+        }
+        long allocated = threads.getThreadAllocatedBytes(tid) - before;
+        long framed = counting.getFrameCount() - framesBefore;
+
+        assertEquals(400_000, framed);
+        assertTrue("allocated " + allocated + " bytes for " + framed + " frames",
+                allocated < framed / 100);
+    }
+}
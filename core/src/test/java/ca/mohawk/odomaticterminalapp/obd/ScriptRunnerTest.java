@@ -0,0 +1,151 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import ca.mohawk.odomaticterminalapp.link.Elm327Simulator;
+import ca.mohawk.odomaticterminalapp.link.ObdConnection;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ScriptRunnerTest {
+
+    private final Elm327Simulator simulator = new Elm327Simulator();
+    private final AdapterSettings settings = new AdapterSettings();
+    private ObdConnection connection;
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) connection.close();
+        simulator.close();
+    }
+
+    private ScriptRunner.Result run(String text, List<ScriptRunner.StepResult> steps) throws Exception {
+        CountDownLatch connected = new CountDownLatch(1);
+        connection = new ObdConnection(simulator.newTransport(), new ObdConnection.Listener() {
+            @Override
+            public void onConnected(String name) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectFailed(IOException error) {
+            }
+
+            @Override
+            public void onDisconnected(IOException error) {
+            }
+
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+            }
+        });
+        connection.setSettings(settings);
+        connection.open();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch done = new CountDownLatch(1);
+        ScriptRunner.Result[] result = new ScriptRunner.Result[1];
+        new ScriptRunner(CommandScript.parse(text), settings, new ScriptRunner.Listener() {
+            @Override
+            public void onStep(ScriptRunner.StepResult step) {
+                steps.add(step);
+            }
+
+            @Override
+            public void onScriptComplete(ScriptRunner.Result r) {
+                result[0] = r;
+                done.countDown();
+            }
+        }).start(connection.getCommandQueue());
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    @Test
+    public void runsEveryStepInOrderAndChecksReplies() throws Exception {
+        List<ScriptRunner.StepResult> steps = new ArrayList<>();
+        ScriptRunner.Result result = run("ATE0 => OK\nATH1 => OK\n"
+                + "repeat 5\nfor PID in 0C 0D 05\n01$PID => 41 $PID\nend\nend\n"
+                + "0902 => 49 02\nATH0", steps);
+
+        assertTrue(result.toString(), result.isSuccess());
+        assertEquals(19, result.getSteps().size());
+        assertEquals(steps, result.getSteps());
+        for (int i = 0; i < steps.size(); i++) {
+            assertEquals(i, steps.get(i).index);
+            assertTrue(steps.get(i).roundTripNanos > 0);
+        }
+        // AT commands from scripts are remembered like typed ones.
+        assertEquals("ATH0", settings.get("H"));
+    }
+
+    @Test
+    public void pipelinesAheadOfTheReply() throws Exception {
+        simulator.setLatency(20, 0);
+        List<ScriptRunner.StepResult> steps = new ArrayList<>();
+        ScriptRunner.Result result = run("repeat 10\n010D\nend", steps);
+
+        assertTrue(result.isSuccess());
+        // Each step costs the ECU latency, never a round trip through the caller on top.
+        assertTrue(result.getElapsedMillis() < 10 * 20 + 150);
+    }
+
+    @Test
+    public void stopsAfterFailedCheck() throws Exception {
+        simulator.removePid(0x0D);
+        List<ScriptRunner.StepResult> steps = new ArrayList<>();
+        ScriptRunner.Result result = run("010C\n010D => 41 0D\n0105\n010F\n0110\n0111", steps);
+
+        assertFalse(result.isSuccess());
+        assertEquals(1, result.getFailureCount());
+        assertFalse(result.getSteps().get(1).passed);
+        // The step already queued behind the failure still runs, nothing after it.
+        assertEquals(3, result.getSteps().size());
+        assertTrue(result.getSteps().get(1).toString().contains("line 2"));
+    }
+
+    @Test
+    public void continuesWhenAsked() throws Exception {
+        simulator.removePid(0x0D);
+        List<ScriptRunner.StepResult> steps = new ArrayList<>();
+        ScriptRunner.Result result = run("onfail continue\n010D => 41 0D\n010C => 41 0C\n0105", steps);
+
+        assertEquals(3, result.getSteps().size());
+        assertEquals(1, result.getFailureCount());
+    }
+
+    @Test
+    public void pollingWaitsForTheScript() throws Exception {
+        List<String> written = new ArrayList<>();
+        CommandQueue queue = new CommandQueue(bytes -> written.add(new String(bytes, StandardCharsets.US_ASCII)));
+        ResponseFramer framer = new ResponseFramer(queue);
+        // A poller that always has a PID due.
+        queue.setRequestSource(q -> q.enqueuePid(Pids.ENGINE_RPM, null));
+        ScriptRunner.Result[] result = new ScriptRunner.Result[1];
+        new ScriptRunner(CommandScript.parse("ATH1\nATE0\nATS0\nATH0"), null, new ScriptRunner.Listener() {
+            @Override
+            public void onStep(ScriptRunner.StepResult step) {
+            }
+
+            @Override
+            public void onScriptComplete(ScriptRunner.Result r) {
+                result[0] = r;
+            }
+        }).start(queue);
+        for (int i = 0; i < 4; i++) {
+            byte[] reply = "OK\r\r>".getBytes(StandardCharsets.US_ASCII);
+            framer.feed(reply, 0, reply.length);
+        }
+        assertTrue(result[0].isSuccess());
+        assertEquals(Arrays.asList("ATH1\r", "ATE0\r", "ATS0\r", "ATH0\r", "01 0C\r"), written);
+    }
+}
@@ -0,0 +1,98 @@
+package ca.mohawk.odomaticterminalapp.obd;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TripComputerTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    // Feeds pid at 10 Hz for the given seconds, starting at startNanos; returns the end time.
+    private static long feed(TripComputer trip, int pid, double value, long startNanos, int seconds) {
+        long t = startNanos;
+        for (int i = 0; i <= seconds * 10; i++) {
+            t = startNanos + i * SECOND / 10;
+            trip.onSample(pid, t, value);
+        }
+        return t;
+    }
+
+    @Test
+    public void integratesDistanceFuelAndEconomyFromMaf() {
+        TripComputer trip = new TripComputer();
+        // One minute at 60 km/h burning MAF 10 g/s, interleaved.
+        for (int i = 0; i <= 600; i++) {
+            long t = i * SECOND / 10;
+            trip.onSample(Pids.VEHICLE_SPEED, t, 60);
+            trip.onSample(Pids.MAF_RATE, t + 1000, 10);
+            trip.onSample(Pids.ENGINE_RPM, t + 2000, 2000);
+            trip.onSample(Pids.ENGINE_LOAD, t + 3000, 40);
+        }
+        TripComputer.Snapshot s = trip.snapshot();
+        assertEquals(1.0, s.distanceKm, 1e-9);
+        double litersPerHour = 10 * 3600 / TripComputer.GASOLINE_AIR_FUEL_RATIO / TripComputer.GASOLINE_DENSITY;
+        assertEquals(litersPerHour, s.fuelRateLph, 1e-9);
+        assertEquals(litersPerHour / 60, s.fuelLiters, 1e-9);
+        assertEquals(litersPerHour / 60 * 100, s.instantLitersPer100Km, 1e-9);
+        assertEquals(s.instantLitersPer100Km, s.tripLitersPer100Km, 1e-9);
+        assertEquals(60, s.movingSeconds, 1e-9);
+        assertEquals(60, s.engineSeconds, 1e-9);
+        assertEquals(0, s.idleSeconds, 0);
+        assertEquals(40, s.averageLoad, 1e-9);
+        assertEquals(40 * 60, s.loadIntegral, 1e-6);
+        assertEquals(60, s.averageSpeedKmh, 0.01);
+        assertEquals(60, s.maxSpeedKmh, 0);
+        assertTrue(s.toString(), s.toString().contains("1.00 km"));
+    }
+
+    @Test
+    public void countsIdleOnlyWithTheEngineRunning() {
+        TripComputer trip = new TripComputer();
+        trip.onSample(Pids.ENGINE_RPM, 0, 750);
+        for (int i = 0; i <= 100; i++) {
+            long t = i * SECOND / 10;
+            trip.onSample(Pids.ENGINE_RPM, t, 750);
+            trip.onSample(Pids.VEHICLE_SPEED, t, 0);
+        }
+        // Engine off: stopped but not idling.
+        for (int i = 101; i <= 200; i++) {
+            long t = i * SECOND / 10;
+            trip.onSample(Pids.ENGINE_RPM, t, 0);
+            trip.onSample(Pids.VEHICLE_SPEED, t, 0);
+        }
+        TripComputer.Snapshot s = trip.snapshot();
+        assertEquals(10, s.idleSeconds, 0.11);
+        assertEquals(0, s.movingSeconds, 0);
+        assertEquals(10, s.engineSeconds, 0.11);
+        assertTrue(Double.isNaN(s.instantLitersPer100Km));
+        assertTrue(Double.isNaN(s.tripLitersPer100Km));
+    }
+
+    @Test
+    public void prefersReportedFuelRateAndSkipsGaps() {
+        TripComputer trip = new TripComputer();
+        long end = feed(trip, Pids.ENGINE_FUEL_RATE, 6, 0, 60);
+        trip.onSample(Pids.MAF_RATE, end, 1000);
+        // The link drops for a minute; nothing is integrated across it.
+        feed(trip, Pids.ENGINE_FUEL_RATE, 6, end + 60 * SECOND, 60);
+        TripComputer.Snapshot s = trip.snapshot();
+        assertEquals(0.2, s.fuelLiters, 1e-9);
+        assertEquals(6, s.fuelRateLph, 0);
+
+        trip.reset();
+        s = trip.snapshot(s);
+        assertEquals(0, s.fuelLiters, 0);
+        assertTrue(Double.isNaN(s.fuelRateLph));
+        assertEquals(0, s.elapsedSeconds, 0);
+    }
+
+    @Test
+    public void rejectsImpossibleFuel() {
+        try {
+            new TripComputer(0, TripComputer.DIESEL_DENSITY);
+            fail("zero air-fuel ratio");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
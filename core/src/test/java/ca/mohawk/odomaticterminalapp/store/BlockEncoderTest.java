@@ -0,0 +1,101 @@
+package ca.mohawk.odomaticterminalapp.store;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockEncoderTest {
+
+    private static BlockDecoder decode(BlockEncoder e) {
+        byte[] payload = new byte[e.payloadLength() + 3];
+        e.copyTo(payload, 3);
+        int[] lengths = new int[e.columns() + 1];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = e.columnLength(i);
+        }
+        BlockDecoder d = new BlockDecoder();
+        d.reset(payload, 3, e.count(), e.firstTime(), lengths, e.columns());
+        return d;
+    }
+
+    @Test
+    public void roundTripsEveryTimestampBucketAndAwkwardValues() {
+        long[] dods = {0, 1, -1, 63, -63, 64, 65, -64, 255, -255, 256, 257, -256, 2047, -2047, 2048, -2048,
+                2049, 1L << 40, -(1L << 40), 0};
+        double[] specials = {0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.MIN_VALUE,
+                Double.MAX_VALUE, -1.5, 1e-300, 42, 42};
+        BlockEncoder e = new BlockEncoder(2);
+        long[] times = new long[dods.length + 1];
+        double[] values = new double[times.length];
+        long time = 1_700_000_000_000L;
+        long delta = 100;
+        for (int i = 0; i < times.length; i++) {
+            if (i > 0) {
+                delta += dods[i - 1];
+                time += delta;
+            }
+            times[i] = time;
+            values[i] = specials[i % specials.length];
+            e.time(time);
+            e.value(values[i]);
+            e.value(i);
+        }
+
+        BlockDecoder d = decode(e);
+        for (int i = 0; i < times.length; i++) {
+            assertTrue(d.next());
+            assertEquals("row " + i, times[i], d.time());
+            assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(d.value(0)));
+            assertEquals(i, d.value(1), 0);
+        }
+        assertFalse(d.next());
+    }
+
+    @Test
+    public void compressesARegularlyPolledSignal() {
+        Random random = new Random(3);
+        BlockEncoder e = new BlockEncoder(1);
+        double[] values = new double[1024];
+        double speed = 50;
+        long time = 0;
+        for (int i = 0; i < values.length; i++) {
+            time += 100 + random.nextInt(5) - 2;
+            speed = Math.max(0, speed + random.nextInt(3) - 1);
+            values[i] = speed;
+            e.time(time);
+            e.value(speed);
+        }
+        assertTrue("payload " + e.payloadLength(), e.payloadLength() < 2 * values.length);
+
+        BlockDecoder d = decode(e);
+        for (double v : values) {
+            assertTrue(d.next());
+            assertEquals(v, d.value(0), 0);
+        }
+        assertEquals(time, d.time());
+    }
+
+    @Test
+    public void tracksSummaryAndResets() {
+        BlockEncoder e = new BlockEncoder(1);
+        e.time(10);
+        e.value(3);
+        e.time(20);
+        e.value(-1);
+        assertEquals(-1, e.min(), 0);
+        assertEquals(3, e.max(), 0);
+        assertEquals(2, e.sum(), 0);
+        assertEquals(20, e.lastTime());
+
+        e.reset();
+        e.time(5);
+        e.value(7);
+        assertEquals(1, e.count());
+        BlockDecoder d = decode(e);
+        assertTrue(d.next());
+        assertEquals(5, d.time());
+        assertEquals(7, d.value(0), 0);
+    }
+}
@@ -0,0 +1,236 @@
+package ca.mohawk.odomaticterminalapp.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SampleStoreTest {
+
+    private static final long START = 1_700_000_000_000L;
+
+    private File dir;
+    private SampleStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("series").toFile();
+        store = new SampleStore(dir);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+
+    private static List<double[]> raw(SampleStore store, int series, long from, long to) throws IOException {
+        List<double[]> out = new ArrayList<>();
+        store.query(series, from, to, (t, v) -> out.add(new double[]{t, v}));
+        return out;
+    }
+
+    private static List<double[]> buckets(SampleStore store, int series, int level, long from, long to)
+            throws IOException {
+        List<double[]> out = new ArrayList<>();
+        store.queryRollup(series, level, from, to, (t, min, max, mean, n) -> out.add(new double[]{t, min, max, mean, n}));
+        return out;
+    }
+
+    @Test
+    public void queriesRangesAcrossSealedAndOpenBlocksAndReopens() throws IOException {
+        for (int i = 0; i < 5000; i++) {
+            store.append(0x0C, START + i * 100L, 800 + i % 50);
+            if (i % 2 == 0) store.append(0x0D, START + i * 100L, i / 100);
+        }
+        assertEquals(7500, store.getSampleCount());
+
+        List<double[]> range = raw(store, 0x0C, START + 100_000, START + 200_000);
+        assertEquals(1001, range.size());
+        assertEquals(START + 100_000, (long) range.get(0)[0]);
+        assertEquals(800, range.get(0)[1], 0);
+        assertEquals(4999 % 50 + 800, raw(store, 0x0C, START + 499_900, Long.MAX_VALUE).get(0)[1], 0);
+        assertTrue(raw(store, 0x0E, Long.MIN_VALUE, Long.MAX_VALUE).isEmpty());
+        assertFalse(store.append(0x0C, START, 1));
+
+        store.close();
+        store = new SampleStore(dir);
+        assertEquals(7500, store.getSampleCount());
+        assertEquals(range.size(), raw(store, 0x0C, START + 100_000, START + 200_000).size());
+        store.append(0x0C, START + 500_000, 1);
+        assertEquals(1, raw(store, 0x0C, START + 500_000, START + 500_000).size());
+    }
+
+    @Test
+    public void rollsUpPerSecondAndPerMinute() throws IOException {
+        // 10 Hz for three minutes: value = second of the run.
+        for (int i = 0; i < 1800; i++) {
+            store.append(1, START + i * 100L, i / 10);
+        }
+        long second = START - START % 1000;
+        List<double[]> seconds = buckets(store, 1, SampleStore.SECONDS, START, START + 9_999);
+        assertEquals(10, seconds.size());
+        assertEquals(START, (long) seconds.get(0)[0]);
+        assertEquals(10, seconds.get(3)[4], 0);
+        assertEquals(3, seconds.get(3)[3], 0);
+        assertEquals(second + 3000, (long) seconds.get(3)[0]);
+
+        List<double[]> minutes = buckets(store, 1, SampleStore.MINUTES, Long.MIN_VALUE, Long.MAX_VALUE);
+        long total = 0;
+        for (double[] b : minutes) total += (long) b[4];
+        assertEquals(1800, total);
+        assertEquals(0, minutes.get(0)[1], 0);
+        assertEquals(179, minutes.get(minutes.size() - 1)[2], 0);
+
+        // The last, unfinished minute survives a reopen and merges with what follows.
+        store.close();
+        store = new SampleStore(dir);
+        store.append(1, START + 180_000, 180);
+        minutes = buckets(store, 1, SampleStore.MINUTES, Long.MIN_VALUE, Long.MAX_VALUE);
+        total = 0;
+        for (int i = 1; i < minutes.size(); i++) {
+            assertTrue(minutes.get(i)[0] > minutes.get(i - 1)[0]);
+        }
+        for (double[] b : minutes) total += (long) b[4];
+        assertEquals(1801, total);
+    }
+
+    @Test
+    public void flushedSamplesAndFinishedBucketsSurviveACrash() throws IOException {
+        // 150 s of RPM at 10 Hz, and the fuel level every 5 s for its first minute only.
+        for (int i = 0; i < 1500; i++) {
+            store.append(0x0C, START + i * 100L, i / 10);
+            if (i % 50 == 0 && i < 600) store.append(0x2F, START + i * 100L, 50);
+        }
+        store.flush();
+
+        // Never closed: a second store over the same files sees what a restart after a crash would.
+        SampleStore restarted = new SampleStore(dir);
+        try {
+            assertEquals(1512, restarted.getSampleCount());
+            List<double[]> seconds = buckets(restarted, 0x0C, SampleStore.SECONDS, Long.MIN_VALUE, Long.MAX_VALUE);
+            // All but the second the last sample fell in.
+            assertEquals(149, seconds.size());
+            assertEquals(10, seconds.get(148)[4], 0);
+            // START is 20 s into a minute: the first two minutes are finished, the third is not.
+            List<double[]> minutes = buckets(restarted, 0x0C, SampleStore.MINUTES, Long.MIN_VALUE, Long.MAX_VALUE);
+            assertEquals(2, minutes.size());
+            assertEquals(400, minutes.get(0)[4], 0);
+            assertEquals(600, minutes.get(1)[4], 0);
+            // The fuel level's second minute ended long after its last sample, so it is written too.
+            List<double[]> fuel = buckets(restarted, 0x2F, SampleStore.MINUTES, Long.MIN_VALUE, Long.MAX_VALUE);
+            assertEquals(2, fuel.size());
+            assertEquals(8, fuel.get(0)[4], 0);
+            assertEquals(4, fuel.get(1)[4], 0);
+        } finally {
+            restarted.close();
+        }
+    }
+
+    @Test
+    public void keepsHoursOfPollingSmallAndPicksTheQueryLevel() throws IOException {
+        // Three hours of four PIDs at 10 Hz, with jitter and slowly moving values.
+        int samples = 0;
+        double rpm = 800;
+        double speed = 0;
+        for (int i = 0; i < 3 * 3600 * 10; i++) {
+            long t = START + i * 100L + (i * 7919) % 5;
+            rpm = Math.max(700, Math.min(4000, rpm + ((i * 31) % 41 - 20)));
+            speed = Math.max(0, Math.min(120, speed + ((i * 17) % 3 - 1)));
+            store.append(0x0C, t, Math.round(rpm * 4) / 4.0);
+            store.append(0x0D, t, speed);
+            store.append(0x05, t, 90);
+            store.append(0x11, t, Math.round((speed / 1.2) * 255 / 100) * 100 / 255.0);
+            samples += 4;
+        }
+        store.flush();
+        // Against 16 bytes a sample uncompressed, rollups included.
+        double perSample = (double) store.getSizeBytes() / samples;
+        assertTrue("bytes per sample " + perSample, perSample < 4);
+        assertTrue(store.getSizeBytes() < 2 * 1024 * 1024);
+
+        int[] points = new int[1];
+        long end = START + 3 * 3600 * 1000L;
+        assertEquals(SampleStore.MINUTES, store.queryAuto(0x0C, START, end, 500, (t, a, b, c, n) -> points[0]++));
+        assertTrue(points[0] <= 181);
+        points[0] = 0;
+        assertEquals(SampleStore.SECONDS, store.queryAuto(0x0C, START, START + 300_000, 500,
+                (t, a, b, c, n) -> points[0]++));
+        points[0] = 0;
+        assertEquals(SampleStore.RAW, store.queryAuto(0x0C, START, START + 20_000, 500,
+                (t, a, b, c, n) -> points[0]++));
+        assertEquals(201, points[0]);
+
+        long began = System.nanoTime();
+        assertEquals(36_001, raw(store, 0x0D, START + 3600_000, START + 7200_000).size());
+        assertTrue((System.nanoTime() - began) / 1_000_000 < 2000);
+    }
+
+    @Test
+    public void cutsOffATornBlockAndRejectsBadInput() throws IOException {
+        for (int i = 0; i < 2000; i++) {
+            store.append(2, START + i * 1000L, i);
+        }
+        store.close();
+        File[] segments = dir.listFiles();
+        assertEquals(1, segments.length);
+        long size = segments[0].length();
+        try (RandomAccessFile f = new RandomAccessFile(segments[0], "rw")) {
+            f.setLength(size - 10);
+        }
+
+        // The rollups were written last; losing the torn one leaves the raw samples whole.
+        store = new SampleStore(dir);
+        assertTrue(segments[0].length() < size - 10);
+        assertEquals(2000, raw(store, 2, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        store.append(2, START + 5_000_000, 1);
+        assertEquals(2001, raw(store, 2, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(0, store.getCorruptBlockCount());
+
+        try {
+            store.append(SampleStore.MAX_SERIES + 1, START, 0);
+            fail("series out of range");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            store.queryRollup(2, SampleStore.RAW, 0, 1, (t, a, b, c, n) -> { });
+            fail("raw is not a rollup");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void dropsALastSegmentWhoseHeaderNeverLanded() throws IOException {
+        for (int i = 0; i < 2000; i++) {
+            store.append(2, START + i * 1000L, i);
+        }
+        store.close();
+        File next = new File(dir, "segment-000002.tsd");
+        // Empty, cut inside the header, or a header-sized hole of zeros.
+        int[] lengths = {0, 5, 16};
+        for (int i = 0; i < lengths.length; i++) {
+            try (RandomAccessFile f = new RandomAccessFile(next, "rw")) {
+                f.setLength(lengths[i]);
+            }
+            store = new SampleStore(dir);
+            assertFalse(next.exists());
+            assertEquals(2000 + i, raw(store, 2, Long.MIN_VALUE, Long.MAX_VALUE).size());
+            store.append(2, START + 5_000_000 + i, 1);
+            store.close();
+        }
+        store = new SampleStore(dir);
+        assertEquals(2003, raw(store, 2, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+}